@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when patch application is cancelled by its {@link ApplyProgressListener}. The output is
+ * incomplete and should be discarded.
+ */
+@SuppressWarnings("serial")
+public class ApplyCancelledException extends InterruptedIOException {
+
+  /**
+   * Constructs a new exception with the specified message.
+   * @param message the message
+   */
+  public ApplyCancelledException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Keeps the running totals of one patch application and reports them to an {@link
+ * ApplyProgressListener}. The totals are counted by wrapping the streams that patch application
+ * reads and writes, which also check for cancellation on every read or write. All counting happens
+ * on the thread that applies the patch.
+ */
+final class ApplyProgress {
+  private final ApplyProgressListener listener;
+  private final long deltaFriendlyOldFileSize;
+  private final long totalDeltaBytes;
+  private final List<TypedRange<JreDeflateParameters>> recompressionPlan;
+  private long oldBlobBytesWritten = 0;
+  private long deltaBytesConsumed = 0;
+  private long newBytesProduced = 0;
+  private long deltaFriendlyNewBytesWritten = 0;
+  private int recompressionRangesCompleted = 0;
+
+  /**
+   * Creates the progress of applying the patch with the specified plan.
+   *
+   * @param listener the listener to report to
+   * @param plan the plan of the patch
+   */
+  ApplyProgress(ApplyProgressListener listener, PatchApplyPlan plan) {
+    this.listener = listener;
+    this.deltaFriendlyOldFileSize = plan.getDeltaFriendlyOldFileSize();
+    long deltaBytes = 0;
+    for (DeltaDescriptor descriptor : plan.getDeltaDescriptors()) {
+      deltaBytes += descriptor.getDeltaLength();
+    }
+    this.totalDeltaBytes = deltaBytes;
+    this.recompressionPlan = plan.getDeltaFriendlyNewFileRecompressionPlan();
+  }
+
+  /**
+   * Returns the listener that this progress is reported to.
+   *
+   * @return the listener
+   */
+  ApplyProgressListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Throws if the listener has cancelled patch application.
+   *
+   * @throws ApplyCancelledException if it has
+   */
+  void checkCancelled() throws ApplyCancelledException {
+    checkCancelled(listener);
+  }
+
+  /**
+   * Throws if the specified listener has cancelled patch application.
+   *
+   * @param listener the listener, or null
+   * @throws ApplyCancelledException if the listener is non-null and has cancelled
+   */
+  static void checkCancelled(ApplyProgressListener listener) throws ApplyCancelledException {
+    if (listener != null && listener.isCancelled()) {
+      throw new ApplyCancelledException("Patch application cancelled");
+    }
+  }
+
+  /**
+   * Wraps the stream that the delta-friendly old blob is written to.
+   *
+   * @param out the stream to wrap
+   * @return the wrapped stream
+   */
+  OutputStream countOldBlobBytes(OutputStream out) {
+    return new CountingOutputStream(out) {
+      @Override
+      void counted(int numBytes) {
+        oldBlobBytesWritten += numBytes;
+        listener.oldBlobUncompressed(
+            oldBlobBytesWritten, deltaFriendlyOldFileSize, System.nanoTime());
+      }
+    };
+  }
+
+  /**
+   * Wraps the patch stream, positioned at the first byte of the first delta.
+   *
+   * @param in the stream to wrap
+   * @return the wrapped stream
+   */
+  InputStream countDeltaBytes(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        checkCancelled();
+        int result = super.read();
+        if (result >= 0) {
+          counted(1);
+        }
+        return result;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        checkCancelled();
+        int numRead = super.read(b, off, len);
+        if (numRead > 0) {
+          counted(numRead);
+        }
+        return numRead;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        checkCancelled();
+        long numSkipped = super.skip(n);
+        if (numSkipped > 0) {
+          counted(numSkipped);
+        }
+        return numSkipped;
+      }
+
+      private void counted(long numBytes) {
+        deltaBytesConsumed += numBytes;
+        listener.deltaBytesConsumed(deltaBytesConsumed, totalDeltaBytes, System.nanoTime());
+      }
+    };
+  }
+
+  /**
+   * Wraps the stream that the delta-friendly new blob is written to, i.e. the recompressing stream.
+   *
+   * @param out the stream to wrap
+   * @return the wrapped stream
+   */
+  OutputStream countRecompressionRanges(OutputStream out) {
+    return new CountingOutputStream(out) {
+      @Override
+      void counted(int numBytes) {
+        deltaFriendlyNewBytesWritten += numBytes;
+        int completedBefore = recompressionRangesCompleted;
+        while (recompressionRangesCompleted < recompressionPlan.size()) {
+          TypedRange<JreDeflateParameters> range =
+              recompressionPlan.get(recompressionRangesCompleted);
+          if (range.getOffset() + range.getLength() > deltaFriendlyNewBytesWritten) {
+            break;
+          }
+          recompressionRangesCompleted++;
+        }
+        if (recompressionRangesCompleted != completedBefore) {
+          listener.recompressionRangesCompleted(
+              recompressionRangesCompleted, recompressionPlan.size(), System.nanoTime());
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps the stream that the new blob is written to.
+   *
+   * @param out the stream to wrap
+   * @return the wrapped stream
+   */
+  OutputStream countNewBytes(OutputStream out) {
+    return new CountingOutputStream(out) {
+      @Override
+      void counted(int numBytes) {
+        newBytesProduced += numBytes;
+        listener.newBytesProduced(newBytesProduced, System.nanoTime());
+      }
+    };
+  }
+
+  /**
+   * An output stream that checks for cancellation before and counts the bytes after every write.
+   * Closing it does not close the underlying stream.
+   */
+  private abstract class CountingOutputStream extends FilterOutputStream {
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      checkCancelled();
+      out.write(b);
+      counted(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkCancelled();
+      out.write(b, off, len);
+      counted(len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    /**
+     * Called after the specified number of bytes has been written.
+     */
+    abstract void counted(int numBytes);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+/**
+ * Receives the progress of a patch being applied by {@link FileByFileV1DeltaApplier}, and may
+ * cancel it. Every report carries a timestamp from {@link System#nanoTime()}, so that throughput
+ * and the time spent in each part of patch application can be worked out from the reports.
+ *
+ * <p>Progress is reported on the thread that applies the patch, often, and while work is in
+ * progress; implementations should return quickly. {@link #isCancelled()} may additionally be
+ * called from the threads that apply deltas concurrently, and must be thread-safe.
+ */
+public interface ApplyProgressListener {
+  /**
+   * Called as the delta-friendly old blob is written, i.e. as the compressed ranges of the old blob
+   * are uncompressed. Not called when the old blob is inflated on demand.
+   *
+   * @param bytesWritten the number of bytes of the delta-friendly old blob written so far
+   * @param totalBytes the size of the delta-friendly old blob
+   * @param timestampNanos the value of {@link System#nanoTime()} at the time of the report
+   */
+  public void oldBlobUncompressed(long bytesWritten, long totalBytes, long timestampNanos);
+
+  /**
+   * Called as the deltas are read from the patch stream.
+   *
+   * @param bytesConsumed the number of bytes of deltas read so far
+   * @param totalBytes the total length of the deltas in the patch
+   * @param timestampNanos the value of {@link System#nanoTime()} at the time of the report
+   */
+  public void deltaBytesConsumed(long bytesConsumed, long totalBytes, long timestampNanos);
+
+  /**
+   * Called as the new blob is written to the output.
+   *
+   * @param bytesProduced the number of bytes of the new blob written so far
+   * @param timestampNanos the value of {@link System#nanoTime()} at the time of the report
+   */
+  public void newBytesProduced(long bytesProduced, long timestampNanos);
+
+  /**
+   * Called when the uncompressed data of one or more ranges of the new blob that have to be
+   * recompressed has been handed to the recompressing stream in full.
+   *
+   * @param rangesCompleted the number of ranges completed so far
+   * @param totalRanges the number of ranges in the recompression plan
+   * @param timestampNanos the value of {@link System#nanoTime()} at the time of the report
+   */
+  public void recompressionRangesCompleted(
+      int rangesCompleted, int totalRanges, long timestampNanos);
+
+  /**
+   * Returns whether patch application should stop as soon as possible. This is polled between
+   * the control entries of each delta and whenever data is written, and patch application fails
+   * with an {@link ApplyCancelledException} once it returns true.
+   *
+   * @return true to cancel patch application
+   */
+  public boolean isCancelled();
+}
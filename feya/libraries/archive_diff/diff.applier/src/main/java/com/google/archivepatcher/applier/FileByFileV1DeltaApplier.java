@@ -5,12 +5,31 @@
 package com.google.archivepatcher.applier;
 
 import com.google.archivepatcher.applier.bsdiff.BsDiffDeltaApplier;
+import com.google.archivepatcher.applier.bsdiff.OldDataSource;
+import com.google.archivepatcher.applier.bsdiff.OldDataSources;
+import com.google.archivepatcher.shared.ConcurrentTasks;
 import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 import com.google.archivepatcher.shared.RandomAccessFileOutputStream;
+import com.google.archivepatcher.shared.TypedRange;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Applies V1 patches.
@@ -22,11 +41,29 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
    */
   private static final int DEFAULT_COPY_BUFFER_SIZE = 32768;
 
+  /**
+   * Maximum number of uncompressed bytes that the recompression stream holds in memory when it
+   * recompresses on more than one thread.
+   */
+  private static final long DEFAULT_MAX_RECOMPRESSION_BUFFER_BYTES = 32L * 1024 * 1024;
+
   /**
    * The temp directory to use.
    */
   private final File tempDir;
 
+  /**
+   * The maximum number of deltas to apply at the same time, for patches with more than one delta,
+   * and the number of threads to recompress the new blob on.
+   */
+  private final int parallelism;
+
+  /**
+   * Whether to read the delta-friendly old blob through an {@link InflatingOldBlobView} instead of
+   * writing it to the temp directory.
+   */
+  private final boolean inflateOldBlobOnDemand;
+
   /**
    * Creates a new delta applier that will use the default temp directory for working files. This is
    * equivalent to calling {@link #FileByFileV1DeltaApplier(File)} with a <code>null</code> file
@@ -43,23 +80,84 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
    *     patch application process; if null, the system's default temporary directory is used
    */
   public FileByFileV1DeltaApplier(File tempDir) {
+    this(tempDir, 1);
+  }
+
+  /**
+   * Creates a new delta applier that will use the specified temp directory, and that applies the
+   * deltas of patches with more than one delta on up to the specified number of threads. When more
+   * than one thread is used, the deltas are first copied to the temp directory, then applied into a
+   * delta-friendly new blob in the temp directory, which is then recompressed into the output. The
+   * new blob is also recompressed on that many threads (see {@link
+   * ParallelPartiallyCompressingOutputStream}), whatever the number of deltas.
+   *
+   * @param tempDir a temp directory where the delta-friendly old blob can be written during the
+   *     patch application process; if null, the system's default temporary directory is used
+   * @param parallelism the maximum number of deltas to apply at the same time
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public FileByFileV1DeltaApplier(File tempDir, int parallelism) {
+    this(tempDir, parallelism, false);
+  }
+
+  /**
+   * Creates a new delta applier like {@link #FileByFileV1DeltaApplier(File, int)} that optionally
+   * never writes the delta-friendly old blob to disk. Instead, the deltas read a view of it that
+   * inflates the compressed ranges of the old blob on demand (see {@link InflatingOldBlobView}).
+   * This saves the disk space and the writes of the uncompressed old blob at the cost of some
+   * repeated inflation.
+   *
+   * @param tempDir a temp directory where the delta-friendly old blob can be written during the
+   *     patch application process; if null, the system's default temporary directory is used
+   * @param parallelism the maximum number of deltas to apply at the same time
+   * @param inflateOldBlobOnDemand if true, the delta-friendly old blob is never written to disk
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public FileByFileV1DeltaApplier(File tempDir, int parallelism, boolean inflateOldBlobOnDemand) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
     if (tempDir == null) {
       tempDir = new File(System.getProperty("java.io.tmpdir"));
     }
     this.tempDir = tempDir;
+    this.parallelism = parallelism;
+    this.inflateOldBlobOnDemand = inflateOldBlobOnDemand;
   }
 
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException {
+    applyDelta(oldBlob, deltaIn, newBlobOut, null);
+  }
+
+  /**
+   * Applies a delta from deltaIn to oldBlob and writes the result to newBlobOut, exactly as {@link
+   * #applyDelta(File, InputStream, OutputStream)} does, reporting progress to the specified
+   * listener and stopping with an {@link ApplyCancelledException} if it cancels.
+   *
+   * @param oldBlob the old blob
+   * @param deltaIn the delta to apply to the oldBlob
+   * @param newBlobOut the stream to write the result to
+   * @param listener the listener to report progress to and poll for cancellation, or null
+   * @throws ApplyCancelledException if the listener cancels patch application
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  public void applyDelta(
+      File oldBlob, InputStream deltaIn, OutputStream newBlobOut, ApplyProgressListener listener)
+      throws IOException {
     if (!tempDir.exists()) {
       // Be nice, try to create the temp directory. Don't bother to check return value as the code
       // will fail when it tries to create the file in a few more lines anyways.
       tempDir.mkdirs();
     }
+    if (inflateOldBlobOnDemand) {
+      applyDeltaInternal(oldBlob, null, deltaIn, newBlobOut, listener);
+      return;
+    }
     File tempFile = File.createTempFile("gfbfv1", "old", tempDir);
     try {
-      applyDeltaInternal(oldBlob, tempFile, deltaIn, newBlobOut);
+      applyDeltaInternal(oldBlob, tempFile, deltaIn, newBlobOut, listener);
     } finally {
       tempFile.delete();
     }
@@ -68,36 +166,301 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
   /**
    * Does the work for applying a delta.
    * @param oldBlob the old blob
-   * @param deltaFriendlyOldBlob the location in which to store the delta-friendly old blob
+   * @param deltaFriendlyOldBlob the location in which to store the delta-friendly old blob, or null
+   *     to read it through an {@link InflatingOldBlobView} instead
    * @param deltaIn the patch stream
    * @param newBlobOut the stream to write the new blob to after applying the delta
+   * @param listener the listener to report progress to and poll for cancellation, or null
    * @throws IOException if anything goes wrong
    */
   private void applyDeltaInternal(
-      File oldBlob, File deltaFriendlyOldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      File oldBlob,
+      File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream newBlobOut,
+      ApplyProgressListener listener)
       throws IOException {
 
     // First, read the patch plan from the patch stream.
     PatchReader patchReader = new PatchReader();
     PatchApplyPlan plan = patchReader.readPatchApplyPlan(deltaIn);
-    writeDeltaFriendlyOldBlob(plan, oldBlob, deltaFriendlyOldBlob);
-    // Apply the delta. In v1 there is always exactly one delta descriptor, it is bsdiff, and it
-    // takes up the rest of the patch stream - so there is no need to examine the list of
-    // DeltaDescriptors in the patch at all.
-    long deltaLength = plan.getDeltaDescriptors().get(0).getDeltaLength();
-    DeltaApplier deltaApplier = getDeltaApplier();
-    // Don't close this stream, as it is just a limiting wrapper.
-    @SuppressWarnings("resource")
-    LimitedInputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
+    ApplyProgress progress = null;
+    if (listener != null) {
+      progress = new ApplyProgress(listener, plan);
+      deltaIn = progress.countDeltaBytes(deltaIn);
+      newBlobOut = progress.countNewBytes(newBlobOut);
+    }
+    if (deltaFriendlyOldBlob != null) {
+      writeDeltaFriendlyOldBlob(plan, oldBlob, deltaFriendlyOldBlob, progress);
+    }
+    List<TypedRange<JreDeflateParameters>> recompressionPlan =
+        plan.getDeltaFriendlyNewFileRecompressionPlan();
+    ExecutorService recompressionPool = null;
     // Don't close this stream, as it would close the underlying OutputStream (that we don't own).
-    @SuppressWarnings("resource")
-    PartiallyCompressingOutputStream recompressingNewBlobOut =
-        new PartiallyCompressingOutputStream(
-            plan.getDeltaFriendlyNewFileRecompressionPlan(),
-            newBlobOut,
-            DEFAULT_COPY_BUFFER_SIZE);
-    deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, recompressingNewBlobOut);
-    recompressingNewBlobOut.flush();
+    OutputStream recompressingNewBlobOut;
+    if (parallelism > 1 && recompressionPlan.size() > 1) {
+      recompressionPool = Executors.newFixedThreadPool(parallelism);
+      recompressingNewBlobOut =
+          new ParallelPartiallyCompressingOutputStream(
+              recompressionPlan,
+              newBlobOut,
+              DEFAULT_COPY_BUFFER_SIZE,
+              recompressionPool,
+              DEFAULT_MAX_RECOMPRESSION_BUFFER_BYTES);
+    } else {
+      recompressingNewBlobOut =
+          new PartiallyCompressingOutputStream(
+              recompressionPlan, newBlobOut, DEFAULT_COPY_BUFFER_SIZE);
+    }
+    if (progress != null) {
+      recompressingNewBlobOut = progress.countRecompressionRanges(recompressingNewBlobOut);
+    }
+    try {
+      applyDeltas(
+          plan, oldBlob, deltaFriendlyOldBlob, deltaIn, recompressingNewBlobOut, listener);
+      recompressingNewBlobOut.flush();
+    } finally {
+      if (recompressionPool != null) {
+        ConcurrentTasks.shutdownAndAwaitTermination(recompressionPool);
+      }
+    }
+  }
+
+  /**
+   * Applies the deltas of a patch whose plan has already been read.
+   * @param plan the plan of the patch
+   * @param oldBlob the old blob
+   * @param deltaFriendlyOldBlob the delta-friendly old blob, or null to inflate the old blob on
+   *     demand
+   * @param deltaIn the rest of the patch stream, starting with the deltas
+   * @param deltaFriendlyNewBlobOut the stream to write the delta-friendly new blob to
+   * @param listener the listener to poll for cancellation, or null
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltas(
+      PatchApplyPlan plan,
+      File oldBlob,
+      File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream deltaFriendlyNewBlobOut,
+      ApplyProgressListener listener)
+      throws IOException {
+    List<DeltaDescriptor> deltaDescriptors = plan.getDeltaDescriptors();
+    TypedRange<Void> firstOldRange = deltaDescriptors.get(0).getDeltaFriendlyOldFileRange();
+    if (deltaFriendlyOldBlob != null
+        && deltaDescriptors.size() == 1
+        && firstOldRange.getOffset() == 0
+        && firstOldRange.getLength() == plan.getDeltaFriendlyOldFileSize()) {
+      // A single delta for the entire input, as always in v1.0. It takes up the rest of the patch
+      // stream, so there is no need to examine its descriptor any further.
+      long deltaLength = deltaDescriptors.get(0).getDeltaLength();
+      DeltaApplier deltaApplier = getDeltaApplier(listener);
+      // Don't close this stream, as it is just a limiting wrapper.
+      @SuppressWarnings("resource")
+      LimitedInputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
+      deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, deltaFriendlyNewBlobOut);
+    } else {
+      try (OldDataSource oldData = openOldData(plan, oldBlob, deltaFriendlyOldBlob)) {
+        if (parallelism == 1 || deltaDescriptors.size() == 1) {
+          applyDeltasSerially(
+              deltaDescriptors, oldData, deltaIn, deltaFriendlyNewBlobOut, listener);
+        } else {
+          applyDeltasConcurrently(
+              deltaDescriptors, oldData, deltaIn, deltaFriendlyNewBlobOut, listener);
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens the delta-friendly old blob for reading.
+   * @param plan the plan of the patch
+   * @param oldBlob the old blob
+   * @param deltaFriendlyOldBlob the delta-friendly old blob, or null to inflate the old blob on
+   *     demand
+   * @return the delta-friendly old blob
+   * @throws IOException if anything goes wrong
+   */
+  private static OldDataSource openOldData(
+      PatchApplyPlan plan, File oldBlob, File deltaFriendlyOldBlob) throws IOException {
+    if (deltaFriendlyOldBlob == null) {
+      return new InflatingOldBlobView(
+          oldBlob,
+          plan.getOldFileUncompressionPlan(),
+          plan.getDeltaFriendlyOldFileSize(),
+          InflatingOldBlobView.DEFAULT_CACHE_CAPACITY_BYTES);
+    }
+    return OldDataSources.open(deltaFriendlyOldBlob);
+  }
+
+  /**
+   * Applies the deltas of a multi-delta patch one after the other, straight from the patch stream
+   * into the output.
+   * @param deltaDescriptors the descriptors of the deltas, in patch order
+   * @param deltaFriendlyOldBlob the delta-friendly old blob, which is not closed
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
+   * @param deltaFriendlyNewBlobOut the stream to write the delta-friendly new blob to
+   * @param listener the listener to poll for cancellation, or null
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltasSerially(
+      List<DeltaDescriptor> deltaDescriptors,
+      OldDataSource deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream deltaFriendlyNewBlobOut,
+      ApplyProgressListener listener)
+      throws IOException {
+    BsDiffDeltaApplier deltaApplier = new BsDiffDeltaApplier(listener);
+    byte[] buffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+    for (DeltaDescriptor descriptor : deltaDescriptors) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Patch application interrupted");
+      }
+      ApplyProgress.checkCancelled(listener);
+      // Don't close these streams, as they are just wrappers.
+      @SuppressWarnings("resource")
+      LimitedInputStream limitedDeltaIn =
+          new LimitedInputStream(deltaIn, descriptor.getDeltaLength());
+      @SuppressWarnings("resource")
+      RangeOutputStream rangeOut =
+          new RangeOutputStream(
+              deltaFriendlyNewBlobOut, descriptor.getDeltaFriendlyNewFileRange().getLength());
+      TypedRange<Void> oldRange = descriptor.getDeltaFriendlyOldFileRange();
+      deltaApplier.applyDelta(
+          deltaFriendlyOldBlob,
+          oldRange.getOffset(),
+          oldRange.getLength(),
+          limitedDeltaIn,
+          rangeOut);
+      rangeOut.checkComplete();
+      // Skip anything the delta applier didn't need, so that the next delta starts in the right
+      // place.
+      while (limitedDeltaIn.read(buffer) >= 0) {
+        // Nothing
+      }
+    }
+  }
+
+  /**
+   * Applies the deltas of a multi-delta patch concurrently. The deltas are copied out of the patch
+   * stream into a temp file, then each of them is applied into its range of a temp delta-friendly
+   * new blob, which is finally copied to the output.
+   * @param deltaDescriptors the descriptors of the deltas, in patch order
+   * @param deltaFriendlyOldBlob the delta-friendly old blob, which is not closed
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
+   * @param deltaFriendlyNewBlobOut the stream to write the delta-friendly new blob to
+   * @param listener the listener to poll for cancellation, or null
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltasConcurrently(
+      final List<DeltaDescriptor> deltaDescriptors,
+      final OldDataSource deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream deltaFriendlyNewBlobOut,
+      final ApplyProgressListener listener)
+      throws IOException {
+    final File deltasFile = File.createTempFile("gfbfv1", "deltas", tempDir);
+    final File deltaFriendlyNewBlob = File.createTempFile("gfbfv1", "new", tempDir);
+    try {
+      byte[] buffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+      final long[] deltaOffsets = new long[deltaDescriptors.size()];
+      long deltaFriendlyNewBlobSize = 0;
+      try (FileOutputStream deltasOut = new FileOutputStream(deltasFile)) {
+        long deltaOffset = 0;
+        for (int index = 0; index < deltaDescriptors.size(); index++) {
+          DeltaDescriptor descriptor = deltaDescriptors.get(index);
+          deltaOffsets[index] = deltaOffset;
+          copyFully(deltaIn, deltasOut, descriptor.getDeltaLength(), buffer);
+          deltaOffset += descriptor.getDeltaLength();
+          deltaFriendlyNewBlobSize += descriptor.getDeltaFriendlyNewFileRange().getLength();
+        }
+      }
+      try (RandomAccessFile newBlob = new RandomAccessFile(deltaFriendlyNewBlob, "rw")) {
+        newBlob.setLength(deltaFriendlyNewBlobSize);
+      }
+
+      // Start with the biggest deltas, so that a big delta started late doesn't leave the other
+      // threads idle at the end.
+      Integer[] order = new Integer[deltaDescriptors.size()];
+      for (int index = 0; index < order.length; index++) {
+        order[index] = index;
+      }
+      Arrays.sort(
+          order,
+          new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+              long length1 = getNewRangeLength(index1);
+              long length2 = getNewRangeLength(index2);
+              return length1 > length2 ? -1 : (length1 < length2 ? 1 : index1.compareTo(index2));
+            }
+
+            private long getNewRangeLength(int index) {
+              return deltaDescriptors.get(index).getDeltaFriendlyNewFileRange().getLength();
+            }
+          });
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(order.length);
+      for (final int index : order) {
+        tasks.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                DeltaDescriptor descriptor = deltaDescriptors.get(index);
+                TypedRange<Void> oldRange = descriptor.getDeltaFriendlyOldFileRange();
+                TypedRange<Void> newRange = descriptor.getDeltaFriendlyNewFileRange();
+                try (RandomAccessFileInputStream limitedDeltaIn =
+                        new RandomAccessFileInputStream(
+                            deltasFile, deltaOffsets[index], descriptor.getDeltaLength());
+                    RandomAccessFile newBlob = new RandomAccessFile(deltaFriendlyNewBlob, "rw")) {
+                  newBlob.seek(newRange.getOffset());
+                  // The channel shares the file pointer of newBlob.
+                  RangeOutputStream rangeOut =
+                      new RangeOutputStream(
+                          Channels.newOutputStream(newBlob.getChannel()), newRange.getLength());
+                  new BsDiffDeltaApplier(listener)
+                      .applyDelta(
+                          deltaFriendlyOldBlob,
+                          oldRange.getOffset(),
+                          oldRange.getLength(),
+                          limitedDeltaIn,
+                          rangeOut);
+                  rangeOut.checkComplete();
+                }
+                return null;
+              }
+            });
+      }
+      try {
+        ConcurrentTasks.run(tasks, null, parallelism);
+      } catch (InterruptedException e) {
+        // Preserve the interrupt for the caller.
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Patch application interrupted");
+      }
+
+      try (FileInputStream newBlobIn = new FileInputStream(deltaFriendlyNewBlob)) {
+        copyFully(newBlobIn, deltaFriendlyNewBlobOut, deltaFriendlyNewBlobSize, buffer);
+      }
+    } finally {
+      deltasFile.delete();
+      deltaFriendlyNewBlob.delete();
+    }
+  }
+
+  /**
+   * Copies exactly the specified number of bytes from one stream to another.
+   * @throws IOException if the input ends early or anything else goes wrong
+   */
+  private static void copyFully(InputStream in, OutputStream out, long length, byte[] buffer)
+      throws IOException {
+    while (length > 0) {
+      int numRead = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+      if (numRead < 0) {
+        throw new PatchFormatException("Unexpected end of patch");
+      }
+      out.write(buffer, 0, numRead);
+      length -= numRead;
+    }
   }
 
   /**
@@ -105,10 +468,12 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
    * @param plan the plan to use for uncompressing
    * @param oldBlob the blob to turn into a delta-friendly blob
    * @param deltaFriendlyOldBlob where to write the blob
+   * @param progress the progress to count the bytes written in, or null
    * @throws IOException if anything goes wrong
    */
   private void writeDeltaFriendlyOldBlob(
-      PatchApplyPlan plan, File oldBlob, File deltaFriendlyOldBlob) throws IOException {
+      PatchApplyPlan plan, File oldBlob, File deltaFriendlyOldBlob, ApplyProgress progress)
+      throws IOException {
     RandomAccessFileOutputStream deltaFriendlyOldFileOut = null;
     try {
       deltaFriendlyOldFileOut =
@@ -117,7 +482,9 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
       DeltaFriendlyFile.generateDeltaFriendlyFile(
           plan.getOldFileUncompressionPlan(),
           oldBlob,
-          deltaFriendlyOldFileOut,
+          progress != null
+              ? progress.countOldBlobBytes(deltaFriendlyOldFileOut)
+              : deltaFriendlyOldFileOut,
           false,
           DEFAULT_COPY_BUFFER_SIZE);
     } finally {
@@ -138,4 +505,73 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
   protected DeltaApplier getDeltaApplier() {
     return new BsDiffDeltaApplier();
   }
+
+  /**
+   * Returns the {@link #getDeltaApplier()}, polling the specified listener for cancellation. The
+   * default {@link BsDiffDeltaApplier} is configured to poll between its control entries; any
+   * other applier, including a subclass of it, is used as is, with polls before and after it runs.
+   */
+  private DeltaApplier getDeltaApplier(final ApplyProgressListener listener) {
+    final DeltaApplier deltaApplier = getDeltaApplier();
+    if (listener == null) {
+      return deltaApplier;
+    }
+    if (deltaApplier.getClass() == BsDiffDeltaApplier.class) {
+      return new BsDiffDeltaApplier(listener);
+    }
+    return new DeltaApplier() {
+      @Override
+      public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+          throws IOException {
+        ApplyProgress.checkCancelled(listener);
+        deltaApplier.applyDelta(oldBlob, deltaIn, newBlobOut);
+        ApplyProgress.checkCancelled(listener);
+      }
+    };
+  }
+
+  /**
+   * Passes through exactly the number of bytes in a range of the delta-friendly new blob, so that a
+   * delta that produces too much or too little data is caught instead of corrupting the rest of
+   * the blob.
+   */
+  private static class RangeOutputStream extends FilterOutputStream {
+    /**
+     * The number of bytes that may still be written.
+     */
+    private long remaining;
+
+    RangeOutputStream(OutputStream out, long length) {
+      super(out);
+      this.remaining = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (remaining < 1) {
+        throw new PatchFormatException("Delta output exceeds its work range");
+      }
+      out.write(b);
+      remaining--;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > remaining) {
+        throw new PatchFormatException("Delta output exceeds its work range");
+      }
+      out.write(b, off, len);
+      remaining -= len;
+    }
+
+    /**
+     * Checks that the entire range has been written.
+     * @throws PatchFormatException if it hasn't
+     */
+    void checkComplete() throws PatchFormatException {
+      if (remaining != 0) {
+        throw new PatchFormatException("Delta output is shorter than its work range");
+      }
+    }
+  }
 }
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.applier.bsdiff.OldDataSource;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only view of the delta-friendly old blob that is computed on demand from the original old
+ * blob, so that the delta-friendly old blob never has to be written to disk. Bytes outside of the
+ * uncompression plan are read straight from the old blob; bytes inside it are inflated when they
+ * are read.
+ *
+ * <p>Inflating is sequential, so random reads are served by two bounded caches: entries up to a
+ * quarter of the cache capacity are inflated entirely and kept in a least-recently-used cache, and
+ * larger entries are read through a few live inflaters, each positioned where its last read ended.
+ * A read continues from the closest such inflater at or before the requested position, so a patch
+ * that moves forward through a large entry, as bsdiff patches mostly do, never inflates it twice.
+ * {@link Inflater} state cannot be copied, so moving backward within a large entry restarts
+ * inflation at the start of the entry.
+ *
+ * <p>Building the view inflates every range once to learn its uncompressed size. One view can be
+ * shared by several threads. The cache of inflated entries is shared, but each thread has its own
+ * live inflaters, so threads that read different parts of large entries at the same time neither
+ * wait for nor evict each other's inflaters. The view must not be read after it is closed.
+ */
+class InflatingOldBlobView implements OldDataSource {
+  /**
+   * The default capacity of the cache of inflated entries, in bytes.
+   */
+  static final long DEFAULT_CACHE_CAPACITY_BYTES = 16L * 1024L * 1024L;
+
+  /**
+   * The maximum number of live inflaters for entries that are too large to cache.
+   */
+  // Visible for testing only
+  static final int MAX_CURSORS = 4;
+
+  /**
+   * The size of the buffers for compressed data and for skipping inflated data.
+   */
+  private static final int BUFFER_SIZE = 32768;
+
+  /**
+   * The original old blob.
+   */
+  private final RandomAccessFile oldBlob;
+
+  /**
+   * The channel of {@link #oldBlob}, for positional reads.
+   */
+  private final FileChannel oldBlobChannel;
+
+  /**
+   * The segments of the view in order, each either a copy of a range of the old blob or the
+   * inflated form of a range of the old blob.
+   */
+  private final List<Segment> segments = new ArrayList<Segment>();
+
+  /**
+   * The length of the view, i.e. of the delta-friendly old blob.
+   */
+  private final long length;
+
+  /**
+   * The capacity of {@link #entryCache}, in bytes.
+   */
+  private final long cacheCapacityBytes;
+
+  /**
+   * Fully inflated entries, in least-recently-used order. Guarded by itself.
+   */
+  private final LinkedHashMap<Segment, byte[]> entryCache =
+      new LinkedHashMap<Segment, byte[]>(16, 0.75f, true);
+
+  /**
+   * The total number of bytes in {@link #entryCache}. Guarded by {@link #entryCache}.
+   */
+  private long cachedBytes = 0;
+
+  /**
+   * The live inflaters of every thread that has read large entries, so that they can all be
+   * closed. Guarded by itself.
+   */
+  private final List<ThreadCursors> allThreadCursors = new ArrayList<ThreadCursors>();
+
+  /**
+   * The live inflaters of the current thread.
+   */
+  private final ThreadLocal<ThreadCursors> threadCursors =
+      new ThreadLocal<ThreadCursors>() {
+        @Override
+        protected ThreadCursors initialValue() {
+          ThreadCursors result = new ThreadCursors();
+          synchronized (allThreadCursors) {
+            allThreadCursors.add(result);
+          }
+          return result;
+        }
+      };
+
+  /**
+   * The number of inflaters started to read large entries, for testing.
+   */
+  private final AtomicInteger numCursorsStarted = new AtomicInteger();
+
+  /**
+   * The live inflaters of one thread for entries that are too large to cache.
+   */
+  private static final class ThreadCursors {
+    /**
+     * The live inflaters, most recently used first.
+     */
+    final LinkedList<Cursor> cursors = new LinkedList<Cursor>();
+
+    /**
+     * A scratch buffer for skipping inflated data.
+     */
+    final byte[] skipBuffer = new byte[BUFFER_SIZE];
+  }
+
+  /**
+   * A range of the view.
+   */
+  private static final class Segment {
+    /**
+     * The offset of the segment in the view.
+     */
+    final long offset;
+
+    /**
+     * The length of the segment in the view.
+     */
+    final long length;
+
+    /**
+     * The offset of the corresponding range in the old blob.
+     */
+    final long sourceOffset;
+
+    /**
+     * The length of the corresponding range in the old blob.
+     */
+    final long sourceLength;
+
+    /**
+     * Whether the range of the old blob is inflated or copied.
+     */
+    final boolean inflated;
+
+    Segment(long offset, long length, long sourceOffset, long sourceLength, boolean inflated) {
+      this.offset = offset;
+      this.length = length;
+      this.sourceOffset = sourceOffset;
+      this.sourceLength = sourceLength;
+      this.inflated = inflated;
+    }
+  }
+
+  /**
+   * Creates a view of the delta-friendly form of the specified old blob.
+   *
+   * @param oldBlob the original old blob
+   * @param uncompressionPlan the ranges of the old blob to inflate, in file order
+   * @param expectedLength the length of the delta-friendly old blob that the patch expects
+   * @param cacheCapacityBytes the capacity of the cache of inflated entries, in bytes
+   * @throws PatchFormatException if the uncompression plan doesn't fit the old blob, or doesn't
+   *     produce a blob of the expected length
+   * @throws IOException if unable to read or inflate the old blob
+   */
+  InflatingOldBlobView(
+      File oldBlob,
+      List<TypedRange<Void>> uncompressionPlan,
+      long expectedLength,
+      long cacheCapacityBytes)
+      throws IOException {
+    this.cacheCapacityBytes = cacheCapacityBytes;
+    this.oldBlob = new RandomAccessFile(oldBlob, "r");
+    this.oldBlobChannel = this.oldBlob.getChannel();
+    try {
+      long oldBlobLength = this.oldBlob.length();
+      long viewOffset = 0;
+      long sourceOffset = 0;
+      for (TypedRange<Void> range : uncompressionPlan) {
+        if (range.getOffset() < sourceOffset
+            || range.getLength() > oldBlobLength - range.getOffset()) {
+          throw new PatchFormatException("Uncompression range doesn't fit the old blob");
+        }
+        viewOffset = addCopiedSegment(viewOffset, sourceOffset, range.getOffset() - sourceOffset);
+        Segment sizingSegment =
+            new Segment(viewOffset, Long.MAX_VALUE, range.getOffset(), range.getLength(), true);
+        long inflatedLength;
+        Cursor cursor = new Cursor(sizingSegment);
+        try {
+          inflatedLength = cursor.skipToEnd(new byte[BUFFER_SIZE]);
+        } finally {
+          cursor.close();
+        }
+        segments.add(
+            new Segment(viewOffset, inflatedLength, range.getOffset(), range.getLength(), true));
+        viewOffset += inflatedLength;
+        sourceOffset = range.getOffset() + range.getLength();
+      }
+      viewOffset = addCopiedSegment(viewOffset, sourceOffset, oldBlobLength - sourceOffset);
+      if (viewOffset != expectedLength) {
+        throw new PatchFormatException(
+            "Delta-friendly old blob is " + viewOffset + " bytes, expected " + expectedLength);
+      }
+      this.length = viewOffset;
+    } catch (IOException | RuntimeException e) {
+      this.oldBlob.close();
+      throw e;
+    }
+  }
+
+  private long addCopiedSegment(long viewOffset, long sourceOffset, long sourceLength) {
+    if (sourceLength > 0) {
+      segments.add(new Segment(viewOffset, sourceLength, sourceOffset, sourceLength, false));
+    }
+    return viewOffset + sourceLength;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public void readFully(long pos, byte[] buffer, int offset, int length)
+      throws IOException {
+    if (pos < 0 || length > this.length - pos) {
+      throw new EOFException();
+    }
+    int index = findSegment(pos);
+    while (length > 0) {
+      Segment segment = segments.get(index);
+      long offsetInSegment = pos - segment.offset;
+      int numBytes = (int) Math.min(length, segment.length - offsetInSegment);
+      if (segment.inflated) {
+        readInflated(segment, offsetInSegment, buffer, offset, numBytes);
+      } else {
+        readSource(segment.sourceOffset + offsetInSegment, buffer, offset, numBytes);
+      }
+      pos += numBytes;
+      offset += numBytes;
+      length -= numBytes;
+      index++;
+    }
+  }
+
+  /**
+   * Returns the index of the segment that contains the specified position of the view.
+   */
+  private int findSegment(long pos) {
+    int low = 0;
+    int high = segments.size() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (segments.get(middle).offset <= pos) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  private void readSource(long sourcePos, byte[] buffer, int offset, int length)
+      throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+    while (target.hasRemaining()) {
+      int numRead = oldBlobChannel.read(target, sourcePos);
+      if (numRead < 0) {
+        throw new EOFException();
+      }
+      sourcePos += numRead;
+    }
+  }
+
+  private void readInflated(
+      Segment segment, long offsetInSegment, byte[] buffer, int offset, int length)
+      throws IOException {
+    byte[] inflated;
+    synchronized (entryCache) {
+      inflated = entryCache.get(segment);
+    }
+    if (inflated == null && segment.length <= cacheCapacityBytes / 4) {
+      // Inflated without holding the lock, so that other threads aren't held up; two threads may
+      // occasionally inflate the same entry, and the last one wins.
+      inflated = new byte[(int) segment.length];
+      Cursor cursor = new Cursor(segment);
+      try {
+        cursor.read(inflated, 0, inflated.length);
+      } finally {
+        cursor.close();
+      }
+      synchronized (entryCache) {
+        byte[] previous = entryCache.put(segment, inflated);
+        if (previous != null) {
+          cachedBytes -= previous.length;
+        }
+        cachedBytes += inflated.length;
+        Iterator<Map.Entry<Segment, byte[]>> eldest = entryCache.entrySet().iterator();
+        while (cachedBytes > cacheCapacityBytes) {
+          cachedBytes -= eldest.next().getValue().length;
+          eldest.remove();
+        }
+      }
+    }
+    if (inflated != null) {
+      System.arraycopy(inflated, (int) offsetInSegment, buffer, offset, length);
+      return;
+    }
+
+    ThreadCursors thread = threadCursors.get();
+    LinkedList<Cursor> cursors = thread.cursors;
+    Cursor cursor = null;
+    for (Cursor candidate : cursors) {
+      if (candidate.segment == segment
+          && candidate.position <= offsetInSegment
+          && (cursor == null || candidate.position > cursor.position)) {
+        cursor = candidate;
+      }
+    }
+    if (cursor == null) {
+      cursor = new Cursor(segment);
+      numCursorsStarted.incrementAndGet();
+      if (cursors.size() == MAX_CURSORS) {
+        cursors.removeLast().close();
+      }
+    } else {
+      cursors.remove(cursor);
+    }
+    cursors.addFirst(cursor);
+    cursor.skipTo(offsetInSegment, thread.skipBuffer);
+    cursor.read(buffer, offset, length);
+  }
+
+  /**
+   * Returns the number of inflaters started so far to read entries that are too large to cache.
+   */
+  // Visible for testing only
+  int getNumCursorsStarted() {
+    return numCursorsStarted.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (allThreadCursors) {
+      for (ThreadCursors thread : allThreadCursors) {
+        for (Cursor cursor : thread.cursors) {
+          cursor.close();
+        }
+        thread.cursors.clear();
+      }
+      allThreadCursors.clear();
+    }
+    synchronized (entryCache) {
+      entryCache.clear();
+      cachedBytes = 0;
+    }
+    oldBlob.close();
+  }
+
+  /**
+   * A live inflater for one inflated segment, positioned somewhere in the segment. Used by one
+   * thread at a time.
+   */
+  private final class Cursor {
+    /**
+     * The segment being inflated.
+     */
+    final Segment segment;
+
+    /**
+     * The number of bytes of the segment inflated so far.
+     */
+    long position = 0;
+
+    /**
+     * The inflater.
+     */
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * The number of compressed bytes given to the inflater so far.
+     */
+    private long sourceBytesRead = 0;
+
+    /**
+     * Whether the extra byte that an inflater without a zlib wrapper may need has been given.
+     */
+    private boolean paddingGiven = false;
+
+    /**
+     * The buffer for compressed data.
+     */
+    private final byte[] sourceBuffer = new byte[BUFFER_SIZE];
+
+    Cursor(Segment segment) {
+      this.segment = segment;
+    }
+
+    /**
+     * Inflates exactly the specified number of bytes into the buffer.
+     */
+    void read(byte[] buffer, int offset, int length) throws IOException {
+      while (length > 0) {
+        int numInflated = inflate(buffer, offset, length);
+        if (numInflated < 0) {
+          throw new PatchFormatException("Inflated range is shorter than expected");
+        }
+        offset += numInflated;
+        length -= numInflated;
+      }
+    }
+
+    /**
+     * Inflates and discards bytes until the specified position in the segment is reached.
+     */
+    void skipTo(long target, byte[] skipBuffer) throws IOException {
+      while (position < target) {
+        read(skipBuffer, 0, (int) Math.min(skipBuffer.length, target - position));
+      }
+    }
+
+    /**
+     * Inflates and discards the rest of the segment.
+     *
+     * @return the total number of inflated bytes in the segment
+     */
+    long skipToEnd(byte[] skipBuffer) throws IOException {
+      while (inflate(skipBuffer, 0, skipBuffer.length) >= 0) {
+        // Nothing
+      }
+      return position;
+    }
+
+    /**
+     * Inflates at least one byte into the buffer, unless the deflate stream has ended.
+     *
+     * @return the number of bytes inflated, or -1 if the deflate stream has ended
+     */
+    private int inflate(byte[] buffer, int offset, int length) throws IOException {
+      try {
+        while (true) {
+          int numInflated = inflater.inflate(buffer, offset, length);
+          if (numInflated > 0) {
+            position += numInflated;
+            return numInflated;
+          }
+          if (inflater.finished()) {
+            return -1;
+          }
+          if (inflater.needsDictionary()) {
+            throw new PatchFormatException("Inflated range needs a preset dictionary");
+          }
+          if (inflater.needsInput()) {
+            fill();
+          }
+        }
+      } catch (DataFormatException e) {
+        throw new PatchFormatException("Invalid deflate data in old blob: " + e.getMessage());
+      }
+    }
+
+    private void fill() throws IOException {
+      long remaining = segment.sourceLength - sourceBytesRead;
+      if (remaining == 0) {
+        if (paddingGiven) {
+          throw new PatchFormatException("Truncated deflate data in old blob");
+        }
+        // See Inflater(boolean): without the zlib wrapper, an extra dummy byte may be needed.
+        paddingGiven = true;
+        inflater.setInput(new byte[1]);
+        return;
+      }
+      int numBytes = (int) Math.min(sourceBuffer.length, remaining);
+      readSource(segment.sourceOffset + sourceBytesRead, sourceBuffer, 0, numBytes);
+      sourceBytesRead += numBytes;
+      inflater.setInput(sourceBuffer, 0, numBytes);
+    }
+
+    void close() {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.ConcurrentTasks;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A {@link PartiallyCompressingOutputStream} that compresses ranges on an executor instead of on
+ * the writing thread. Each compressed range is collected in memory and handed to the executor once
+ * it is complete; compressed ranges and the bytes between them are written to the underlying stream
+ * in order as soon as everything before them has been written. The output is exactly the same as
+ * that of {@link PartiallyCompressingOutputStream}.
+ *
+ * <p>At most the specified number of uncompressed bytes are held in memory at a time, for ranges
+ * that are waiting to be compressed or written and for the bytes between them. When the limit is
+ * reached, writing blocks until enough of the pending output has been written. A range that is
+ * larger than the limit on its own is compressed on the writing thread, after all pending output
+ * has been written.
+ *
+ * <p>{@link #flush()} waits for all pending output to be written. The executor is not shut down by
+ * this class.
+ */
+public class ParallelPartiallyCompressingOutputStream extends FilterOutputStream {
+
+  /**
+   * The executor to compress on.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The size of the buffer to use when compressing bytes.
+   */
+  private final int compressionBufferSize;
+
+  /**
+   * The maximum number of uncompressed bytes to hold in memory.
+   */
+  private final long maxBufferedBytes;
+
+  /**
+   * The iterator that is used to iterate over the compression ranges.
+   */
+  private final Iterator<TypedRange<JreDeflateParameters>> rangeIterator;
+
+  /**
+   * The compress range that is either being worked on or that is coming up next.
+   */
+  private TypedRange<JreDeflateParameters> nextCompressedRange = null;
+
+  /**
+   * The number of bytes written so far.
+   */
+  private long numBytesWritten = 0;
+
+  /**
+   * The output that has not been written to the underlying stream yet, in order.
+   */
+  private final ArrayDeque<PendingOutput> pendingOutputs = new ArrayDeque<PendingOutput>();
+
+  /**
+   * The number of uncompressed bytes held in memory.
+   */
+  private long bufferedBytes = 0;
+
+  /**
+   * The uncompressed bytes of the range being collected, non-null only while collecting a range.
+   */
+  private byte[] rangeInput = null;
+
+  /**
+   * The deflater stream for a range that is compressed on the writing thread, non-null only while
+   * compressing such a range.
+   */
+  private DeflaterOutputStream inlineDeflaterOut = null;
+
+  /**
+   * The deflater of {@link #inlineDeflaterOut}.
+   */
+  private Deflater inlineDeflater = null;
+
+  /**
+   * Used when writing one byte at a time.
+   */
+  private final byte[] internalCopyBuffer = new byte[1];
+
+  /**
+   * Output that is waiting to be written: either bytes that are ready, or the result of compressing
+   * a range.
+   */
+  private static final class PendingOutput {
+    /**
+     * The bytes to write, or null if they are still being compressed.
+     */
+    final byte[] bytes;
+
+    /**
+     * The compression of the bytes to write, or null if they are ready.
+     */
+    final Future<byte[]> compressedBytes;
+
+    /**
+     * The number of uncompressed bytes that this output accounts for in memory.
+     */
+    final long bufferedBytes;
+
+    PendingOutput(byte[] bytes, Future<byte[]> compressedBytes, long bufferedBytes) {
+      this.bytes = bytes;
+      this.compressedBytes = compressedBytes;
+      this.bufferedBytes = bufferedBytes;
+    }
+  }
+
+  /**
+   * Creates a new stream that wraps the specified other stream, compressing the specified ranges
+   * with the specified parameters on the specified executor. All unspecified ranges are implicitly
+   * copied without modification.
+   * @param compressionRanges ranges to be compressed, with accompanying parameters
+   * @param out the stream to write to
+   * @param compressionBufferSize the size of the buffer to use when compressing data
+   * @param executor the executor to compress on
+   * @param maxBufferedBytes the maximum number of uncompressed bytes to hold in memory
+   * @throws IllegalArgumentException if maxBufferedBytes is not positive
+   */
+  public ParallelPartiallyCompressingOutputStream(
+      List<TypedRange<JreDeflateParameters>> compressionRanges,
+      OutputStream out,
+      int compressionBufferSize,
+      ExecutorService executor,
+      long maxBufferedBytes) {
+    super(out);
+    if (maxBufferedBytes <= 0) {
+      throw new IllegalArgumentException("maxBufferedBytes must be positive: " + maxBufferedBytes);
+    }
+    this.compressionBufferSize = compressionBufferSize;
+    this.executor = executor;
+    this.maxBufferedBytes = maxBufferedBytes;
+    rangeIterator = compressionRanges.iterator();
+    if (rangeIterator.hasNext()) {
+      nextCompressedRange = rangeIterator.next();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    internalCopyBuffer[0] = (byte) b;
+    write(internalCopyBuffer, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    int writtenSoFar = 0;
+    while (writtenSoFar < length) {
+      writtenSoFar += writeChunk(buffer, offset + writtenSoFar, length - writtenSoFar);
+    }
+  }
+
+  /**
+   * Waits for all pending output to be written, then flushes the underlying stream.
+   */
+  @Override
+  public void flush() throws IOException {
+    writePendingOutputs(0);
+    out.flush();
+  }
+
+  /**
+   * Consumes up to <em>length</em> bytes from the specified buffer, stopping at the edges of
+   * ranges like {@link PartiallyCompressingOutputStream} does.
+   * @param buffer the buffer to copy/compress bytes from
+   * @param offset the offset at which to start copying/compressing
+   * @param length the maximum number of bytes to copy or compress
+   * @return the number of bytes of the buffer that have been consumed
+   */
+  private int writeChunk(byte[] buffer, int offset, int length) throws IOException {
+    if (nextCompressedRange != null
+        && nextCompressedRange.getOffset() == numBytesWritten
+        && !currentlyCompressing()) {
+      startRange();
+    }
+
+    int numBytesToWrite;
+    if (currentlyCompressing()) {
+      // Don't write past the end of the compressed range.
+      long rangeEnd = nextCompressedRange.getOffset() + nextCompressedRange.getLength();
+      numBytesToWrite = (int) Math.min(length, rangeEnd - numBytesWritten);
+      if (rangeInput != null) {
+        System.arraycopy(
+            buffer,
+            offset,
+            rangeInput,
+            (int) (numBytesWritten - nextCompressedRange.getOffset()),
+            numBytesToWrite);
+      } else {
+        inlineDeflaterOut.write(buffer, offset, numBytesToWrite);
+      }
+      numBytesWritten += numBytesToWrite;
+      if (numBytesWritten == rangeEnd) {
+        finishRange();
+      }
+    } else {
+      if (nextCompressedRange == null) {
+        // All compression ranges have been consumed.
+        numBytesToWrite = length;
+      } else {
+        // Don't write past the point where the next compressed range begins.
+        numBytesToWrite = (int) Math.min(length, nextCompressedRange.getOffset() - numBytesWritten);
+      }
+      writeUncompressed(buffer, offset, numBytesToWrite);
+      numBytesWritten += numBytesToWrite;
+    }
+    return numBytesToWrite;
+  }
+
+  private boolean currentlyCompressing() {
+    return rangeInput != null || inlineDeflaterOut != null;
+  }
+
+  /**
+   * Sets up for collecting or compressing the next compression range.
+   */
+  private void startRange() throws IOException {
+    long length = nextCompressedRange.getLength();
+    if (length > maxBufferedBytes || length > Integer.MAX_VALUE - 8) {
+      // Too large to hold in memory, so compress it right here, after everything before it.
+      writePendingOutputs(0);
+      JreDeflateParameters parameters = nextCompressedRange.getMetadata();
+      inlineDeflater = new Deflater(parameters.level, parameters.nowrap);
+      inlineDeflater.setStrategy(parameters.strategy);
+      inlineDeflaterOut = new DeflaterOutputStream(out, inlineDeflater, compressionBufferSize);
+      return;
+    }
+    writePendingOutputs(maxBufferedBytes - length);
+    rangeInput = new byte[(int) length];
+    bufferedBytes += length;
+  }
+
+  /**
+   * Completes the current compression range and moves on to the next one.
+   */
+  private void finishRange() throws IOException {
+    if (rangeInput != null) {
+      final byte[] input = rangeInput;
+      final JreDeflateParameters parameters = nextCompressedRange.getMetadata();
+      Future<byte[]> compressedBytes =
+          executor.submit(
+              new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                  return compress(input, parameters, compressionBufferSize);
+                }
+              });
+      pendingOutputs.add(new PendingOutput(null, compressedBytes, input.length));
+      rangeInput = null;
+    } else {
+      inlineDeflaterOut.finish();
+      inlineDeflaterOut = null;
+      inlineDeflater.end();
+      inlineDeflater = null;
+    }
+    nextCompressedRange = rangeIterator.hasNext() ? rangeIterator.next() : null;
+    writeCompletedOutputs();
+  }
+
+  /**
+   * Writes bytes that are not compressed, after all pending output.
+   */
+  private void writeUncompressed(byte[] buffer, int offset, int length) throws IOException {
+    if (!pendingOutputs.isEmpty() && bufferedBytes + length > maxBufferedBytes) {
+      writePendingOutputs(0);
+    }
+    if (pendingOutputs.isEmpty()) {
+      out.write(buffer, offset, length);
+      return;
+    }
+    byte[] bytes = new byte[length];
+    System.arraycopy(buffer, offset, bytes, 0, length);
+    pendingOutputs.add(new PendingOutput(bytes, null, length));
+    bufferedBytes += length;
+  }
+
+  /**
+   * Writes pending outputs in order, as long as they are ready, without waiting.
+   */
+  private void writeCompletedOutputs() throws IOException {
+    while (!pendingOutputs.isEmpty()
+        && (pendingOutputs.peekFirst().compressedBytes == null
+            || pendingOutputs.peekFirst().compressedBytes.isDone())) {
+      writeFirstPendingOutput();
+    }
+  }
+
+  /**
+   * Writes pending outputs in order, waiting for them if necessary, until at most the specified
+   * number of bytes are held in memory.
+   */
+  private void writePendingOutputs(long maxRemainingBufferedBytes) throws IOException {
+    while (!pendingOutputs.isEmpty() && bufferedBytes > maxRemainingBufferedBytes) {
+      writeFirstPendingOutput();
+    }
+  }
+
+  private void writeFirstPendingOutput() throws IOException {
+    PendingOutput pendingOutput = pendingOutputs.removeFirst();
+    byte[] bytes = pendingOutput.bytes;
+    if (bytes == null) {
+      try {
+        bytes = pendingOutput.compressedBytes.get();
+      } catch (InterruptedException e) {
+        // Preserve the interrupt for the caller.
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Recompression interrupted");
+      } catch (ExecutionException e) {
+        throw ConcurrentTasks.rethrowCause(e);
+      }
+    }
+    out.write(bytes);
+    bufferedBytes -= pendingOutput.bufferedBytes;
+  }
+
+  /**
+   * Compresses the specified bytes the same way {@link PartiallyCompressingOutputStream} does.
+   */
+  private static byte[] compress(
+      byte[] input, JreDeflateParameters parameters, int compressionBufferSize)
+      throws IOException {
+    Deflater deflater = new Deflater(parameters.level, parameters.nowrap);
+    try {
+      deflater.setStrategy(parameters.strategy);
+      ByteArrayOutputStream compressedOut = new ByteArrayOutputStream(input.length / 2 + 64);
+      DeflaterOutputStream deflaterOut =
+          new DeflaterOutputStream(compressedOut, deflater, compressionBufferSize);
+      deflaterOut.write(input);
+      deflaterOut.finish();
+      return compressedOut.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+}
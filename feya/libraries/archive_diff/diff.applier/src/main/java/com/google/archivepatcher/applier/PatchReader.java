@@ -39,10 +39,13 @@ public class PatchReader {
     DataInputStream dataIn = new DataInputStream(in);
 
     // Read header and flags.
-    byte[] expectedIdentifier = PatchConstants.IDENTIFIER.getBytes("US-ASCII");
-    byte[] actualIdentifier = new byte[expectedIdentifier.length];
+    byte[] singleDeltaIdentifier = PatchConstants.IDENTIFIER.getBytes("US-ASCII");
+    byte[] multipleDeltasIdentifier =
+        PatchConstants.IDENTIFIER_MULTIPLE_DELTAS.getBytes("US-ASCII");
+    byte[] actualIdentifier = new byte[singleDeltaIdentifier.length];
     dataIn.readFully(actualIdentifier);
-    if (!Arrays.equals(expectedIdentifier, actualIdentifier)) {
+    boolean multipleDeltas = Arrays.equals(multipleDeltasIdentifier, actualIdentifier);
+    if (!multipleDeltas && !Arrays.equals(singleDeltaIdentifier, actualIdentifier)) {
       throw new PatchFormatException("Bad identifier");
     }
     dataIn.skip(4); // Flags (ignored in v1)
@@ -105,10 +108,14 @@ public class PatchReader {
     }
 
     // Read the delta metadata, but stop before the first byte of the actual delta.
-    // V1 has exactly one delta and it must be bsdiff.
-    int numDeltaRecords = (int) checkRange(dataIn.readInt(), 1, 1, "num delta records");
+    // V1.0 has exactly one delta, v1.1 has at least one; they must all be bsdiff.
+    int numDeltaRecords =
+        (int)
+            checkRange(
+                dataIn.readInt(), 1, multipleDeltas ? Integer.MAX_VALUE : 1, "num delta records");
 
-    List<DeltaDescriptor> deltaDescriptors = new ArrayList<DeltaDescriptor>(numDeltaRecords);
+    List<DeltaDescriptor> deltaDescriptors = new ArrayList<DeltaDescriptor>();
+    long expectedNewFileWorkRangeOffset = 0;
     for (int x = 0; x < numDeltaRecords; x++) {
       byte deltaFormatByte = (byte)
       checkRange(
@@ -125,6 +132,18 @@ public class PatchReader {
       long deltaFriendlyNewFileWorkRangeLength = checkNonNegative(
           dataIn.readLong(), "delta-friendly new file work range length");
       long deltaLength = checkNonNegative(dataIn.readLong(), "delta length");
+      if (multipleDeltas) {
+        // In v1.1 the work ranges are significant, so they must make sense.
+        if (deltaFriendlyOldFileWorkRangeLength
+            > deltaFriendlyOldFileSize - deltaFriendlyOldFileWorkRangeOffset) {
+          throw new PatchFormatException("delta-friendly old file work range out of bounds");
+        }
+        if (deltaFriendlyNewFileWorkRangeOffset != expectedNewFileWorkRangeOffset) {
+          throw new PatchFormatException(
+              "delta-friendly new file work ranges out of order, overlapping or not contiguous");
+        }
+        expectedNewFileWorkRangeOffset += deltaFriendlyNewFileWorkRangeLength;
+      }
       DeltaDescriptor descriptor =
           new DeltaDescriptor(
               PatchConstants.DeltaFormat.fromPatchValue(deltaFormatByte),
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link OldDataSource} that reads a file in fixed-size blocks through its {@link FileChannel}
+ * and keeps the most recently used blocks in memory. On a miss, the following blocks are read in
+ * the same system call, because bsdiff mostly moves forward through the old data. This turns the
+ * many small random reads of a patch into few large ones, for when the file is too large to hold
+ * in memory and cannot be mapped.
+ *
+ * <p>Reads are synchronized, so a source can be shared by several threads but they take turns.
+ */
+public class BlockCachedOldDataSource implements OldDataSource {
+  /**
+   * The default size of a block, 64 KiB.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The default maximum number of blocks to keep in memory, for 16 MiB in total.
+   */
+  public static final int DEFAULT_MAX_CACHED_BLOCKS = 256;
+
+  /**
+   * The default number of blocks to read after the one that is missing.
+   */
+  public static final int DEFAULT_READ_AHEAD_BLOCKS = 3;
+
+  /**
+   * The file to read from.
+   */
+  private final RandomAccessFile file;
+
+  /**
+   * The channel of the file, for positional reads.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The length of the file.
+   */
+  private final long length;
+
+  /**
+   * The size of each block except the last.
+   */
+  private final int blockSize;
+
+  /**
+   * The number of blocks to read after the one that is missing.
+   */
+  private final int readAheadBlocks;
+
+  /**
+   * The cached blocks keyed by index, in least-recently-used order.
+   */
+  private final LinkedHashMap<Long, byte[]> cache;
+
+  /**
+   * Opens the specified file with the default block size, cache size and read-ahead.
+   *
+   * @param file the file to read from
+   * @throws IOException if unable to open the file
+   */
+  public BlockCachedOldDataSource(File file) throws IOException {
+    this(file, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_CACHED_BLOCKS, DEFAULT_READ_AHEAD_BLOCKS);
+  }
+
+  /**
+   * Opens the specified file.
+   *
+   * @param file the file to read from
+   * @param blockSize the size of each block except the last
+   * @param maxCachedBlocks the maximum number of blocks to keep in memory
+   * @param readAheadBlocks the number of blocks to read after the one that is missing
+   * @throws IOException if unable to open the file
+   * @throws IllegalArgumentException if blockSize or maxCachedBlocks is not positive, or if
+   *     readAheadBlocks is negative, not less than maxCachedBlocks or makes a single read larger
+   *     than 2 GiB
+   */
+  public BlockCachedOldDataSource(
+      File file, int blockSize, final int maxCachedBlocks, int readAheadBlocks)
+      throws IOException {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+    }
+    if (maxCachedBlocks <= 0) {
+      throw new IllegalArgumentException("maxCachedBlocks must be positive: " + maxCachedBlocks);
+    }
+    if (readAheadBlocks < 0
+        || readAheadBlocks >= maxCachedBlocks
+        || (long) blockSize * (readAheadBlocks + 1) > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("bad readAheadBlocks: " + readAheadBlocks);
+    }
+    this.blockSize = blockSize;
+    this.readAheadBlocks = readAheadBlocks;
+    cache =
+        new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > maxCachedBlocks;
+          }
+        };
+    this.file = new RandomAccessFile(file, "r");
+    channel = this.file.getChannel();
+    length = channel.size();
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public synchronized void readFully(long pos, byte[] buffer, int offset, int length)
+      throws IOException {
+    if (pos < 0 || pos > this.length - length) {
+      throw new EOFException();
+    }
+    while (length > 0) {
+      long blockIndex = pos / blockSize;
+      byte[] block = getBlock(blockIndex);
+      int positionInBlock = (int) (pos - blockIndex * blockSize);
+      int numBytesThisRound = Math.min(length, block.length - positionInBlock);
+      System.arraycopy(block, positionInBlock, buffer, offset, numBytesThisRound);
+      pos += numBytesThisRound;
+      offset += numBytesThisRound;
+      length -= numBytesThisRound;
+    }
+  }
+
+  /**
+   * Returns the block with the specified index, reading it and the blocks after it that are not
+   * cached yet if it is missing.
+   */
+  private byte[] getBlock(long blockIndex) throws IOException {
+    byte[] block = cache.get(blockIndex);
+    if (block != null) {
+      return block;
+    }
+    long numBlocks = (length + blockSize - 1) / blockSize;
+    int numBlocksToRead = 1;
+    while (numBlocksToRead <= readAheadBlocks
+        && blockIndex + numBlocksToRead < numBlocks
+        && !cache.containsKey(blockIndex + numBlocksToRead)) {
+      numBlocksToRead++;
+    }
+    long start = blockIndex * blockSize;
+    int numBytesToRead = (int) Math.min((long) numBlocksToRead * blockSize, length - start);
+    ByteBuffer target = ByteBuffer.allocate(numBytesToRead);
+    while (target.hasRemaining()) {
+      if (channel.read(target, start + target.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    byte[] bytes = target.array();
+    // Cache the read-ahead blocks first, so that the requested one is the most recently used.
+    for (int index = numBlocksToRead - 1; index >= 0; index--) {
+      int blockStart = index * blockSize;
+      byte[] readBlock = new byte[Math.min(blockSize, numBytesToRead - blockStart)];
+      System.arraycopy(bytes, blockStart, readBlock, 0, readBlock.length);
+      cache.put(blockIndex + index, readBlock);
+      block = readBlock;
+    }
+    return block;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    cache.clear();
+    file.close();
+  }
+}
@@ -4,32 +4,89 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyProgressListener;
 import com.google.archivepatcher.applier.DeltaApplier;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 
 /**
- * An implementation of {@link DeltaApplier} that uses {@link BsPatch} to apply a bsdiff patch.
+ * An implementation of {@link DeltaApplier} that uses {@link BsPatch} to apply a bsdiff patch. The
+ * old blob is read through the {@link OldDataSource} that {@link OldDataSources} chooses for it.
  */
 public class BsDiffDeltaApplier implements DeltaApplier {
+  /**
+   * The listener to poll for cancellation, or null.
+   */
+  private final ApplyProgressListener listener;
+
+  /**
+   * Creates an applier that cannot be cancelled.
+   */
+  public BsDiffDeltaApplier() {
+    this(null);
+  }
+
+  /**
+   * Creates an applier that polls the specified listener for cancellation between the control
+   * entries of each delta (see {@link ApplyProgressListener#isCancelled()}).
+   *
+   * @param listener the listener to poll, or null
+   */
+  public BsDiffDeltaApplier(ApplyProgressListener listener) {
+    this.listener = listener;
+  }
 
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException {
-    RandomAccessFile oldBlobRaf = null;
-    try {
-      oldBlobRaf = new RandomAccessFile(oldBlob, "r");
-      BsPatch.applyPatch(oldBlobRaf, newBlobOut, deltaIn);
-    } finally {
-      try {
-        oldBlobRaf.close();
-      } catch (Exception ignored) {
-        // Nothing
-      }
+    try (OldDataSource oldData = OldDataSources.open(oldBlob)) {
+      BsPatch.applyPatch(oldData, 0, oldData.length(), newBlobOut, deltaIn, listener);
     }
   }
+
+  /**
+   * Applies a delta to a range of the old blob, as if the range were the entire old blob.
+   *
+   * @param oldBlob the file containing the range to apply the delta to
+   * @param oldBlobOffset the offset of the range in the file
+   * @param oldBlobLength the length of the range
+   * @param deltaIn the stream to read the delta from
+   * @param newBlobOut the stream to write the result to
+   * @throws IOException if anything goes wrong
+   */
+  public void applyDelta(
+      File oldBlob,
+      long oldBlobOffset,
+      long oldBlobLength,
+      InputStream deltaIn,
+      OutputStream newBlobOut)
+      throws IOException {
+    try (OldDataSource oldData = OldDataSources.open(oldBlob)) {
+      BsPatch.applyPatch(oldData, oldBlobOffset, oldBlobLength, newBlobOut, deltaIn, listener);
+    }
+  }
+
+  /**
+   * Applies a delta to a range of an old data source, as if the range were the entire old blob.
+   * The source is not closed.
+   *
+   * @param oldData the source containing the range to apply the delta to
+   * @param oldDataOffset the offset of the range in the source
+   * @param oldDataLength the length of the range
+   * @param deltaIn the stream to read the delta from
+   * @param newBlobOut the stream to write the result to
+   * @throws IOException if anything goes wrong
+   */
+  public void applyDelta(
+      OldDataSource oldData,
+      long oldDataOffset,
+      long oldDataLength,
+      InputStream deltaIn,
+      OutputStream newBlobOut)
+      throws IOException {
+    BsPatch.applyPatch(oldData, oldDataOffset, oldDataLength, newBlobOut, deltaIn, listener);
+  }
 }
@@ -4,6 +4,8 @@
 
 package com.google.archivepatcher.applier.bsdiff;
 
+import com.google.archivepatcher.applier.ApplyCancelledException;
+import com.google.archivepatcher.applier.ApplyProgressListener;
 import com.google.archivepatcher.applier.PatchFormatException;
 
 import java.io.BufferedInputStream;
@@ -58,10 +60,92 @@ public class BsPatch {
   public static void applyPatch(
       RandomAccessFile oldData, OutputStream newData, InputStream patchData)
       throws PatchFormatException, IOException {
+    applyPatch(oldData, 0, oldData.length(), newData, patchData);
+  }
+
+  /**
+   * Applies a patch from |patchData| to a range of the data in |oldData|, writing the result to
+   * |newData|. The patch is applied as if the range were the entire old data, i.e. offset 0 in the
+   * patch is |oldDataOffset| in |oldData|.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param oldDataOffset the offset of the range in |oldData|
+   * @param oldDataLength the length of the range in |oldData|
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      RandomAccessFile oldData,
+      long oldDataOffset,
+      long oldDataLength,
+      OutputStream newData,
+      InputStream patchData)
+      throws PatchFormatException, IOException {
+    applyPatch(
+        new OldDataSource.RandomAccessFileSource(oldData),
+        oldDataOffset,
+        oldDataLength,
+        newData,
+        patchData);
+  }
+
+  /**
+   * Applies a patch from |patchData| to a range of the data in |oldData|, writing the result to
+   * |newData|. The patch is applied as if the range were the entire old data, i.e. offset 0 in the
+   * patch is |oldDataOffset| in |oldData|.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param oldDataOffset the offset of the range in |oldData|
+   * @param oldDataLength the length of the range in |oldData|
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      OldDataSource oldData,
+      long oldDataOffset,
+      long oldDataLength,
+      OutputStream newData,
+      InputStream patchData)
+      throws PatchFormatException, IOException {
+    applyPatch(oldData, oldDataOffset, oldDataLength, newData, patchData, null);
+  }
+
+  /**
+   * Applies a patch from |patchData| to a range of the data in |oldData|, writing the result to
+   * |newData|, and polls the specified listener for cancellation between control entries.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param oldDataOffset the offset of the range in |oldData|
+   * @param oldDataLength the length of the range in |oldData|
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @param listener the listener to poll for cancellation, or null
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws ApplyCancelledException if the listener cancels patch application
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      OldDataSource oldData,
+      long oldDataOffset,
+      long oldDataLength,
+      OutputStream newData,
+      InputStream patchData,
+      ApplyProgressListener listener)
+      throws PatchFormatException, IOException {
+    if (oldDataOffset < 0
+        || oldDataLength < 0
+        || oldDataLength > oldData.length() - oldDataOffset) {
+      throw new IllegalArgumentException(
+          "Bad range: offset=" + oldDataOffset + ", length=" + oldDataLength);
+    }
     patchData = new BufferedInputStream(patchData, PATCH_STREAM_BUFFER_SIZE);
     newData = new BufferedOutputStream(newData, OUTPUT_STREAM_BUFFER_SIZE);
     try {
-      applyPatchInternal(oldData, newData, patchData);
+      applyPatchInternal(oldData, oldDataOffset, oldDataLength, newData, patchData, listener);
     } finally {
       newData.flush();
     }
@@ -71,9 +155,12 @@ public class BsPatch {
    * Does the work of the public applyPatch method.
    */
   private static void applyPatchInternal(
-      final RandomAccessFile oldData,
+      final OldDataSource oldData,
+      final long oldDataRangeOffset,
+      final long oldDataRangeLength,
       final OutputStream newData,
-      final InputStream patchData)
+      final InputStream patchData,
+      final ApplyProgressListener listener)
       throws PatchFormatException, IOException {
     final byte[] signatureBuffer = new byte[SIGNATURE.length()];
     try {
@@ -88,7 +175,7 @@ public class BsPatch {
     }
 
     // Sanity-check: ensure a-priori knowledge matches patch expectations
-    final long oldSize = oldData.length();
+    final long oldSize = oldDataRangeLength;
     if (oldSize > Integer.MAX_VALUE) {
       throw new PatchFormatException("bad oldSize");
     }
@@ -106,6 +193,10 @@ public class BsPatch {
     long newDataBytesWritten = 0; // monotonically increases from 0 .. |expectedNewSize|
 
     while (newDataBytesWritten < newSize) {
+      if (listener != null && listener.isCancelled()) {
+        throw new ApplyCancelledException("Patch application cancelled");
+      }
+
       // Read "control data" for the operation. There are three values here:
       // 1. |diffSegmentLength| defines a number of "similar" bytes that can be transformed
       //    from |oldData| to |newData| by applying byte-by-byte addends. The addend bytes are
@@ -147,11 +238,21 @@ public class BsPatch {
       if (expectedFinalOldDataOffset < 0) {
         throw new PatchFormatException("expectedFinalOldDataOffset is negative");
       }
+      if (oldDataOffset + diffSegmentLength > oldSize) {
+        // Don't read past the end of the range, even if the file goes on.
+        throw new PatchFormatException("diffSegmentLength too large");
+      }
 
       // At this point everything is known to be sane, and the operations should all succeed.
-      oldData.seek(oldDataOffset);
       if (diffSegmentLength > 0) {
-        transformBytes((int) diffSegmentLength, patchData, oldData, newData, buffer1, buffer2);
+        transformBytes(
+            (int) diffSegmentLength,
+            patchData,
+            oldData,
+            oldDataRangeOffset + oldDataOffset,
+            newData,
+            buffer1,
+            buffer2);
       }
       if (copySegmentLength > 0) {
         pipe(patchData, newData, buffer1, (int) copySegmentLength);
@@ -191,15 +292,41 @@ public class BsPatch {
       final byte[] buffer1,
       final byte[] buffer2)
       throws IOException {
+    long oldDataPosition = oldData.getFilePointer();
+    transformBytes(
+        diffLength,
+        patchData,
+        new OldDataSource.RandomAccessFileSource(oldData),
+        oldDataPosition,
+        newData,
+        buffer1,
+        buffer2);
+    oldData.seek(oldDataPosition + diffLength);
+  }
+
+  /**
+   * Like {@link #transformBytes(int, InputStream, RandomAccessFile, OutputStream, byte[],
+   * byte[])}, but reads the old data from the specified position of an {@link OldDataSource}.
+   */
+  private static void transformBytes(
+      final int diffLength,
+      final InputStream patchData,
+      final OldDataSource oldData,
+      long oldDataPosition,
+      final OutputStream newData,
+      final byte[] buffer1,
+      final byte[] buffer2)
+      throws IOException {
     int numBytesLeft = diffLength;
     while (numBytesLeft > 0) {
       final int numBytesThisRound = Math.min(numBytesLeft, buffer1.length);
-      oldData.readFully(buffer1, 0, numBytesThisRound);
+      oldData.readFully(oldDataPosition, buffer1, 0, numBytesThisRound);
       readFully(patchData, buffer2, 0, numBytesThisRound);
       for (int i = 0; i < numBytesThisRound; i++) {
         buffer1[i] += buffer2[i];
       }
       newData.write(buffer1, 0, numBytesThisRound);
+      oldDataPosition += numBytesThisRound;
       numBytesLeft -= numBytesThisRound;
     }
   }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * An {@link OldDataSource} that holds all of the old data in memory. This is the fastest source
+ * and the best choice for data that comfortably fits in the heap.
+ */
+public class ByteArrayOldDataSource implements OldDataSource {
+  /**
+   * The old data.
+   */
+  private final byte[] data;
+
+  /**
+   * Creates a source that reads from the specified array, which must not be modified while the
+   * source is in use.
+   *
+   * @param data the old data
+   */
+  public ByteArrayOldDataSource(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * Reads the specified file into memory.
+   *
+   * @param file the file to read
+   * @return a source holding the contents of the file
+   * @throws IOException if unable to read the file, or if it is too large to fit in an array
+   */
+  public static ByteArrayOldDataSource load(File file) throws IOException {
+    long length = file.length();
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("File too large to load into memory: " + length);
+    }
+    byte[] data = new byte[(int) length];
+    try (FileInputStream in = new FileInputStream(file)) {
+      BsPatch.readFully(in, data, 0, data.length);
+    }
+    return new ByteArrayOldDataSource(data);
+  }
+
+  @Override
+  public long length() {
+    return data.length;
+  }
+
+  @Override
+  public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException {
+    if (pos < 0 || pos > data.length - length) {
+      throw new EOFException();
+    }
+    System.arraycopy(data, (int) pos, buffer, offset, length);
+  }
+
+  @Override
+  public void close() {
+    // Nothing to release.
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import com.google.archivepatcher.shared.MappedBuffers;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An {@link OldDataSource} that memory-maps a file, so that reads are served from the page cache
+ * without a system call each. A {@link MappedByteBuffer} can address at most 2 GiB, so the file is
+ * mapped in chunks and reads that span two chunks are split.
+ *
+ * <p>The mappings are released when the source is closed, or, where {@link
+ * MappedBuffers#isUnmapSupported()} is false, when they are garbage collected. Closing waits for
+ * reads that are in progress on other threads, as reading an unmapped buffer crashes the VM; reads
+ * that start afterwards fail with an {@link IOException}.
+ */
+public class MappedOldDataSource implements OldDataSource {
+  /**
+   * The default size of a chunk, 1 GiB.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+  /**
+   * The size of each chunk except the last.
+   */
+  private final int chunkSize;
+
+  /**
+   * The length of the file.
+   */
+  private final long length;
+
+  /**
+   * Held for reading while reading from the chunks, and for writing while unmapping them.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * The mapped chunks, in file order, or null once closed. Only duplicates are read from, so that
+   * concurrent reads don't interfere with each other's positions. Guarded by {@link #lock}.
+   */
+  private MappedByteBuffer[] chunks;
+
+  /**
+   * Maps the specified file in chunks of {@link #DEFAULT_CHUNK_SIZE} bytes.
+   *
+   * @param file the file to map
+   * @throws IOException if unable to map the file
+   */
+  public MappedOldDataSource(File file) throws IOException {
+    this(file, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Maps the specified file in chunks of the specified size.
+   *
+   * @param file the file to map
+   * @param chunkSize the size of each chunk except the last
+   * @throws IOException if unable to map the file
+   * @throws IllegalArgumentException if chunkSize is not positive
+   */
+  public MappedOldDataSource(File file, int chunkSize) throws IOException {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      // The mappings stay valid after the channel is closed.
+      FileChannel channel = raf.getChannel();
+      length = channel.size();
+      int numChunks = (int) ((length + chunkSize - 1) / chunkSize);
+      chunks = new MappedByteBuffer[numChunks];
+      for (int index = 0; index < numChunks; index++) {
+        long chunkOffset = (long) index * chunkSize;
+        chunks[index] =
+            channel.map(
+                FileChannel.MapMode.READ_ONLY,
+                chunkOffset,
+                Math.min(chunkSize, length - chunkOffset));
+      }
+    }
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException {
+    lock.readLock().lock();
+    try {
+      if (chunks == null) {
+        throw new IOException("closed");
+      }
+      if (pos < 0 || pos > this.length - length) {
+        throw new EOFException();
+      }
+      while (length > 0) {
+        ByteBuffer chunk = chunks[(int) (pos / chunkSize)].duplicate();
+        int positionInChunk = (int) (pos % chunkSize);
+        int numBytesThisRound = Math.min(length, chunk.limit() - positionInChunk);
+        chunk.position(positionInChunk);
+        chunk.get(buffer, offset, numBytesThisRound);
+        pos += numBytesThisRound;
+        offset += numBytesThisRound;
+        length -= numBytesThisRound;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      MappedByteBuffer[] mappedChunks = chunks;
+      chunks = null;
+      if (mappedChunks != null) {
+        for (MappedByteBuffer chunk : mappedChunks) {
+          MappedBuffers.unmap(chunk);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The old data that {@link BsPatch} applies a patch to. Reads are positional, so a source keeps no
+ * file pointer of its own and one source can be shared by several patches that are applied to
+ * different ranges of it at the same time, unless the implementation says otherwise.
+ */
+public interface OldDataSource extends Closeable {
+  /**
+   * Returns the length of the data.
+   *
+   * @return as described
+   * @throws IOException if unable to determine the length
+   */
+  public long length() throws IOException;
+
+  /**
+   * Reads exactly the specified number of bytes, starting at the specified position.
+   *
+   * @param pos the position in the data to start reading at
+   * @param buffer the buffer to read into
+   * @param offset the offset in the buffer to start writing at
+   * @param length the number of bytes to read
+   * @throws EOFException if the data ends before the requested number of bytes has been read
+   * @throws IOException if anything else goes wrong
+   */
+  public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * An {@link OldDataSource} that reads from a {@link RandomAccessFile} through its channel, so
+   * that the file pointer of the file is neither used nor changed.
+   */
+  public static final class RandomAccessFileSource implements OldDataSource {
+    /**
+     * The file to read from.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The channel of the file, for positional reads.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Whether or not {@link #close()} closes the file.
+     */
+    private final boolean ownsFile;
+
+    /**
+     * Creates a source that reads from the specified file. Closing the source doesn't close the
+     * file.
+     *
+     * @param file the file to read from
+     */
+    public RandomAccessFileSource(RandomAccessFile file) {
+      this(file, false);
+    }
+
+    /**
+     * Creates a source that reads from the specified file.
+     *
+     * @param file the file to read from
+     * @param ownsFile whether or not closing the source closes the file
+     */
+    public RandomAccessFileSource(RandomAccessFile file, boolean ownsFile) {
+      this.file = file;
+      this.channel = file.getChannel();
+      this.ownsFile = ownsFile;
+    }
+
+    @Override
+    public long length() throws IOException {
+      return file.length();
+    }
+
+    @Override
+    public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException {
+      ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+      while (target.hasRemaining()) {
+        int numRead = channel.read(target, pos);
+        if (numRead < 0) {
+          throw new EOFException();
+        }
+        pos += numRead;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (ownsFile) {
+        file.close();
+      }
+    }
+  }
+}
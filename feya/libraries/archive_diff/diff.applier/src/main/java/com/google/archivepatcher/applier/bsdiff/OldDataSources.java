@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Chooses the {@link OldDataSource} implementation for a file. Files that comfortably fit in the
+ * available heap are read into memory ({@link ByteArrayOldDataSource}); larger files are
+ * memory-mapped ({@link MappedOldDataSource}); and if mapping fails, for example because the
+ * address space is exhausted, they are read through a block cache
+ * ({@link BlockCachedOldDataSource}).
+ */
+public class OldDataSources {
+  /**
+   * The largest file that is ever read into memory, 64 MiB.
+   */
+  public static final long MAX_IN_MEMORY_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The fraction of the available heap that a file read into memory may take up, as a divisor.
+   */
+  private static final int AVAILABLE_HEAP_DIVISOR = 4;
+
+  /**
+   * Opens the specified file with the implementation that suits its size and the available heap.
+   *
+   * @param file the file to open
+   * @return the source, which the caller must close
+   * @throws IOException if unable to open the file
+   */
+  public static OldDataSource open(File file) throws IOException {
+    Runtime runtime = Runtime.getRuntime();
+    long availableHeapBytes =
+        runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    return open(
+        file, Math.min(MAX_IN_MEMORY_BYTES, availableHeapBytes / AVAILABLE_HEAP_DIVISOR));
+  }
+
+  /**
+   * Opens the specified file, reading it into memory only if it is no larger than the specified
+   * size.
+   *
+   * @param file the file to open
+   * @param maxInMemoryBytes the largest file to read into memory
+   * @return the source, which the caller must close
+   * @throws IOException if unable to open the file
+   */
+  // Visible for testing only
+  static OldDataSource open(File file, long maxInMemoryBytes) throws IOException {
+    if (file.length() <= maxInMemoryBytes) {
+      return ByteArrayOldDataSource.load(file);
+    }
+    try {
+      return new MappedOldDataSource(file);
+    } catch (IOException e) {
+      // Mapping can fail for reasons that have nothing to do with the file, such as running out of
+      // address space; reading through a cache still works then. If the file itself is the
+      // problem, the block cache fails too.
+      return new BlockCachedOldDataSource(file);
+    }
+  }
+}
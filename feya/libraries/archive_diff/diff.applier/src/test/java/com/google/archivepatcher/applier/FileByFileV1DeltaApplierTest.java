@@ -4,6 +4,7 @@
 
 package com.google.archivepatcher.applier;
 
+import com.google.archivepatcher.applier.bsdiff.BsDiffDeltaApplier;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
@@ -25,6 +26,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -257,4 +259,258 @@ public class FileByFileV1DeltaApplierTest {
     Assert.assertFalse(closed.get());
   }
 
+  /**
+   * Writes a real bsdiff delta that produces newLength bytes: a copy of the first copyLength
+   * bytes of the old data, followed by the literal bytes.
+   */
+  private static byte[] makeBsDiffDelta(int copyLength, byte[] literal) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    buffer.write("ENDSLEY/BSDIFF43".getBytes("US-ASCII"));
+    writeBsDiffLong(buffer, copyLength + literal.length); // new size
+    writeBsDiffLong(buffer, copyLength); // diff segment length
+    writeBsDiffLong(buffer, literal.length); // copy segment length
+    writeBsDiffLong(buffer, 0); // offset to next input
+    buffer.write(new byte[copyLength]); // all-zero diff: a plain copy of the old data
+    buffer.write(literal);
+    return buffer.toByteArray();
+  }
+
+  private static void writeBsDiffLong(OutputStream out, long value) throws IOException {
+    for (int bitshift = 0; bitshift < 64; bitshift += 8) {
+      out.write((int) (value >>> bitshift));
+    }
+  }
+
+  /**
+   * Write a v1.1 patch with one real bsdiff delta each for the header, the entry and the trailer,
+   * and return it. The header and trailer are copied from the old file; the entry has nothing to
+   * diff against.
+   */
+  private byte[] writeMultipleDeltasPatch() throws IOException {
+    long deltaFriendlyOldFileSize =
+        UNCOMPRESSED_HEADER.length + UNCOMPRESSED_OLD_CONTENT.length + UNCOMPRESSED_TRAILER.length;
+    byte[][] deltas = {
+      makeBsDiffDelta(UNCOMPRESSED_HEADER.length, new byte[0]),
+      makeBsDiffDelta(0, UNCOMPRESSED_NEW_CONTENT),
+      makeBsDiffDelta(UNCOMPRESSED_TRAILER.length, new byte[0])
+    };
+    long[][] ranges = { // old offset, old length, new offset, new length
+      {0, UNCOMPRESSED_HEADER.length, 0, UNCOMPRESSED_HEADER.length},
+      {0, 0, UNCOMPRESSED_HEADER.length, UNCOMPRESSED_NEW_CONTENT.length},
+      {
+        UNCOMPRESSED_HEADER.length + UNCOMPRESSED_OLD_CONTENT.length,
+        UNCOMPRESSED_TRAILER.length,
+        UNCOMPRESSED_HEADER.length + UNCOMPRESSED_NEW_CONTENT.length,
+        UNCOMPRESSED_TRAILER.length
+      }
+    };
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(buffer);
+    dataOut.write(PatchConstants.IDENTIFIER_MULTIPLE_DELTAS.getBytes("US-ASCII"));
+    dataOut.writeInt(0); // Flags (reserved)
+    dataOut.writeLong(deltaFriendlyOldFileSize);
+    dataOut.writeInt(1); // num uncompress instructions that follow
+    dataOut.writeLong(UNCOMPRESSED_HEADER.length);
+    dataOut.writeLong(COMPRESSED_OLD_CONTENT.length);
+    dataOut.writeInt(1); // num recompress instructions that follow
+    dataOut.writeLong(UNCOMPRESSED_HEADER.length);
+    dataOut.writeLong(UNCOMPRESSED_NEW_CONTENT.length);
+    dataOut.write(PatchConstants.CompatibilityWindowId.DEFAULT_DEFLATE.patchValue);
+    dataOut.write(PARAMS1.level);
+    dataOut.write(PARAMS1.strategy);
+    dataOut.write(PARAMS1.nowrap ? 1 : 0);
+    dataOut.writeInt(deltas.length);
+    for (int x = 0; x < deltas.length; x++) {
+      dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
+      for (long value : ranges[x]) {
+        dataOut.writeLong(value);
+      }
+      dataOut.writeLong(deltas[x].length);
+    }
+    for (byte[] delta : deltas) {
+      dataOut.write(delta);
+    }
+    dataOut.flush();
+    return buffer.toByteArray();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadParallelism() {
+    new FileByFileV1DeltaApplier(tempDir, 0);
+  }
+
+  @Test
+  public void testApplyDelta_MultipleDeltas() throws IOException {
+    byte[] patch = writeMultipleDeltasPatch();
+    // Includes more workers than the old blob view keeps inflaters for each thread.
+    for (int parallelism : new int[] {1, 4, InflatingOldBlobView.MAX_CURSORS * 2}) {
+      for (boolean inflateOldBlobOnDemand : new boolean[] {false, true}) {
+        ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+        new FileByFileV1DeltaApplier(tempDir, parallelism, inflateOldBlobOnDemand)
+            .applyDelta(oldFile, new ByteArrayInputStream(patch), actualNewBlobOut);
+        Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testApplyDelta_MultipleDeltasTruncated() throws IOException {
+    byte[] patch = writeMultipleDeltasPatch();
+    byte[] truncatedPatch = Arrays.copyOf(patch, patch.length - 1);
+    for (int parallelism : new int[] {1, 4}) {
+      try {
+        new FileByFileV1DeltaApplier(tempDir, parallelism)
+            .applyDelta(
+                oldFile, new ByteArrayInputStream(truncatedPatch), new ByteArrayOutputStream());
+        Assert.fail("Applied a truncated patch with parallelism " + parallelism);
+      } catch (IOException expected) {
+        // Pass
+      }
+    }
+  }
+
+  /**
+   * Remembers the latest progress reported to it, and cancels once it has seen the specified
+   * number of reports.
+   */
+  private static class RecordingListener implements ApplyProgressListener {
+    private final int cancelAfterReports;
+    private int reports = 0;
+    private long lastTimestampNanos = Long.MIN_VALUE;
+    long oldBlobBytesWritten = -1;
+    long oldBlobTotalBytes = -1;
+    long deltaBytesConsumed = -1;
+    long deltaTotalBytes = -1;
+    long newBytesProduced = -1;
+    int rangesCompleted = -1;
+    int totalRanges = -1;
+
+    RecordingListener(int cancelAfterReports) {
+      this.cancelAfterReports = cancelAfterReports;
+    }
+
+    private synchronized void reported(long timestampNanos) {
+      Assert.assertTrue(timestampNanos >= lastTimestampNanos);
+      lastTimestampNanos = timestampNanos;
+      reports++;
+    }
+
+    @Override
+    public void oldBlobUncompressed(long bytesWritten, long totalBytes, long timestampNanos) {
+      reported(timestampNanos);
+      oldBlobBytesWritten = bytesWritten;
+      oldBlobTotalBytes = totalBytes;
+    }
+
+    @Override
+    public void deltaBytesConsumed(long bytesConsumed, long totalBytes, long timestampNanos) {
+      reported(timestampNanos);
+      deltaBytesConsumed = bytesConsumed;
+      deltaTotalBytes = totalBytes;
+    }
+
+    @Override
+    public void newBytesProduced(long bytesProduced, long timestampNanos) {
+      reported(timestampNanos);
+      newBytesProduced = bytesProduced;
+    }
+
+    @Override
+    public void recompressionRangesCompleted(
+        int rangesCompleted, int totalRanges, long timestampNanos) {
+      reported(timestampNanos);
+      this.rangesCompleted = rangesCompleted;
+      this.totalRanges = totalRanges;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return reports >= cancelAfterReports;
+    }
+  }
+
+  @Test
+  public void testApplyDelta_Progress() throws IOException {
+    byte[] patch = writeMultipleDeltasPatch();
+    for (int parallelism : new int[] {1, 4}) {
+      RecordingListener listener = new RecordingListener(Integer.MAX_VALUE);
+      ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+      new FileByFileV1DeltaApplier(tempDir, parallelism)
+          .applyDelta(oldFile, new ByteArrayInputStream(patch), actualNewBlobOut, listener);
+      Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+      Assert.assertEquals(expectedDeltaFriendlyOldFileBytes.length, listener.oldBlobTotalBytes);
+      Assert.assertEquals(listener.oldBlobTotalBytes, listener.oldBlobBytesWritten);
+      Assert.assertTrue(listener.deltaTotalBytes > 0);
+      Assert.assertEquals(listener.deltaTotalBytes, listener.deltaBytesConsumed);
+      Assert.assertEquals(expectedNewBytes.length, listener.newBytesProduced);
+      Assert.assertEquals(1, listener.totalRanges);
+      Assert.assertEquals(1, listener.rangesCompleted);
+    }
+  }
+
+  @Test
+  public void testApplyDelta_Cancelled() throws IOException {
+    byte[] patch = writeMultipleDeltasPatch();
+    for (int parallelism : new int[] {1, 4}) {
+      for (boolean inflateOldBlobOnDemand : new boolean[] {false, true}) {
+        RecordingListener listener = new RecordingListener(1);
+        ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+        try {
+          new FileByFileV1DeltaApplier(tempDir, parallelism, inflateOldBlobOnDemand)
+              .applyDelta(oldFile, new ByteArrayInputStream(patch), actualNewBlobOut, listener);
+          Assert.fail("Not cancelled with parallelism " + parallelism);
+        } catch (ApplyCancelledException expected) {
+          // Pass
+        }
+        Assert.assertTrue(actualNewBlobOut.size() < expectedNewBytes.length);
+      }
+    }
+  }
+
+  @Test
+  public void testApplyDelta_ListenerKeepsOverriddenApplier() throws IOException {
+    // A subclass of the default applier is used even when there is a listener to poll.
+    final AtomicBoolean called = new AtomicBoolean(false);
+    FileByFileV1DeltaApplier applier =
+        new FileByFileV1DeltaApplier(tempDir) {
+          @Override
+          protected DeltaApplier getDeltaApplier() {
+            return new BsDiffDeltaApplier() {
+              @Override
+              public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+                  throws IOException {
+                called.set(true);
+                new FakeDeltaApplier().applyDelta(oldBlob, deltaIn, newBlobOut);
+              }
+            };
+          }
+        };
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    applier.applyDelta(
+        oldFile,
+        new ByteArrayInputStream(patchBytes),
+        actualNewBlobOut,
+        new RecordingListener(Integer.MAX_VALUE));
+    Assert.assertTrue(called.get());
+    Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+  }
+
+  @Test
+  public void testApplyDelta_CancelledBeforeStarting() throws IOException {
+    // A listener that is cancelled from the start stops the single-delta path too.
+    ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+    try {
+      new FileByFileV1DeltaApplier(tempDir)
+          .applyDelta(
+              oldFile,
+              new ByteArrayInputStream(patchBytes),
+              actualNewBlobOut,
+              new RecordingListener(0));
+      Assert.fail("Not cancelled");
+    } catch (ApplyCancelledException expected) {
+      // Pass
+    }
+    Assert.assertEquals(0, actualNewBlobOut.size());
+  }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link InflatingOldBlobView}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class InflatingOldBlobViewTest {
+  private File oldBlob;
+  private List<TypedRange<Void>> uncompressionPlan;
+  private byte[] expectedDeltaFriendlyBytes;
+
+  @Before
+  public void setUp() throws IOException {
+    // An uncompressed header, a small and a large deflated entry with an uncompressed gap between
+    // them, and an uncompressed trailer.
+    Random random = new Random(42);
+    ByteArrayOutputStream oldBlobBytes = new ByteArrayOutputStream();
+    uncompressionPlan = new ArrayList<TypedRange<Void>>();
+    oldBlobBytes.write(randomBytes(random, 100));
+    for (int size : new int[] {1000, 200000}) {
+      byte[] compressed = deflate(compressibleBytes(random, size));
+      uncompressionPlan.add(new TypedRange<Void>(oldBlobBytes.size(), compressed.length, null));
+      oldBlobBytes.write(compressed);
+      oldBlobBytes.write(randomBytes(random, 50));
+    }
+    oldBlob = File.createTempFile("InflatingOldBlobViewTest", "old");
+    try (FileOutputStream out = new FileOutputStream(oldBlob)) {
+      out.write(oldBlobBytes.toByteArray());
+    }
+    ByteArrayOutputStream deltaFriendlyOut = new ByteArrayOutputStream();
+    DeltaFriendlyFile.generateDeltaFriendlyFile(uncompressionPlan, oldBlob, deltaFriendlyOut);
+    expectedDeltaFriendlyBytes = deltaFriendlyOut.toByteArray();
+  }
+
+  @After
+  public void tearDown() {
+    oldBlob.delete();
+  }
+
+  private static byte[] randomBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] compressibleBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    for (int x = 0; x < size; x++) {
+      bytes[x] = (byte) ('a' + random.nextInt(4));
+    }
+    return bytes;
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(9, true);
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private void assertRandomReads(long cacheCapacityBytes) throws IOException {
+    Random random = new Random(7);
+    try (InflatingOldBlobView view =
+        new InflatingOldBlobView(
+            oldBlob, uncompressionPlan, expectedDeltaFriendlyBytes.length, cacheCapacityBytes)) {
+      Assert.assertEquals(expectedDeltaFriendlyBytes.length, view.length());
+      byte[] all = new byte[expectedDeltaFriendlyBytes.length];
+      view.readFully(0, all, 0, all.length);
+      Assert.assertArrayEquals(expectedDeltaFriendlyBytes, all);
+      for (int x = 0; x < 200; x++) {
+        int pos = random.nextInt(expectedDeltaFriendlyBytes.length);
+        int length = random.nextInt(Math.min(5000, expectedDeltaFriendlyBytes.length - pos) + 1);
+        byte[] actual = new byte[length + 2];
+        view.readFully(pos, actual, 1, length);
+        Assert.assertArrayEquals(
+            Arrays.copyOfRange(expectedDeltaFriendlyBytes, pos, pos + length),
+            Arrays.copyOfRange(actual, 1, length + 1));
+      }
+    }
+  }
+
+  @Test
+  public void testReadFully_EverythingCached() throws IOException {
+    assertRandomReads(InflatingOldBlobView.DEFAULT_CACHE_CAPACITY_BYTES);
+  }
+
+  @Test
+  public void testReadFully_LargeEntryThroughInflaters() throws IOException {
+    // Only the small entry fits in the cache; the large one is read through live inflaters.
+    assertRandomReads(4000);
+  }
+
+  @Test
+  public void testReadFully_NothingCached() throws IOException {
+    assertRandomReads(0);
+  }
+
+  @Test
+  public void testReadFully_MoreThreadsThanInflatersPerThread() throws Exception {
+    // Twice as many threads as the inflaters each thread may keep, each moving forward through its
+    // own part of the large entry in lockstep with the others. Every thread keeps its own inflater,
+    // so the entry is never inflated again from the start.
+    final int numThreads = InflatingOldBlobView.MAX_CURSORS * 2;
+    final int chunkLength = 1000;
+    final long largeEntryOffset = 100 + 1000 + 50;
+    final int partLength = 200000 / numThreads;
+    final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try (final InflatingOldBlobView view =
+        new InflatingOldBlobView(
+            oldBlob, uncompressionPlan, expectedDeltaFriendlyBytes.length, 4000)) {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int x = 0; x < numThreads; x++) {
+        final long partOffset = largeEntryOffset + (long) x * partLength;
+        futures.add(
+            executor.submit(
+                new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                    byte[] actual = new byte[chunkLength];
+                    for (int pos = 0; pos < partLength; pos += chunkLength) {
+                      barrier.await();
+                      int start = (int) partOffset + pos;
+                      view.readFully(start, actual, 0, chunkLength);
+                      Assert.assertArrayEquals(
+                          Arrays.copyOfRange(
+                              expectedDeltaFriendlyBytes, start, start + chunkLength),
+                          actual);
+                    }
+                    return null;
+                  }
+                }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      Assert.assertEquals(numThreads, view.getNumCursorsStarted());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = EOFException.class)
+  public void testReadFully_PastEnd() throws IOException {
+    try (InflatingOldBlobView view =
+        new InflatingOldBlobView(
+            oldBlob, uncompressionPlan, expectedDeltaFriendlyBytes.length, 0)) {
+      view.readFully(expectedDeltaFriendlyBytes.length - 1, new byte[2], 0, 2);
+    }
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testConstructor_WrongExpectedLength() throws IOException {
+    new InflatingOldBlobView(
+        oldBlob, uncompressionPlan, expectedDeltaFriendlyBytes.length + 1, 0);
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testConstructor_RangePastEnd() throws IOException {
+    List<TypedRange<Void>> plan = new ArrayList<TypedRange<Void>>(uncompressionPlan);
+    plan.add(new TypedRange<Void>(oldBlob.length() - 1, 2, null));
+    new InflatingOldBlobView(oldBlob, plan, expectedDeltaFriendlyBytes.length, 0);
+  }
+}
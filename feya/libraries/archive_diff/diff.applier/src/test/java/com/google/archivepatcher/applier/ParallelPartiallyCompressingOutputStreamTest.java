@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ParallelPartiallyCompressingOutputStream}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ParallelPartiallyCompressingOutputStreamTest {
+  private ExecutorService executor;
+  private byte[] input;
+  private List<TypedRange<JreDeflateParameters>> ranges;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+    // Uncompressed gaps between ranges of every combination of deflate parameters, with an empty
+    // range and a gap-less pair of ranges thrown in.
+    Random random = new Random(42);
+    ByteArrayOutputStream inputBytes = new ByteArrayOutputStream();
+    ranges = new ArrayList<TypedRange<JreDeflateParameters>>();
+    int index = 0;
+    for (int level = 1; level <= 9; level++) {
+      for (int strategy = 0; strategy <= 2; strategy++) {
+        for (boolean nowrap : new boolean[] {true, false}) {
+          if (index % 5 != 0) {
+            writeRandomBytes(random, inputBytes, 1 + random.nextInt(100));
+          }
+          int length = index == 7 ? 0 : 1 + random.nextInt(20000);
+          ranges.add(
+              new TypedRange<JreDeflateParameters>(
+                  inputBytes.size(), length, JreDeflateParameters.of(level, strategy, nowrap)));
+          for (int x = 0; x < length; x++) {
+            inputBytes.write('a' + random.nextInt(4));
+          }
+          index++;
+        }
+      }
+    }
+    writeRandomBytes(random, inputBytes, 10);
+    input = inputBytes.toByteArray();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static void writeRandomBytes(Random random, ByteArrayOutputStream out, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    out.write(bytes, 0, length);
+  }
+
+  private byte[] compressSerially(List<TypedRange<JreDeflateParameters>> compressionRanges)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PartiallyCompressingOutputStream stream =
+        new PartiallyCompressingOutputStream(compressionRanges, out, 32768);
+    stream.write(input);
+    stream.flush();
+    return out.toByteArray();
+  }
+
+  private byte[] compressInParallel(
+      List<TypedRange<JreDeflateParameters>> compressionRanges,
+      long maxBufferedBytes,
+      int chunkSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ParallelPartiallyCompressingOutputStream stream =
+        new ParallelPartiallyCompressingOutputStream(
+            compressionRanges, out, 32768, executor, maxBufferedBytes);
+    for (int offset = 0; offset < input.length; offset += chunkSize) {
+      stream.write(input, offset, Math.min(chunkSize, input.length - offset));
+    }
+    stream.flush();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testWrite_SameAsSerial() throws IOException {
+    byte[] expected = compressSerially(ranges);
+    Assert.assertArrayEquals(expected, compressInParallel(ranges, Long.MAX_VALUE, input.length));
+    Assert.assertArrayEquals(expected, compressInParallel(ranges, Long.MAX_VALUE, 777));
+  }
+
+  @Test
+  public void testWrite_SameAsSerial_SmallBuffer() throws IOException {
+    // Most ranges are too large to buffer and are compressed on the writing thread.
+    byte[] expected = compressSerially(ranges);
+    Assert.assertArrayEquals(expected, compressInParallel(ranges, 10000, 4096));
+    Assert.assertArrayEquals(expected, compressInParallel(ranges, 1, 4096));
+  }
+
+  @Test
+  public void testWrite_SameAsSerial_OneByteAtATime() throws IOException {
+    byte[] expected = compressSerially(ranges);
+    Assert.assertArrayEquals(expected, compressInParallel(ranges, 50000, 1));
+  }
+
+  @Test
+  public void testWrite_NoneCompressed() throws IOException {
+    List<TypedRange<JreDeflateParameters>> noRanges = Collections.emptyList();
+    Assert.assertArrayEquals(input, compressInParallel(noRanges, 100, 1000));
+  }
+
+  @Test
+  public void testWrite_SingleThread() throws IOException {
+    executor.shutdownNow();
+    executor = Executors.newSingleThreadExecutor();
+    Assert.assertArrayEquals(
+        compressSerially(ranges), compressInParallel(ranges, Long.MAX_VALUE, 4096));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadMaxBufferedBytes() {
+    new ParallelPartiallyCompressingOutputStream(
+        ranges, new ByteArrayOutputStream(), 32768, executor, 0);
+  }
+}
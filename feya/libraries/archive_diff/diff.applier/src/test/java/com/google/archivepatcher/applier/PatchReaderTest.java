@@ -118,6 +118,18 @@ public class PatchReaderTest {
    * @throws IOException if something goes wrong
    */
   private byte[] writeTestPatch() throws IOException {
+    return writeTestPatch(PatchConstants.IDENTIFIER, DELTA_DESCRIPTORS);
+  }
+
+  /**
+   * Write a test patch with the constants in this file, but the specified identifier and deltas.
+   * @param identifier the identifier to write
+   * @param deltaDescriptors the deltas to write, each with {@link #DELTA_CONTENT} as its content
+   * @return the patch, as an array of bytes.
+   * @throws IOException if something goes wrong
+   */
+  private byte[] writeTestPatch(String identifier, List<DeltaDescriptor> deltaDescriptors)
+      throws IOException {
     // ---------------------------------------------------------------------------------------------
     // CAUTION - DO NOT CHANGE THIS FUNCTION WITHOUT DUE CONSIDERATION FOR BREAKING THE PATCH FORMAT
     // ---------------------------------------------------------------------------------------------
@@ -130,7 +142,7 @@ public class PatchReaderTest {
     patchOut.write(
         corruption.corruptIdentifier
             ? new byte[8]
-            : PatchConstants.IDENTIFIER.getBytes("US-ASCII")); // header
+            : identifier.getBytes("US-ASCII")); // header
     patchOut.writeInt(0); // Flags, all reserved in v1
     patchOut.writeLong(
         corruption.corruptDeltaFriendlyOldFileSize ? -1 : DELTA_FRIENDLY_OLD_FILE_SIZE);
@@ -186,8 +198,8 @@ public class PatchReaderTest {
     patchOut.writeInt(
         corruption.corruptNumDeltaRecords
             ? -1
-            : DELTA_DESCRIPTORS.size()); // Number of difference records
-    for (DeltaDescriptor descriptor : DELTA_DESCRIPTORS) {
+            : deltaDescriptors.size()); // Number of difference records
+    for (DeltaDescriptor descriptor : deltaDescriptors) {
       patchOut.write(corruption.corruptDeltaType ? 73 : descriptor.getFormat().patchValue);
       patchOut.writeLong(
           corruption.corruptDeltaFriendlyOldFileWorkRangeOffset
@@ -209,7 +221,9 @@ public class PatchReaderTest {
     }
 
     // Finally, the delta bytes
-    patchOut.write(DELTA_CONTENT.getBytes("US-ASCII"));
+    for (int x = 0; x < deltaDescriptors.size(); x++) {
+      patchOut.write(DELTA_CONTENT.getBytes("US-ASCII"));
+    }
     return out.toByteArray();
   }
 
@@ -361,4 +375,64 @@ public class PatchReaderTest {
     corruption.corruptDeltaLength = true;
     new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
   }
+
+  private static DeltaDescriptor makeDescriptor(
+      long oldOffset, long oldLength, long newOffset, long newLength) {
+    return new DeltaDescriptor(
+        PatchConstants.DeltaFormat.BSDIFF,
+        new TypedRange<Void>(oldOffset, oldLength, null),
+        new TypedRange<Void>(newOffset, newLength, null),
+        DELTA_CONTENT.length());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_MultipleDeltas() throws IOException {
+    List<DeltaDescriptor> deltaDescriptors =
+        Arrays.asList(
+            makeDescriptor(0, 0, 0, 75L),
+            makeDescriptor(5L, DELTA_FRIENDLY_OLD_FILE_SIZE - 5L, 75L, BIG - 75L),
+            makeDescriptor(0, 10L, BIG, 75L));
+    PatchApplyPlan plan =
+        new PatchReader()
+            .readPatchApplyPlan(
+                new ByteArrayInputStream(
+                    writeTestPatch(PatchConstants.IDENTIFIER_MULTIPLE_DELTAS, deltaDescriptors)));
+    Assert.assertEquals(deltaDescriptors, plan.getDeltaDescriptors());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_MultipleDeltasInV1_0() throws IOException {
+    new PatchReader()
+        .readPatchApplyPlan(
+            new ByteArrayInputStream(
+                writeTestPatch(
+                    PatchConstants.IDENTIFIER,
+                    Arrays.asList(
+                        makeDescriptor(0, DELTA_FRIENDLY_OLD_FILE_SIZE, 0, BIG),
+                        makeDescriptor(0, DELTA_FRIENDLY_OLD_FILE_SIZE, BIG, 75L)))));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_MultipleDeltasWithGap() throws IOException {
+    new PatchReader()
+        .readPatchApplyPlan(
+            new ByteArrayInputStream(
+                writeTestPatch(
+                    PatchConstants.IDENTIFIER_MULTIPLE_DELTAS,
+                    Arrays.asList(
+                        makeDescriptor(0, DELTA_FRIENDLY_OLD_FILE_SIZE, 0, BIG),
+                        makeDescriptor(0, DELTA_FRIENDLY_OLD_FILE_SIZE, BIG + 1L, 74L)))));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_MultipleDeltasOldRangeTooLong() throws IOException {
+    new PatchReader()
+        .readPatchApplyPlan(
+            new ByteArrayInputStream(
+                writeTestPatch(
+                    PatchConstants.IDENTIFIER_MULTIPLE_DELTAS,
+                    Arrays.asList(
+                        makeDescriptor(0, 75L, 0, 75L),
+                        makeDescriptor(1L, DELTA_FRIENDLY_OLD_FILE_SIZE, 75L, BIG)))));
+  }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link OldDataSources} and the {@link OldDataSource} implementations it chooses from.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class OldDataSourcesTest {
+  private File file;
+  private byte[] content;
+
+  @Before
+  public void setUp() throws IOException {
+    content = new byte[100000];
+    new Random(42).nextBytes(content);
+    file = File.createTempFile("OldDataSourcesTest", "old");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(content);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  private void assertReads(OldDataSource source) throws IOException {
+    try {
+      Assert.assertEquals(content.length, source.length());
+      Random random = new Random(7);
+      for (int x = 0; x < 500; x++) {
+        int pos = random.nextInt(content.length);
+        int length = random.nextInt(Math.min(10000, content.length - pos) + 1);
+        byte[] actual = new byte[length + 2];
+        source.readFully(pos, actual, 1, length);
+        Assert.assertArrayEquals(
+            Arrays.copyOfRange(content, pos, pos + length),
+            Arrays.copyOfRange(actual, 1, length + 1));
+      }
+      byte[] all = new byte[content.length];
+      source.readFully(0, all, 0, all.length);
+      Assert.assertArrayEquals(content, all);
+      try {
+        source.readFully(content.length - 1, new byte[2], 0, 2);
+        Assert.fail("read past end");
+      } catch (EOFException expected) {
+        // Pass
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testReadFully_ByteArray() throws IOException {
+    assertReads(ByteArrayOldDataSource.load(file));
+  }
+
+  @Test
+  public void testReadFully_Mapped() throws IOException {
+    assertReads(new MappedOldDataSource(file));
+  }
+
+  @Test
+  public void testReadFully_Mapped_ManyChunks() throws IOException {
+    // Chunks small enough that most reads span several of them, and a short last chunk.
+    assertReads(new MappedOldDataSource(file, 3001));
+  }
+
+  @Test
+  public void testReadFully_Mapped_CloseWhileReading() throws Exception {
+    final MappedOldDataSource source = new MappedOldDataSource(file, 3001);
+    final CountDownLatch readersStarted = new CountDownLatch(4);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[4];
+    for (int x = 0; x < readers.length; x++) {
+      readers[x] =
+          new Thread() {
+            @Override
+            public void run() {
+              byte[] all = new byte[content.length];
+              try {
+                // Read until the source is closed under this thread; every read either sees the
+                // content or fails cleanly.
+                while (true) {
+                  source.readFully(0, all, 0, all.length);
+                  if (!Arrays.equals(content, all)) {
+                    failure.compareAndSet(null, new AssertionError("wrong content"));
+                    return;
+                  }
+                  readersStarted.countDown();
+                }
+              } catch (IOException expected) {
+                // Closed
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              } finally {
+                readersStarted.countDown();
+              }
+            }
+          };
+      readers[x].start();
+    }
+    readersStarted.await();
+    source.close();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    Assert.assertNull(failure.get());
+    try {
+      source.readFully(0, new byte[1], 0, 1);
+      Assert.fail("read after close");
+    } catch (IOException expected) {
+      // Pass
+    }
+  }
+
+  @Test
+  public void testReadFully_BlockCached() throws IOException {
+    assertReads(new BlockCachedOldDataSource(file));
+  }
+
+  @Test
+  public void testReadFully_BlockCached_SmallCache() throws IOException {
+    // Far fewer blocks than the file has, so blocks are evicted and read again all the time.
+    assertReads(new BlockCachedOldDataSource(file, 1000, 4, 2));
+    assertReads(new BlockCachedOldDataSource(file, 777, 1, 0));
+  }
+
+  @Test
+  public void testReadFully_RandomAccessFile() throws IOException {
+    assertReads(new OldDataSource.RandomAccessFileSource(new RandomAccessFile(file, "r"), true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBlockCachedOldDataSource_BadReadAhead() throws IOException {
+    new BlockCachedOldDataSource(file, 1000, 4, 4);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMappedOldDataSource_BadChunkSize() throws IOException {
+    new MappedOldDataSource(file, 0);
+  }
+
+  @Test
+  public void testOpen_Small() throws IOException {
+    try (OldDataSource source = OldDataSources.open(file, content.length)) {
+      Assert.assertTrue(source instanceof ByteArrayOldDataSource);
+    }
+  }
+
+  @Test
+  public void testOpen_Large() throws IOException {
+    try (OldDataSource source = OldDataSources.open(file, content.length - 1)) {
+      Assert.assertTrue(source instanceof MappedOldDataSource);
+    }
+  }
+
+  @Test
+  public void testOpen_Default() throws IOException {
+    assertReads(OldDataSources.open(file));
+  }
+}
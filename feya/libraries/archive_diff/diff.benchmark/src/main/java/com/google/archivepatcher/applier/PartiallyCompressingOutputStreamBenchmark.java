@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.benchmark.NullOutputStream;
+import com.google.archivepatcher.benchmark.SyntheticCorpus;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures recompressing a delta-friendly blob, with {@link PartiallyCompressingOutputStream} on
+ * the writing thread or with {@link ParallelPartiallyCompressingOutputStream} on all processors.
+ * The blob consists of the uncompressed entries of an archive, each preceded by a short
+ * uncompressed header.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PartiallyCompressingOutputStreamBenchmark {
+
+  /**
+   * The size of the buffer that the blob is written in and compressed with.
+   */
+  private static final int BUFFER_SIZE = 32768;
+
+  /**
+   * The total uncompressed size of the entries.
+   */
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  @Param({"16"})
+  public int numEntries;
+
+  /**
+   * The entropy of the entries, as in {@link SyntheticCorpus#content(int, String, long)}.
+   */
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  @Param({"serial", "parallel"})
+  public String implementation;
+
+  private byte[] blob;
+  private List<TypedRange<JreDeflateParameters>> ranges;
+  private ExecutorService executor;
+
+  @Setup
+  public void setup() throws IOException {
+    ByteArrayOutputStream blobOut = new ByteArrayOutputStream();
+    ranges = new ArrayList<TypedRange<JreDeflateParameters>>();
+    byte[] header = new byte[30];
+    for (UnitTestZipEntry entry : SyntheticCorpus.entries(size, numEntries, entropy, 42)) {
+      blobOut.write(header);
+      byte[] content = entry.getUncompressedBinaryContent();
+      if (entry.level != 0) {
+        ranges.add(
+            new TypedRange<JreDeflateParameters>(
+                blobOut.size(),
+                content.length,
+                JreDeflateParameters.of(entry.level, 0, entry.nowrap)));
+      }
+      blobOut.write(content);
+    }
+    blob = blobOut.toByteArray();
+    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public void recompress() throws IOException {
+    OutputStream out;
+    if ("serial".equals(implementation)) {
+      out = new PartiallyCompressingOutputStream(ranges, new NullOutputStream(), BUFFER_SIZE);
+    } else if ("parallel".equals(implementation)) {
+      out =
+          new ParallelPartiallyCompressingOutputStream(
+              ranges, new NullOutputStream(), BUFFER_SIZE, executor, Long.MAX_VALUE);
+    } else {
+      throw new IllegalArgumentException("Unknown implementation: " + implementation);
+    }
+    for (int offset = 0; offset < blob.length; offset += BUFFER_SIZE) {
+      out.write(blob, offset, Math.min(BUFFER_SIZE, blob.length - offset));
+    }
+    out.flush();
+  }
+}
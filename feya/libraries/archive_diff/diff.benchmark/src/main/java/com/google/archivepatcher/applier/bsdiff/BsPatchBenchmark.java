@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.applier.bsdiff;
+
+import com.google.archivepatcher.benchmark.NullOutputStream;
+import com.google.archivepatcher.benchmark.SyntheticCorpus;
+import com.google.archivepatcher.generator.bsdiff.BsDiffPatchWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BsPatch} applying a patch between an old file and an edited copy of it, reading
+ * the old file through each kind of {@link OldDataSource}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BsPatchBenchmark {
+
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  /**
+   * The entropy of the old file, as in {@link SyntheticCorpus#content(int, String, long)}.
+   */
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  /**
+   * The kind of {@link OldDataSource} to read the old file through.
+   */
+  @Param({"byteArray", "mapped", "blockCached", "randomAccessFile"})
+  public String source;
+
+  private File oldFile;
+  private OldDataSource oldData;
+  private byte[] patch;
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    byte[] oldBytes = SyntheticCorpus.content(size, entropy, 42);
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldBytes, SyntheticCorpus.edit(oldBytes, 43), patchOut);
+    patch = patchOut.toByteArray();
+
+    oldFile = File.createTempFile("BsPatchBenchmark", "old");
+    try (FileOutputStream out = new FileOutputStream(oldFile)) {
+      out.write(oldBytes);
+    }
+    if ("byteArray".equals(source)) {
+      oldData = ByteArrayOldDataSource.load(oldFile);
+    } else if ("mapped".equals(source)) {
+      oldData = new MappedOldDataSource(oldFile);
+    } else if ("blockCached".equals(source)) {
+      oldData = new BlockCachedOldDataSource(oldFile);
+    } else if ("randomAccessFile".equals(source)) {
+      oldData = new OldDataSource.RandomAccessFileSource(new RandomAccessFile(oldFile, "r"), true);
+    } else {
+      throw new IllegalArgumentException("Unknown source: " + source);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    oldData.close();
+    oldFile.delete();
+  }
+
+  @Benchmark
+  public void applyPatch() throws IOException {
+    BsPatch.applyPatch(
+        oldData, 0, oldData.length(), new NullOutputStream(), new ByteArrayInputStream(patch));
+  }
+}
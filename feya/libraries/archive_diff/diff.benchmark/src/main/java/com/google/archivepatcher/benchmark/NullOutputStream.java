@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that discards everything written to it, so that benchmarks measure the
+ * code that produces the output and not the code that stores it.
+ */
+public class NullOutputStream extends OutputStream {
+  @Override
+  public void write(int b) {
+    // Discard.
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) {
+    // Discard.
+  }
+}
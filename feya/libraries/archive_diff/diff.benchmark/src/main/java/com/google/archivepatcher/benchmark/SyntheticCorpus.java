@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.benchmark;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the synthetic inputs of the benchmarks: ASCII content of a given entropy, edited copies
+ * of it that stand in for a new version, and archives of such content built with {@link
+ * UnitTestZipArchive}. Everything is derived from a seed, so every run sees the same data.
+ *
+ * <p>The entropy is one of "low" (a few words from a four-letter alphabet, repeated), "medium"
+ * (random letters from a 16-letter alphabet) or "high" (random printable ASCII).
+ */
+public class SyntheticCorpus {
+  /**
+   * The compression levels of the entries of archives, in turn.
+   */
+  private static final int[] ENTRY_LEVELS = new int[] {1, 6, 9, 0};
+
+  /**
+   * Generates content of the specified size and entropy.
+   *
+   * @param size the number of bytes to generate
+   * @param entropy "low", "medium" or "high"
+   * @param seed the seed of the content
+   * @return the content, which is all ASCII
+   */
+  public static byte[] content(int size, String entropy, long seed) {
+    Random random = new Random(seed);
+    byte[] content = new byte[size];
+    if ("low".equals(entropy)) {
+      byte[][] words = new byte[32][];
+      for (int index = 0; index < words.length; index++) {
+        words[index] = randomBytes(random, 3 + random.nextInt(10), 'a', 4);
+      }
+      int pos = 0;
+      while (pos < size) {
+        byte[] word = words[random.nextInt(words.length)];
+        int length = Math.min(word.length, size - pos);
+        System.arraycopy(word, 0, content, pos, length);
+        pos += length;
+        if (pos < size) {
+          content[pos++] = ' ';
+        }
+      }
+    } else if ("medium".equals(entropy)) {
+      content = randomBytes(random, size, 'a', 16);
+    } else if ("high".equals(entropy)) {
+      content = randomBytes(random, size, ' ', 95);
+    } else {
+      throw new IllegalArgumentException("Unknown entropy: " + entropy);
+    }
+    return content;
+  }
+
+  /**
+   * Makes an edited copy of the specified content: about one byte in a thousand is changed, and
+   * short runs of bytes are inserted and deleted here and there, the way a new version of a file
+   * differs from the old one.
+   *
+   * @param content the content to edit
+   * @param seed the seed of the edits
+   * @return the edited copy
+   */
+  public static byte[] edit(byte[] content, long seed) {
+    Random random = new Random(seed);
+    ByteArrayOutputStream edited = new ByteArrayOutputStream(content.length + content.length / 50);
+    int pos = 0;
+    while (pos < content.length) {
+      int action = random.nextInt(1000);
+      if (action == 0) {
+        // Insert a short run.
+        byte[] run = randomBytes(random, 1 + random.nextInt(16), ' ', 95);
+        edited.write(run, 0, run.length);
+      } else if (action == 1) {
+        // Delete a short run.
+        pos += 1 + random.nextInt(16);
+        continue;
+      }
+      edited.write(action == 2 ? ' ' + random.nextInt(95) : content[pos]);
+      pos++;
+    }
+    return edited.toByteArray();
+  }
+
+  /**
+   * Makes the entries of an archive whose contents add up to about the specified size. The entries
+   * are compressed at levels 1, 6, 9 and 0 (stored) in turn.
+   *
+   * @param totalSize the total uncompressed size of the entries
+   * @param numEntries the number of entries
+   * @param entropy the entropy of the contents, as in {@link #content(int, String, long)}
+   * @param seed the seed of the contents
+   * @return the entries, in file order
+   */
+  public static List<UnitTestZipEntry> entries(
+      int totalSize, int numEntries, String entropy, long seed) {
+    List<UnitTestZipEntry> entries = new ArrayList<UnitTestZipEntry>(numEntries);
+    for (int index = 0; index < numEntries; index++) {
+      byte[] content = content(totalSize / numEntries, entropy, seed + index);
+      entries.add(
+          new UnitTestZipEntry(
+              "entry" + index,
+              ENTRY_LEVELS[index % ENTRY_LEVELS.length],
+              asString(content),
+              null));
+    }
+    return entries;
+  }
+
+  /**
+   * Makes an archive of the specified entries.
+   *
+   * @param entries the entries, in file order
+   * @return the archive
+   */
+  public static byte[] archive(List<UnitTestZipEntry> entries) {
+    return UnitTestZipArchive.makeTestZip(entries);
+  }
+
+  private static byte[] randomBytes(Random random, int size, char first, int alphabetSize) {
+    byte[] bytes = new byte[size];
+    for (int index = 0; index < size; index++) {
+      bytes[index] = (byte) (first + random.nextInt(alphabetSize));
+    }
+    return bytes;
+  }
+
+  private static String asString(byte[] content) {
+    char[] chars = new char[content.length];
+    for (int index = 0; index < content.length; index++) {
+      chars[index] = (char) content[index];
+    }
+    return new String(chars);
+  }
+}
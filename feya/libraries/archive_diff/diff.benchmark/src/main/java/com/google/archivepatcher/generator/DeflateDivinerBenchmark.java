@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.benchmark.SyntheticCorpus;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link DefaultDeflateCompressionDiviner} divining the parameters of every entry of an
+ * archive, without a cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DeflateDivinerBenchmark {
+
+  /**
+   * The total uncompressed size of the entries.
+   */
+  @Param({"262144", "1048576"})
+  public int size;
+
+  @Param({"8"})
+  public int numEntries;
+
+  /**
+   * The entropy of the entries, as in {@link SyntheticCorpus#content(int, String, long)}.
+   */
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  private File archive;
+
+  @Setup
+  public void setup() throws IOException {
+    archive = File.createTempFile("DeflateDivinerBenchmark", "zip");
+    try (FileOutputStream out = new FileOutputStream(archive)) {
+      out.write(SyntheticCorpus.archive(SyntheticCorpus.entries(size, numEntries, entropy, 42)));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    archive.delete();
+  }
+
+  @Benchmark
+  public List<DefaultDeflateCompressionDiviner.DivinationResult> divine() throws IOException {
+    return new DefaultDeflateCompressionDiviner().divineDeflateParameters(archive);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.benchmark.NullOutputStream;
+import com.google.archivepatcher.benchmark.SyntheticCorpus;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link BsDiffMatcher} on its own and as part of writing a patch with {@link
+ * BsDiffPatchWriter}, for an old file and an edited copy of it. The suffix array of the old file is
+ * computed once, outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BsDiffMatcherBenchmark {
+
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  /**
+   * The entropy of the old file, as in {@link SyntheticCorpus#content(int, String, long)}.
+   */
+  @Param({"low", "medium", "high"})
+  public String entropy;
+
+  private RandomAccessObject oldData;
+  private RandomAccessObject newData;
+  private RandomAccessObject groupArray;
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    byte[] oldBytes = SyntheticCorpus.content(size, entropy, 42);
+    oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    newData =
+        new RandomAccessObject.RandomAccessByteArrayObject(SyntheticCorpus.edit(oldBytes, 43));
+    groupArray = new SaisSuffixSorter().suffixSort(oldData);
+  }
+
+  private BsDiffMatcher newMatcher() {
+    return new BsDiffMatcher(
+        oldData, newData, groupArray, BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH);
+  }
+
+  @Benchmark
+  public int findMatches() throws IOException, InterruptedException {
+    BsDiffMatcher matcher = newMatcher();
+    int numMatches = 0;
+    while (matcher.next().didFindMatch) {
+      numMatches++;
+    }
+    return numMatches;
+  }
+
+  @Benchmark
+  public void generatePatch() throws IOException, InterruptedException {
+    BsDiffPatchWriter.generatePatchWithMatcher(
+        oldData, newData, newMatcher(), new NullOutputStream());
+  }
+}
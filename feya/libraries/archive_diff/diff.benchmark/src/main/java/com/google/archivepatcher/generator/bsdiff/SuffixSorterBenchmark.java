@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link SuffixSorter} implementations on random and on highly repetitive inputs. The
+ * latter are the pathological case for {@link DivSuffixSorter}, and the reason {@link
+ * SaisSuffixSorter} exists.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SuffixSorterBenchmark {
+
+  @Param({"div", "inMemoryDiv", "sais"})
+  public String sorter;
+
+  @Param({"1048576", "8388608"})
+  public int size;
+
+  /**
+   * The kind of input to sort: "random" bytes, "text"-like bytes from a small alphabet, or
+   * "repetitive" data that is mostly zero padding with a few short runs of noise.
+   */
+  @Param({"random", "text", "repetitive"})
+  public String input;
+
+  private RandomAccessObject data;
+  private SuffixSorter suffixSorter;
+
+  @Setup
+  public void setup() {
+    byte[] bytes = new byte[size];
+    Random random = new Random(42);
+    if ("random".equals(input)) {
+      random.nextBytes(bytes);
+    } else if ("text".equals(input)) {
+      for (int i = 0; i < size; i++) {
+        bytes[i] = (byte) ('a' + random.nextInt(16));
+      }
+    } else if ("repetitive".equals(input)) {
+      for (int i = 0; i < size; i++) {
+        bytes[i] = (i % 4096) < 4064 ? 0 : (byte) random.nextInt(4);
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown input: " + input);
+    }
+    data = new RandomAccessObject.RandomAccessByteArrayObject(bytes);
+
+    if ("div".equals(sorter)) {
+      suffixSorter =
+          new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    } else if ("inMemoryDiv".equals(sorter)) {
+      suffixSorter = new InMemoryDivSuffixSorter();
+    } else if ("sais".equals(sorter)) {
+      suffixSorter = new SaisSuffixSorter();
+    } else {
+      throw new IllegalArgumentException("Unknown sorter: " + sorter);
+    }
+  }
+
+  @Benchmark
+  public RandomAccessObject suffixSort() throws IOException, InterruptedException {
+    return suffixSorter.suffixSort(data);
+  }
+}
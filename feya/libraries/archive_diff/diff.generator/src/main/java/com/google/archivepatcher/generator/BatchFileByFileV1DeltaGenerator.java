@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinedArchive;
+import com.google.archivepatcher.generator.bsdiff.InMemoryDivSuffixSorter;
+import com.google.archivepatcher.shared.ConcurrentTasks;
+import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Generates file-by-file patches from several old files to the same new file, e.g. from every
+ * supported old release to the newest one. The work that only depends on the new file is done once
+ * for the whole batch: the new file is parsed and divined once, and each distinct delta-friendly
+ * new file is written once and shared by all of the old files whose plans call for it. The
+ * planning and bsdiff for the individual old files then run concurrently on a bounded number of
+ * threads, limited by a budget for the memory used to sort the delta-friendly old files.
+ *
+ * <p>The patches are exactly the same as those that the wrapped {@link FileByFileV1DeltaGenerator}
+ * generates for each old file on its own.
+ */
+public class BatchFileByFileV1DeltaGenerator {
+
+  /** The generator whose configuration is used for every patch. */
+  private final FileByFileV1DeltaGenerator generator;
+
+  /** The diviner for the deflate parameters of the entries in the new file. */
+  private final DefaultDeflateCompressionDiviner deflateCompressionDiviner;
+
+  /** The maximum number of old files to work on at the same time. */
+  private final int parallelism;
+
+  /** The maximum number of bytes of heap that concurrent suffix sorts may use together. */
+  private final long memoryBudgetBytes;
+
+  /**
+   * Creates a batch generator that divines the new file with a {@link
+   * ParallelDeflateCompressionDiviner} of the same parallelism.
+   *
+   * @param generator the generator whose configuration to use for every patch
+   * @param parallelism the maximum number of old files to work on at the same time
+   * @param memoryBudgetBytes the maximum number of bytes of heap that the suffix sorts of the old
+   *     files being worked on may use together. An old file whose sort alone exceeds the budget is
+   *     only worked on while no other sort is running.
+   * @throws IllegalArgumentException if parallelism or memoryBudgetBytes is not positive
+   */
+  public BatchFileByFileV1DeltaGenerator(
+      FileByFileV1DeltaGenerator generator, int parallelism, long memoryBudgetBytes) {
+    this(generator, null, parallelism, memoryBudgetBytes);
+  }
+
+  /**
+   * Creates a batch generator that divines the new file with the specified diviner.
+   *
+   * @param generator the generator whose configuration to use for every patch
+   * @param deflateCompressionDiviner the diviner to use for the new file, or null to use a {@link
+   *     ParallelDeflateCompressionDiviner} of the same parallelism
+   * @param parallelism the maximum number of old files to work on at the same time
+   * @param memoryBudgetBytes the maximum number of bytes of heap that the suffix sorts of the old
+   *     files being worked on may use together. An old file whose sort alone exceeds the budget is
+   *     only worked on while no other sort is running.
+   * @throws IllegalArgumentException if parallelism or memoryBudgetBytes is not positive
+   */
+  public BatchFileByFileV1DeltaGenerator(
+      FileByFileV1DeltaGenerator generator,
+      DefaultDeflateCompressionDiviner deflateCompressionDiviner,
+      int parallelism,
+      long memoryBudgetBytes) {
+    if (generator == null) {
+      throw new IllegalArgumentException("generator cannot be null");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    if (memoryBudgetBytes <= 0) {
+      throw new IllegalArgumentException(
+          "memoryBudgetBytes must be positive: " + memoryBudgetBytes);
+    }
+    this.generator = generator;
+    this.deflateCompressionDiviner =
+        deflateCompressionDiviner != null
+            ? deflateCompressionDiviner
+            : new ParallelDeflateCompressionDiviner(parallelism);
+    this.parallelism = parallelism;
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  /**
+   * Generate a V1 patch from each of the specified old files to the specified new file, writing
+   * each patch to the output stream at the same position in the list. As with {@link
+   * FileByFileV1DeltaGenerator#generateDelta(File, File, OutputStream)}, the written patches are
+   * <em>raw</em>. The output streams are not closed. If generating any of the patches fails, the
+   * remaining work is cancelled and the contents of all of the output streams are undefined.
+   *
+   * @param newFile the original new file to read (will not be modified)
+   * @param oldFiles the original old files to read (will not be modified)
+   * @param patchOuts the streams to write the patches to, one for each old file
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDeltas(
+      File newFile, List<File> oldFiles, List<? extends OutputStream> patchOuts)
+      throws IOException, InterruptedException {
+    if (oldFiles.size() != patchOuts.size()) {
+      throw new IllegalArgumentException(
+          "Got " + oldFiles.size() + " old files but " + patchOuts.size() + " patch outputs");
+    }
+    if (oldFiles.isEmpty()) {
+      return;
+    }
+    DivinedArchive newFileDivinedArchive = deflateCompressionDiviner.divineArchive(newFile, null);
+    final Batch batch = new Batch(newFile, newFileDivinedArchive);
+    try {
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(oldFiles.size());
+      for (int index = 0; index < oldFiles.size(); index++) {
+        final File oldFile = oldFiles.get(index);
+        final OutputStream patchOut = patchOuts.get(index);
+        tasks.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() throws IOException, InterruptedException {
+                batch.generateDelta(oldFile, patchOut);
+                return null;
+              }
+            });
+      }
+      if (parallelism == 1 || tasks.size() == 1) {
+        for (Callable<Void> task : tasks) {
+          task.call();
+        }
+      } else {
+        ConcurrentTasks.run(tasks, null, parallelism);
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    } finally {
+      batch.close();
+    }
+  }
+
+  /**
+   * The state shared by all of the old files of one call to {@link #generateDeltas(File, List,
+   * List)}.
+   */
+  private final class Batch {
+    /** The original new file. */
+    private final File newFile;
+
+    /** The results of divining the new file. */
+    private final DivinedArchive newFileDivinedArchive;
+
+    /** The delta-friendly new files written so far, by the uncompression plan they were made by. */
+    private final Map<List<TypedRange<JreDeflateParameters>>, DeltaFriendlyNewFile>
+        deltaFriendlyNewFiles =
+            new HashMap<List<TypedRange<JreDeflateParameters>>, DeltaFriendlyNewFile>();
+
+    /** The budget for the memory used to sort the delta-friendly old files. */
+    private final MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetBytes);
+
+    Batch(File newFile, DivinedArchive newFileDivinedArchive) {
+      this.newFile = newFile;
+      this.newFileDivinedArchive = newFileDivinedArchive;
+    }
+
+    /**
+     * Generates the patch from the specified old file to the new file, like {@link
+     * FileByFileV1DeltaGenerator#generateDelta(File, File, OutputStream)} does.
+     */
+    void generateDelta(File oldFile, OutputStream patchOut)
+        throws IOException, InterruptedException {
+      try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder()) {
+        // Plan only; the delta-friendly files are written below, so that the new one can be shared.
+        PreDiffExecutor.Builder builder =
+            new PreDiffExecutor.Builder()
+                .readingOriginalFiles(oldFile, newFile)
+                .withNewFileDivinedArchive(newFileDivinedArchive);
+        for (RecommendationModifier modifier : generator.getRecommendationModifiers()) {
+          builder.withRecommendationModifier(modifier);
+        }
+        if (generator.getContentSimilarityBudgetMillis() > 0) {
+          builder.withContentSimilaritySearch(generator.getContentSimilarityBudgetMillis());
+        }
+        PreDiffPlan preDiffPlan = builder.build().prepareForDiffing();
+        try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile.file);
+            BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
+          DeltaFriendlyFile.generateDeltaFriendlyFile(
+              preDiffPlan.getOldFileUncompressionPlan(), oldFile, bufferedOut);
+        }
+        DeltaFriendlyNewFile deltaFriendlyNewFile =
+            getDeltaFriendlyNewFile(preDiffPlan.getNewFileUncompressionPlan());
+
+        long granted =
+            memoryBudget.acquire(
+                InMemoryDivSuffixSorter.estimateHeapUsage(deltaFriendlyOldFile.file.length()));
+        try {
+          generator.writePatch(
+              oldFile,
+              newFile,
+              new PreDiffPlan(
+                  preDiffPlan.getQualifiedRecommendations(),
+                  preDiffPlan.getOldFileUncompressionPlan(),
+                  preDiffPlan.getNewFileUncompressionPlan(),
+                  deltaFriendlyNewFile.recompressionPlan),
+              deltaFriendlyOldFile.file,
+              deltaFriendlyNewFile.file.file,
+              patchOut,
+              null);
+        } finally {
+          memoryBudget.release(granted);
+        }
+      }
+    }
+
+    /**
+     * Returns the delta-friendly new file for the specified uncompression plan, writing it if no
+     * other old file has needed it yet.
+     */
+    private DeltaFriendlyNewFile getDeltaFriendlyNewFile(
+        List<TypedRange<JreDeflateParameters>> uncompressionPlan) throws IOException {
+      DeltaFriendlyNewFile deltaFriendlyNewFile;
+      synchronized (deltaFriendlyNewFiles) {
+        deltaFriendlyNewFile = deltaFriendlyNewFiles.get(uncompressionPlan);
+        if (deltaFriendlyNewFile == null) {
+          deltaFriendlyNewFile = new DeltaFriendlyNewFile(new TempFileHolder());
+          deltaFriendlyNewFiles.put(uncompressionPlan, deltaFriendlyNewFile);
+        }
+      }
+      // Other old files with the same plan wait here until the file has been written.
+      synchronized (deltaFriendlyNewFile) {
+        if (deltaFriendlyNewFile.recompressionPlan == null) {
+          try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile.file.file);
+              BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
+            deltaFriendlyNewFile.recompressionPlan =
+                Collections.unmodifiableList(
+                    DeltaFriendlyFile.generateDeltaFriendlyFile(
+                        uncompressionPlan, newFile, bufferedOut));
+          }
+        }
+      }
+      return deltaFriendlyNewFile;
+    }
+
+    /** Deletes all of the delta-friendly new files. */
+    void close() throws IOException {
+      synchronized (deltaFriendlyNewFiles) {
+        for (DeltaFriendlyNewFile deltaFriendlyNewFile : deltaFriendlyNewFiles.values()) {
+          deltaFriendlyNewFile.file.close();
+        }
+        deltaFriendlyNewFiles.clear();
+      }
+    }
+  }
+
+  /** A delta-friendly new file shared by the old files whose plans call for it. */
+  private static final class DeltaFriendlyNewFile {
+    /** The file. */
+    final TempFileHolder file;
+
+    /** The plan for recompressing the file, or null if the file has not been written yet. */
+    List<TypedRange<JreDeflateParameters>> recompressionPlan = null;
+
+    DeltaFriendlyNewFile(TempFileHolder file) {
+      this.file = file;
+    }
+  }
+
+  /** A budget of bytes that threads acquire before, and release after, using that much memory. */
+  private static final class MemoryBudget {
+    /** The number of bytes in the budget. */
+    private final long capacity;
+
+    /** The number of bytes currently acquired. */
+    private long used = 0;
+
+    MemoryBudget(long capacity) {
+      this.capacity = capacity;
+    }
+
+    /**
+     * Waits until the specified number of bytes, or the whole budget if it is smaller, are
+     * available and acquires them.
+     *
+     * @return the number of bytes acquired, to pass to {@link #release(long)}
+     */
+    synchronized long acquire(long bytes) throws InterruptedException {
+      long granted = Math.min(bytes, capacity);
+      while (used + granted > capacity) {
+        wait();
+      }
+      used += granted;
+      return granted;
+    }
+
+    /** Releases bytes acquired with {@link #acquire(long)}. */
+    synchronized void release(long granted) {
+      used -= granted;
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.ConcurrentTasks;
+import com.google.archivepatcher.shared.MappedBuffers;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipException;
+
+/**
+ * Compares the compressed bytes of pairs of entries in an old and a new archive. Both archives are
+ * memory-mapped once, when the comparator is constructed, instead of opening two files per pair,
+ * and the mapped ranges are compared with {@link ByteBuffer#equals(Object)}, which recent runtimes
+ * compare many bytes at a time. The pairs can be compared concurrently.
+ *
+ * <p>Pairs that cannot be identical are recognized without reading any compressed bytes: the
+ * compressed sizes, the compression methods or the CRC32s of the uncompressed data, which are
+ * stored in the central directory, differ.
+ *
+ * <p>Closing the comparator unmaps the archives (see {@link MappedBuffers}); it must not be used
+ * afterwards. Closing waits for comparisons that are in progress on other threads, such as those
+ * of workers that were cancelled, as accessing an unmapped buffer crashes the VM.
+ */
+final class CompressedBytesComparator implements Closeable {
+  /**
+   * The maximum size of each mapped segment of an archive.
+   */
+  private static final long SEGMENT_SIZE = 1L << 30;
+
+  private final MinimalZipArchiveIndex oldIndex;
+  private final MinimalZipArchiveIndex newIndex;
+  private final long oldLength;
+  private final long newLength;
+
+  /**
+   * Held for reading while comparing, and for writing while unmapping.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Guarded by lock; null once closed.
+  private ByteBuffer[] oldSegments;
+  private ByteBuffer[] newSegments;
+
+  /**
+   * Maps the specified archives, whose entries are compared by their positions in the specified
+   * indices.
+   *
+   * @param oldFile the old archive
+   * @param oldIndex the entries of the old archive
+   * @param newFile the new archive
+   * @param newIndex the entries of the new archive
+   * @throws IOException if unable to map either archive
+   */
+  CompressedBytesComparator(
+      File oldFile, MinimalZipArchiveIndex oldIndex, File newFile, MinimalZipArchiveIndex newIndex)
+      throws IOException {
+    oldSegments = map(oldFile);
+    try {
+      newSegments = map(newFile);
+    } catch (IOException | RuntimeException e) {
+      unmap(oldSegments);
+      throw e;
+    }
+    this.oldIndex = oldIndex;
+    this.newIndex = newIndex;
+    oldLength = oldFile.length();
+    newLength = newFile.length();
+  }
+
+  /**
+   * Returns false if the compressed bytes of the specified entries are certainly different, based
+   * on their sizes, compression methods and CRC32s alone; otherwise, the bytes have to be compared.
+   *
+   * @param oldIndex the entries of the old archive
+   * @param oldEntry the position of the entry in the old archive
+   * @param newIndex the entries of the new archive
+   * @param newEntry the position of the entry in the new archive
+   * @return as described
+   */
+  static boolean mayBeIdentical(
+      MinimalZipArchiveIndex oldIndex,
+      int oldEntry,
+      MinimalZipArchiveIndex newIndex,
+      int newEntry) {
+    // Identical compressed bytes inflate to identical data, so a different CRC32 of the
+    // uncompressed data means that the compressed bytes differ too.
+    return oldIndex.getCompressedSize(oldEntry) == newIndex.getCompressedSize(newEntry)
+        && oldIndex.getCompressionMethod(oldEntry) == newIndex.getCompressionMethod(newEntry)
+        && oldIndex.getCrc32OfUncompressedData(oldEntry)
+            == newIndex.getCrc32OfUncompressedData(newEntry);
+  }
+
+  /**
+   * Returns whether the compressed bytes of the specified entries differ.
+   *
+   * @param oldEntry the position of the entry in the old archive
+   * @param newEntry the position of the entry in the new archive
+   * @return true if the bytes differ
+   * @throws ZipException if either entry extends past the end of its archive
+   */
+  boolean compressedBytesChanged(int oldEntry, int newEntry) throws ZipException {
+    if (!mayBeIdentical(oldIndex, oldEntry, newIndex, newEntry)) {
+      return true;
+    }
+    long length = oldIndex.getCompressedSize(oldEntry);
+    long oldOffset = checkRange(oldIndex, oldEntry, oldLength);
+    long newOffset = checkRange(newIndex, newEntry, newLength);
+    lock.readLock().lock();
+    try {
+      if (oldSegments == null) {
+        throw new IllegalStateException("Comparator is closed");
+      }
+      return rangesDiffer(oldOffset, newOffset, length);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns whether the specified ranges of the old and new archives differ.
+   */
+  private boolean rangesDiffer(long oldOffset, long newOffset, long length) {
+    while (length > 0) {
+      // A range can straddle segments, and the segments of the two archives don't line up, so
+      // compare up to the nearest segment boundary in either archive at a time.
+      ByteBuffer oldBuffer = slice(oldSegments, oldOffset, length);
+      ByteBuffer newBuffer = slice(newSegments, newOffset, length);
+      int chunkLength = Math.min(oldBuffer.remaining(), newBuffer.remaining());
+      oldBuffer.limit(oldBuffer.position() + chunkLength);
+      newBuffer.limit(newBuffer.position() + chunkLength);
+      if (!oldBuffer.equals(newBuffer)) {
+        return true;
+      }
+      oldOffset += chunkLength;
+      newOffset += chunkLength;
+      length -= chunkLength;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the compressed bytes of each pair of entries differ, comparing up to the
+   * specified number of pairs at the same time.
+   *
+   * @param oldEntries the positions of the entries in the old archive
+   * @param newEntries the positions of the entries in the new archive, in the same order as their
+   *     counterparts
+   * @param executor the executor to compare on, or null to use a private pool if parallelism is
+   *     greater than 1
+   * @param parallelism the maximum number of pairs to compare at the same time
+   * @return for each pair, true if the bytes differ
+   * @throws IOException if either entry of a pair extends past the end of its archive, or if the
+   *     current thread is interrupted
+   */
+  boolean[] compressedBytesChanged(
+      final int[] oldEntries, final int[] newEntries, ExecutorService executor, int parallelism)
+      throws IOException {
+    if (oldEntries.length != newEntries.length) {
+      throw new IllegalArgumentException("Entry arrays differ in length");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    final boolean[] results = new boolean[oldEntries.length];
+    final AtomicInteger next = new AtomicInteger(0);
+    int numWorkers = Math.min(parallelism, results.length);
+    if (numWorkers == 1) {
+      compareRemaining(oldEntries, newEntries, next, results);
+    } else if (numWorkers > 1) {
+      Callable<Void> worker =
+          new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              compareRemaining(oldEntries, newEntries, next, results);
+              return null;
+            }
+          };
+      try {
+        ConcurrentTasks.run(Collections.nCopies(numWorkers, worker), executor, numWorkers);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Comparison interrupted");
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Takes the index of the next pair to compare from the specified counter and compares the pair,
+   * until there are no pairs left. Each worker runs this loop, so that the pairs are distributed
+   * among the workers however long each comparison takes.
+   */
+  private void compareRemaining(
+      int[] oldEntries, int[] newEntries, AtomicInteger next, boolean[] results)
+      throws IOException {
+    int index;
+    while ((index = next.getAndIncrement()) < results.length) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Comparison interrupted");
+      }
+      results[index] = compressedBytesChanged(oldEntries[index], newEntries[index]);
+    }
+  }
+
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      unmap(oldSegments);
+      unmap(newSegments);
+      oldSegments = null;
+      newSegments = null;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the offset of the compressed data of the specified entry, after checking that it lies
+   * within the archive.
+   */
+  private static long checkRange(MinimalZipArchiveIndex index, int entry, long archiveLength)
+      throws ZipException {
+    long offset = index.getFileOffsetOfCompressedData(entry);
+    if (offset < 0 || index.getCompressedSize(entry) > archiveLength - offset) {
+      throw new ZipException(
+          "Compressed data of " + index.getEntry(entry).getFileName() + " is not in archive");
+    }
+    return offset;
+  }
+
+  /**
+   * Returns a view of the specified segments from the specified offset up to the specified length
+   * or the end of the segment, whichever comes first.
+   */
+  private static ByteBuffer slice(ByteBuffer[] segments, long offset, long length) {
+    ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+    int position = (int) (offset % SEGMENT_SIZE);
+    segment.position(position);
+    segment.limit((int) Math.min(segment.capacity(), position + length));
+    return segment;
+  }
+
+  /**
+   * Maps the specified file read-only, in segments of {@link #SEGMENT_SIZE} bytes.
+   */
+  private static ByteBuffer[] map(File file) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      long length = channel.size();
+      ByteBuffer[] segments = new ByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+      try {
+        for (int x = 0; x < segments.length; x++) {
+          long offset = x * SEGMENT_SIZE;
+          long segmentLength = Math.min(SEGMENT_SIZE, length - offset);
+          segments[x] = channel.map(FileChannel.MapMode.READ_ONLY, offset, segmentLength);
+        }
+      } catch (IOException | RuntimeException e) {
+        unmap(segments);
+        throw e;
+      }
+      // The mapping remains valid after the channel is closed.
+      return segments;
+    }
+  }
+
+  private static void unmap(ByteBuffer[] segments) {
+    if (segments != null) {
+      for (ByteBuffer segment : segments) {
+        MappedBuffers.unmap(segment);
+      }
+    }
+  }
+}
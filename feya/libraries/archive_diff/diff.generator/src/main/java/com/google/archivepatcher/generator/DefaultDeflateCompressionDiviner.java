@@ -8,10 +8,13 @@ import com.google.archivepatcher.shared.DefaultDeflateCompatibilityWindow;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.MultiViewInputStreamFactory;
 import com.google.archivepatcher.shared.RandomAccessFileInputStream;
-import com.google.archivepatcher.shared.RandomAccessFileInputStreamFactory;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,6 +39,27 @@ public class DefaultDeflateCompressionDiviner {
    */
   private final Map<Integer, List<Integer>> levelsByStrategy = getLevelsByStrategy();
 
+  /**
+   * All of the parameters to try, in the default order to attempt them: for each nowrap setting,
+   * for each strategy, the levels in {@link #levelsByStrategy}.
+   */
+  private final List<JreDeflateParameters> defaultCandidates = getDefaultCandidates();
+
+  /**
+   * The cache of results to consult before divining an entry, or null if there is none.
+   */
+  private final DivinationCache divinationCache;
+
+  /**
+   * Whether or not to try the most frequent answers of the current archive first.
+   */
+  private final boolean adaptive;
+
+  /**
+   * The statistics of the most recent {@link #divineDeflateParameters(File)} run, if any.
+   */
+  private volatile DivinationStatistics statistics = null;
+
   /**
    * A simple struct that contains a {@link MinimalZipEntry} describing a specific entry from a zip
    * archive along with an optional accompanying {@link JreDeflateParameters} describing the
@@ -69,6 +93,103 @@ public class DefaultDeflateCompressionDiviner {
     }
   }
 
+  /**
+   * The results of divining a whole archive: the {@link MinimalZipArchiveIndex} of its entries,
+   * in file order, along with the {@link JreDeflateParameters} divined for each of them. Unlike a
+   * list of {@link DivinationResult}s, this needs no object per entry.
+   */
+  public static final class DivinedArchive {
+    /**
+     * The entries of the archive.
+     */
+    private final MinimalZipArchiveIndex index;
+
+    /**
+     * The divined parameters of each entry, by position in {@link #index}.
+     */
+    private final JreDeflateParameters[] divinedParameters;
+
+    /**
+     * Creates a new result with the specified fields. The array is not copied.
+     * @param index the entries of the archive
+     * @param divinedParameters the divined parameters of each entry, by position in the index, or
+     * null where they were not divined
+     */
+    DivinedArchive(MinimalZipArchiveIndex index, JreDeflateParameters[] divinedParameters) {
+      if (divinedParameters.length != index.size()) {
+        throw new IllegalArgumentException(
+            "Expected " + index.size() + " deflate parameters, got " + divinedParameters.length);
+      }
+      this.index = index;
+      this.divinedParameters = divinedParameters;
+    }
+
+    /**
+     * Returns the entries of the archive, in file order.
+     * @return the index
+     */
+    public MinimalZipArchiveIndex getIndex() {
+      return index;
+    }
+
+    /**
+     * Returns the parameters divined for the specified entry. These are only set if {@link
+     * MinimalZipArchiveIndex#isDeflateCompressed(int)} is true <em>and</em> the compression
+     * settings were successfully divined.
+     * @param index the position of the entry in {@link #getIndex()}
+     * @return the parameters, possibly null
+     */
+    public JreDeflateParameters getDivinedParameters(int index) {
+      return divinedParameters[index];
+    }
+
+    /**
+     * Returns the results as a list of {@link DivinationResult}s, creating an entry for each.
+     * @return the results, in the order described in {@link
+     * DefaultDeflateCompressionDiviner#divineDeflateParameters(File)}
+     */
+    public List<DivinationResult> toDivinationResults() {
+      List<DivinationResult> results = new ArrayList<DivinationResult>(index.size());
+      for (int x = 0; x < index.size(); x++) {
+        results.add(new DivinationResult(index.getEntry(x), divinedParameters[x]));
+      }
+      return results;
+    }
+  }
+
+  /**
+   * Creates a diviner that divines every entry from scratch.
+   */
+  public DefaultDeflateCompressionDiviner() {
+    this(null, false);
+  }
+
+  /**
+   * Creates a diviner that consults the specified cache before divining the entries of an archive
+   * in {@link #divineDeflateParameters(File)}, and records the results of the entries it had to
+   * divine in the cache. The cache is flushed at the end of each archive.
+   * @param divinationCache the cache to use, or null to divine every entry from scratch
+   */
+  public DefaultDeflateCompressionDiviner(DivinationCache divinationCache) {
+    this(divinationCache, false);
+  }
+
+  /**
+   * Creates a diviner that optionally consults a cache, as described in {@link
+   * #DefaultDeflateCompressionDiviner(DivinationCache)}, and that optionally works in adaptive
+   * mode. In adaptive mode, the parameters that have been the answer most often so far in the
+   * current archive are tried first, which greatly reduces the number of recompression attempts
+   * for archives produced by a single tool; the answers are just as valid but, for data that
+   * several sets of parameters reproduce equally well, not necessarily the same as in the default
+   * mode.
+   * @param divinationCache the cache to use, or null to divine every entry from scratch
+   * @param adaptive whether or not to work in adaptive mode
+   */
+  public DefaultDeflateCompressionDiviner(DivinationCache divinationCache, boolean adaptive) {
+    this.divinationCache = divinationCache;
+    this.adaptive = adaptive;
+  }
+
   /**
    * Load the specified archive and attempt to divine deflate parameters for all entries within.
    * @param archiveFile the archive file to work on
@@ -77,25 +198,143 @@ public class DefaultDeflateCompressionDiviner {
    * compressed. Callers can filter results by checking
    * {@link MinimalZipEntry#getCompressionMethod()} to see if the result is or is not compressed,
    * and by checking whether a non-null {@link JreDeflateParameters} was obtained.
-   * @throws IOException if unable to read or parse the file
-   * @see DivinationResult 
+   * @throws IOException if unable to read or parse the file; in particular, {@link
+   * InterruptedIOException} is thrown if the current thread is interrupted
+   * @see DivinationResult
+   * @see #divineArchive(File, GenerationObserver)
    */
   public List<DivinationResult> divineDeflateParameters(File archiveFile) throws IOException {
-    List<DivinationResult> results = new ArrayList<DivinationResult>();
-    for (MinimalZipEntry minimalZipEntry : MinimalZipArchive.listEntries(archiveFile)) {
-      JreDeflateParameters divinedParameters = null;
-      if (minimalZipEntry.isDeflateCompressed()) {
-        // TODO(andrewhayden): Reuse streams to avoid churning file descriptors
-        RandomAccessFileInputStreamFactory rafisFactory =
-            new RandomAccessFileInputStreamFactory(
-                archiveFile,
-                minimalZipEntry.getFileOffsetOfCompressedData(),
-                minimalZipEntry.getCompressedSize());
-        divinedParameters = divineDeflateParameters(rafisFactory);
+    return divineDeflateParameters(archiveFile, null);
+  }
+
+  /**
+   * Like {@link #divineDeflateParameters(File)}, but also reports the parsing of the archive, the
+   * divination of each entry and the time it took to the specified observer.
+   * @param archiveFile the archive file to work on
+   * @param observer the observer to report to, or null
+   * @return as described in {@link #divineDeflateParameters(File)}
+   * @throws IOException as described in {@link #divineDeflateParameters(File)}
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile, GenerationObserver observer) throws IOException {
+    return divineArchive(archiveFile, observer).toDivinationResults();
+  }
+
+  /**
+   * Like {@link #divineDeflateParameters(File, GenerationObserver)}, but returns the results as a
+   * {@link DivinedArchive}, without creating an object per entry.
+   * @param archiveFile the archive file to work on
+   * @param observer the observer to report to, or null
+   * @return the results, with one set of parameters per entry of the archive, in file order
+   * @throws IOException as described in {@link #divineDeflateParameters(File)}
+   */
+  public DivinedArchive divineArchive(File archiveFile, GenerationObserver observer)
+      throws IOException {
+    MinimalZipArchiveIndex index = readIndex(archiveFile, observer);
+    JreDeflateParameters[] divinedParameters = new JreDeflateParameters[index.size()];
+    DivinationStatistics runStatistics = new DivinationStatistics();
+    PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.DIVINATION);
+    try {
+      Workspace workspace = null;
+      try {
+        for (int x = 0; x < index.size(); x++) {
+          if (index.isDeflateCompressed(x)) {
+            if (workspace == null) {
+              workspace = new Workspace(archiveFile, runStatistics, observer);
+            }
+            divinedParameters[x] = divineDeflateParameters(index, x, workspace);
+          }
+        }
+      } finally {
+        if (workspace != null) {
+          workspace.close();
+        }
       }
-      results.add(new DivinationResult(minimalZipEntry, divinedParameters));
+      flushDivinationCache();
+    } finally {
+      timer.stop();
+    }
+    statistics = runStatistics;
+    return new DivinedArchive(index, divinedParameters);
+  }
+
+  /**
+   * Reads the index of the entries of the specified archive, reporting the time it took to the
+   * specified observer.
+   * @param archiveFile the archive
+   * @param observer the observer to report to, or null
+   * @return the index, in file order
+   * @throws IOException if unable to read or parse the archive
+   */
+  static MinimalZipArchiveIndex readIndex(File archiveFile, GenerationObserver observer)
+      throws IOException {
+    PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.ARCHIVE_PARSING);
+    try {
+      return MinimalZipArchive.readIndex(archiveFile);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Returns the statistics of the most recently completed {@link #divineDeflateParameters(File)}
+   * run.
+   * @return the statistics, or null if no run has completed yet
+   */
+  public DivinationStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Sets the statistics returned by {@link #getStatistics()}.
+   */
+  void setStatistics(DivinationStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Returns whether or not this diviner works in adaptive mode.
+   */
+  boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * Freezes the order in which candidates are tried in adaptive mode for the rest of the run that
+   * the specified statistics belong to.
+   */
+  void freezeCandidateOrder(DivinationStatistics runStatistics) {
+    runStatistics.freezeCandidateOrder(defaultCandidates);
+  }
+
+  /**
+   * Returns all of the parameters to try, in the default order.
+   */
+  private List<JreDeflateParameters> getDefaultCandidates() {
+    List<JreDeflateParameters> candidates = new ArrayList<JreDeflateParameters>();
+    for (boolean nowrap : new boolean[] {true, false}) {
+      for (int strategy : new int[] {0, 1, 2}) {
+        for (int level : levelsByStrategy.get(strategy)) {
+          candidates.add(JreDeflateParameters.of(level, strategy, nowrap));
+        }
+      }
+    }
+    return Collections.unmodifiableList(candidates);
+  }
+
+  /**
+   * Flushes the cache of results, if there is one. Failures are ignored, since the cache is only
+   * an optimization.
+   */
+  void flushDivinationCache() {
+    if (divinationCache == null) {
+      return;
+    }
+    try {
+      divinationCache.flush();
+    } catch (IOException e) {
+      // Nothing to do; the results will be divined again next time.
     }
-    return results;
   }
 
   /**
@@ -135,7 +374,8 @@ public class DefaultDeflateCompressionDiviner {
    * <code>null</code> is also returned in the case of <em>corrupt</em> zip data since, by
    * definition, it cannot be replicated via any combination of normal deflate parameters.
    * @throws IOException if there is a problem reading the data, i.e. if the file contents are
-   * changed while reading
+   * changed while reading; {@link InterruptedIOException} is thrown if the current thread is
+   * interrupted
    */
   public JreDeflateParameters divineDeflateParameters(
       MultiViewInputStreamFactory<?> compressedDataInputStreamFactory) throws IOException {
@@ -153,52 +393,157 @@ public class DefaultDeflateCompressionDiviner {
     compressedDataIn.mark(0); // The argument to mark is ignored and irrelevant
 
     // Make a copy of the stream for matching bytes of compressed input
-    InputStream matchingCompressedDataIn = compressedDataInputStreamFactory.newStream();
-    matchingCompressedDataIn.mark(0); // The argument to mark is ignored and irrelevant
-
-    byte[] copyBuffer = new byte[32768];
+    InputStream matchingCompressedDataIn = null;
+    Workspace workspace = new Workspace();
     try {
-      // Iterate over all relevant combinations of nowrap, strategy and level.
-      for (boolean nowrap : new boolean[] {true, false}) {
-        Inflater inflater = new Inflater(nowrap);
-        Deflater deflater = new Deflater(0, nowrap);
-        for (int strategy : new int[] {0, 1, 2}) {
-          deflater.setStrategy(strategy);
-          // Strategy 2 does not have the concept of levels, so vacuously call it 1.
-          List<Integer> levelsToSearch = levelsByStrategy.get(strategy);
-          for (int levelIndex = 0; levelIndex < levelsToSearch.size(); levelIndex++) {
-            int level = levelsToSearch.get(levelIndex);
-            deflater.setLevel(level);
-            inflater.reset();
-            deflater.reset();
-            compressedDataIn.reset();
-            matchingCompressedDataIn.reset();
-            try {
-              if (matches(
-                  compressedDataIn, inflater, deflater, matchingCompressedDataIn, copyBuffer)) {
-                return JreDeflateParameters.of(level, strategy, nowrap);
-              }
-            } catch (ZipException e) {
-              // Parse error in input. The only possibilities are corruption or the wrong nowrap.
-              // Skip all remaining levels and strategies.
-              levelIndex = levelsToSearch.size();
-              strategy = 2;
-            }
-          } // end of iteration on level
-        } // end of iteration on strategy
-      } // end of iteration on nowrap
+      matchingCompressedDataIn = compressedDataInputStreamFactory.newStream();
+      matchingCompressedDataIn.mark(0); // The argument to mark is ignored and irrelevant
+      return divineDeflateParameters(
+          compressedDataIn, matchingCompressedDataIn, defaultCandidates, workspace);
     } finally {
+      workspace.close();
       try {
         compressedDataIn.close();
       } catch (Exception ignored) {
         // Don't care.
       }
       try {
-        matchingCompressedDataIn.close();
+        if (matchingCompressedDataIn != null) {
+          matchingCompressedDataIn.close();
+        }
       } catch (Exception ignored) {
         // Don't care.
       }
     }
+  }
+
+  /**
+   * Determines the original {@link JreDeflateParameters} that were used to compress the specified
+   * entry, reading the compressed data through the archive streams of the specified workspace. If
+   * there is a cache of results, it is consulted first and updated afterwards. The outcome is
+   * recorded in the statistics of the workspace, which in adaptive mode also determine the order
+   * in which candidates are tried. An entry object is only created to report to the observer of
+   * the workspace, if there is one.
+   * @param archiveIndex the index of the archive that contains the entry
+   * @param index the position of the entry in the index, which must be deflate compressed
+   * @param workspace a workspace created for the archive that contains the entry
+   * @return as described in {@link #divineDeflateParameters(MultiViewInputStreamFactory)}
+   * @throws IOException if there is a problem reading the data
+   */
+  JreDeflateParameters divineDeflateParameters(
+      MinimalZipArchiveIndex archiveIndex, int index, Workspace workspace) throws IOException {
+    long offset = archiveIndex.getFileOffsetOfCompressedData(index);
+    long compressedSize = archiveIndex.getCompressedSize(index);
+    workspace.compressedDataIn.setRange(offset, compressedSize);
+    workspace.compressedDataIn.mark(0);
+    workspace.matchingCompressedDataIn.setRange(offset, compressedSize);
+    workspace.matchingCompressedDataIn.mark(0);
+
+    DivinationCache.Key key = null;
+    if (divinationCache != null) {
+      key =
+          new DivinationCache.Key(
+              archiveIndex.getCrc32OfUncompressedData(index),
+              compressedSize,
+              digest(workspace.compressedDataIn, workspace.copyBuffer));
+      DivinationCache.Entry cached = divinationCache.lookup(key);
+      if (cached != null) {
+        workspace.statistics.recordCacheHit(cached.parameters);
+        if (workspace.observer != null) {
+          workspace.observer.entryDivined(archiveIndex.getEntry(index), cached.parameters, 0);
+        }
+        return cached.parameters;
+      }
+    }
+
+    List<JreDeflateParameters> candidates =
+        adaptive ? workspace.statistics.orderCandidates(defaultCandidates) : defaultCandidates;
+    JreDeflateParameters divinedParameters =
+        divineDeflateParameters(
+            workspace.compressedDataIn, workspace.matchingCompressedDataIn, candidates, workspace);
+    workspace.statistics.recordDivination(divinedParameters, workspace.attempts);
+    if (workspace.observer != null) {
+      workspace.observer.entryDivined(
+          archiveIndex.getEntry(index), divinedParameters, workspace.attempts);
+      workspace.observer.bytesTransformed(
+          GenerationPhase.DIVINATION, workspace.bytesInflated, workspace.bytesDeflated);
+    }
+    if (key != null) {
+      divinationCache.store(key, divinedParameters);
+    }
+    return divinedParameters;
+  }
+
+  /**
+   * Computes the SHA-256 digest of the rest of the specified stream.
+   */
+  private static byte[] digest(InputStream in, byte[] buffer) throws IOException {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+    int numRead;
+    while ((numRead = in.read(buffer)) >= 0) {
+      messageDigest.update(buffer, 0, numRead);
+    }
+    return messageDigest.digest();
+  }
+
+  /**
+   * Tries the specified candidates against the compressed data in order, using the inflaters,
+   * deflaters and copy buffer of the specified workspace, and records the number of attempts made
+   * and of bytes inflated and deflated in the workspace. Both streams must already be marked at
+   * the start of the compressed data.
+   * @throws InterruptedIOException if the current thread is interrupted between two attempts; the
+   * interrupt status of the thread is left set
+   */
+  private JreDeflateParameters divineDeflateParameters(
+      InputStream compressedDataIn,
+      InputStream matchingCompressedDataIn,
+      List<JreDeflateParameters> candidates,
+      Workspace workspace)
+      throws IOException {
+    workspace.attempts = 0;
+    workspace.bytesInflated = 0;
+    workspace.bytesDeflated = 0;
+    // A parse error means the data is corrupt or the nowrap setting is wrong. Either way, there is
+    // no point in trying any more candidates with that nowrap setting.
+    boolean nowrapParseFailed = false;
+    boolean wrapParseFailed = false;
+    for (JreDeflateParameters candidate : candidates) {
+      if (candidate.nowrap ? nowrapParseFailed : wrapParseFailed) {
+        continue;
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Divination interrupted");
+      }
+      Inflater inflater = workspace.getInflater(candidate.nowrap);
+      Deflater deflater = workspace.getDeflater(candidate.nowrap);
+      deflater.setStrategy(candidate.strategy);
+      deflater.setLevel(candidate.level);
+      inflater.reset();
+      deflater.reset();
+      compressedDataIn.reset();
+      matchingCompressedDataIn.reset();
+      workspace.attempts++;
+      try {
+        if (matches(
+            compressedDataIn, inflater, deflater, matchingCompressedDataIn, workspace.copyBuffer)) {
+          return candidate;
+        }
+      } catch (ZipException e) {
+        if (candidate.nowrap) {
+          nowrapParseFailed = true;
+        } else {
+          wrapParseFailed = true;
+        }
+      } finally {
+        workspace.bytesInflated += inflater.getBytesWritten();
+        workspace.bytesDeflated += deflater.getBytesRead();
+      }
+    }
     return null;
   }
 
@@ -252,4 +597,110 @@ public class DefaultDeflateCompressionDiviner {
     }
     return false;
   }
+
+  /**
+   * The state needed to divine the parameters of one entry after another on a single thread: an
+   * {@link Inflater} and a {@link Deflater} for each nowrap setting, a copy buffer and, optionally,
+   * a pair of streams over the archive whose ranges are moved from entry to entry. Reusing this
+   * state avoids allocating native zlib streams and opening file descriptors for every entry.
+   * Instances are not thread-safe and must be closed when no longer needed.
+   */
+  static final class Workspace implements Closeable {
+    /**
+     * The statistics of the run this workspace belongs to, or null if there is no such run.
+     */
+    private final DivinationStatistics statistics;
+
+    /**
+     * The observer of the run this workspace belongs to, or null if there is none.
+     */
+    private final GenerationObserver observer;
+
+    /**
+     * The number of recompression attempts made for the most recent entry.
+     */
+    private int attempts;
+
+    /**
+     * The number of bytes inflated and deflated for the most recent entry.
+     */
+    private long bytesInflated;
+    private long bytesDeflated;
+
+    private final Inflater nowrapInflater = new Inflater(true);
+    private final Inflater inflater = new Inflater(false);
+    private final Deflater nowrapDeflater = new Deflater(0, true);
+    private final Deflater deflater = new Deflater(0, false);
+    private final byte[] copyBuffer = new byte[32768];
+
+    /**
+     * The stream that compressed data is inflated from, or null if there is no archive.
+     */
+    private final RandomAccessFileInputStream compressedDataIn;
+
+    /**
+     * An independent view of the same bytes as {@link #compressedDataIn}, for matching
+     * recompressed data against; null if there is no archive.
+     */
+    private final RandomAccessFileInputStream matchingCompressedDataIn;
+
+    /**
+     * Creates a workspace without archive streams.
+     */
+    Workspace() {
+      statistics = null;
+      observer = null;
+      compressedDataIn = null;
+      matchingCompressedDataIn = null;
+    }
+
+    /**
+     * Creates a workspace for divining the parameters of entries in the specified archive.
+     * @param archiveFile the archive
+     * @param statistics the statistics of the run the workspace belongs to
+     * @param observer the observer of the run the workspace belongs to, or null
+     * @throws IOException if unable to open the archive
+     */
+    Workspace(File archiveFile, DivinationStatistics statistics, GenerationObserver observer)
+        throws IOException {
+      this.statistics = statistics;
+      this.observer = observer;
+      RandomAccessFileInputStream first = new RandomAccessFileInputStream(archiveFile);
+      try {
+        matchingCompressedDataIn = new RandomAccessFileInputStream(archiveFile);
+      } catch (IOException e) {
+        first.close();
+        throw e;
+      }
+      compressedDataIn = first;
+    }
+
+    private Inflater getInflater(boolean nowrap) {
+      return nowrap ? nowrapInflater : inflater;
+    }
+
+    private Deflater getDeflater(boolean nowrap) {
+      return nowrap ? nowrapDeflater : deflater;
+    }
+
+    @Override
+    public void close() {
+      nowrapInflater.end();
+      inflater.end();
+      nowrapDeflater.end();
+      deflater.end();
+      if (compressedDataIn != null) {
+        try {
+          compressedDataIn.close();
+        } catch (Exception ignored) {
+          // Don't care.
+        }
+        try {
+          matchingCompressedDataIn.close();
+        } catch (Exception ignored) {
+          // Don't care.
+        }
+      }
+    }
+  }
 }
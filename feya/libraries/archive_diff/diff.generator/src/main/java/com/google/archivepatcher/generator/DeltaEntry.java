@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.File;
+
+/**
+ * One delta in a patch: a file containing a delta that transforms a range of the delta-friendly
+ * old file into a range of the delta-friendly new file.
+ */
+public final class DeltaEntry {
+  /**
+   * The range of the delta-friendly old file that the delta applies to.
+   */
+  private final TypedRange<Void> deltaFriendlyOldFileRange;
+
+  /**
+   * The range of the delta-friendly new file that the delta produces.
+   */
+  private final TypedRange<Void> deltaFriendlyNewFileRange;
+
+  /**
+   * The file containing the delta.
+   */
+  private final File deltaFile;
+
+  /**
+   * Creates a new entry.
+   *
+   * @param deltaFriendlyOldFileRange the range of the delta-friendly old file that the delta
+   *     applies to
+   * @param deltaFriendlyNewFileRange the range of the delta-friendly new file that the delta
+   *     produces
+   * @param deltaFile the file containing the delta
+   */
+  public DeltaEntry(
+      TypedRange<Void> deltaFriendlyOldFileRange,
+      TypedRange<Void> deltaFriendlyNewFileRange,
+      File deltaFile) {
+    this.deltaFriendlyOldFileRange = deltaFriendlyOldFileRange;
+    this.deltaFriendlyNewFileRange = deltaFriendlyNewFileRange;
+    this.deltaFile = deltaFile;
+  }
+
+  /**
+   * Returns the range of the delta-friendly old file that the delta applies to.
+   * @return as described
+   */
+  public TypedRange<Void> getDeltaFriendlyOldFileRange() {
+    return deltaFriendlyOldFileRange;
+  }
+
+  /**
+   * Returns the range of the delta-friendly new file that the delta produces.
+   * @return as described
+   */
+  public TypedRange<Void> getDeltaFriendlyNewFileRange() {
+    return deltaFriendlyNewFileRange;
+  }
+
+  /**
+   * Returns the file containing the delta.
+   * @return as described
+   */
+  public File getDeltaFile() {
+    return deltaFile;
+  }
+}
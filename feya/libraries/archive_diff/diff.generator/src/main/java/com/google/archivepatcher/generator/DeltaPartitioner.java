@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the delta-friendly files of a patch into groups of ranges that can be diffed
+ * independently of each other. Each new entry, including its local header, is paired with the
+ * matching old entry from the plan's recommendations, and consecutive new entries are grouped
+ * until they reach a minimum size, so that each group needs a suffix sort of only the old entries
+ * it actually resembles instead of the entire delta-friendly old file.
+ */
+class DeltaPartitioner {
+
+  /**
+   * A pair of ranges that are diffed together: a range of the delta-friendly old file and the
+   * range of the delta-friendly new file that is generated from it.
+   */
+  static final class Group {
+    /**
+     * The range of the delta-friendly old file.
+     */
+    final TypedRange<Void> deltaFriendlyOldFileRange;
+
+    /**
+     * The range of the delta-friendly new file.
+     */
+    final TypedRange<Void> deltaFriendlyNewFileRange;
+
+    Group(TypedRange<Void> deltaFriendlyOldFileRange, TypedRange<Void> deltaFriendlyNewFileRange) {
+      this.deltaFriendlyOldFileRange = deltaFriendlyOldFileRange;
+      this.deltaFriendlyNewFileRange = deltaFriendlyNewFileRange;
+    }
+  }
+
+  /**
+   * A segment of an archive: either an entry, from its local header up to the next entry, or the
+   * trailer after the last entry. Offsets are in delta-friendly coordinates.
+   */
+  private static final class Segment {
+    final long start;
+    final long end;
+
+    Segment(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * Splits the delta-friendly files of the specified plan into groups. The new ranges of the groups
+   * are in order, do not overlap and cover the entire delta-friendly new file; the old ranges may
+   * be anywhere in the delta-friendly old file, and are empty for groups of new entries that have
+   * no counterpart in the old file.
+   *
+   * @param oldFile the original old file
+   * @param newFile the original new file
+   * @param plan the plan that the delta-friendly files were generated from
+   * @param minimumGroupSize the minimum number of bytes of the delta-friendly new file to put in a
+   *     group, except for the last one
+   * @return the groups, in the order of their new ranges
+   * @throws IOException if unable to read the archives
+   */
+  static List<Group> partition(
+      File oldFile, File newFile, PreDiffPlan plan, long minimumGroupSize) throws IOException {
+    Map<ByteArrayHolder, Segment> oldSegments = new HashMap<ByteArrayHolder, Segment>();
+    Segment oldTrailer =
+        listSegments(oldFile, plan.getOldFileUncompressionPlan(), oldSegments, null);
+    List<Segment> newSegments = new ArrayList<Segment>();
+    Segment newTrailer =
+        listSegments(newFile, plan.getNewFileUncompressionPlan(), null, newSegments);
+
+    // Entries are matched by the names in the recommendations, which also covers renames.
+    Map<ByteArrayHolder, Segment> oldSegmentsByNewName = new HashMap<ByteArrayHolder, Segment>();
+    for (QualifiedRecommendation recommendation : plan.getQualifiedRecommendations()) {
+      Segment oldSegment =
+          oldSegments.get(new ByteArrayHolder(recommendation.getOldEntry().getFileNameBytes()));
+      if (oldSegment != null) {
+        oldSegmentsByNewName.put(
+            new ByteArrayHolder(recommendation.getNewEntry().getFileNameBytes()), oldSegment);
+      }
+    }
+    List<MinimalZipEntry> newEntries = MinimalZipArchive.listEntries(newFile);
+    List<Segment> matchedOldSegments = new ArrayList<Segment>(newSegments.size() + 1);
+    for (MinimalZipEntry newEntry : newEntries) {
+      matchedOldSegments.add(
+          oldSegmentsByNewName.get(new ByteArrayHolder(newEntry.getFileNameBytes())));
+    }
+    newSegments.add(newTrailer);
+    matchedOldSegments.add(oldTrailer);
+
+    List<Group> groups = new ArrayList<Group>();
+    long groupStart = 0;
+    long groupEnd = 0;
+    long oldStart = Long.MAX_VALUE;
+    long oldEnd = Long.MIN_VALUE;
+    for (int index = 0; index < newSegments.size(); index++) {
+      Segment newSegment = newSegments.get(index);
+      Segment oldSegment = matchedOldSegments.get(index);
+      if (newSegment.end == newSegment.start) {
+        continue;
+      }
+      if (groupEnd > groupStart && oldSegment != null) {
+        // Don't let one group drag in an old range far larger than what it generates.
+        long hullLength = Math.max(oldEnd, oldSegment.end) - Math.min(oldStart, oldSegment.start);
+        if (hullLength - 2 * (newSegment.end - groupStart) > minimumGroupSize) {
+          groups.add(makeGroup(oldStart, oldEnd, groupStart, groupEnd));
+          groupStart = groupEnd;
+          oldStart = Long.MAX_VALUE;
+          oldEnd = Long.MIN_VALUE;
+        }
+      }
+      groupEnd = newSegment.end;
+      if (oldSegment != null) {
+        oldStart = Math.min(oldStart, oldSegment.start);
+        oldEnd = Math.max(oldEnd, oldSegment.end);
+      }
+      if (groupEnd - groupStart >= minimumGroupSize) {
+        groups.add(makeGroup(oldStart, oldEnd, groupStart, groupEnd));
+        groupStart = groupEnd;
+        oldStart = Long.MAX_VALUE;
+        oldEnd = Long.MIN_VALUE;
+      }
+    }
+    if (groupEnd > groupStart) {
+      groups.add(makeGroup(oldStart, oldEnd, groupStart, groupEnd));
+    }
+    return groups;
+  }
+
+  private static Group makeGroup(long oldStart, long oldEnd, long newStart, long newEnd) {
+    TypedRange<Void> oldRange =
+        oldEnd < oldStart
+            ? new TypedRange<Void>(0, 0, null)
+            : new TypedRange<Void>(oldStart, oldEnd - oldStart, null);
+    return new Group(oldRange, new TypedRange<Void>(newStart, newEnd - newStart, null));
+  }
+
+  /**
+   * Lists the segments of the specified archive in delta-friendly coordinates. The first entry's
+   * segment also covers anything before it, and each entry's segment ends where the next entry
+   * begins; the last entry's segment ends with its compressed data.
+   *
+   * @param archive the archive to list
+   * @param uncompressionPlan the ranges of the archive that are uncompressed in the delta-friendly
+   *     file
+   * @param segmentsByName if not null, receives the segment of each entry keyed by its name
+   * @param segmentsInOrder if not null, receives the segment of each entry in file order
+   * @return the trailer segment, which ends at the end of the delta-friendly file
+   */
+  private static Segment listSegments(
+      File archive,
+      List<? extends TypedRange<?>> uncompressionPlan,
+      Map<ByteArrayHolder, Segment> segmentsByName,
+      List<Segment> segmentsInOrder)
+      throws IOException {
+    List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archive);
+    Map<Long, Long> uncompressedSizesByOffset = new HashMap<Long, Long>();
+    for (MinimalZipEntry entry : entries) {
+      uncompressedSizesByOffset.put(
+          entry.getFileOffsetOfCompressedData(), entry.getUncompressedSize());
+    }
+    DeltaFriendlyOffsetMapper mapper =
+        new DeltaFriendlyOffsetMapper(uncompressionPlan, uncompressedSizesByOffset);
+    long start = 0;
+    for (int index = 0; index < entries.size(); index++) {
+      MinimalZipEntry entry = entries.get(index);
+      long end =
+          index + 1 < entries.size()
+              ? entries.get(index + 1).getFileOffsetOfLocalEntry()
+              : entry.getFileOffsetOfCompressedData() + entry.getCompressedSize();
+      Segment segment = new Segment(mapper.map(start), mapper.map(end));
+      if (segmentsByName != null) {
+        segmentsByName.put(new ByteArrayHolder(entry.getFileNameBytes()), segment);
+      }
+      if (segmentsInOrder != null) {
+        segmentsInOrder.add(segment);
+      }
+      start = end;
+    }
+    return new Segment(mapper.map(start), mapper.map(archive.length()));
+  }
+
+  /**
+   * Maps offsets in an original archive that are not inside an uncompressed range to offsets in
+   * the corresponding delta-friendly file.
+   */
+  private static final class DeltaFriendlyOffsetMapper {
+    private final long[] rangeEnds;
+    private final long[] cumulativeGrowth;
+
+    DeltaFriendlyOffsetMapper(
+        List<? extends TypedRange<?>> uncompressionPlan, Map<Long, Long> uncompressedSizes)
+        throws IOException {
+      rangeEnds = new long[uncompressionPlan.size()];
+      cumulativeGrowth = new long[uncompressionPlan.size()];
+      long growth = 0;
+      int index = 0;
+      for (TypedRange<?> range : uncompressionPlan) {
+        Long uncompressedSize = uncompressedSizes.get(range.getOffset());
+        if (uncompressedSize == null) {
+          throw new IOException("No entry at uncompressed range offset " + range.getOffset());
+        }
+        growth += uncompressedSize - range.getLength();
+        rangeEnds[index] = range.getOffset() + range.getLength();
+        cumulativeGrowth[index] = growth;
+        index++;
+      }
+    }
+
+    long map(long offset) {
+      // Find the number of ranges that end at or before the offset.
+      int low = 0;
+      int high = rangeEnds.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (rangeEnds[middle] <= offset) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low == 0 ? offset : offset + cumulativeGrowth[low - 1];
+    }
+  }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent cache of divination results, so that entries that have already been divined in a
+ * previous run (e.g., entries that have not changed since the last release) don't have to be
+ * divined again. Entries are identified by a {@link Key} derived from their compressed data, and
+ * map to either the divined {@link JreDeflateParameters} or to the fact that the data could not be
+ * divined.
+ *
+ * <p>The cache is loaded from its file on first use and written back by {@link #flush()}. When
+ * written back, results recorded by other instances (including other processes) since the file
+ * was loaded are merged in, and the least recently used results beyond the maximum number of
+ * entries are evicted. Loading and flushing are serialized across processes by an exclusive lock
+ * on a lock file next to the cache file, and the cache file itself is replaced atomically, so any
+ * number of generator processes can share one cache file. A cache file that is truncated, corrupt
+ * or of a different version is treated as empty. If the cache cannot be loaded at all (e.g., its
+ * directory cannot be created or its file cannot be read), it is disabled: every lookup misses and
+ * nothing is stored or written, so divination proceeds as if there were no cache.
+ *
+ * <p>The file consists of a header followed by one fixed-size record per entry:
+ * <pre>
+ * Header:  Magic (4 bytes), {@link #MAGIC}
+ *          Version (4 bytes), {@link #VERSION}
+ *          Number of records (4 bytes)
+ * Record:  CRC32 of the uncompressed data (4 bytes)
+ *          Compressed size (8 bytes)
+ *          SHA-256 digest of the compressed data (32 bytes)
+ *          Encoded parameters (1 byte), {@link #UNDIVINABLE} if the data could not be divined
+ *          Time of last use, in milliseconds since the epoch (8 bytes)
+ * </pre>
+ *
+ * <p>This class is thread-safe.
+ */
+public class DivinationCache {
+
+  /**
+   * Magic number at the start of every cache file, "DVNC" in ASCII.
+   */
+  static final int MAGIC = 0x44564e43;
+
+  /**
+   * The current version of the cache file format.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * The encoded parameters of data that could not be divined.
+   */
+  static final int UNDIVINABLE = 0xff;
+
+  /**
+   * The number of bytes in the digest of a {@link Key}.
+   */
+  static final int DIGEST_LENGTH = 32;
+
+  /**
+   * Lock held while accessing cache files, since {@link FileLock}s are held on behalf of the
+   * entire process and cannot be used to serialize threads within it.
+   */
+  private static final Object PROCESS_LOCK = new Object();
+
+  /**
+   * Identifies a piece of compressed data.
+   */
+  public static final class Key {
+    private final int crc32;
+    private final long compressedSize;
+    private final byte[] digest;
+
+    /**
+     * Creates a new key.
+     * @param crc32 the CRC32 of the uncompressed data
+     * @param compressedSize the size of the compressed data
+     * @param digest the SHA-256 digest of the compressed data
+     */
+    public Key(long crc32, long compressedSize, byte[] digest) {
+      if (digest == null || digest.length != DIGEST_LENGTH) {
+        throw new IllegalArgumentException("digest must be " + DIGEST_LENGTH + " bytes");
+      }
+      this.crc32 = (int) crc32;
+      this.compressedSize = compressedSize;
+      this.digest = digest.clone();
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + crc32;
+      result = prime * result + (int) (compressedSize ^ (compressedSize >>> 32));
+      result = prime * result + Arrays.hashCode(digest);
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return crc32 == other.crc32
+          && compressedSize == other.compressedSize
+          && Arrays.equals(digest, other.digest);
+    }
+  }
+
+  /**
+   * A cached result.
+   */
+  static final class Entry {
+    /**
+     * The divined parameters, or null if the data could not be divined.
+     */
+    final JreDeflateParameters parameters;
+
+    /**
+     * The time at which this result was last used, in milliseconds since the epoch.
+     */
+    long lastUsedMillis;
+
+    Entry(JreDeflateParameters parameters, long lastUsedMillis) {
+      this.parameters = parameters;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+  }
+
+  private final File cacheFile;
+  private final File lockFile;
+  private final int maxEntries;
+
+  /**
+   * The cached results, or null if the cache file has not been loaded yet.
+   */
+  private Map<Key, Entry> entries = null;
+
+  /**
+   * Whether or not {@link #entries} has changed since it was last loaded or flushed.
+   */
+  private boolean dirty = false;
+
+  /**
+   * Whether or not loading the cache file failed, in which case the cache is not used.
+   */
+  private boolean disabled = false;
+
+  /**
+   * Creates a cache backed by the specified file.
+   * @param cacheFile the file to store the cache in; it and its lock file, which has the same name
+   * with ".lock" appended, are created as needed
+   * @param maxEntries the maximum number of results to keep; the least recently used results are
+   * evicted when the cache is flushed
+   */
+  public DivinationCache(File cacheFile, int maxEntries) {
+    if (cacheFile == null) {
+      throw new IllegalArgumentException("cacheFile cannot be null");
+    }
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    this.cacheFile = cacheFile;
+    this.lockFile = new File(cacheFile.getPath() + ".lock");
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Looks up the result for the specified key, marking it as recently used.
+   * @param key the key to look up
+   * @return the result, or null if there is no result for the key; a non-null result with null
+   * {@link Entry#parameters} means that the data could not be divined; always null if the cache
+   * is disabled
+   */
+  synchronized Entry lookup(Key key) {
+    ensureLoaded();
+    if (disabled) {
+      return null;
+    }
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entry.lastUsedMillis = System.currentTimeMillis();
+      dirty = true;
+    }
+    return entry;
+  }
+
+  /**
+   * Records the result for the specified key.
+   * @param key the key to record the result for
+   * @param parameters the divined parameters, or null if the data could not be divined
+   */
+  synchronized void store(Key key, JreDeflateParameters parameters) {
+    ensureLoaded();
+    if (disabled) {
+      return;
+    }
+    entries.put(key, new Entry(parameters, System.currentTimeMillis()));
+    dirty = true;
+  }
+
+  /**
+   * Writes the results recorded since the cache file was loaded or last flushed back to the cache
+   * file, merging them with any results written by others in the meantime and evicting the least
+   * recently used results beyond the maximum number of entries. Does nothing if nothing has
+   * changed or the cache is disabled.
+   * @throws IOException if unable to write the cache file
+   */
+  public synchronized void flush() throws IOException {
+    if (!dirty || disabled) {
+      return;
+    }
+    synchronized (PROCESS_LOCK) {
+      try (RandomAccessFile lock = new RandomAccessFile(lockFile, "rw")) {
+        FileLock fileLock = lock.getChannel().lock();
+        try {
+          Map<Key, Entry> merged = read();
+          for (Map.Entry<Key, Entry> mapEntry : entries.entrySet()) {
+            // On a tie, the result recorded here wins; it may replace a result from the same
+            // millisecond.
+            Entry existing = merged.get(mapEntry.getKey());
+            if (existing == null || existing.lastUsedMillis <= mapEntry.getValue().lastUsedMillis) {
+              merged.put(mapEntry.getKey(), mapEntry.getValue());
+            }
+          }
+          evict(merged);
+          write(merged);
+          entries = merged;
+          dirty = false;
+        } finally {
+          fileLock.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads the cache file if it has not been loaded yet, disabling the cache if that fails.
+   */
+  private void ensureLoaded() {
+    if (entries != null) {
+      return;
+    }
+    synchronized (PROCESS_LOCK) {
+      try {
+        File parent = lockFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+          throw new IOException("Unable to create cache directory: " + parent);
+        }
+        try (RandomAccessFile lock = new RandomAccessFile(lockFile, "rw")) {
+          FileLock fileLock = lock.getChannel().lock();
+          try {
+            entries = read();
+          } finally {
+            fileLock.release();
+          }
+        }
+      } catch (IOException e) {
+        // The cache is only an optimization; carry on without it.
+        entries = new HashMap<Key, Entry>();
+        disabled = true;
+      }
+    }
+  }
+
+  /**
+   * Reads all of the results in the cache file. Must be called with the file lock held.
+   * @return the results, which are empty if the file does not exist or is invalid
+   * @throws IOException if unable to open the file
+   */
+  private Map<Key, Entry> read() throws IOException {
+    Map<Key, Entry> result = new HashMap<Key, Entry>();
+    if (!cacheFile.isFile()) {
+      return result;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      try {
+        readRecords(in, result);
+      } catch (IOException | RuntimeException e) {
+        // Truncated, corrupt or unreadable; start over.
+        result.clear();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads the header and the records of the cache file into the specified map.
+   */
+  private static void readRecords(DataInputStream in, Map<Key, Entry> result) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+      return;
+    }
+    int numRecords = in.readInt();
+    byte[] digest = new byte[DIGEST_LENGTH];
+    for (int x = 0; x < numRecords; x++) {
+      int crc32 = in.readInt();
+      long compressedSize = in.readLong();
+      in.readFully(digest);
+      JreDeflateParameters parameters = decode(in.readUnsignedByte());
+      long lastUsedMillis = in.readLong();
+      result.put(new Key(crc32, compressedSize, digest), new Entry(parameters, lastUsedMillis));
+    }
+    if (in.read() != -1) {
+      throw new IOException("Trailing data after " + numRecords + " records");
+    }
+  }
+
+  /**
+   * Atomically replaces the cache file with one containing the specified results. Must be called
+   * with the file lock held.
+   */
+  private void write(Map<Key, Entry> results) throws IOException {
+    File tempFile = File.createTempFile("dvnc", ".tmp", lockFile.getAbsoluteFile().getParentFile());
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(results.size());
+        for (Map.Entry<Key, Entry> mapEntry : results.entrySet()) {
+          Key key = mapEntry.getKey();
+          out.writeInt(key.crc32);
+          out.writeLong(key.compressedSize);
+          out.write(key.digest);
+          out.writeByte(encode(mapEntry.getValue().parameters));
+          out.writeLong(mapEntry.getValue().lastUsedMillis);
+        }
+      }
+      // Readers hold the lock too, so deleting first (required on some platforms) is safe.
+      if (!tempFile.renameTo(cacheFile) && !(cacheFile.delete() && tempFile.renameTo(cacheFile))) {
+        throw new IOException("Unable to rename " + tempFile + " to " + cacheFile);
+      }
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Removes the least recently used results until no more than {@link #maxEntries} remain.
+   */
+  private void evict(Map<Key, Entry> results) {
+    if (results.size() <= maxEntries) {
+      return;
+    }
+    List<Map.Entry<Key, Entry>> byLastUse =
+        new ArrayList<Map.Entry<Key, Entry>>(results.entrySet());
+    Collections.sort(
+        byLastUse,
+        new Comparator<Map.Entry<Key, Entry>>() {
+          @Override
+          public int compare(Map.Entry<Key, Entry> entry1, Map.Entry<Key, Entry> entry2) {
+            long lastUsed1 = entry1.getValue().lastUsedMillis;
+            long lastUsed2 = entry2.getValue().lastUsedMillis;
+            return lastUsed1 < lastUsed2 ? -1 : (lastUsed1 > lastUsed2 ? 1 : 0);
+          }
+        });
+    for (int x = 0; x < byLastUse.size() - maxEntries; x++) {
+      results.remove(byLastUse.get(x).getKey());
+    }
+  }
+
+  /**
+   * Encodes the specified parameters in one byte: the level in bits 0-3, the strategy in bits 4-5
+   * and nowrap in bit 6; or {@link #UNDIVINABLE} for null.
+   */
+  // Visible for testing only
+  static int encode(JreDeflateParameters parameters) {
+    if (parameters == null) {
+      return UNDIVINABLE;
+    }
+    return parameters.level | (parameters.strategy << 4) | (parameters.nowrap ? 0x40 : 0);
+  }
+
+  /**
+   * Decodes parameters encoded by {@link #encode(JreDeflateParameters)}.
+   * @throws IllegalArgumentException if the value is not valid
+   */
+  // Visible for testing only
+  static JreDeflateParameters decode(int value) {
+    if (value == UNDIVINABLE) {
+      return null;
+    }
+    return JreDeflateParameters.of(value & 0x0f, (value >> 4) & 0x03, (value & 0x40) != 0);
+  }
+}
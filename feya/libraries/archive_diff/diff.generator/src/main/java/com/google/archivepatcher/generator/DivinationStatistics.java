@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Statistics about one {@link DefaultDeflateCompressionDiviner#divineDeflateParameters(
+ * java.io.File)} run: how often each set of {@link JreDeflateParameters} was the answer, and how
+ * many recompression attempts it took to find the answers. In adaptive mode, the diviner also uses
+ * these statistics to try the most frequent answers first for the remaining entries.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class DivinationStatistics {
+
+  /**
+   * The number of times each set of parameters was the answer, either divined or from the cache.
+   */
+  private final Map<JreDeflateParameters, Integer> winCounts =
+      new EnumMap<JreDeflateParameters, Integer>(JreDeflateParameters.class);
+
+  private int numEntriesDivined = 0;
+  private int numEntriesUndivinable = 0;
+  private int numFirstAttemptHits = 0;
+  private long numAttempts = 0;
+  private int numCacheHits = 0;
+
+  /**
+   * The parameters in descending order of frequency, or null if that order must be recomputed.
+   */
+  private List<JreDeflateParameters> parametersByFrequency = null;
+
+  /**
+   * Whether or not {@link #parametersByFrequency} has been frozen.
+   */
+  private boolean frozen = false;
+
+  /**
+   * Records the outcome of divining one entry.
+   * @param parameters the answer, or null if the entry could not be divined
+   * @param attempts the number of recompression attempts that were made
+   */
+  synchronized void recordDivination(JreDeflateParameters parameters, int attempts) {
+    numEntriesDivined++;
+    numAttempts += attempts;
+    if (parameters == null) {
+      numEntriesUndivinable++;
+      return;
+    }
+    if (attempts == 1) {
+      numFirstAttemptHits++;
+    }
+    recordWin(parameters);
+  }
+
+  /**
+   * Records that the answer for one entry was found in a {@link DivinationCache}.
+   * @param parameters the cached answer, or null if the entry is known to be undivinable
+   */
+  synchronized void recordCacheHit(JreDeflateParameters parameters) {
+    numCacheHits++;
+    if (parameters != null) {
+      recordWin(parameters);
+    }
+  }
+
+  private void recordWin(JreDeflateParameters parameters) {
+    Integer count = winCounts.get(parameters);
+    winCounts.put(parameters, count == null ? 1 : count + 1);
+    if (!frozen) {
+      parametersByFrequency = null;
+    }
+  }
+
+  /**
+   * Orders the specified candidates for the next entry: the answers seen so far, most frequent
+   * first, followed by the remaining candidates in their original order.
+   * @param defaultCandidates all of the candidates, in the default order
+   * @return the candidates in the order to try them
+   */
+  synchronized List<JreDeflateParameters> orderCandidates(
+      List<JreDeflateParameters> defaultCandidates) {
+    if (parametersByFrequency == null) {
+      List<JreDeflateParameters> byFrequency =
+          new ArrayList<JreDeflateParameters>(winCounts.keySet());
+      // Ties are broken by the default order, which is the order of popularity in the world.
+      final List<JreDeflateParameters> defaults = defaultCandidates;
+      Collections.sort(
+          byFrequency,
+          new Comparator<JreDeflateParameters>() {
+            @Override
+            public int compare(JreDeflateParameters parameters1, JreDeflateParameters parameters2) {
+              int count1 = winCounts.get(parameters1);
+              int count2 = winCounts.get(parameters2);
+              if (count1 != count2) {
+                return count1 > count2 ? -1 : 1;
+              }
+              return defaults.indexOf(parameters1) - defaults.indexOf(parameters2);
+            }
+          });
+      Set<JreDeflateParameters> ordered = new LinkedHashSet<JreDeflateParameters>(byFrequency);
+      ordered.addAll(defaultCandidates);
+      parametersByFrequency =
+          Collections.unmodifiableList(new ArrayList<JreDeflateParameters>(ordered));
+    }
+    return parametersByFrequency;
+  }
+
+  /**
+   * Stops {@link #orderCandidates(List)} from changing its answer in response to results recorded
+   * from now on. Used when entries are divined concurrently, where the order in which results are
+   * recorded is not deterministic.
+   * @param defaultCandidates all of the candidates, in the default order
+   */
+  synchronized void freezeCandidateOrder(List<JreDeflateParameters> defaultCandidates) {
+    orderCandidates(defaultCandidates);
+    frozen = true;
+  }
+
+  /**
+   * Returns the number of entries that were divined by brute force, i.e. that were not found in a
+   * cache.
+   * @return as described
+   */
+  public synchronized int getNumEntriesDivined() {
+    return numEntriesDivined;
+  }
+
+  /**
+   * Returns the number of entries divined by brute force for which no parameters were found.
+   * @return as described
+   */
+  public synchronized int getNumEntriesUndivinable() {
+    return numEntriesUndivinable;
+  }
+
+  /**
+   * Returns the number of entries divined by brute force whose answer was the first candidate
+   * tried.
+   * @return as described
+   */
+  public synchronized int getNumFirstAttemptHits() {
+    return numFirstAttemptHits;
+  }
+
+  /**
+   * Returns the total number of recompression attempts made.
+   * @return as described
+   */
+  public synchronized long getNumAttempts() {
+    return numAttempts;
+  }
+
+  /**
+   * Returns the number of entries whose answer was found in a {@link DivinationCache}.
+   * @return as described
+   */
+  public synchronized int getNumCacheHits() {
+    return numCacheHits;
+  }
+
+  /**
+   * Returns the fraction of entries divined by brute force whose answer was the first candidate
+   * tried, or 0 if no entries were divined.
+   * @return as described
+   */
+  public synchronized double getFirstAttemptHitRate() {
+    return numEntriesDivined == 0 ? 0 : ((double) numFirstAttemptHits) / numEntriesDivined;
+  }
+
+  /**
+   * Returns the mean number of recompression attempts per entry divined by brute force, or 0 if no
+   * entries were divined.
+   * @return as described
+   */
+  public synchronized double getMeanAttemptsPerEntry() {
+    return numEntriesDivined == 0 ? 0 : ((double) numAttempts) / numEntriesDivined;
+  }
+
+  /**
+   * Returns the number of times each set of parameters was the answer, whether divined or found in
+   * a cache.
+   * @return an unmodifiable snapshot of the counts
+   */
+  public synchronized Map<JreDeflateParameters, Integer> getWinCounts() {
+    return Collections.unmodifiableMap(
+        new EnumMap<JreDeflateParameters, Integer>(winCounts));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "DivinationStatistics [divined="
+        + numEntriesDivined
+        + ", undivinable="
+        + numEntriesUndivinable
+        + ", cacheHits="
+        + numCacheHits
+        + ", firstAttemptHitRate="
+        + getFirstAttemptHitRate()
+        + ", meanAttemptsPerEntry="
+        + getMeanAttemptsPerEntry()
+        + ", winCounts="
+        + winCounts
+        + "]";
+  }
+}
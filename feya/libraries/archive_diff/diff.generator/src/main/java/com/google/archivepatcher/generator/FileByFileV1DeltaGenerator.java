@@ -5,14 +5,24 @@
 package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.CachingSuffixSorter;
+import com.google.archivepatcher.generator.bsdiff.DiskUsageListener;
+import com.google.archivepatcher.generator.bsdiff.MappedRegionPool;
+import com.google.archivepatcher.shared.ConcurrentTasks;
+import com.google.archivepatcher.shared.TypedRange;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Generates file-by-file patches.
@@ -22,6 +32,32 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
   /** Optional modifiers for planning and patch generation. */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /**
+   * Optional directory for persistent suffix array indexes of delta-friendly old blobs, or null.
+   */
+  private final File suffixArrayIndexDirectory;
+
+  /**
+   * The minimum number of bytes of the delta-friendly new file to put in each delta, or 0 to
+   * generate a single delta for the entire files.
+   */
+  private final long deltaGroupSizeBytes;
+
+  /**
+   * The maximum number of deltas to generate at the same time.
+   */
+  private final int deltaParallelism;
+
+  /**
+   * The time budget for finding diff bases for renamed and modified entries, or 0 not to.
+   */
+  private final long contentSimilarityBudgetMillis;
+
+  /**
+   * The pool to acquire the temp files of bsdiff from, or null.
+   */
+  private final MappedRegionPool mappedRegionPool;
+
   /**
    * Constructs a new generator for File-by-File v1 patches, using the specified configuration.
    *
@@ -31,12 +67,118 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
    *     are specified.
    */
   public FileByFileV1DeltaGenerator(RecommendationModifier... recommendationModifiers) {
+    this(null, recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new generator for File-by-File v1 patches, using the specified configuration.
+   *
+   * @param suffixArrayIndexDirectory optionally, a directory in which to persist the suffix arrays
+   *     of delta-friendly old blobs (see {@link CachingSuffixSorter}). When the same old file is
+   *     diffed against several new files, only the first diff needs to sort it. May be null.
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to use for modifying
+   *     the planning phase of patch generation. These can be used to, e.g., limit the total amount
+   *     of recompression that a patch applier needs to do. Modifiers are applied in the order they
+   *     are specified.
+   */
+  public FileByFileV1DeltaGenerator(
+      File suffixArrayIndexDirectory, RecommendationModifier... recommendationModifiers) {
+    this(suffixArrayIndexDirectory, 0, 1, recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new generator for File-by-File v1 patches that generates one delta per group of
+   * entries instead of one delta for the entire delta-friendly files. Each group of new entries is
+   * diffed only against the old entries that it was matched with, so that many small suffix sorts
+   * replace one large one, and the groups are diffed concurrently. Such patches use the {@link
+   * com.google.archivepatcher.shared.PatchConstants#IDENTIFIER_MULTIPLE_DELTAS} identifier and
+   * may be somewhat larger, since data can no longer be copied from unrelated old entries.
+   *
+   * @param suffixArrayIndexDirectory optionally, a directory in which to persist the suffix arrays
+   *     of delta-friendly old blobs (see {@link CachingSuffixSorter}), or of the old ranges of
+   *     groups. May be null.
+   * @param deltaGroupSizeBytes the minimum number of bytes of the delta-friendly new file to put in
+   *     each delta, or 0 to generate a single delta for the entire files
+   * @param deltaParallelism the maximum number of deltas to generate at the same time
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to use for modifying
+   *     the planning phase of patch generation. These can be used to, e.g., limit the total amount
+   *     of recompression that a patch applier needs to do. Modifiers are applied in the order they
+   *     are specified.
+   * @throws IllegalArgumentException if deltaGroupSizeBytes is negative or deltaParallelism is not
+   *     positive
+   */
+  public FileByFileV1DeltaGenerator(
+      File suffixArrayIndexDirectory,
+      long deltaGroupSizeBytes,
+      int deltaParallelism,
+      RecommendationModifier... recommendationModifiers) {
+    if (deltaGroupSizeBytes < 0) {
+      throw new IllegalArgumentException(
+          "deltaGroupSizeBytes must not be negative: " + deltaGroupSizeBytes);
+    }
+    if (deltaParallelism <= 0) {
+      throw new IllegalArgumentException("deltaParallelism must be positive: " + deltaParallelism);
+    }
+    this.suffixArrayIndexDirectory = suffixArrayIndexDirectory;
+    this.deltaGroupSizeBytes = deltaGroupSizeBytes;
+    this.deltaParallelism = deltaParallelism;
     if (recommendationModifiers != null) {
       this.recommendationModifiers =
           Collections.unmodifiableList(Arrays.asList(recommendationModifiers));
     } else {
       this.recommendationModifiers = Collections.emptyList();
     }
+    this.contentSimilarityBudgetMillis = 0;
+    this.mappedRegionPool = null;
+  }
+
+  /**
+   * Constructs a copy of the specified generator with the specified content similarity budget and
+   * pool.
+   */
+  private FileByFileV1DeltaGenerator(
+      FileByFileV1DeltaGenerator generator,
+      long contentSimilarityBudgetMillis,
+      MappedRegionPool mappedRegionPool) {
+    this.recommendationModifiers = generator.recommendationModifiers;
+    this.suffixArrayIndexDirectory = generator.suffixArrayIndexDirectory;
+    this.deltaGroupSizeBytes = generator.deltaGroupSizeBytes;
+    this.deltaParallelism = generator.deltaParallelism;
+    this.contentSimilarityBudgetMillis = contentSimilarityBudgetMillis;
+    this.mappedRegionPool = mappedRegionPool;
+  }
+
+  /**
+   * Returns a generator with the same configuration as this one that also looks for diff bases
+   * for new entries that have been both renamed and modified, by comparing their uncompressed
+   * content with that of the old entries whose paths are gone (see {@link
+   * PreDiffExecutor.Builder#withContentSimilaritySearch(long)}). Files such as obfuscated dex
+   * shards and assets with hashed names are renamed and modified all the time; without a diff base
+   * they are diffed in compressed form.
+   *
+   * @param timeBudgetMillis the time budget for the search, per patch
+   * @return the new generator
+   */
+  public FileByFileV1DeltaGenerator withContentSimilaritySearch(long timeBudgetMillis) {
+    if (timeBudgetMillis <= 0) {
+      throw new IllegalArgumentException("timeBudgetMillis must be positive: " + timeBudgetMillis);
+    }
+    return new FileByFileV1DeltaGenerator(this, timeBudgetMillis, mappedRegionPool);
+  }
+
+  /**
+   * Returns a generator with the same configuration as this one whose bsdiff deltas acquire the
+   * temp file that holds the suffix array, when it does not fit in the heap, from the specified
+   * pool (see {@link BsDiffDeltaGenerator#withMappedRegionPool(MappedRegionPool)}). A process that
+   * generates many patches can share one pool between its generators to reuse those temp files,
+   * mappings and all. The pool is not closed by the generator.
+   *
+   * @param mappedRegionPool the pool to acquire temp files from, or null to map a new one for
+   *     every delta
+   * @return the new generator
+   */
+  public FileByFileV1DeltaGenerator withMappedRegionPool(MappedRegionPool mappedRegionPool) {
+    return new FileByFileV1DeltaGenerator(this, contentSimilarityBudgetMillis, mappedRegionPool);
   }
 
   /**
@@ -55,36 +197,407 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
   @Override
   public void generateDelta(File oldFile, File newFile, OutputStream patchOut)
       throws IOException, InterruptedException {
+    generateDelta(oldFile, newFile, patchOut, null);
+  }
+
+  /**
+   * Generate a V1 patch for the specified input files and write the patch to the specified {@link
+   * OutputStream}, exactly as {@link #generateDelta(File, File, OutputStream)} does, reporting the
+   * time and resources spent in each phase to the specified {@link GenerationObserver}.
+   *
+   * @param oldFile the original old file to read (will not be modified)
+   * @param newFile the original new file to read (will not be modified)
+   * @param patchOut the stream to write the patch to
+   * @param observer the observer to report to, or null
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(
+      File oldFile, File newFile, OutputStream patchOut, GenerationObserver observer)
+      throws IOException, InterruptedException {
     try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
-        TempFileHolder deltaFriendlyNewFile = new TempFileHolder();
+        TempFileHolder deltaFriendlyNewFile = new TempFileHolder()) {
+      PreDiffPlan preDiffPlan =
+          prepareForDiffing(
+              oldFile, newFile, deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, observer);
+      writePatch(
+          oldFile,
+          newFile,
+          preDiffPlan,
+          deltaFriendlyOldFile.file,
+          deltaFriendlyNewFile.file,
+          patchOut,
+          observer);
+    }
+  }
+
+  /**
+   * Generate a V1 patch for the specified input files and write the patch to the specified file,
+   * starting at its current file pointer. The patch is exactly the same as the one written by
+   * {@link #generateDelta(File, File, OutputStream)}, but the delta is streamed straight into the
+   * patch instead of being staged in a temp file and copied, which saves a disk round trip for
+   * large deltas. See {@link PatchWriter#writeV1Patch(RandomAccessFile, DeltaGenerator, File,
+   * File)}. When generating one delta per group of entries, the deltas are staged in temp files
+   * and the patch is written as by {@link #generateDelta(File, File, OutputStream)}.
+   *
+   * @param oldFile the original old file to read (will not be modified)
+   * @param newFile the original new file to read (will not be modified)
+   * @param patchOut the file to write the patch to
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(File oldFile, File newFile, RandomAccessFile patchOut)
+      throws IOException, InterruptedException {
+    generateDelta(oldFile, newFile, patchOut, null);
+  }
+
+  /**
+   * Generate a V1 patch for the specified input files and write the patch to the specified file,
+   * exactly as {@link #generateDelta(File, File, RandomAccessFile)} does, reporting the time and
+   * resources spent in each phase to the specified {@link GenerationObserver}.
+   *
+   * @param oldFile the original old file to read (will not be modified)
+   * @param newFile the original new file to read (will not be modified)
+   * @param patchOut the file to write the patch to
+   * @param observer the observer to report to, or null
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void generateDelta(
+      File oldFile, File newFile, RandomAccessFile patchOut, GenerationObserver observer)
+      throws IOException, InterruptedException {
+    try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
+        TempFileHolder deltaFriendlyNewFile = new TempFileHolder()) {
+      PreDiffPlan preDiffPlan =
+          prepareForDiffing(
+              oldFile, newFile, deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, observer);
+      if (deltaGroupSizeBytes > 0) {
+        OutputStream out = Channels.newOutputStream(patchOut.getChannel());
+        writePatch(
+            oldFile,
+            newFile,
+            preDiffPlan,
+            deltaFriendlyOldFile.file,
+            deltaFriendlyNewFile.file,
+            out,
+            observer);
+        out.flush();
+        return;
+      }
+      TempDiskUsage tempDiskUsage =
+          new TempDiskUsage(
+              observer, deltaFriendlyOldFile.file.length() + deltaFriendlyNewFile.file.length());
+      try {
+        PatchWriter patchWriter =
+            new PatchWriter(
+                preDiffPlan,
+                deltaFriendlyOldFile.file.length(),
+                deltaFriendlyNewFile.file.length());
+        PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.PATCH_WRITING);
+        try {
+          patchWriter.writeV1Patch(
+              patchOut,
+              getDeltaGenerator(observer, tempDiskUsage),
+              deltaFriendlyOldFile.file,
+              deltaFriendlyNewFile.file);
+        } finally {
+          timer.stop();
+        }
+      } finally {
+        tempDiskUsage.releaseAll();
+      }
+    }
+  }
+
+  /**
+   * Generates the deltas between the delta-friendly files and writes the patch.
+   *
+   * @param oldFile the original old file
+   * @param newFile the original new file
+   * @param preDiffPlan the plan that the delta-friendly files were generated from
+   * @param deltaFriendlyOldFile the delta-friendly old file
+   * @param deltaFriendlyNewFile the delta-friendly new file
+   * @param patchOut the stream to write the patch to
+   * @param observer the observer to report to, or null
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  void writePatch(
+      File oldFile,
+      File newFile,
+      PreDiffPlan preDiffPlan,
+      File deltaFriendlyOldFile,
+      File deltaFriendlyNewFile,
+      OutputStream patchOut,
+      GenerationObserver observer)
+      throws IOException, InterruptedException {
+    // The delta-friendly files are deleted by the caller right after the patch is written.
+    TempDiskUsage tempDiskUsage =
+        new TempDiskUsage(observer, deltaFriendlyOldFile.length() + deltaFriendlyNewFile.length());
+    try {
+      writePatch(
+          oldFile,
+          newFile,
+          preDiffPlan,
+          deltaFriendlyOldFile,
+          deltaFriendlyNewFile,
+          patchOut,
+          observer,
+          tempDiskUsage);
+    } finally {
+      tempDiskUsage.releaseAll();
+    }
+  }
+
+  /**
+   * Generates the deltas and writes the patch as described above, adding the temp files it
+   * creates to the specified {@link TempDiskUsage}.
+   */
+  private void writePatch(
+      File oldFile,
+      File newFile,
+      PreDiffPlan preDiffPlan,
+      File deltaFriendlyOldFile,
+      File deltaFriendlyNewFile,
+      OutputStream patchOut,
+      GenerationObserver observer,
+      TempDiskUsage tempDiskUsage)
+      throws IOException, InterruptedException {
+    if (deltaGroupSizeBytes == 0) {
+      try (TempFileHolder deltaFile = new TempFileHolder();
+          FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
+          BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+        getDeltaGenerator(observer, tempDiskUsage)
+            .generateDelta(deltaFriendlyOldFile, deltaFriendlyNewFile, bufferedDeltaOut);
+        bufferedDeltaOut.close();
+        tempDiskUsage.add(deltaFile.file.length());
+        PatchWriter patchWriter =
+            new PatchWriter(
+                preDiffPlan,
+                deltaFriendlyOldFile.length(),
+                deltaFriendlyNewFile.length(),
+                deltaFile.file);
+        PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.PATCH_WRITING);
+        try {
+          patchWriter.writeV1Patch(patchOut);
+        } finally {
+          timer.stop();
+        }
+      }
+      return;
+    }
+
+    List<DeltaPartitioner.Group> groups =
+        DeltaPartitioner.partition(oldFile, newFile, preDiffPlan, deltaGroupSizeBytes);
+    List<TempFileHolder> deltaFiles = new ArrayList<TempFileHolder>(groups.size());
+    try {
+      List<DeltaEntry> deltaEntries = new ArrayList<DeltaEntry>(groups.size());
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(groups.size());
+      for (DeltaPartitioner.Group group : groups) {
         TempFileHolder deltaFile = new TempFileHolder();
-        FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
-        BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
-      PreDiffExecutor.Builder builder =
-          new PreDiffExecutor.Builder()
-              .readingOriginalFiles(oldFile, newFile)
-              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file);
-      for (RecommendationModifier modifier : recommendationModifiers) {
-        builder.withRecommendationModifier(modifier);
+        deltaFiles.add(deltaFile);
+        deltaEntries.add(
+            new DeltaEntry(
+                group.deltaFriendlyOldFileRange, group.deltaFriendlyNewFileRange, deltaFile.file));
+        tasks.add(
+            new GroupDeltaTask(
+                deltaFriendlyOldFile,
+                deltaFriendlyNewFile,
+                group,
+                deltaFile.file,
+                observer,
+                tempDiskUsage));
       }
-      PreDiffExecutor executor = builder.build();
-      PreDiffPlan preDiffPlan = executor.prepareForDiffing();
-      DeltaGenerator deltaGenerator = getDeltaGenerator();
-      deltaGenerator.generateDelta(
-          deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, bufferedDeltaOut);
-      bufferedDeltaOut.close();
+      ConcurrentTasks.run(tasks, null, deltaParallelism);
       PatchWriter patchWriter =
           new PatchWriter(
               preDiffPlan,
-              deltaFriendlyOldFile.file.length(),
-              deltaFriendlyNewFile.file.length(),
-              deltaFile.file);
-      patchWriter.writeV1Patch(patchOut);
+              deltaFriendlyOldFile.length(),
+              deltaFriendlyNewFile.length(),
+              deltaEntries);
+      PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.PATCH_WRITING);
+      try {
+        patchWriter.writeV1Patch(patchOut);
+      } finally {
+        timer.stop();
+      }
+    } finally {
+      for (TempFileHolder deltaFile : deltaFiles) {
+        deltaFile.close();
+      }
+    }
+  }
+
+  /**
+   * Generates the delta for one group: copies the group's ranges out of the delta-friendly files
+   * and diffs the copies.
+   */
+  private final class GroupDeltaTask implements Callable<Void> {
+    private final File deltaFriendlyOldFile;
+    private final File deltaFriendlyNewFile;
+    private final DeltaPartitioner.Group group;
+    private final File deltaFile;
+    private final GenerationObserver observer;
+    private final TempDiskUsage tempDiskUsage;
+
+    GroupDeltaTask(
+        File deltaFriendlyOldFile,
+        File deltaFriendlyNewFile,
+        DeltaPartitioner.Group group,
+        File deltaFile,
+        GenerationObserver observer,
+        TempDiskUsage tempDiskUsage) {
+      this.deltaFriendlyOldFile = deltaFriendlyOldFile;
+      this.deltaFriendlyNewFile = deltaFriendlyNewFile;
+      this.group = group;
+      this.deltaFile = deltaFile;
+      this.observer = observer;
+      this.tempDiskUsage = tempDiskUsage;
+    }
+
+    @Override
+    public Void call() throws IOException, InterruptedException {
+      long rangeBytes =
+          group.deltaFriendlyOldFileRange.getLength() + group.deltaFriendlyNewFileRange.getLength();
+      try (TempFileHolder oldRangeFile = new TempFileHolder();
+          TempFileHolder newRangeFile = new TempFileHolder();
+          FileOutputStream deltaFileOut = new FileOutputStream(deltaFile);
+          BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+        tempDiskUsage.add(rangeBytes);
+        try {
+          copyRange(deltaFriendlyOldFile, group.deltaFriendlyOldFileRange, oldRangeFile.file);
+          copyRange(deltaFriendlyNewFile, group.deltaFriendlyNewFileRange, newRangeFile.file);
+          getDeltaGenerator(observer, tempDiskUsage)
+              .generateDelta(oldRangeFile.file, newRangeFile.file, bufferedDeltaOut);
+          bufferedDeltaOut.flush();
+          tempDiskUsage.add(deltaFile.length());
+        } finally {
+          tempDiskUsage.add(-rangeBytes);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Keeps track of the bytes of temp files in use while a patch is written, and reports every
+   * change to an optional {@link GenerationObserver}. Also listens to the delta generator, which
+   * creates temp files of its own for suffix arrays that do not fit in the heap, and index files.
+   */
+  private static final class TempDiskUsage implements DiskUsageListener {
+    private final GenerationObserver observer;
+    private final AtomicLong bytesInUse = new AtomicLong();
+
+    TempDiskUsage(GenerationObserver observer, long initialBytesInUse) {
+      this.observer = observer;
+      add(initialBytesInUse);
+    }
+
+    void add(long bytes) {
+      long total = bytesInUse.addAndGet(bytes);
+      if (observer != null) {
+        observer.tempDiskUsageChanged(total);
+      }
+    }
+
+    @Override
+    public void diskUsageChanged(long bytes) {
+      add(bytes);
+    }
+
+    void releaseAll() {
+      add(-bytesInUse.get());
+    }
+  }
+
+  /**
+   * Copies the specified range of a file to another file.
+   */
+  private static void copyRange(File source, TypedRange<Void> range, File destination)
+      throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile(source, "r");
+        FileOutputStream out = new FileOutputStream(destination)) {
+      in.getChannel().transferTo(range.getOffset(), range.getLength(), out.getChannel());
+    }
+  }
+
+  /**
+   * Plans the patch and writes the delta-friendly files.
+   *
+   * @return the plan
+   */
+  private PreDiffPlan prepareForDiffing(
+      File oldFile,
+      File newFile,
+      File deltaFriendlyOldFile,
+      File deltaFriendlyNewFile,
+      GenerationObserver observer)
+      throws IOException {
+    PreDiffExecutor.Builder builder =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile);
+    for (RecommendationModifier modifier : recommendationModifiers) {
+      builder.withRecommendationModifier(modifier);
     }
+    if (observer != null) {
+      builder.withObserver(observer);
+    }
+    if (contentSimilarityBudgetMillis > 0) {
+      builder.withContentSimilaritySearch(contentSimilarityBudgetMillis);
+    }
+    if (deltaParallelism > 1) {
+      // Planning can compare entries with as many threads as delta generation uses.
+      builder.withComparisonParallelism(null, deltaParallelism);
+    }
+    PreDiffExecutor executor = builder.build();
+    return executor.prepareForDiffing();
+  }
+
+  /**
+   * Returns the modifiers for planning and patch generation, in the order they are applied.
+   *
+   * @return as described
+   */
+  List<RecommendationModifier> getRecommendationModifiers() {
+    return recommendationModifiers;
+  }
+
+  /**
+   * Returns the time budget for finding diff bases for renamed and modified entries.
+   *
+   * @return the budget, or 0 if there is no such search
+   */
+  long getContentSimilarityBudgetMillis() {
+    return contentSimilarityBudgetMillis;
   }
 
   // Visible for testing only
   protected DeltaGenerator getDeltaGenerator() {
+    if (suffixArrayIndexDirectory != null) {
+      return new BsDiffDeltaGenerator(new CachingSuffixSorter(suffixArrayIndexDirectory));
+    }
     return new BsDiffDeltaGenerator();
   }
+
+  /**
+   * Returns the {@link #getDeltaGenerator()}, reporting to the specified observer, adding its temp
+   * files to the specified {@link TempDiskUsage} and acquiring them from the {@link
+   * MappedRegionPool}, if any, if it is a {@link BsDiffDeltaGenerator}.
+   */
+  private DeltaGenerator getDeltaGenerator(
+      GenerationObserver observer, TempDiskUsage tempDiskUsage) {
+    DeltaGenerator deltaGenerator = getDeltaGenerator();
+    if (deltaGenerator instanceof BsDiffDeltaGenerator) {
+      BsDiffDeltaGenerator bsDiffDeltaGenerator =
+          ((BsDiffDeltaGenerator) deltaGenerator)
+              .withObserver(observer)
+              .withDiskUsageListener(tempDiskUsage);
+      if (mappedRegionPool != null) {
+        bsDiffDeltaGenerator = bsDiffDeltaGenerator.withMappedRegionPool(mappedRegionPool);
+      }
+      return bsDiffDeltaGenerator;
+    }
+    return deltaGenerator;
+  }
 }
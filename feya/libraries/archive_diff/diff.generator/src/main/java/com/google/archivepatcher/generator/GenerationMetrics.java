@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link GenerationObserver} that adds up everything it is told: the wall and CPU time of each
+ * phase summed over all reports, the bytes inflated and deflated, the divination attempts of each
+ * entry, how often each {@link RecommendationReason} was given, and the peak temp disk usage. One
+ * instance is meant to observe the generation of one patch, or of several patches whose totals
+ * are wanted together.
+ *
+ * <p>This class is thread-safe.
+ */
+public class GenerationMetrics implements GenerationObserver {
+  private final Map<GenerationPhase, Long> wallNanos =
+      new EnumMap<GenerationPhase, Long>(GenerationPhase.class);
+  private final Map<GenerationPhase, Long> cpuNanos =
+      new EnumMap<GenerationPhase, Long>(GenerationPhase.class);
+  private final Map<String, Integer> divinationAttemptsByEntry =
+      new LinkedHashMap<String, Integer>();
+  private final Map<RecommendationReason, Integer> recommendationReasonCounts =
+      new EnumMap<RecommendationReason, Integer>(RecommendationReason.class);
+  private long bytesInflated = 0;
+  private long bytesDeflated = 0;
+  private long peakTempDiskUsageBytes = 0;
+
+  @Override
+  public synchronized void phaseCompleted(GenerationPhase phase, long wallNanos, long cpuNanos) {
+    this.wallNanos.put(phase, getWallNanos(phase) + wallNanos);
+    this.cpuNanos.put(phase, getCpuNanos(phase) + cpuNanos);
+  }
+
+  @Override
+  public synchronized void entryDivined(
+      MinimalZipEntry entry, JreDeflateParameters parameters, int attempts) {
+    divinationAttemptsByEntry.put(entry.getFileName(), attempts);
+  }
+
+  @Override
+  public synchronized void bytesTransformed(
+      GenerationPhase phase, long bytesInflated, long bytesDeflated) {
+    this.bytesInflated += bytesInflated;
+    this.bytesDeflated += bytesDeflated;
+  }
+
+  @Override
+  public synchronized void recommendationsMade(List<QualifiedRecommendation> recommendations) {
+    for (QualifiedRecommendation recommendation : recommendations) {
+      Integer count = recommendationReasonCounts.get(recommendation.getReason());
+      recommendationReasonCounts.put(recommendation.getReason(), count == null ? 1 : count + 1);
+    }
+  }
+
+  @Override
+  public synchronized void tempDiskUsageChanged(long bytesInUse) {
+    peakTempDiskUsageBytes = Math.max(peakTempDiskUsageBytes, bytesInUse);
+  }
+
+  /**
+   * Returns the total wall time of the specified phase, summed over all reports.
+   *
+   * @param phase the phase
+   * @return the time in nanoseconds
+   */
+  public synchronized long getWallNanos(GenerationPhase phase) {
+    Long nanos = wallNanos.get(phase);
+    return nanos == null ? 0 : nanos;
+  }
+
+  /**
+   * Returns the total CPU time of the specified phase, summed over all reports.
+   *
+   * @param phase the phase
+   * @return the time in nanoseconds
+   */
+  public synchronized long getCpuNanos(GenerationPhase phase) {
+    Long nanos = cpuNanos.get(phase);
+    return nanos == null ? 0 : nanos;
+  }
+
+  /**
+   * Returns the total number of uncompressed bytes produced by inflating.
+   *
+   * @return as described
+   */
+  public synchronized long getBytesInflated() {
+    return bytesInflated;
+  }
+
+  /**
+   * Returns the total number of uncompressed bytes consumed by deflating.
+   *
+   * @return as described
+   */
+  public synchronized long getBytesDeflated() {
+    return bytesDeflated;
+  }
+
+  /**
+   * Returns the number of divination attempts of each divined entry, keyed by the name of the
+   * entry, in the order the entries were divined. An entry whose answer was found in a {@link
+   * DivinationCache} has 0 attempts.
+   *
+   * @return a copy of the attempt counts
+   */
+  public synchronized Map<String, Integer> getDivinationAttemptsByEntry() {
+    return Collections.unmodifiableMap(
+        new LinkedHashMap<String, Integer>(divinationAttemptsByEntry));
+  }
+
+  /**
+   * Returns how often each {@link RecommendationReason} was given. Reasons that were never given
+   * are absent.
+   *
+   * @return a copy of the counts
+   */
+  public synchronized Map<RecommendationReason, Integer> getRecommendationReasonCounts() {
+    return Collections.unmodifiableMap(
+        new EnumMap<RecommendationReason, Integer>(recommendationReasonCounts));
+  }
+
+  /**
+   * Returns the largest total size of the generator's temp files that was reported.
+   *
+   * @return the size in bytes
+   */
+  public synchronized long getPeakTempDiskUsageBytes() {
+    return peakTempDiskUsageBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder("GenerationMetrics[");
+    for (GenerationPhase phase : GenerationPhase.values()) {
+      builder
+          .append(phase)
+          .append("={wallMillis=")
+          .append(getWallNanos(phase) / 1000000)
+          .append(", cpuMillis=")
+          .append(getCpuNanos(phase) / 1000000)
+          .append("}, ");
+    }
+    int totalAttempts = 0;
+    for (int attempts : divinationAttemptsByEntry.values()) {
+      totalAttempts += attempts;
+    }
+    return builder
+        .append("bytesInflated=")
+        .append(bytesInflated)
+        .append(", bytesDeflated=")
+        .append(bytesDeflated)
+        .append(", entriesDivined=")
+        .append(divinationAttemptsByEntry.size())
+        .append(", divinationAttempts=")
+        .append(totalAttempts)
+        .append(", recommendationReasons=")
+        .append(recommendationReasonCounts)
+        .append(", peakTempDiskUsageBytes=")
+        .append(peakTempDiskUsageBytes)
+        .append("]")
+        .toString();
+  }
+}
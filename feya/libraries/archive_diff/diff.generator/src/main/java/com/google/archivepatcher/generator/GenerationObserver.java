@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.util.List;
+
+/**
+ * Receives timings and resource counts while a patch is generated, so that the time and resources
+ * of patch generation can be attributed to its phases. See {@link GenerationMetrics} for an
+ * implementation that simply adds everything up.
+ *
+ * <p>Some phases run on several threads at once, e.g. divination with a {@link
+ * ParallelDeflateCompressionDiviner} or the deltas of a patch with one delta per group of entries.
+ * Implementations must therefore be thread-safe, and should expect the same phase to be reported
+ * more than once, once per thread or unit of work that took part in it.
+ */
+public interface GenerationObserver {
+  /**
+   * Called when a thread has completed a phase, or its share of a phase.
+   *
+   * @param phase the phase
+   * @param wallNanos the elapsed time, in nanoseconds
+   * @param cpuNanos the CPU time of the thread that did the work, in nanoseconds, or 0 if the JVM
+   *     cannot measure it or thread CPU time measurement is not enabled
+   */
+  public void phaseCompleted(GenerationPhase phase, long wallNanos, long cpuNanos);
+
+  /**
+   * Called when the deflate parameters of an entry of the new archive have been determined.
+   *
+   * @param entry the entry
+   * @param parameters the parameters, or null if the entry could not be divined
+   * @param attempts the number of recompression attempts that were made, or 0 if the answer was
+   *     found in a {@link DivinationCache}
+   */
+  public void entryDivined(MinimalZipEntry entry, JreDeflateParameters parameters, int attempts);
+
+  /**
+   * Called when data has been inflated or deflated during a phase.
+   *
+   * @param phase the phase
+   * @param bytesInflated the number of uncompressed bytes produced by inflating
+   * @param bytesDeflated the number of uncompressed bytes consumed by deflating
+   */
+  public void bytesTransformed(GenerationPhase phase, long bytesInflated, long bytesDeflated);
+
+  /**
+   * Called when the recommendations for the entries of the new archive have been made.
+   *
+   * @param recommendations the recommendations
+   */
+  public void recommendationsMade(List<QualifiedRecommendation> recommendations);
+
+  /**
+   * Called whenever the generator's temp files have grown or shrunk, as measured each time one of
+   * them is completed or deleted.
+   *
+   * @param bytesInUse the total size of the generator's temp files
+   */
+  public void tempDiskUsageChanged(long bytesInUse);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+/**
+ * The phases of generating a file-by-file patch, as reported to a {@link GenerationObserver}.
+ */
+public enum GenerationPhase {
+  /**
+   * Reading the entries of the old and new archives.
+   */
+  ARCHIVE_PARSING,
+
+  /**
+   * Divining the deflate parameters of the entries of the new archive.
+   */
+  DIVINATION,
+
+  /**
+   * Deciding which entries to uncompress, including comparing the compressed bytes of entries.
+   */
+  PLANNING,
+
+  /**
+   * Writing the delta-friendly old and new files.
+   */
+  DELTA_FRIENDLY_FILE_WRITING,
+
+  /**
+   * Suffix sorting the delta-friendly old file, or the old range of a group of entries.
+   */
+  SUFFIX_SORTING,
+
+  /**
+   * Matching the delta-friendly new file against the sorted old file and writing the delta.
+   */
+  MATCHING,
+
+  /**
+   * Writing the patch, including copying the deltas into it. When a single delta is streamed
+   * straight into the patch, this includes generating the delta.
+   */
+  PATCH_WRITING
+}
@@ -8,9 +8,8 @@ import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.zip.ZipException;
 
@@ -23,16 +22,9 @@ import java.util.zip.ZipException;
 public class MinimalZipArchive {
 
   /**
-   * Sorts {@link MinimalZipEntry} objects by {@link MinimalZipEntry#getFileOffsetOfLocalEntry()} in
-   * ascending order.
+   * The maximum number of bytes of local entries to read in one call.
    */
-  private static final Comparator<MinimalZipEntry> LOCAL_ENTRY_OFFSET_COMAPRATOR =
-      new Comparator<MinimalZipEntry>() {
-        @Override
-        public int compare(MinimalZipEntry o1, MinimalZipEntry o2) {
-          return Long.compare(o1.getFileOffsetOfLocalEntry(), o2.getFileOffsetOfLocalEntry());
-        }
-      };
+  private static final int LOCAL_ENTRY_BATCH_SIZE = 65536;
 
   /**
    * Generate a listing of all of the files in a zip archive in file order and return it. Each entry
@@ -42,18 +34,35 @@ public class MinimalZipArchive {
    * @throws IOException if anything goes wrong while reading
    */
   public static List<MinimalZipEntry> listEntries(File file) throws IOException {
+    MinimalZipArchiveIndex index = readIndex(file);
+    List<MinimalZipEntry> minimalZipEntries = new ArrayList<MinimalZipEntry>(index.size());
+    for (int x = 0; x < index.size(); x++) {
+      minimalZipEntries.add(index.getEntry(x));
+    }
+    return minimalZipEntries;
+  }
+
+  /**
+   * Generate an index of all of the files in a zip archive in file order and return it. The index
+   * has the same information as {@link #listEntries(File)}, but is filled straight from the central
+   * directory without creating an object per entry.
+   * @param file the zip file to read
+   * @return the index
+   * @throws IOException if anything goes wrong while reading
+   */
+  public static MinimalZipArchiveIndex readIndex(File file) throws IOException {
     try (RandomAccessFileInputStream in = new RandomAccessFileInputStream(file)) {
-      return listEntriesInternal(in);
+      return readIndexInternal(in);
     }
   }
 
   /**
-   * Internal implementation of {@link #listEntries(File)}.
+   * Internal implementation of {@link #readIndex(File)}.
    * @param in the input stream to read from
-   * @return see {@link #listEntries(File)}
+   * @return see {@link #readIndex(File)}
    * @throws IOException if anything goes wrong while reading
    */
-  private static List<MinimalZipEntry> listEntriesInternal(RandomAccessFileInputStream in)
+  private static MinimalZipArchiveIndex readIndexInternal(RandomAccessFileInputStream in)
       throws IOException {
     // Step 1: Locate the end-of-central-directory record header.
     long offsetOfEocd = MinimalZipParser.locateStartOfEocd(in, 32768);
@@ -66,37 +75,83 @@ public class MinimalZipArchive {
     in.setRange(offsetOfEocd, in.length() - offsetOfEocd);
     MinimalCentralDirectoryMetadata centralDirectoryMetadata = MinimalZipParser.parseEocd(in);
 
-    // Step 3: Extract a list of all central directory entries (contiguous data stream)
-    in.setRange(
-        centralDirectoryMetadata.getOffsetOfCentralDirectory(),
-        centralDirectoryMetadata.getLengthOfCentralDirectory());
-    List<MinimalZipEntry> minimalZipEntries =
-        new ArrayList<MinimalZipEntry>(centralDirectoryMetadata.getNumEntriesInCentralDirectory());
-    for (int x = 0; x < centralDirectoryMetadata.getNumEntriesInCentralDirectory(); x++) {
-      minimalZipEntries.add(MinimalZipParser.parseCentralDirectoryEntry(in));
+    // Step 2b: In a zip64 archive, the zip64 end-of-central-directory record has the real values.
+    long offsetOfZip64Eocd = MinimalZipParser.locateStartOfZip64Eocd(in, offsetOfEocd);
+    if (offsetOfZip64Eocd != -1) {
+      in.setRange(offsetOfZip64Eocd, offsetOfEocd - offsetOfZip64Eocd);
+      centralDirectoryMetadata = MinimalZipParser.parseZip64Eocd(in);
     }
 
-    // Step 4: Sort the entries in file order, not central directory order.
-    Collections.sort(minimalZipEntries, LOCAL_ENTRY_OFFSET_COMAPRATOR);
+    // Step 3: Read the whole central directory in one call and add all of the central directory
+    // entries in it to the index.
+    long lengthOfCentralDirectory = centralDirectoryMetadata.getLengthOfCentralDirectory();
+    if (lengthOfCentralDirectory > Integer.MAX_VALUE) {
+      throw new ZipException("Central directory too large: " + lengthOfCentralDirectory);
+    }
+    // The entry count is not trusted until it is known to fit in the central directory, since it
+    // determines how much is allocated up front.
+    int numEntries = centralDirectoryMetadata.getNumEntriesInCentralDirectory();
+    if (numEntries
+        > lengthOfCentralDirectory / MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH) {
+      throw new ZipException(
+          numEntries + " entries cannot fit in a central directory of "
+              + lengthOfCentralDirectory + " bytes");
+    }
+    ByteBuffer centralDirectory =
+        MinimalZipParser.readRange(
+            in,
+            centralDirectoryMetadata.getOffsetOfCentralDirectory(),
+            (int) lengthOfCentralDirectory);
+    MinimalZipArchiveIndex.Builder builder = new MinimalZipArchiveIndex.Builder(numEntries);
+    for (int x = 0; x < numEntries; x++) {
+      MinimalZipParser.parseCentralDirectoryEntry(centralDirectory, builder);
+    }
 
-    // Step 5: Seek out each local entry and calculate the offset of the compressed data within
-    for (int x = 0; x < minimalZipEntries.size(); x++) {
-      MinimalZipEntry entry = minimalZipEntries.get(x);
-      long offsetOfNextEntry;
-      if (x < minimalZipEntries.size() - 1) {
-        // Don't allow reading past the start of the next entry, for sanity.
-        offsetOfNextEntry = minimalZipEntries.get(x + 1).getFileOffsetOfLocalEntry();
-      } else {
-        // Last entry. Don't allow reading into the central directory, for sanity.
-        offsetOfNextEntry = centralDirectoryMetadata.getOffsetOfCentralDirectory();
+    // Step 4: Put the entries in file order, not central directory order.
+    int[] order = builder.orderByFileOffsetOfLocalEntry();
+
+    // Step 5: Read the local entries and calculate the offset of the compressed data within each.
+    // Only the fixed-size part of each local entry is needed. Local entries that are close
+    // together, as in an archive with many small files, are read in batches with a single call.
+    int batchStart = 0;
+    while (batchStart < order.length) {
+      long batchOffset = builder.getFileOffsetOfLocalEntry(order[batchStart]);
+      int batchEnd = batchStart;
+      long batchLength = 0;
+      while (batchEnd < order.length) {
+        long offsetOfNextEntry;
+        if (batchEnd < order.length - 1) {
+          // Don't allow reading past the start of the next entry, for sanity.
+          offsetOfNextEntry = builder.getFileOffsetOfLocalEntry(order[batchEnd + 1]);
+        } else {
+          // Last entry. Don't allow reading into the central directory, for sanity.
+          offsetOfNextEntry = centralDirectoryMetadata.getOffsetOfCentralDirectory();
+        }
+        long endOfHeader =
+            builder.getFileOffsetOfLocalEntry(order[batchEnd])
+                + MinimalZipParser.LOCAL_ENTRY_FIXED_LENGTH;
+        if (endOfHeader > offsetOfNextEntry) {
+          throw new ZipException("Truncated local entry header");
+        }
+        if (batchEnd > batchStart && endOfHeader - batchOffset > LOCAL_ENTRY_BATCH_SIZE) {
+          break;
+        }
+        batchLength = endOfHeader - batchOffset;
+        batchEnd++;
       }
-      long rangeLength = offsetOfNextEntry - entry.getFileOffsetOfLocalEntry();
-      in.setRange(entry.getFileOffsetOfLocalEntry(), rangeLength);
-      long relativeDataOffset = MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(in);
-      entry.setFileOffsetOfCompressedData(entry.getFileOffsetOfLocalEntry() + relativeDataOffset);
+      ByteBuffer batch = MinimalZipParser.readRange(in, batchOffset, (int) batchLength);
+      for (int x = batchStart; x < batchEnd; x++) {
+        long fileOffsetOfLocalEntry = builder.getFileOffsetOfLocalEntry(order[x]);
+        long relativeDataOffset =
+            MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(
+                batch, (int) (fileOffsetOfLocalEntry - batchOffset));
+        builder.setFileOffsetOfCompressedData(
+            order[x], fileOffsetOfLocalEntry + relativeDataOffset);
+      }
+      batchStart = batchEnd;
     }
 
     // Done!
-    return minimalZipEntries;
+    return builder.build(order);
   }
 }
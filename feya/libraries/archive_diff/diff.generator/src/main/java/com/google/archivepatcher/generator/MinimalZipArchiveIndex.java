@@ -0,0 +1,588 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A compact, read-only index of the entries in an archive, with the same information as a list of
+ * {@link MinimalZipEntry} objects. The index stores the entries column by column: the offsets,
+ * sizes and CRC32s in primitive arrays and all of the file names in a single byte array. Entries
+ * are addressed by their position in the index, which is the order in which they were added
+ * (normally file order).
+ *
+ * <p>Entries can be looked up by file name, through an open-addressing hash table, and by the
+ * CRC32 of their uncompressed data, through a sorted array; neither allocates any objects. For an
+ * archive with a hundred thousand entries this replaces several hundred thousand small objects
+ * (entries, name copies, map nodes and boxed keys) with a dozen arrays.
+ *
+ * <p>If several entries have the same file name, the last one <em>shadows</em> the others, just as
+ * if the entries had been put in a map by file name: it is the one found by its name, and the
+ * others are not found by their CRC32 either. See {@link #isShadowed(int)}.
+ */
+public final class MinimalZipArchiveIndex {
+  /**
+   * The value in {@link #nameTable} of an empty slot.
+   */
+  private static final int EMPTY_SLOT = -1;
+
+  private final int size;
+  private final short[] compressionMethods;
+  private final boolean[] generalPurposeFlagBit11s;
+  private final long[] crc32sOfUncompressedData;
+  private final long[] compressedSizes;
+  private final long[] uncompressedSizes;
+  private final long[] fileOffsetsOfLocalEntries;
+  private final long[] fileOffsetsOfCompressedData;
+
+  /**
+   * The file names of all the entries, one after the other.
+   */
+  private final byte[] nameBytes;
+
+  /**
+   * The offset of the file name of each entry in {@link #nameBytes}, plus the end of the last one.
+   */
+  private final int[] nameOffsets;
+
+  /**
+   * The hash of the file name of each entry.
+   */
+  private final int[] nameHashes;
+
+  /**
+   * An open-addressing hash table of the positions of the entries that are not shadowed, with
+   * linear probing. Its length is a power of two.
+   */
+  private final int[] nameTable;
+
+  /**
+   * The CRC32 of each entry that is not shadowed in the upper 32 bits and the position of the entry
+   * in the lower 32 bits, in ascending order.
+   */
+  private final long[] crc32Keys;
+
+  /**
+   * Creates an index of the entries of the specified builder, in the specified order.
+   *
+   * @param builder the builder
+   * @param order the position in the builder of each entry of the index, or null to keep the order
+   *     in which the entries were added
+   */
+  private MinimalZipArchiveIndex(Builder builder, int[] order) {
+    size = builder.size;
+    if (order != null && order.length != size) {
+      throw new IllegalArgumentException("Expected " + size + " positions, got " + order.length);
+    }
+    compressionMethods = new short[size];
+    generalPurposeFlagBit11s = new boolean[size];
+    crc32sOfUncompressedData = new long[size];
+    compressedSizes = new long[size];
+    uncompressedSizes = new long[size];
+    fileOffsetsOfLocalEntries = new long[size];
+    fileOffsetsOfCompressedData = new long[size];
+    nameOffsets = new int[size + 1];
+    nameBytes = new byte[builder.nameOffsets[size]];
+    for (int index = 0; index < size; index++) {
+      int from = order == null ? index : order[index];
+      compressionMethods[index] = builder.compressionMethods[from];
+      generalPurposeFlagBit11s[index] = builder.generalPurposeFlagBit11s[from];
+      crc32sOfUncompressedData[index] = builder.crc32sOfUncompressedData[from];
+      compressedSizes[index] = builder.compressedSizes[from];
+      uncompressedSizes[index] = builder.uncompressedSizes[from];
+      fileOffsetsOfLocalEntries[index] = builder.fileOffsetsOfLocalEntries[from];
+      fileOffsetsOfCompressedData[index] = builder.fileOffsetsOfCompressedData[from];
+      int nameLength = builder.nameOffsets[from + 1] - builder.nameOffsets[from];
+      System.arraycopy(
+          builder.nameBytes, builder.nameOffsets[from], nameBytes, nameOffsets[index], nameLength);
+      nameOffsets[index + 1] = nameOffsets[index] + nameLength;
+    }
+    nameHashes = new int[size];
+
+    // Keep the table at most half full, so that probe sequences stay short.
+    int tableLength = Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1;
+    nameTable = new int[tableLength];
+    Arrays.fill(nameTable, EMPTY_SLOT);
+    int numShadowed = 0;
+    for (int index = 0; index < size; index++) {
+      int nameLength = nameOffsets[index + 1] - nameOffsets[index];
+      int hash = hash(nameBytes, nameOffsets[index], nameLength);
+      nameHashes[index] = hash;
+      int slot = findSlot(nameBytes, nameOffsets[index], nameLength, hash);
+      if (nameTable[slot] != EMPTY_SLOT) {
+        numShadowed++;
+      }
+      nameTable[slot] = index;
+    }
+
+    crc32Keys = new long[size - numShadowed];
+    int numKeys = 0;
+    for (int index = 0; index < size; index++) {
+      if (!isShadowed(index)) {
+        crc32Keys[numKeys++] = (crc32sOfUncompressedData[index] << 32) | index;
+      }
+    }
+    Arrays.sort(crc32Keys);
+  }
+
+  /**
+   * Creates an index of the specified entries, in iteration order.
+   *
+   * @param entries the entries to index
+   * @return the index
+   */
+  public static MinimalZipArchiveIndex of(Collection<MinimalZipEntry> entries) {
+    Builder builder = new Builder(entries.size());
+    for (MinimalZipEntry entry : entries) {
+      builder.add(entry);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the number of entries in the index.
+   *
+   * @return as described
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the position of the entry with the specified file name.
+   *
+   * @param fileNameBytes the file name, exactly as it is in the archive
+   * @return the position, or -1 if there is no such entry
+   */
+  public int indexOfFileName(byte[] fileNameBytes) {
+    int hash = hash(fileNameBytes, 0, fileNameBytes.length);
+    return nameTable[findSlot(fileNameBytes, 0, fileNameBytes.length, hash)];
+  }
+
+  /**
+   * Returns the position of the entry with the same file name as the specified entry of the
+   * specified index, without copying the name.
+   *
+   * @param other the other index, which may be this one
+   * @param otherIndex the position of the entry in the other index
+   * @return the position in this index, or -1 if there is no such entry
+   */
+  public int indexOfFileNameOf(MinimalZipArchiveIndex other, int otherIndex) {
+    int offset = other.nameOffsets[otherIndex];
+    int length = other.nameOffsets[otherIndex + 1] - offset;
+    return nameTable[findSlot(other.nameBytes, offset, length, other.nameHashes[otherIndex])];
+  }
+
+  /**
+   * Returns whether the specified entry is shadowed by a later entry with the same file name.
+   *
+   * @param index the position of the entry
+   * @return true if so
+   */
+  public boolean isShadowed(int index) {
+    return indexOfFileNameOf(this, index) != index;
+  }
+
+  /**
+   * Returns the position of the first entry that is not shadowed and that has the specified CRC32
+   * of its uncompressed data.
+   *
+   * @param crc32OfUncompressedData the CRC32
+   * @return the position, or -1 if there is no such entry
+   */
+  public int indexOfCrc32(long crc32OfUncompressedData) {
+    long key = crc32OfUncompressedData << 32;
+    int low = 0;
+    int high = crc32Keys.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (crc32Keys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    if (low < crc32Keys.length && (crc32Keys[low] >>> 32) == crc32OfUncompressedData) {
+      return (int) crc32Keys[low];
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the compression method of the specified entry.
+   *
+   * @param index the position of the entry
+   * @return as described
+   * @see MinimalZipEntry#getCompressionMethod()
+   */
+  public int getCompressionMethod(int index) {
+    checkIndex(index);
+    return compressionMethods[index] & 0xffff;
+  }
+
+  /**
+   * Returns whether the specified entry is compressed with deflate.
+   *
+   * @param index the position of the entry
+   * @return as described
+   * @see MinimalZipEntry#isDeflateCompressed()
+   */
+  public boolean isDeflateCompressed(int index) {
+    checkIndex(index);
+    // Same rule as MinimalZipEntry: deflate with no change in size is really stored.
+    return compressionMethods[index] == 8 && compressedSizes[index] != uncompressedSizes[index];
+  }
+
+  /**
+   * Returns the CRC32 of the uncompressed data of the specified entry.
+   *
+   * @param index the position of the entry
+   * @return as described
+   */
+  public long getCrc32OfUncompressedData(int index) {
+    checkIndex(index);
+    return crc32sOfUncompressedData[index];
+  }
+
+  /**
+   * Returns the size of the data of the specified entry as it exists in the archive.
+   *
+   * @param index the position of the entry
+   * @return as described
+   * @see MinimalZipEntry#getCompressedSize()
+   */
+  public long getCompressedSize(int index) {
+    checkIndex(index);
+    return compressedSizes[index];
+  }
+
+  /**
+   * Returns the size of the uncompressed data of the specified entry.
+   *
+   * @param index the position of the entry
+   * @return as described
+   */
+  public long getUncompressedSize(int index) {
+    checkIndex(index);
+    return uncompressedSizes[index];
+  }
+
+  /**
+   * Returns a copy of the bytes of the file name of the specified entry.
+   *
+   * @param index the position of the entry
+   * @return as described
+   */
+  public byte[] getFileNameBytes(int index) {
+    checkIndex(index);
+    return Arrays.copyOfRange(nameBytes, nameOffsets[index], nameOffsets[index + 1]);
+  }
+
+  /**
+   * Returns the file offset at which the local entry header of the specified entry begins.
+   *
+   * @param index the position of the entry
+   * @return as described
+   */
+  public long getFileOffsetOfLocalEntry(int index) {
+    checkIndex(index);
+    return fileOffsetsOfLocalEntries[index];
+  }
+
+  /**
+   * Returns the file offset at which the data of the specified entry begins.
+   *
+   * @param index the position of the entry
+   * @return as described
+   */
+  public long getFileOffsetOfCompressedData(int index) {
+    checkIndex(index);
+    return fileOffsetsOfCompressedData[index];
+  }
+
+  /**
+   * Creates a {@link MinimalZipEntry} for the specified entry. Each call creates a new object.
+   *
+   * @param index the position of the entry
+   * @return the entry
+   */
+  public MinimalZipEntry getEntry(int index) {
+    checkIndex(index);
+    MinimalZipEntry entry =
+        new MinimalZipEntry(
+            compressionMethods[index] & 0xffff,
+            crc32sOfUncompressedData[index],
+            compressedSizes[index],
+            uncompressedSizes[index],
+            getFileNameBytes(index),
+            generalPurposeFlagBit11s[index],
+            fileOffsetsOfLocalEntries[index]);
+    entry.setFileOffsetOfCompressedData(fileOffsetsOfCompressedData[index]);
+    return entry;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index " + index + " out of range [0, " + size + ")");
+    }
+  }
+
+  /**
+   * Returns the slot of {@link #nameTable} that holds the entry with the specified name, or the
+   * empty slot where it would be inserted if there is none.
+   */
+  private int findSlot(byte[] name, int offset, int length, int hash) {
+    int mask = nameTable.length - 1;
+    int slot = hash & mask;
+    while (true) {
+      int index = nameTable[slot];
+      if (index == EMPTY_SLOT
+          || (nameHashes[index] == hash && nameEquals(index, name, offset, length))) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean nameEquals(int index, byte[] name, int offset, int length) {
+    int nameOffset = nameOffsets[index];
+    if (nameOffsets[index + 1] - nameOffset != length) {
+      return false;
+    }
+    for (int x = 0; x < length; x++) {
+      if (nameBytes[nameOffset + x] != name[offset + x]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a well-distributed hash of the specified bytes (FNV-1a, followed by the finalization
+   * mix of MurmurHash3).
+   */
+  private static int hash(byte[] bytes, int offset, int length) {
+    int hash = 0x811c9dc5;
+    for (int x = offset; x < offset + length; x++) {
+      hash = (hash ^ (bytes[x] & 0xff)) * 0x01000193;
+    }
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  /**
+   * Accumulates entries for a {@link MinimalZipArchiveIndex}, in growable primitive arrays.
+   */
+  static final class Builder {
+    private int size = 0;
+    private short[] compressionMethods;
+    private boolean[] generalPurposeFlagBit11s;
+    private long[] crc32sOfUncompressedData;
+    private long[] compressedSizes;
+    private long[] uncompressedSizes;
+    private long[] fileOffsetsOfLocalEntries;
+    private long[] fileOffsetsOfCompressedData;
+    private byte[] nameBytes;
+    private int[] nameOffsets;
+
+    /**
+     * Creates a builder with room for the specified number of entries. More can be added.
+     *
+     * @param expectedSize the expected number of entries
+     */
+    Builder(int expectedSize) {
+      int capacity = Math.max(1, expectedSize);
+      compressionMethods = new short[capacity];
+      generalPurposeFlagBit11s = new boolean[capacity];
+      crc32sOfUncompressedData = new long[capacity];
+      compressedSizes = new long[capacity];
+      uncompressedSizes = new long[capacity];
+      fileOffsetsOfLocalEntries = new long[capacity];
+      fileOffsetsOfCompressedData = new long[capacity];
+      // Guess at a typical name length; the array grows as necessary.
+      nameBytes = new byte[capacity * 32];
+      nameOffsets = new int[capacity + 1];
+    }
+
+    /**
+     * Adds the specified entry.
+     *
+     * @param entry the entry
+     * @return this builder
+     */
+    Builder add(MinimalZipEntry entry) {
+      byte[] fileNameBytes = entry.getFileNameBytes();
+      return add(
+          entry.getCompressionMethod(),
+          entry.getCrc32OfUncompressedData(),
+          entry.getCompressedSize(),
+          entry.getUncompressedSize(),
+          fileNameBytes,
+          0,
+          fileNameBytes.length,
+          entry.getGeneralPurposeFlagBit11(),
+          entry.getFileOffsetOfLocalEntry(),
+          entry.getFileOffsetOfCompressedData());
+    }
+
+    /**
+     * Adds an entry with the specified properties, without creating a {@link MinimalZipEntry}.
+     * The file name is copied from the specified range of the specified array.
+     *
+     * @return this builder
+     */
+    Builder add(
+        int compressionMethod,
+        long crc32OfUncompressedData,
+        long compressedSize,
+        long uncompressedSize,
+        byte[] fileNameBytes,
+        int fileNameOffset,
+        int fileNameLength,
+        boolean generalPurposeFlagBit11,
+        long fileOffsetOfLocalEntry,
+        long fileOffsetOfCompressedData) {
+      if (size == compressionMethods.length) {
+        int capacity = size * 2;
+        compressionMethods = Arrays.copyOf(compressionMethods, capacity);
+        generalPurposeFlagBit11s = Arrays.copyOf(generalPurposeFlagBit11s, capacity);
+        crc32sOfUncompressedData = Arrays.copyOf(crc32sOfUncompressedData, capacity);
+        compressedSizes = Arrays.copyOf(compressedSizes, capacity);
+        uncompressedSizes = Arrays.copyOf(uncompressedSizes, capacity);
+        fileOffsetsOfLocalEntries = Arrays.copyOf(fileOffsetsOfLocalEntries, capacity);
+        fileOffsetsOfCompressedData = Arrays.copyOf(fileOffsetsOfCompressedData, capacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+      }
+      int nameOffset = nameOffsets[size];
+      if (nameBytes.length - nameOffset < fileNameLength) {
+        nameBytes =
+            Arrays.copyOf(nameBytes, Math.max(nameBytes.length * 2, nameOffset + fileNameLength));
+      }
+      System.arraycopy(fileNameBytes, fileNameOffset, nameBytes, nameOffset, fileNameLength);
+      compressionMethods[size] = (short) compressionMethod;
+      generalPurposeFlagBit11s[size] = generalPurposeFlagBit11;
+      crc32sOfUncompressedData[size] = crc32OfUncompressedData;
+      compressedSizes[size] = compressedSize;
+      uncompressedSizes[size] = uncompressedSize;
+      fileOffsetsOfLocalEntries[size] = fileOffsetOfLocalEntry;
+      fileOffsetsOfCompressedData[size] = fileOffsetOfCompressedData;
+      nameOffsets[size + 1] = nameOffset + fileNameLength;
+      size++;
+      return this;
+    }
+
+    /**
+     * Returns the number of entries added so far.
+     *
+     * @return as described
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Returns the file offset at which the local entry header of the specified entry begins.
+     *
+     * @param index the position of the entry, in the order in which it was added
+     * @return as described
+     */
+    long getFileOffsetOfLocalEntry(int index) {
+      checkIndex(index);
+      return fileOffsetsOfLocalEntries[index];
+    }
+
+    /**
+     * Sets the file offset at which the data of the specified entry begins, for an entry that was
+     * added before it was known.
+     *
+     * @param index the position of the entry, in the order in which it was added
+     * @param offset the offset
+     */
+    void setFileOffsetOfCompressedData(int index, long offset) {
+      checkIndex(index);
+      fileOffsetsOfCompressedData[index] = offset;
+    }
+
+    /**
+     * Returns the positions of the entries added so far in ascending order of the file offsets of
+     * their local entries, which is file order. Entries with the same offset keep the order in
+     * which they were added. Nothing is boxed: the offsets are sorted as primitives, and each entry
+     * then takes the next free position among those of its offset.
+     *
+     * @return the positions, in file order
+     */
+    int[] orderByFileOffsetOfLocalEntry() {
+      int[] order = new int[size];
+      boolean sorted = true;
+      for (int index = 0; index < size; index++) {
+        order[index] = index;
+        if (index > 0 && fileOffsetsOfLocalEntries[index] < fileOffsetsOfLocalEntries[index - 1]) {
+          sorted = false;
+        }
+      }
+      if (sorted) {
+        // The usual case, as archivers write the central directory in file order.
+        return order;
+      }
+      long[] sortedOffsets = Arrays.copyOf(fileOffsetsOfLocalEntries, size);
+      Arrays.sort(sortedOffsets);
+      int[] numPlaced = new int[size];
+      for (int index = 0; index < size; index++) {
+        int first = firstPositionOf(sortedOffsets, fileOffsetsOfLocalEntries[index]);
+        order[first + numPlaced[first]++] = index;
+      }
+      return order;
+    }
+
+    /**
+     * Returns the position of the first occurrence of the specified value in the specified sorted
+     * array, which must contain it.
+     */
+    private static int firstPositionOf(long[] sortedValues, long value) {
+      int low = 0;
+      int high = sortedValues.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (sortedValues[middle] < value) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Builds the index of the entries added so far, in the order in which they were added.
+     *
+     * @return the index
+     */
+    MinimalZipArchiveIndex build() {
+      return new MinimalZipArchiveIndex(this, null);
+    }
+
+    /**
+     * Builds the index of the entries added so far, in the specified order.
+     *
+     * @param order the position of each entry in this builder, in the order they are to have in
+     *     the index, e.g. as returned by {@link #orderByFileOffsetOfLocalEntry()}
+     * @return the index
+     */
+    MinimalZipArchiveIndex build(int[] order) {
+      return new MinimalZipArchiveIndex(this, order);
+    }
+
+    private void checkIndex(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("index " + index + " out of range [0, " + size + ")");
+      }
+    }
+  }
+}
@@ -8,6 +8,9 @@ import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.zip.ZipException;
 
 /**
@@ -24,6 +27,11 @@ import java.util.zip.ZipException;
  * Please note that the parser does not attempt to verify the version-needed-to-extract field, since
  * there is no guarantee that all ZIP implementations have set the value correctly to the minimum
  * needed to truly support extraction.
+ * <p>
+ * Zip64 archives are supported: the zip64 end-of-central-directory record is found through its
+ * locator (see {@link #locateStartOfZip64Eocd(RandomAccessFileInputStream, long)}), and sizes and
+ * offsets that don't fit in 32 bits are read from the zip64 extended information extra field of
+ * each central directory entry.
  */
 class MinimalZipParser {
 
@@ -45,6 +53,44 @@ class MinimalZipParser {
    */
   public static final int LOCAL_ENTRY_SIGNATURE = 0x04034b50;
 
+  /**
+   * Standard 32-bit signature for a "zip64 end-of-central-directory" record in a ZIP-like archive.
+   * This is in little-endian order.
+   */
+  public static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+  /**
+   * Standard 32-bit signature for a "zip64 end-of-central-directory locator" in a ZIP-like archive.
+   * This is in little-endian order.
+   */
+  public static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+
+  /**
+   * The length of the zip64 end-of-central-directory locator, which immediately precedes the
+   * end-of-central-directory record.
+   */
+  public static final int ZIP64_EOCD_LOCATOR_LENGTH = 20;
+
+  /**
+   * The header ID of the zip64 extended information extra field.
+   */
+  public static final int ZIP64_EXTRA_FIELD_HEADER_ID = 0x0001;
+
+  /**
+   * The value of a 32-bit size or offset whose actual value is in the zip64 extra field.
+   */
+  private static final long ZIP64_MAGIC_32 = 0xffffffffL;
+
+  /**
+   * The length of the fixed-size part of a central directory entry, up to the file name.
+   */
+  public static final int CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH = 46;
+
+  /**
+   * The length of the fixed-size part of a local file entry, up to the file name.
+   */
+  public static final int LOCAL_ENTRY_FIXED_LENGTH = 30;
+
   /**
    * Read exactly one byte, throwing an exception if unsuccessful.
    * @param in the stream to read from
@@ -102,6 +148,22 @@ class MinimalZipParser {
     return value;
   }
 
+  /**
+   * Reads 8 bytes from the current offset as an unsigned, 64-bit little-endian value.
+   * @param in the stream to read from
+   * @return the value as a java long
+   * @throws IOException if unable to read
+   * @throws ZipException if the value doesn't fit in a java long
+   */
+  private static long read64BitUnsigned(InputStream in) throws IOException {
+    long value = read32BitUnsigned(in);
+    value |= read32BitUnsigned(in) << 32;
+    if (value < 0) {
+      throw new ZipException("64-bit value out of range");
+    }
+    return value;
+  }
+
   /**
    * Read exactly the specified amount of data into the specified buffer, throwing an exception if
    * unsuccessful.
@@ -119,13 +181,32 @@ class MinimalZipParser {
     int numRead = 0;
     while (numRead < length) {
       int readThisRound = in.read(buffer, offset + numRead, length - numRead);
-      if (numRead == -1) {
+      if (readThisRound == -1) {
         throw new IOException("EOF");
       }
       numRead += readThisRound;
     }
   }
 
+  /**
+   * Reads the specified range of the specified file in one call, into a little-endian buffer.
+   * @param in the file to read from
+   * @param offset the offset in the file of the first byte to read
+   * @param length the number of bytes to read
+   * @return the buffer, positioned at the first byte
+   * @throws IOException if unable to read, e.g. if the range extends past the end of the file
+   */
+  public static ByteBuffer readRange(RandomAccessFileInputStream in, long offset, int length)
+      throws IOException {
+    if (offset < 0 || offset + length > in.length()) {
+      throw new ZipException("Range [" + offset + ", " + (offset + length) + ") is not in file");
+    }
+    byte[] buffer = new byte[length];
+    in.setRange(offset, length);
+    readOrDie(in, buffer, 0, length);
+    return ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
   /**
    * Parse one central directory entry, starting at the current file position.
    * @param in the input stream to read from, assumed to start at the first byte of the entry
@@ -133,6 +214,45 @@ class MinimalZipParser {
    * @throws IOException if unable to complete the parsing
    */
   public static MinimalZipEntry parseCentralDirectoryEntry(InputStream in) throws IOException {
+    // Read the fixed-size part to learn the length of the rest, then decode it all at once.
+    byte[] fixed = new byte[CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH];
+    readOrDie(in, fixed, 0, fixed.length);
+    ByteBuffer fixedBuffer = ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN);
+    int variableLength =
+        (fixedBuffer.getShort(28) & 0xffff)
+            + (fixedBuffer.getShort(30) & 0xffff)
+            + (fixedBuffer.getShort(32) & 0xffff);
+    byte[] entry = new byte[fixed.length + variableLength];
+    System.arraycopy(fixed, 0, entry, 0, fixed.length);
+    readOrDie(in, entry, fixed.length, variableLength);
+    return parseCentralDirectoryEntry(ByteBuffer.wrap(entry).order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Parse one central directory entry, starting at the current position of the specified buffer,
+   * and advance the position to the first byte after the entry.
+   * @param buffer the little-endian buffer to read from
+   * @return the entry that was parsed
+   * @throws ZipException if the entry is malformed or extends past the end of the buffer
+   */
+  public static MinimalZipEntry parseCentralDirectoryEntry(ByteBuffer buffer)
+      throws ZipException {
+    MinimalZipArchiveIndex.Builder builder = new MinimalZipArchiveIndex.Builder(1);
+    parseCentralDirectoryEntry(buffer, builder);
+    return builder.build().getEntry(0);
+  }
+
+  /**
+   * Parse one central directory entry, starting at the current position of the specified buffer,
+   * add it to the specified builder and advance the position to the first byte after the entry.
+   * No object is created for the entry: the file name is copied straight from the buffer if it is
+   * backed by an array. The offset of the compressed data is not known yet and is set to -1.
+   * @param buffer the little-endian buffer to read from
+   * @param builder the builder to add the entry to
+   * @throws ZipException if the entry is malformed or extends past the end of the buffer
+   */
+  static void parseCentralDirectoryEntry(ByteBuffer buffer, MinimalZipArchiveIndex.Builder builder)
+      throws ZipException {
     // *** 4 bytes encode the CENTRAL_DIRECTORY_ENTRY_SIGNATURE, verify for sanity
     // 2 bytes encode the version-made-by, ignore
     // 2 bytes encode the version-needed-to-extract, ignore
@@ -151,36 +271,116 @@ class MinimalZipParser {
     // 4 bytes encode the external file attributes, ignore
     // *** 4 bytes encode the offset of the local section entry, where the data is [READ THIS]
     // n bytes encode the file name
-    // n bytes encode the extras
+    // n bytes encode the extras, read for the zip64 extra field if needed [READ THIS]
     // n bytes encode the comment
-    if (((int) read32BitUnsigned(in)) != CENTRAL_DIRECTORY_ENTRY_SIGNATURE) {
+    int start = buffer.position();
+    if (buffer.remaining() < CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH) {
+      throw new ZipException("Truncated central directory");
+    }
+    if (buffer.getInt(start) != CENTRAL_DIRECTORY_ENTRY_SIGNATURE) {
       throw new ZipException("Bad central directory header");
     }
-    skipOrDie(in, 2 + 2); // Skip version stuff
-    int generalPurposeFlags = read16BitUnsigned(in);
-    int compressionMethod = read16BitUnsigned(in);
-    skipOrDie(in, 2 + 2); // Skip MSDOS junk
-    long crc32OfUncompressedData = read32BitUnsigned(in);
-    long compressedSize = read32BitUnsigned(in);
-    long uncompressedSize = read32BitUnsigned(in);
-    int fileNameLength = read16BitUnsigned(in);
-    int extrasLength = read16BitUnsigned(in);
-    int commentLength = read16BitUnsigned(in);
-    skipOrDie(in, 2 + 2 + 4); // Skip the disk number and file attributes
-    long fileOffsetOfLocalEntry = read32BitUnsigned(in);
-    byte[] fileNameBuffer = new byte[fileNameLength];
-    readOrDie(in, fileNameBuffer, 0, fileNameBuffer.length);
-    skipOrDie(in, extrasLength + commentLength);
+    int generalPurposeFlags = buffer.getShort(start + 8) & 0xffff;
+    int compressionMethod = buffer.getShort(start + 10) & 0xffff;
+    long crc32OfUncompressedData = buffer.getInt(start + 16) & 0xffffffffL;
+    long compressedSize = buffer.getInt(start + 20) & 0xffffffffL;
+    long uncompressedSize = buffer.getInt(start + 24) & 0xffffffffL;
+    int fileNameLength = buffer.getShort(start + 28) & 0xffff;
+    int extrasLength = buffer.getShort(start + 30) & 0xffff;
+    int commentLength = buffer.getShort(start + 32) & 0xffff;
+    long fileOffsetOfLocalEntry = buffer.getInt(start + 42) & 0xffffffffL;
+    int fileNameStart = start + CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH;
+    int extrasStart = fileNameStart + fileNameLength;
+    int end = extrasStart + extrasLength + commentLength;
+    if (end > buffer.limit()) {
+      throw new ZipException("Truncated central directory");
+    }
+    byte[] fileNameSource;
+    int fileNameOffset;
+    if (buffer.hasArray()) {
+      fileNameSource = buffer.array();
+      fileNameOffset = buffer.arrayOffset() + fileNameStart;
+    } else {
+      fileNameSource = new byte[fileNameLength];
+      fileNameOffset = 0;
+      buffer.position(fileNameStart);
+      buffer.get(fileNameSource);
+    }
+    if (uncompressedSize == ZIP64_MAGIC_32
+        || compressedSize == ZIP64_MAGIC_32
+        || fileOffsetOfLocalEntry == ZIP64_MAGIC_32) {
+      ByteBuffer zip64Buffer = findZip64ExtraField(buffer, extrasStart, extrasLength);
+      try {
+        // Only the values that don't fit in their 32-bit fields are present, in this order.
+        if (uncompressedSize == ZIP64_MAGIC_32) {
+          uncompressedSize = read64BitUnsigned(zip64Buffer);
+        }
+        if (compressedSize == ZIP64_MAGIC_32) {
+          compressedSize = read64BitUnsigned(zip64Buffer);
+        }
+        if (fileOffsetOfLocalEntry == ZIP64_MAGIC_32) {
+          fileOffsetOfLocalEntry = read64BitUnsigned(zip64Buffer);
+        }
+      } catch (BufferUnderflowException e) {
+        throw new ZipException("Truncated zip64 extra field");
+      }
+    }
+    buffer.position(end);
     // General purpose flag bit 11 is an important hint for the character set used for file names.
     boolean generalPurposeFlagBit11 = (generalPurposeFlags & (0x1 << 10)) != 0;
-    return new MinimalZipEntry(
+    builder.add(
         compressionMethod,
         crc32OfUncompressedData,
         compressedSize,
         uncompressedSize,
-        fileNameBuffer,
+        fileNameSource,
+        fileNameOffset,
+        fileNameLength,
         generalPurposeFlagBit11,
-        fileOffsetOfLocalEntry);
+        fileOffsetOfLocalEntry,
+        -1);
+  }
+
+  /**
+   * Reads 8 bytes from the current position as an unsigned, 64-bit little-endian value.
+   * @param buffer the little-endian buffer to read from
+   * @return the value as a java long
+   * @throws ZipException if the value doesn't fit in a java long
+   */
+  private static long read64BitUnsigned(ByteBuffer buffer) throws ZipException {
+    long value = buffer.getLong();
+    if (value < 0) {
+      throw new ZipException("64-bit value out of range");
+    }
+    return value;
+  }
+
+  /**
+   * Finds the zip64 extended information extra field in the extras of a central directory entry.
+   * @param buffer the buffer that contains the extras
+   * @param extrasStart the position of the extras in the buffer
+   * @param extrasLength the length of the extras
+   * @return a little-endian buffer positioned at the first byte of the data of the field, limited
+   * to the field
+   * @throws ZipException if there is no zip64 extra field
+   */
+  private static ByteBuffer findZip64ExtraField(
+      ByteBuffer buffer, int extrasStart, int extrasLength) throws ZipException {
+    // Each extra field is a 2-byte header ID, a 2-byte data length and the data.
+    int offset = extrasStart;
+    int extrasEnd = extrasStart + extrasLength;
+    while (offset + 4 <= extrasEnd) {
+      int headerId = buffer.getShort(offset) & 0xffff;
+      int dataLength = buffer.getShort(offset + 2) & 0xffff;
+      if (headerId == ZIP64_EXTRA_FIELD_HEADER_ID) {
+        ByteBuffer field = buffer.duplicate();
+        field.limit(Math.min(offset + 4 + dataLength, extrasEnd));
+        field.position(offset + 4);
+        return field.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+      offset += 4 + dataLength;
+    }
+    throw new ZipException("Missing zip64 extra field");
   }
 
   /**
@@ -191,6 +391,22 @@ class MinimalZipParser {
    * @throws IOException if unable to complete the parsing
    */
   public static long parseLocalEntryAndGetCompressedDataOffset(InputStream in) throws IOException {
+    byte[] fixed = new byte[LOCAL_ENTRY_FIXED_LENGTH];
+    readOrDie(in, fixed, 0, fixed.length);
+    return parseLocalEntryAndGetCompressedDataOffset(
+        ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN), 0);
+  }
+
+  /**
+   * Parses one local file entry and returns the offset from the first byte at which the compressed
+   * data begins. Only the fixed-size part of the entry has to be in the buffer.
+   * @param buffer the little-endian buffer to read from
+   * @param offset the position of the first byte of the entry in the buffer
+   * @return as described
+   * @throws ZipException if the entry is malformed or extends past the end of the buffer
+   */
+  public static long parseLocalEntryAndGetCompressedDataOffset(ByteBuffer buffer, int offset)
+      throws ZipException {
     // *** 4 bytes encode the LOCAL_ENTRY_SIGNATURE, verify for sanity
     // 2 bytes encode the version-needed-to-extract, ignore
     // 2 bytes encode the general-purpose flags, ignore
@@ -203,19 +419,20 @@ class MinimalZipParser {
     // *** 2 bytes encode the length of the file name, needed to skip the bytes later [READ THIS]
     // *** 2 bytes encode the length of the extras, needed to skip the bytes later [READ THIS]
     // The rest is the data, which is the main attraction here.
-    if (((int) read32BitUnsigned(in)) != LOCAL_ENTRY_SIGNATURE) {
+    if (offset < 0 || buffer.limit() - offset < LOCAL_ENTRY_FIXED_LENGTH) {
+      throw new ZipException("Truncated local entry header");
+    }
+    if (buffer.getInt(offset) != LOCAL_ENTRY_SIGNATURE) {
       throw new ZipException("Bad local entry header");
     }
-    int junkLength = 2 + 2 + 2 + 2 + 2 + 4 + 4 + 4;
-    skipOrDie(in, junkLength); // Skip everything up to the length of the file name
-    final int fileNameLength = read16BitUnsigned(in);
-    final int extrasLength = read16BitUnsigned(in);
+    final int fileNameLength = buffer.getShort(offset + 26) & 0xffff;
+    final int extrasLength = buffer.getShort(offset + 28) & 0xffff;
 
     // The file name is already known and will match the central directory, so no need to read it.
     // The extra field length can be different here versus in the central directory and is used for
     // things like zipaligning APKs. This single value is the critical part as it dictates where the
     // actual DATA for the entry begins.
-    return 4 + junkLength + 2 + 2 + fileNameLength + extrasLength;
+    return LOCAL_ENTRY_FIXED_LENGTH + fileNameLength + extrasLength;
   }
 
   /**
@@ -261,11 +478,15 @@ class MinimalZipParser {
   }
 
   /**
-   * Parse the end-of-central-directory record and return the critical information from it.
+   * Parse the end-of-central-directory record and return the critical information from it. In a
+   * zip64 archive, some of the values may be placeholders (0xffff or 0xffffffff); the actual values
+   * must be read from the zip64 end-of-central-directory record (see {@link
+   * #locateStartOfZip64Eocd(RandomAccessFileInputStream, long)} and {@link
+   * #parseZip64Eocd(InputStream)}).
    * @param in the input stream to read from, assumed to start at the first byte of the entry
    * @return the metadata
    * @throws IOException if unable to read
-   * @throws ZipException if the metadata indicates this is a zip64 archive, which is not supported
+   * @throws ZipException if the record is malformed
    */
   public static MinimalCentralDirectoryMetadata parseEocd(InputStream in)
       throws IOException, ZipException {
@@ -284,13 +505,76 @@ class MinimalZipParser {
     // Everything else from here to the EOF is the zip file comment, or junk. Ignore.
     skipOrDie(in, 2 + 2 + 2);
     int numEntriesInCentralDirectory = read16BitUnsigned(in);
-    if (numEntriesInCentralDirectory == 0xffff) {
-      // If 0xffff, this is a zip64 archive and this code doesn't handle that.
-      throw new ZipException("No support for zip64");
-    }
     long lengthOfCentralDirectory = read32BitUnsigned(in);
     long offsetOfCentralDirectory = read32BitUnsigned(in);
     return new MinimalCentralDirectoryMetadata(
         numEntriesInCentralDirectory, offsetOfCentralDirectory, lengthOfCentralDirectory);
   }
+
+  /**
+   * Looks for the zip64 end-of-central-directory locator immediately before the
+   * end-of-central-directory record and returns the offset of the zip64 end-of-central-directory
+   * record that it points to.
+   * @param in the file to read from
+   * @param offsetOfEocd the offset in the file of the first byte of the EOCD signature
+   * @return the offset in the file of the first byte of the zip64 EOCD signature, or -1 if there
+   * is no locator, i.e. the archive is not a zip64 archive
+   * @throws IOException if there is a problem reading
+   */
+  public static long locateStartOfZip64Eocd(RandomAccessFileInputStream in, long offsetOfEocd)
+      throws IOException {
+    if (offsetOfEocd < ZIP64_EOCD_LOCATOR_LENGTH) {
+      return -1;
+    }
+    // *** 4 bytes encode the ZIP64_EOCD_LOCATOR_SIGNATURE [READ THIS]
+    // 4 bytes encode the disk number of the zip64 EOCD record, ignore.
+    // *** 8 bytes encode the file offset of the zip64 EOCD record [READ THIS]
+    // 4 bytes encode the total number of disks, ignore.
+    in.setRange(offsetOfEocd - ZIP64_EOCD_LOCATOR_LENGTH, ZIP64_EOCD_LOCATOR_LENGTH);
+    if (((int) read32BitUnsigned(in)) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+      return -1;
+    }
+    skipOrDie(in, 4);
+    long offsetOfZip64Eocd = read64BitUnsigned(in);
+    if (offsetOfZip64Eocd > offsetOfEocd - ZIP64_EOCD_LOCATOR_LENGTH) {
+      throw new ZipException("Bad zip64 eocd offset");
+    }
+    return offsetOfZip64Eocd;
+  }
+
+  /**
+   * Parse the zip64 end-of-central-directory record and return the critical information from it.
+   * @param in the input stream to read from, assumed to start at the first byte of the record
+   * @return the metadata
+   * @throws IOException if unable to read
+   * @throws ZipException if the record is malformed or lists more entries than this parser can
+   * handle
+   */
+  public static MinimalCentralDirectoryMetadata parseZip64Eocd(InputStream in)
+      throws IOException, ZipException {
+    if (((int) read32BitUnsigned(in)) != ZIP64_EOCD_SIGNATURE) {
+      throw new ZipException("Bad zip64 eocd header");
+    }
+
+    // *** 4 bytes encode ZIP64_EOCD_SIGNATURE, ignore (already verified).
+    // 8 bytes encode the size of the rest of the record, ignore.
+    // 2 bytes encode the version made by, ignore.
+    // 2 bytes encode the version needed to extract, ignore.
+    // 4 bytes encode disk number for this archive, ignore.
+    // 4 bytes encode disk number for the central directory, ignore.
+    // 8 bytes encode num entries in the central directory on this disk, ignore.
+    // *** 8 bytes encode num entries in the central directory overall [READ THIS]
+    // *** 8 bytes encode the length of the central directory [READ THIS]
+    // *** 8 bytes encode the file offset of the central directory [READ THIS]
+    // Everything else is the zip64 extensible data sector. Ignore.
+    skipOrDie(in, 8 + 2 + 2 + 4 + 4 + 8);
+    long numEntriesInCentralDirectory = read64BitUnsigned(in);
+    if (numEntriesInCentralDirectory > Integer.MAX_VALUE) {
+      throw new ZipException("Too many entries: " + numEntriesInCentralDirectory);
+    }
+    long lengthOfCentralDirectory = read64BitUnsigned(in);
+    long offsetOfCentralDirectory = read64BitUnsigned(in);
+    return new MinimalCentralDirectoryMetadata(
+        (int) numEntriesInCentralDirectory, offsetOfCentralDirectory, lengthOfCentralDirectory);
+  }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.ConcurrentTasks;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link DefaultDeflateCompressionDiviner} that divines the parameters of the entries of an
+ * archive concurrently on a bounded number of threads. Each thread reuses one set of inflaters,
+ * deflaters and archive streams for all of the entries it works on. The results are exactly the
+ * same as those of {@link DefaultDeflateCompressionDiviner}, in the same order.
+ *
+ * <p>In adaptive mode, the results must not depend on the order in which threads happen to finish,
+ * so the largest {@link #ADAPTIVE_WARM_UP_ENTRIES} entries are divined on the calling thread to
+ * learn the order in which to try candidates, and that order is then used unchanged for the
+ * remaining entries. The results are therefore the same regardless of the parallelism, but not
+ * necessarily the same as those of a serial diviner in adaptive mode.
+ */
+public class ParallelDeflateCompressionDiviner extends DefaultDeflateCompressionDiviner {
+
+  /**
+   * The number of entries to divine serially in adaptive mode, before the order in which
+   * candidates are tried is frozen.
+   */
+  static final int ADAPTIVE_WARM_UP_ENTRIES = 8;
+
+  /**
+   * The executor to divine on, or null if a new pool should be created for every archive.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * The maximum number of entries to work on at the same time.
+   */
+  private final int parallelism;
+
+  /**
+   * Creates a diviner that works on a private pool of at most the given number of threads. The
+   * pool is created at the start of each {@link #divineDeflateParameters(File)} call and shut down
+   * when the call completes.
+   *
+   * @param parallelism the maximum number of threads to divine with
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public ParallelDeflateCompressionDiviner(int parallelism) {
+    this(null, parallelism);
+  }
+
+  /**
+   * Creates a diviner that works on the given executor, submitting at most the given number of
+   * tasks to it at the same time. The executor is not shut down by this class.
+   *
+   * @param executor the executor to divine on
+   * @param parallelism the maximum number of tasks to submit to the executor at the same time
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public ParallelDeflateCompressionDiviner(ExecutorService executor, int parallelism) {
+    this(executor, parallelism, null);
+  }
+
+  /**
+   * Creates a diviner that works on the given executor, or on a private pool if the executor is
+   * null, and that consults the specified cache before divining entries. See {@link
+   * DefaultDeflateCompressionDiviner#DefaultDeflateCompressionDiviner(DivinationCache)}.
+   *
+   * @param executor the executor to divine on, or null to use a private pool
+   * @param parallelism the maximum number of entries to divine at the same time
+   * @param divinationCache the cache to use, or null to divine every entry from scratch
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public ParallelDeflateCompressionDiviner(
+      ExecutorService executor, int parallelism, DivinationCache divinationCache) {
+    this(executor, parallelism, divinationCache, false);
+  }
+
+  /**
+   * Creates a diviner that works on the given executor, or on a private pool if the executor is
+   * null, that optionally consults a cache and that optionally works in adaptive mode. See {@link
+   * DefaultDeflateCompressionDiviner#DefaultDeflateCompressionDiviner(DivinationCache, boolean)}.
+   *
+   * @param executor the executor to divine on, or null to use a private pool
+   * @param parallelism the maximum number of entries to divine at the same time
+   * @param divinationCache the cache to use, or null to divine every entry from scratch
+   * @param adaptive whether or not to work in adaptive mode
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public ParallelDeflateCompressionDiviner(
+      ExecutorService executor,
+      int parallelism,
+      DivinationCache divinationCache,
+      boolean adaptive) {
+    super(divinationCache, adaptive);
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  @Override
+  public DivinedArchive divineArchive(final File archiveFile, final GenerationObserver observer)
+      throws IOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Divination interrupted");
+    }
+    final MinimalZipArchiveIndex archiveIndex = readIndex(archiveFile, observer);
+    final JreDeflateParameters[] divinedParameters = new JreDeflateParameters[archiveIndex.size()];
+
+    // Work on the largest entries first, so that a large entry started late doesn't leave the
+    // other threads idle at the end.
+    List<Integer> indices = new ArrayList<Integer>();
+    for (int index = 0; index < archiveIndex.size(); index++) {
+      if (archiveIndex.isDeflateCompressed(index)) {
+        indices.add(index);
+      }
+    }
+    final Integer[] order = indices.toArray(new Integer[indices.size()]);
+    Arrays.sort(
+        order,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(Integer index1, Integer index2) {
+            long size1 = archiveIndex.getCompressedSize(index1);
+            long size2 = archiveIndex.getCompressedSize(index2);
+            return size1 > size2 ? -1 : (size1 < size2 ? 1 : index1.compareTo(index2));
+          }
+        });
+
+    final DivinationStatistics runStatistics = new DivinationStatistics();
+    int numWarmUpEntries = isAdaptive() ? Math.min(ADAPTIVE_WARM_UP_ENTRIES, order.length) : 0;
+    if (numWarmUpEntries > 0) {
+      PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.DIVINATION);
+      try {
+        Workspace workspace = new Workspace(archiveFile, runStatistics, observer);
+        try {
+          for (int position = 0; position < numWarmUpEntries; position++) {
+            int index = order[position];
+            divinedParameters[index] = divineDeflateParameters(archiveIndex, index, workspace);
+          }
+        } finally {
+          workspace.close();
+        }
+      } finally {
+        timer.stop();
+      }
+      freezeCandidateOrder(runStatistics);
+    }
+
+    final AtomicInteger next = new AtomicInteger(numWarmUpEntries);
+    Callable<Void> worker =
+        new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            // Each worker reports its own share of the divination, with its own CPU time.
+            PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.DIVINATION);
+            try {
+              Workspace workspace = new Workspace(archiveFile, runStatistics, observer);
+              try {
+                int position;
+                while ((position = nextPosition()) < order.length) {
+                  int index = order[position];
+                  divinedParameters[index] =
+                      divineDeflateParameters(archiveIndex, index, workspace);
+                }
+              } finally {
+                workspace.close();
+              }
+            } finally {
+              timer.stop();
+            }
+            return null;
+          }
+
+          private int nextPosition() throws InterruptedIOException {
+            if (Thread.currentThread().isInterrupted()) {
+              throw new InterruptedIOException("Divination interrupted");
+            }
+            return next.getAndIncrement();
+          }
+        };
+
+    int numWorkers = Math.min(parallelism, order.length - numWarmUpEntries);
+    if (numWorkers >= 1) {
+      try {
+        // Waits for every worker to stop, even on failure, as they use the Workspace streams and
+        // the DivinationCache that the caller closes or flushes next.
+        ConcurrentTasks.run(Collections.nCopies(numWorkers, worker), executor, numWorkers);
+      } catch (InterruptedException e) {
+        // Preserve the interrupt for the caller, like the serial diviner does.
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Divination interrupted");
+      }
+    }
+
+    flushDivinationCache();
+    setStatistics(runStatistics);
+    return new DivinedArchive(archiveIndex, divinedParameters);
+  }
+}
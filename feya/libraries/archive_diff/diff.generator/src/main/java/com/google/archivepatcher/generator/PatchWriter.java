@@ -8,11 +8,16 @@ import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.TypedRange;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Writes patches.
@@ -35,9 +40,27 @@ public class PatchWriter {
   private final long deltaFriendlyNewFileSize;
 
   /**
-   * The delta that transforms the old delta-friendly file into the new delta-friendly file.
+   * The deltas that together transform the old delta-friendly file into the new delta-friendly
+   * file, in the order of their ranges in the new delta-friendly file; or null if the delta is
+   * generated while writing the patch.
    */
-  private final File deltaFile;
+  private final List<DeltaEntry> deltaEntries;
+
+  /**
+   * Creates a new patch writer that generates the delta while writing the patch, see {@link
+   * #writeV1Patch(RandomAccessFile, DeltaGenerator, File, File)}.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, provided for
+   *     forward compatibility
+   */
+  public PatchWriter(
+      PreDiffPlan plan, long deltaFriendlyOldFileSize, long deltaFriendlyNewFileSize) {
+    this(plan, deltaFriendlyOldFileSize, deltaFriendlyNewFileSize, (List<DeltaEntry>) null);
+  }
 
   /**
    * Creates a new patch writer.
@@ -56,25 +79,169 @@ public class PatchWriter {
       long deltaFriendlyOldFileSize,
       long deltaFriendlyNewFileSize,
       File deltaFile) {
+    this(
+        plan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileSize,
+        Collections.singletonList(
+            new DeltaEntry(
+                new TypedRange<Void>(0, deltaFriendlyOldFileSize, null),
+                new TypedRange<Void>(0, deltaFriendlyNewFileSize, null),
+                deltaFile)));
+  }
+
+  /**
+   * Creates a new patch writer for a patch with any number of deltas. Unless there is exactly one
+   * delta and it covers both of the delta-friendly files entirely, the patch is written with the
+   * {@link PatchConstants#IDENTIFIER_MULTIPLE_DELTAS} identifier.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, provided for
+   *     forward compatibility
+   * @param deltaEntries the deltas that together transform the old delta-friendly file into the new
+   *     delta-friendly file. Their new ranges must be in order and cover the entire new
+   *     delta-friendly file.
+   */
+  public PatchWriter(
+      PreDiffPlan plan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize,
+      List<DeltaEntry> deltaEntries) {
     this.plan = plan;
     this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
     this.deltaFriendlyNewFileSize = deltaFriendlyNewFileSize;
-    this.deltaFile = deltaFile;
+    this.deltaEntries = deltaEntries;
   }
 
   /**
    * Write a v1-style patch to the specified output stream.
    * @param out the stream to write the patch to
    * @throws IOException if anything goes wrong
+   * @throws IllegalStateException if this writer was created without deltas
    */
   public void writeV1Patch(OutputStream out) throws IOException {
+    if (deltaEntries == null) {
+      throw new IllegalStateException("No deltas to write");
+    }
     // Use DataOutputStream for ease of writing. This is deliberately left open, as closing it would
     // close the output stream that was passed in and that is not part of the method's documented
     // behavior.
     @SuppressWarnings("resource")
     DataOutputStream dataOut = new DataOutputStream(out);
+    writeV1PatchPlan(dataOut, isSingleDeltaForEntireFiles());
+
+    // Now the delta section
+    // First write the number of deltas present in the patch. In v1.0, there is always exactly one
+    // delta, and it is for the entire input; in v1.1 there may be multiple deltas.
+    dataOut.writeInt(deltaEntries.size());
+    for (DeltaEntry deltaEntry : deltaEntries) {
+      // In v1 the delta format is always bsdiff, so write it unconditionally.
+      dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
+      // Write the working ranges. In v1.0 these are always the entire contents of the
+      // delta-friendly old file and the delta-friendly new file.
+      dataOut.writeLong(deltaEntry.getDeltaFriendlyOldFileRange().getOffset());
+      dataOut.writeLong(deltaEntry.getDeltaFriendlyOldFileRange().getLength());
+      dataOut.writeLong(deltaEntry.getDeltaFriendlyNewFileRange().getOffset());
+      dataOut.writeLong(deltaEntry.getDeltaFriendlyNewFileRange().getLength());
+      // The length of the delta.
+      dataOut.writeLong(deltaEntry.getDeltaFile().length());
+    }
+
+    // Finally, the deltas themselves.
+    byte[] buffer = new byte[32768];
+    for (DeltaEntry deltaEntry : deltaEntries) {
+      try (FileInputStream deltaFileIn = new FileInputStream(deltaEntry.getDeltaFile());
+          BufferedInputStream deltaIn = new BufferedInputStream(deltaFileIn)) {
+        int numRead = 0;
+        while ((numRead = deltaIn.read(buffer)) >= 0) {
+          dataOut.write(buffer, 0, numRead);
+        }
+      }
+    }
+    dataOut.flush();
+  }
+
+  /**
+   * Write a v1-style patch to the specified file, starting at its current file pointer, generating
+   * the delta straight into the patch. Unlike {@link #writeV1Patch(OutputStream)}, the delta is
+   * never staged in a separate file: a placeholder is written for the length of the delta, and it
+   * is filled in once the delta is complete. The patch is exactly the same as the one {@link
+   * #writeV1Patch(OutputStream)} writes for the same delta. When this method returns, the file
+   * pointer is at the end of the patch; the file is not truncated.
+   *
+   * @param out the file to write the patch to
+   * @param deltaGenerator the generator of the delta
+   * @param deltaFriendlyOldFile the delta-friendly old file to generate the delta from
+   * @param deltaFriendlyNewFile the delta-friendly new file to generate the delta to
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public void writeV1Patch(
+      RandomAccessFile out,
+      DeltaGenerator deltaGenerator,
+      File deltaFriendlyOldFile,
+      File deltaFriendlyNewFile)
+      throws IOException, InterruptedException {
+    // The channel shares the file pointer of the RandomAccessFile. None of these streams are
+    // closed, as that would close the file that was passed in.
+    @SuppressWarnings("resource")
+    DataOutputStream dataOut =
+        new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(out.getChannel()), 32768));
+    writeV1PatchPlan(dataOut, true);
 
-    dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
+    // Exactly one delta, for the entire input.
+    dataOut.writeInt(1);
+    dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
+    dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly old file
+    dataOut.writeLong(deltaFriendlyOldFileSize); // i.e., length of the working range in old
+    dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly new file
+    dataOut.writeLong(deltaFriendlyNewFileSize); // i.e., length of the working range in new
+    dataOut.flush();
+
+    long deltaLengthOffset = out.getFilePointer();
+    dataOut.writeLong(0); // Placeholder for the length of the delta, filled in below
+    deltaGenerator.generateDelta(deltaFriendlyOldFile, deltaFriendlyNewFile, dataOut);
+    dataOut.flush();
+    long endOffset = out.getFilePointer();
+    out.seek(deltaLengthOffset);
+    out.writeLong(endOffset - deltaLengthOffset - 8);
+    out.seek(endOffset);
+  }
+
+  /**
+   * Returns true if there is exactly one delta and it covers both of the delta-friendly files
+   * entirely, i.e. if the patch can be read by appliers that only understand v1.0 patches.
+   */
+  private boolean isSingleDeltaForEntireFiles() {
+    if (deltaEntries.size() != 1) {
+      return false;
+    }
+    TypedRange<Void> oldRange = deltaEntries.get(0).getDeltaFriendlyOldFileRange();
+    TypedRange<Void> newRange = deltaEntries.get(0).getDeltaFriendlyNewFileRange();
+    return oldRange.getOffset() == 0
+        && oldRange.getLength() == deltaFriendlyOldFileSize
+        && newRange.getOffset() == 0
+        && newRange.getLength() == deltaFriendlyNewFileSize;
+  }
+
+  /**
+   * Writes everything in a v1-style patch up to, but not including, the delta section.
+   * @param dataOut the stream to write to
+   * @param singleDeltaForEntireFiles whether the patch has a single delta for the entire files, in
+   *     which case it is written as a v1.0 patch
+   * @throws IOException if anything goes wrong
+   */
+  private void writeV1PatchPlan(DataOutputStream dataOut, boolean singleDeltaForEntireFiles)
+      throws IOException {
+    String identifier =
+        singleDeltaForEntireFiles
+            ? PatchConstants.IDENTIFIER
+            : PatchConstants.IDENTIFIER_MULTIPLE_DELTAS;
+    dataOut.write(identifier.getBytes("US-ASCII"));
     dataOut.writeInt(0); // Flags (reserved)
     dataOut.writeLong(deltaFriendlyOldFileSize);
 
@@ -96,33 +263,5 @@ public class PatchWriter {
       dataOut.write(range.getMetadata().strategy);
       dataOut.write(range.getMetadata().nowrap ? 1 : 0);
     }
-
-    // Now the delta section
-    // First write the number of deltas present in the patch. In v1, there is always exactly one
-    // delta, and it is for the entire input; in future versions there may be multiple deltas, of
-    // arbitrary types.
-    dataOut.writeInt(1);
-    // In v1 the delta format is always bsdiff, so write it unconditionally.
-    dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
-
-    // Write the working ranges. In v1 these are always the entire contents of the delta-friendly
-    // old file and the delta-friendly new file. These are for forward compatibility with future
-    // versions that may allow deltas of arbitrary formats to be mapped to arbitrary ranges.
-    dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly old file
-    dataOut.writeLong(deltaFriendlyOldFileSize); // i.e., length of the working range in old
-    dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly new file
-    dataOut.writeLong(deltaFriendlyNewFileSize); // i.e., length of the working range in new
-
-    // Finally, the length of the delta and the delta itself.
-    dataOut.writeLong(deltaFile.length());
-    try (FileInputStream deltaFileIn = new FileInputStream(deltaFile);
-        BufferedInputStream deltaIn = new BufferedInputStream(deltaFileIn)) {
-      byte[] buffer = new byte[32768];
-      int numRead = 0;
-      while ((numRead = deltaIn.read(buffer)) >= 0) {
-        dataOut.write(buffer, 0, numRead);
-      }
-    }
-    dataOut.flush();
   }
 }
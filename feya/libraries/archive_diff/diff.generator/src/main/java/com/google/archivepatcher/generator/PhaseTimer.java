@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the wall and CPU time of the current thread between {@link #start(GenerationObserver,
+ * GenerationPhase)} and {@link #stop()} and reports them to a {@link GenerationObserver}. Does
+ * nothing if the observer is null.
+ *
+ * <p>CPU time is only measured if thread CPU time measurement is already enabled in the JVM; this
+ * class never enables it, as that is a JVM-wide setting. Otherwise only wall time is reported.
+ */
+public final class PhaseTimer {
+  /**
+   * The bean that measures CPU time, or null if the JVM can't measure it.
+   */
+  private static final ThreadMXBean THREAD_MX_BEAN = getThreadMXBean();
+
+  private final GenerationObserver observer;
+  private final GenerationPhase phase;
+  private final long startWallNanos;
+  private final long startCpuNanos;
+
+  private PhaseTimer(GenerationObserver observer, GenerationPhase phase) {
+    this.observer = observer;
+    this.phase = phase;
+    if (observer != null) {
+      startWallNanos = System.nanoTime();
+      startCpuNanos = currentThreadCpuNanos();
+    } else {
+      startWallNanos = 0;
+      startCpuNanos = 0;
+    }
+  }
+
+  /**
+   * Starts timing a phase on the current thread.
+   *
+   * @param observer the observer to report to, or null to measure nothing
+   * @param phase the phase
+   * @return the timer
+   */
+  public static PhaseTimer start(GenerationObserver observer, GenerationPhase phase) {
+    return new PhaseTimer(observer, phase);
+  }
+
+  /**
+   * Stops timing and reports the phase to the observer. Must be called on the thread that started
+   * the timer.
+   */
+  public void stop() {
+    if (observer != null) {
+      long wallNanos = System.nanoTime() - startWallNanos;
+      long stopCpuNanos = currentThreadCpuNanos();
+      long cpuNanos = startCpuNanos >= 0 && stopCpuNanos >= 0 ? stopCpuNanos - startCpuNanos : 0;
+      observer.phaseCompleted(phase, wallNanos, cpuNanos);
+    }
+  }
+
+  /**
+   * Returns the CPU time of the current thread, or -1 if it is not being measured.
+   */
+  private static long currentThreadCpuNanos() {
+    if (THREAD_MX_BEAN == null || !THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+      return -1;
+    }
+    return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+  }
+
+  private static ThreadMXBean getThreadMXBean() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    return bean.isCurrentThreadCpuTimeSupported() ? bean : null;
+  }
+}
@@ -4,7 +4,7 @@
 
 package com.google.archivepatcher.generator;
 
-import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinedArchive;
 import com.google.archivepatcher.shared.DeltaFriendlyFile;
 import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.TypedRange;
@@ -14,9 +14,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Prepares resources for differencing.
@@ -31,6 +35,13 @@ public class PreDiffExecutor {
     private File deltaFriendlyNewFile;
     private List<RecommendationModifier> recommendationModifiers =
         new ArrayList<RecommendationModifier>();
+    private DefaultDeflateCompressionDiviner deflateCompressionDiviner;
+    private DivinedArchive newFileDivinedArchive;
+    private GenerationObserver observer;
+    private long contentSimilarityBudgetMillis = 0;
+    private ExecutorService comparisonExecutor;
+    private int comparisonParallelism = 1;
+    private Executor stageExecutor;
 
     /**
      * Sets the original, read-only input files to the patch generation process. This has to be
@@ -81,6 +92,112 @@ public class PreDiffExecutor {
       return this;
     }
 
+    /**
+     * Sets the {@link DefaultDeflateCompressionDiviner} used to divine the deflate parameters of
+     * the entries in the new archive, e.g. a {@link ParallelDeflateCompressionDiviner}. If not
+     * called, a {@link DefaultDeflateCompressionDiviner} is used.
+     *
+     * @param deflateCompressionDiviner the diviner to use
+     * @return this builder
+     */
+    public Builder withDeflateCompressionDiviner(
+        DefaultDeflateCompressionDiviner deflateCompressionDiviner) {
+      if (deflateCompressionDiviner == null) {
+        throw new IllegalArgumentException("deflateCompressionDiviner cannot be null");
+      }
+      this.deflateCompressionDiviner = deflateCompressionDiviner;
+      return this;
+    }
+
+    /**
+     * Sets the results of divining the original new file, which must be exactly the results that
+     * {@link DefaultDeflateCompressionDiviner#divineArchive(File, GenerationObserver)} returns for
+     * it. This saves parsing and divining the same new file again when it is diffed against
+     * several old files. If set, the diviner set with {@link
+     * #withDeflateCompressionDiviner(DefaultDeflateCompressionDiviner)} is not used.
+     *
+     * @param newFileDivinedArchive the results of divining the original new file
+     * @return this builder
+     */
+    public Builder withNewFileDivinedArchive(DivinedArchive newFileDivinedArchive) {
+      if (newFileDivinedArchive == null) {
+        throw new IllegalArgumentException("newFileDivinedArchive cannot be null");
+      }
+      this.newFileDivinedArchive = newFileDivinedArchive;
+      return this;
+    }
+
+    /**
+     * Sets the {@link GenerationObserver} to report the timings of parsing, divination, planning
+     * and writing the delta-friendly files to, as well as the recommendations made. If not called,
+     * nothing is reported.
+     *
+     * @param observer the observer to report to
+     * @return this builder
+     */
+    public Builder withObserver(GenerationObserver observer) {
+      if (observer == null) {
+        throw new IllegalArgumentException("observer cannot be null");
+      }
+      this.observer = observer;
+      return this;
+    }
+
+    /**
+     * Enables looking for diff bases for new entries that have been both renamed and modified, by
+     * comparing their uncompressed content with that of the old entries whose paths are gone (see
+     * {@link com.google.archivepatcher.generator.similarity.MinHashSimilarityFinder}). If not
+     * called, only renamed entries that are unmodified get a diff base.
+     *
+     * @param timeBudgetMillis the time budget for the search, for all entries together
+     * @return this builder
+     */
+    public Builder withContentSimilaritySearch(long timeBudgetMillis) {
+      if (timeBudgetMillis <= 0) {
+        throw new IllegalArgumentException("timeBudgetMillis must be positive");
+      }
+      this.contentSimilarityBudgetMillis = timeBudgetMillis;
+      return this;
+    }
+
+    /**
+     * Compares the compressed bytes of the pairs of old and new entries that may be identical
+     * concurrently during planning. If not called, the pairs are compared one at a time.
+     *
+     * @param executor the executor to compare on, or null to use a private pool for the duration
+     *     of the comparison
+     * @param parallelism the maximum number of pairs to compare at the same time
+     * @return this builder
+     */
+    public Builder withComparisonParallelism(ExecutorService executor, int parallelism) {
+      if (parallelism <= 0) {
+        throw new IllegalArgumentException("parallelism must be positive");
+      }
+      this.comparisonExecutor = executor;
+      this.comparisonParallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Runs stages of the preparation that don't depend on each other concurrently: listing the
+     * entries of the original old file while divining the original new file, and writing the
+     * delta-friendly old file while writing the delta-friendly new file. One stage of each pair is
+     * handed to the executor and the other runs on the calling thread, which also runs the first
+     * stage itself if the executor has not started it by the time the second one is done, so any
+     * executor will do, even a busy one. The results are the same as when the stages run one
+     * after the other. If not called, the stages run one after the other.
+     *
+     * @param stageExecutor the executor to run stages on
+     * @return this builder
+     */
+    public Builder withStageExecutor(Executor stageExecutor) {
+      if (stageExecutor == null) {
+        throw new IllegalArgumentException("stageExecutor cannot be null");
+      }
+      this.stageExecutor = stageExecutor;
+      return this;
+    }
+
     /**
      * Builds and returns a {@link PreDiffExecutor} according to the currnet configuration.
      *
@@ -96,7 +213,16 @@ public class PreDiffExecutor {
           originalNewFile,
           deltaFriendlyOldFile,
           deltaFriendlyNewFile,
-          recommendationModifiers);
+          recommendationModifiers,
+          deflateCompressionDiviner != null
+              ? deflateCompressionDiviner
+              : new DefaultDeflateCompressionDiviner(),
+          newFileDivinedArchive,
+          observer,
+          contentSimilarityBudgetMillis,
+          comparisonExecutor,
+          comparisonParallelism,
+          stageExecutor);
     }
   }
 
@@ -123,18 +249,53 @@ public class PreDiffExecutor {
    */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /** The diviner for the deflate parameters of the entries in the original new file. */
+  private final DefaultDeflateCompressionDiviner deflateCompressionDiviner;
+
+  /** Optional results of divining the original new file, or null to divine it. */
+  private final DivinedArchive newFileDivinedArchive;
+
+  /** Optional observer to report timings and resource usage to, or null. */
+  private final GenerationObserver observer;
+
+  /** The time budget for finding diff bases for renamed and modified entries, or 0 not to. */
+  private final long contentSimilarityBudgetMillis;
+
+  /** Optional executor to compare compressed bytes on, or null. */
+  private final ExecutorService comparisonExecutor;
+
+  /** The maximum number of pairs of entries whose compressed bytes are compared at once. */
+  private final int comparisonParallelism;
+
+  /** Optional executor to run independent stages on concurrently, or null. */
+  private final Executor stageExecutor;
+
   /** Constructs a new PreDiffExecutor to work with the specified configuration. */
   private PreDiffExecutor(
       File originalOldFile,
       File originalNewFile,
       File deltaFriendlyOldFile,
       File deltaFriendlyNewFile,
-      List<RecommendationModifier> recommendationModifiers) {
+      List<RecommendationModifier> recommendationModifiers,
+      DefaultDeflateCompressionDiviner deflateCompressionDiviner,
+      DivinedArchive newFileDivinedArchive,
+      GenerationObserver observer,
+      long contentSimilarityBudgetMillis,
+      ExecutorService comparisonExecutor,
+      int comparisonParallelism,
+      Executor stageExecutor) {
     this.originalOldFile = originalOldFile;
     this.originalNewFile = originalNewFile;
     this.deltaFriendlyOldFile = deltaFriendlyOldFile;
     this.deltaFriendlyNewFile = deltaFriendlyNewFile;
     this.recommendationModifiers = recommendationModifiers;
+    this.deflateCompressionDiviner = deflateCompressionDiviner;
+    this.newFileDivinedArchive = newFileDivinedArchive;
+    this.observer = observer;
+    this.contentSimilarityBudgetMillis = contentSimilarityBudgetMillis;
+    this.comparisonExecutor = comparisonExecutor;
+    this.comparisonParallelism = comparisonParallelism;
+    this.stageExecutor = stageExecutor;
   }
 
   /**
@@ -167,18 +328,90 @@ public class PreDiffExecutor {
    * @return as described
    * @throws IOException if anything goes wrong
    */
-  private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyFiles(PreDiffPlan preDiffPlan)
-      throws IOException {
+  private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyFiles(
+      final PreDiffPlan preDiffPlan) throws IOException {
+    // The two files are independent, so the old one can be written on the stage executor while
+    // the new one is written here.
+    Stage<Void> oldFileWriting = null;
+    if (stageExecutor != null) {
+      oldFileWriting =
+          Stage.start(
+              stageExecutor,
+              new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  generateDeltaFriendlyOldFile(preDiffPlan);
+                  return null;
+                }
+              });
+    } else {
+      generateDeltaFriendlyOldFile(preDiffPlan);
+    }
+    List<TypedRange<JreDeflateParameters>> recompressionPlan;
+    try {
+      PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.DELTA_FRIENDLY_FILE_WRITING);
+      try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile);
+          BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
+        recompressionPlan =
+            DeltaFriendlyFile.generateDeltaFriendlyFile(
+                preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, bufferedOut);
+      } finally {
+        timer.stop();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      if (oldFileWriting != null) {
+        oldFileWriting.abandon();
+      }
+      throw e;
+    }
+    if (oldFileWriting != null) {
+      oldFileWriting.join();
+    }
+    if (observer != null) {
+      observer.bytesTransformed(
+          GenerationPhase.DELTA_FRIENDLY_FILE_WRITING,
+          countBytesInflated(
+              preDiffPlan.getOldFileUncompressionPlan(), originalOldFile, deltaFriendlyOldFile)
+              + countBytesInflated(
+                  preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, deltaFriendlyNewFile),
+          0);
+    }
+    return recompressionPlan;
+  }
+
+  /**
+   * Generates the delta-friendly old file.
+   *
+   * @param preDiffPlan the plan to execute
+   * @throws IOException if anything goes wrong
+   */
+  private void generateDeltaFriendlyOldFile(PreDiffPlan preDiffPlan) throws IOException {
+    PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.DELTA_FRIENDLY_FILE_WRITING);
     try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile);
         BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
       DeltaFriendlyFile.generateDeltaFriendlyFile(
           preDiffPlan.getOldFileUncompressionPlan(), originalOldFile, bufferedOut);
+    } finally {
+      timer.stop();
     }
-    try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile);
-        BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
-      return DeltaFriendlyFile.generateDeltaFriendlyFile(
-          preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, bufferedOut);
+  }
+
+  /**
+   * Returns the number of bytes inflated to turn the specified file into its delta-friendly
+   * version, which is the uncompressed size of all the ranges in the uncompression plan.
+   *
+   * @param uncompressionPlan the ranges of the original file that were uncompressed
+   * @param originalFile the original file
+   * @param deltaFriendlyFile the delta-friendly version of the original file
+   * @return as described
+   */
+  private static long countBytesInflated(
+      List<? extends TypedRange<?>> uncompressionPlan, File originalFile, File deltaFriendlyFile) {
+    long compressedBytes = 0;
+    for (TypedRange<?> range : uncompressionPlan) {
+      compressedBytes += range.getLength();
     }
+    return deltaFriendlyFile.length() - originalFile.length() + compressedBytes;
   }
 
   /**
@@ -190,34 +423,169 @@ public class PreDiffExecutor {
    * @throws IOException if anything goes wrong
    */
   private PreDiffPlan generatePreDiffPlan() throws IOException {
-    Map<ByteArrayHolder, MinimalZipEntry> originalOldArchiveZipEntriesByPath =
-        new HashMap<ByteArrayHolder, MinimalZipEntry>();
-    Map<ByteArrayHolder, MinimalZipEntry> originalNewArchiveZipEntriesByPath =
-        new HashMap<ByteArrayHolder, MinimalZipEntry>();
-    Map<ByteArrayHolder, JreDeflateParameters> originalNewArchiveJreDeflateParametersByPath =
-        new HashMap<ByteArrayHolder, JreDeflateParameters>();
-
-    for (MinimalZipEntry zipEntry : MinimalZipArchive.listEntries(originalOldFile)) {
-      ByteArrayHolder key = new ByteArrayHolder(zipEntry.getFileNameBytes());
-      originalOldArchiveZipEntriesByPath.put(key, zipEntry);
+    // Indexing the old file and divining the new file are independent, so the old file can be
+    // indexed on the stage executor while the new file is divined here.
+    MinimalZipArchiveIndex originalOldArchiveIndex = null;
+    Stage<MinimalZipArchiveIndex> oldFileIndexing = null;
+    if (stageExecutor != null && newFileDivinedArchive == null) {
+      oldFileIndexing =
+          Stage.start(
+              stageExecutor,
+              new Callable<MinimalZipArchiveIndex>() {
+                @Override
+                public MinimalZipArchiveIndex call() throws IOException {
+                  return DefaultDeflateCompressionDiviner.readIndex(originalOldFile, observer);
+                }
+              });
+    } else {
+      originalOldArchiveIndex =
+          DefaultDeflateCompressionDiviner.readIndex(originalOldFile, observer);
     }
 
-    DefaultDeflateCompressionDiviner diviner = new DefaultDeflateCompressionDiviner();
-    for (DivinationResult divinationResult : diviner.divineDeflateParameters(originalNewFile)) {
-      ByteArrayHolder key =
-          new ByteArrayHolder(divinationResult.minimalZipEntry.getFileNameBytes());
-      originalNewArchiveZipEntriesByPath.put(key, divinationResult.minimalZipEntry);
-      originalNewArchiveJreDeflateParametersByPath.put(key, divinationResult.divinedParameters);
+    DivinedArchive originalNewDivinedArchive = newFileDivinedArchive;
+    if (originalNewDivinedArchive == null) {
+      try {
+        originalNewDivinedArchive =
+            deflateCompressionDiviner.divineArchive(originalNewFile, observer);
+      } catch (IOException | RuntimeException | Error e) {
+        if (oldFileIndexing != null) {
+          oldFileIndexing.abandon();
+        }
+        throw e;
+      }
+    }
+    if (oldFileIndexing != null) {
+      originalOldArchiveIndex = oldFileIndexing.join();
     }
 
     PreDiffPlanner preDiffPlanner =
         new PreDiffPlanner(
             originalOldFile,
-            originalOldArchiveZipEntriesByPath,
+            originalOldArchiveIndex,
             originalNewFile,
-            originalNewArchiveZipEntriesByPath,
-            originalNewArchiveJreDeflateParametersByPath,
+            originalNewDivinedArchive,
+            contentSimilarityBudgetMillis,
+            comparisonExecutor,
+            comparisonParallelism,
             recommendationModifiers.toArray(new RecommendationModifier[] {}));
-    return preDiffPlanner.generatePreDiffPlan();
+    PreDiffPlan preDiffPlan;
+    PhaseTimer timer = PhaseTimer.start(observer, GenerationPhase.PLANNING);
+    try {
+      preDiffPlan = preDiffPlanner.generatePreDiffPlan();
+    } finally {
+      timer.stop();
+    }
+    if (observer != null) {
+      observer.recommendationsMade(preDiffPlan.getQualifiedRecommendations());
+    }
+    return preDiffPlan;
+  }
+
+  /**
+   * A stage that is handed to an executor, and that is run by whichever thread gets to it first:
+   * a thread of the executor, or the thread that needs its result. The executor therefore never
+   * has to make progress for the stage to complete, and a stage that is no longer needed can be
+   * prevented from starting.
+   *
+   * @param <T> the type of the result of the stage
+   */
+  private static final class Stage<T> implements Runnable {
+    private final Callable<T> work;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // Written before done is counted down, read after.
+    private T result;
+    private Throwable failure;
+
+    private Stage(Callable<T> work) {
+      this.work = work;
+    }
+
+    /**
+     * Hands the specified work to the specified executor.
+     *
+     * @param executor the executor
+     * @param work the work
+     * @return the stage, to {@link #join()} or {@link #abandon()}
+     */
+    static <T> Stage<T> start(Executor executor, Callable<T> work) {
+      Stage<T> stage = new Stage<T>(work);
+      try {
+        executor.execute(stage);
+      } catch (RejectedExecutionException ignored) {
+        // The stage is run by join() instead.
+      }
+      return stage;
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        result = work.call();
+      } catch (Throwable t) {
+        failure = t;
+      } finally {
+        done.countDown();
+      }
+    }
+
+    /**
+     * Returns the result of the stage, running it on the current thread if it has not started yet
+     * or waiting for it to complete if it has.
+     *
+     * @return the result
+     * @throws IOException if the stage failed with an {@link IOException}
+     */
+    T join() throws IOException {
+      run();
+      awaitDone();
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      if (failure != null) {
+        throw new IOException(failure);
+      }
+      return result;
+    }
+
+    /**
+     * Prevents the stage from starting if it has not started yet, or waits for it to complete if
+     * it has, so that it does not outlive the preparation it belongs to. Its outcome is ignored.
+     */
+    void abandon() {
+      if (claimed.compareAndSet(false, true)) {
+        return;
+      }
+      awaitDone();
+    }
+
+    /**
+     * Waits for the stage to complete, even if the current thread is interrupted: the stage reads
+     * and writes files that the caller may go on to delete.
+     */
+    private void awaitDone() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 }
@@ -4,20 +4,22 @@
 
 package com.google.archivepatcher.generator;
 
-import com.google.archivepatcher.generator.similarity.Crc32SimilarityFinder;
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinedArchive;
+import com.google.archivepatcher.generator.similarity.MinHashSimilarityFinder;
 import com.google.archivepatcher.generator.similarity.SimilarityFinder;
 import com.google.archivepatcher.shared.JreDeflateParameters;
-import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 import com.google.archivepatcher.shared.TypedRange;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Plans archive transformations to be made prior to differencing.
@@ -34,19 +36,19 @@ class PreDiffPlanner {
   private final File newFile;
 
   /**
-   * The entries in the old archive, with paths as keys.
+   * The entries in the old archive.
    */
-  private final Map<ByteArrayHolder, MinimalZipEntry> oldArchiveZipEntriesByPath;
+  private final MinimalZipArchiveIndex oldArchiveIndex;
 
   /**
-   * The entries in the new archive, with paths as keys.
+   * The entries in the new archive.
    */
-  private final Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath;
+  private final MinimalZipArchiveIndex newArchiveIndex;
 
   /**
-   * The divined parameters for compression of the entries in the new archive, with paths as keys.
+   * The entries in the new archive, along with the divined parameters for their compression.
    */
-  private final Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath;
+  private final DivinedArchive newDivinedArchive;
 
   /**
    * Optional {@link RecommendationModifier}s that will be applied after the default recommendations
@@ -54,6 +56,22 @@ class PreDiffPlanner {
    */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /**
+   * The time budget for finding diff bases for renamed and modified entries by their content, or 0
+   * to only find diff bases for renamed entries that are unmodified.
+   */
+  private final long contentSimilarityBudgetMillis;
+
+  /**
+   * The executor to compare the compressed bytes of pairs of entries on, or null.
+   */
+  private final ExecutorService comparisonExecutor;
+
+  /**
+   * The maximum number of pairs of entries whose compressed bytes are compared at the same time.
+   */
+  private final int comparisonParallelism;
+
   /**
    * Constructs a new planner that will work on the specified inputs
    *
@@ -74,13 +92,116 @@ class PreDiffPlanner {
       Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
       Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
       RecommendationModifier... recommendationModifiers) {
+    this(
+        oldFile,
+        oldArchiveZipEntriesByPath,
+        newFile,
+        newArchiveZipEntriesByPath,
+        newArchiveJreDeflateParametersByPath,
+        0,
+        recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new planner that will work on the specified inputs, and that also looks for diff
+   * bases for entries that have been both renamed and modified.
+   *
+   * @param oldFile the old file, used to compare bytes between old and new entries as necessary
+   * @param oldArchiveZipEntriesByPath the entries in the old archive, with paths as keys
+   * @param newFile the new file, used to compare bytes between old and new entries as necessary
+   * @param newArchiveZipEntriesByPath the entries in the new archive, with paths as keys
+   * @param newArchiveJreDeflateParametersByPath the {@link JreDeflateParameters} for each entry in
+   *     the new archive, with paths as keys
+   * @param contentSimilarityBudgetMillis the time budget for finding the old entry most similar
+   *     in content to each new entry that has neither a same-path nor an identical old entry (see
+   *     {@link MinHashSimilarityFinder}), or 0 not to look for one
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to be applied after
+   *     the default recommendations have been made but before the {@link PreDiffPlan} is generated
+   *     in {@link #generatePreDiffPlan()}.
+   */
+  PreDiffPlanner(
+      File oldFile,
+      Map<ByteArrayHolder, MinimalZipEntry> oldArchiveZipEntriesByPath,
+      File newFile,
+      Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
+      Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
+      long contentSimilarityBudgetMillis,
+      RecommendationModifier... recommendationModifiers) {
+    this(
+        oldFile,
+        MinimalZipArchiveIndex.of(oldArchiveZipEntriesByPath.values()),
+        newFile,
+        new DivinedArchive(
+            MinimalZipArchiveIndex.of(newArchiveZipEntriesByPath.values()),
+            toArray(newArchiveZipEntriesByPath, newArchiveJreDeflateParametersByPath)),
+        contentSimilarityBudgetMillis,
+        null,
+        1,
+        recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new planner that will work on the specified inputs.
+   *
+   * @param oldFile the old file, used to compare bytes between old and new entries as necessary
+   * @param oldArchiveIndex the entries in the old archive
+   * @param newFile the new file, used to compare bytes between old and new entries as necessary
+   * @param newDivinedArchive the entries in the new archive, along with the {@link
+   *     JreDeflateParameters} divined for each of them
+   * @param contentSimilarityBudgetMillis the time budget for finding the old entry most similar
+   *     in content to each new entry that has neither a same-path nor an identical old entry (see
+   *     {@link MinHashSimilarityFinder}), or 0 not to look for one
+   * @param comparisonExecutor the executor to compare the compressed bytes of pairs of entries on
+   *     (see {@link CompressedBytesComparator}), or null to use a private pool if
+   *     comparisonParallelism is greater than 1
+   * @param comparisonParallelism the maximum number of pairs of entries whose compressed bytes are
+   *     compared at the same time
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to be applied after
+   *     the default recommendations have been made but before the {@link PreDiffPlan} is generated
+   *     in {@link #generatePreDiffPlan()}.
+   */
+  PreDiffPlanner(
+      File oldFile,
+      MinimalZipArchiveIndex oldArchiveIndex,
+      File newFile,
+      DivinedArchive newDivinedArchive,
+      long contentSimilarityBudgetMillis,
+      ExecutorService comparisonExecutor,
+      int comparisonParallelism,
+      RecommendationModifier... recommendationModifiers) {
+    if (contentSimilarityBudgetMillis < 0) {
+      throw new IllegalArgumentException(
+          "contentSimilarityBudgetMillis must not be negative: " + contentSimilarityBudgetMillis);
+    }
+    if (comparisonParallelism <= 0) {
+      throw new IllegalArgumentException(
+          "comparisonParallelism must be positive: " + comparisonParallelism);
+    }
     this.oldFile = oldFile;
-    this.oldArchiveZipEntriesByPath = oldArchiveZipEntriesByPath;
+    this.oldArchiveIndex = oldArchiveIndex;
     this.newFile = newFile;
-    this.newArchiveZipEntriesByPath = newArchiveZipEntriesByPath;
-    this.newArchiveJreDeflateParametersByPath = newArchiveJreDeflateParametersByPath;
+    this.newArchiveIndex = newDivinedArchive.getIndex();
+    this.newDivinedArchive = newDivinedArchive;
     this.recommendationModifiers =
           Collections.unmodifiableList(Arrays.asList(recommendationModifiers));
+    this.contentSimilarityBudgetMillis = contentSimilarityBudgetMillis;
+    this.comparisonExecutor = comparisonExecutor;
+    this.comparisonParallelism = comparisonParallelism;
+  }
+
+  /**
+   * Returns the values of the specified map for each of the keys of the other specified map, in
+   * order.
+   */
+  private static JreDeflateParameters[] toArray(
+      Map<ByteArrayHolder, MinimalZipEntry> zipEntriesByPath,
+      Map<ByteArrayHolder, JreDeflateParameters> jreDeflateParametersByPath) {
+    JreDeflateParameters[] result = new JreDeflateParameters[zipEntriesByPath.size()];
+    int index = 0;
+    for (ByteArrayHolder path : zipEntriesByPath.keySet()) {
+      result[index++] = jreDeflateParametersByPath.get(path);
+    }
+    return result;
   }
 
   /**
@@ -111,8 +232,7 @@ class PreDiffPlanner {
         long offset = recommendation.getNewEntry().getFileOffsetOfCompressedData();
         long length = recommendation.getNewEntry().getCompressedSize();
         JreDeflateParameters newJreDeflateParameters =
-            newArchiveJreDeflateParametersByPath.get(
-                new ByteArrayHolder(recommendation.getNewEntry().getFileNameBytes()));
+            getNewJreDeflateParameters(recommendation.getNewEntry());
         TypedRange<JreDeflateParameters> range =
             new TypedRange<JreDeflateParameters>(offset, length, newJreDeflateParameters);
         newFilePlan.add(range);
@@ -137,134 +257,233 @@ class PreDiffPlanner {
    * @throws IOException if anything goes wrong
    */
   private List<QualifiedRecommendation> getDefaultRecommendations() throws IOException {
-    List<QualifiedRecommendation> recommendations = new ArrayList<>();
-
-    // This will be used to find files that have been renamed, but not modified. This is relatively
-    // cheap to construct as it just requires indexing all entries by the uncompressed CRC32, and
-    // the CRC32 is already available in the ZIP headers.
-    SimilarityFinder trivialRenameFinder =
-        new Crc32SimilarityFinder(oldFile, oldArchiveZipEntriesByPath.values());
-
-    // Iterate over every pair of entries and get a recommendation for what to do.
-    for (Map.Entry<ByteArrayHolder, MinimalZipEntry> newEntry :
-        newArchiveZipEntriesByPath.entrySet()) {
-      ByteArrayHolder newEntryPath = newEntry.getKey();
-      MinimalZipEntry oldZipEntry = oldArchiveZipEntriesByPath.get(newEntryPath);
-      if (oldZipEntry == null) {
+    // The positions of the pairs of entries to get a recommendation for, in order.
+    int[] oldPairedEntries = new int[newArchiveIndex.size()];
+    int[] newPairedEntries = new int[newArchiveIndex.size()];
+    int numPairs = 0;
+
+    // This will be used to find files that have been renamed and modified. It has to read and
+    // uncompress the old entries to index them, so it is only constructed once it is needed.
+    SimilarityFinder contentSimilarityFinder = null;
+
+    // Iterate over every new entry and find the old entry to pair it with, if any.
+    for (int newIndex = 0; newIndex < newArchiveIndex.size(); newIndex++) {
+      if (newArchiveIndex.isShadowed(newIndex)) {
+        // A later entry has the same path; only that one is considered.
+        continue;
+      }
+      int oldIndex = oldArchiveIndex.indexOfFileNameOf(newArchiveIndex, newIndex);
+      if (oldIndex == -1) {
         // The path is only present in the new archive, not in the old archive. Try to find a
         // similar file in the old archive that can serve as a diff base for the new file.
-        List<MinimalZipEntry> identicalEntriesInOldArchive =
-            trivialRenameFinder.findSimilarFiles(newFile, newEntry.getValue());
-        if (!identicalEntriesInOldArchive.isEmpty()) {
-          // An identical file exists in the old archive at a different path. Use it for the
-          // recommendation and carry on with the normal logic.
-          // All entries in the returned list are identical, so just pick the first one.
-          // NB, in principle it would be optimal to select the file that required the least work
-          // to apply the patch - in practice, it is unlikely that an archive will contain multiple
-          // copies of the same file that are compressed differently, so don't bother with that
-          // degenerate case.
-          oldZipEntry = identicalEntriesInOldArchive.get(0);
+        // First, look for a file that has been renamed, but not modified. This is cheap, as the
+        // CRC32 of the uncompressed data is already available in the ZIP headers.
+        // NB, if there are several identical files, in principle it would be optimal to select the
+        // file that required the least work to apply the patch - in practice, it is unlikely that
+        // an archive will contain multiple copies of the same file that are compressed
+        // differently, so don't bother with that degenerate case and pick the first one.
+        oldIndex =
+            oldArchiveIndex.indexOfCrc32(newArchiveIndex.getCrc32OfUncompressedData(newIndex));
+        if (oldIndex == -1 && contentSimilarityBudgetMillis > 0) {
+          // No identical file either. Look for the most similar one among the old entries whose
+          // paths are gone from the new archive, as a renamed file's old path would be.
+          if (contentSimilarityFinder == null) {
+            contentSimilarityFinder =
+                new MinHashSimilarityFinder(
+                    oldFile, getRemovedOldEntries(), contentSimilarityBudgetMillis);
+          }
+          List<MinimalZipEntry> similarEntriesInOldArchive =
+              contentSimilarityFinder.findSimilarFiles(newFile, newArchiveIndex.getEntry(newIndex));
+          if (!similarEntriesInOldArchive.isEmpty()) {
+            MinimalZipEntry mostSimilarEntry = similarEntriesInOldArchive.get(0);
+            oldIndex = oldArchiveIndex.indexOfFileName(mostSimilarEntry.getFileNameBytes());
+          }
         }
       }
 
-      // If the attempt to find a suitable diff base for the new entry has failed, oldZipEntry is
-      // null (nothing to do in that case). Otherwise, there is an old entry that is relevant, so
-      // get a recommendation for what to do.
-      if (oldZipEntry != null) {
-        recommendations.add(getRecommendation(oldZipEntry, newEntry.getValue()));
+      // If the attempt to find a suitable diff base for the new entry has failed, oldIndex is -1
+      // (nothing to do in that case). Otherwise, there is an old entry that is relevant, so a
+      // recommendation is needed for what to do.
+      if (oldIndex != -1) {
+        oldPairedEntries[numPairs] = oldIndex;
+        newPairedEntries[numPairs] = newIndex;
+        numPairs++;
       }
     }
+    oldPairedEntries = Arrays.copyOf(oldPairedEntries, numPairs);
+    newPairedEntries = Arrays.copyOf(newPairedEntries, numPairs);
+
+    // Compare the compressed bytes of all the pairs that need it in one go, then get a
+    // recommendation for what to do with each pair.
+    boolean[] compressedBytesChanged = compressedBytesChanged(oldPairedEntries, newPairedEntries);
+    List<QualifiedRecommendation> recommendations = new ArrayList<>(numPairs);
+    for (int pair = 0; pair < numPairs; pair++) {
+      recommendations.add(
+          getRecommendation(
+              oldPairedEntries[pair], newPairedEntries[pair], compressedBytesChanged[pair]));
+    }
     return recommendations;
   }
 
   /**
-   * Determines the right {@link QualifiedRecommendation} for handling the (oldEntry, newEntry)
-   * tuple.
-   * @param oldEntry the entry in the old archive
-   * @param newEntry the entry in the new archive
-   * @return the recommendation
-   * @throws IOException if there are any problems reading the input files
+   * Checks, for each of the specified pairs of entries, whether the compressed bytes have changed.
+   * Only pairs that are both compressed with deflate and suitable for uncompressed diffing, and
+   * whose sizes, compression methods and CRC32s match, are actually compared; no other
+   * recommendation depends on the compressed bytes. The archives are only mapped if there is such
+   * a pair (see {@link CompressedBytesComparator}).
+   *
+   * @param oldEntries the positions of the entries in the old archive
+   * @param newEntries the positions of the entries in the new archive, in the same order as their
+   *     counterparts
+   * @return for each pair, true if the compressed bytes have changed or were not compared
+   * @throws IOException if unable to read the input files
    */
-  private QualifiedRecommendation getRecommendation(MinimalZipEntry oldEntry, MinimalZipEntry newEntry)
+  private boolean[] compressedBytesChanged(int[] oldEntries, int[] newEntries)
       throws IOException {
-
-    // Reject anything that is unsuitable for uncompressed diffing.
-    if (unsuitable(oldEntry, newEntry)) {
-      return new QualifiedRecommendation(
-          oldEntry,
-          newEntry,
-          Recommendation.UNCOMPRESS_NEITHER,
-          RecommendationReason.UNSUITABLE);
+    boolean[] result = new boolean[oldEntries.length];
+    int[] comparedPairs = new int[oldEntries.length];
+    int numCompared = 0;
+    for (int pair = 0; pair < result.length; pair++) {
+      int oldEntry = oldEntries[pair];
+      int newEntry = newEntries[pair];
+      if (oldArchiveIndex.isDeflateCompressed(oldEntry)
+          && newArchiveIndex.isDeflateCompressed(newEntry)
+          && !unsuitable(oldEntry, newEntry)
+          && CompressedBytesComparator.mayBeIdentical(
+              oldArchiveIndex, oldEntry, newArchiveIndex, newEntry)) {
+        comparedPairs[numCompared++] = pair;
+      } else {
+        result[pair] = true;
+      }
     }
-
-    // If both entries are already uncompressed there is nothing to do.
-    if (bothEntriesUncompressed(oldEntry, newEntry)) {
-      return new QualifiedRecommendation(
-          oldEntry,
-          newEntry,
-          Recommendation.UNCOMPRESS_NEITHER,
-          RecommendationReason.BOTH_ENTRIES_UNCOMPRESSED);
+    if (numCompared == 0) {
+      return result;
     }
-
-    // The following are now true:
-    // 1. At least one of the entries is compressed.
-    // 1. The old entry is either uncompressed, or is compressed with deflate.
-    // 2. The new entry is either uncompressed, or is reproducibly compressed with deflate.
-
-    if (uncompressedChangedToCompressed(oldEntry, newEntry)) {
-      return new QualifiedRecommendation(
-          oldEntry,
-          newEntry,
-          Recommendation.UNCOMPRESS_NEW,
-          RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED);
+    int[] comparedOldEntries = new int[numCompared];
+    int[] comparedNewEntries = new int[numCompared];
+    for (int x = 0; x < numCompared; x++) {
+      comparedOldEntries[x] = oldEntries[comparedPairs[x]];
+      comparedNewEntries[x] = newEntries[comparedPairs[x]];
     }
-
-    if (compressedChangedToUncompressed(oldEntry, newEntry)) {
-      return new QualifiedRecommendation(
-          oldEntry,
-          newEntry,
-          Recommendation.UNCOMPRESS_OLD,
-          RecommendationReason.COMPRESSED_CHANGED_TO_UNCOMPRESSED);
+    try (CompressedBytesComparator comparator =
+        new CompressedBytesComparator(oldFile, oldArchiveIndex, newFile, newArchiveIndex)) {
+      boolean[] changed =
+          comparator.compressedBytesChanged(
+              comparedOldEntries, comparedNewEntries, comparisonExecutor, comparisonParallelism);
+      for (int x = 0; x < numCompared; x++) {
+        result[comparedPairs[x]] = changed[x];
+      }
     }
+    return result;
+  }
 
-    // At this point, both entries must be compressed with deflate.
-    if (compressedBytesChanged(oldEntry, newEntry)) {
-      return new QualifiedRecommendation(
-          oldEntry,
-          newEntry,
-          Recommendation.UNCOMPRESS_BOTH,
-          RecommendationReason.COMPRESSED_BYTES_CHANGED);
+  /**
+   * Returns the entries in the old archive whose paths are not present in the new archive, in
+   * order of their offsets in the old archive.
+   *
+   * @return the entries
+   */
+  private List<MinimalZipEntry> getRemovedOldEntries() {
+    List<MinimalZipEntry> removedOldEntries = new ArrayList<>();
+    for (int oldIndex = 0; oldIndex < oldArchiveIndex.size(); oldIndex++) {
+      if (!oldArchiveIndex.isShadowed(oldIndex)
+          && newArchiveIndex.indexOfFileNameOf(oldArchiveIndex, oldIndex) == -1) {
+        removedOldEntries.add(oldArchiveIndex.getEntry(oldIndex));
+      }
     }
+    Collections.sort(
+        removedOldEntries,
+        new Comparator<MinimalZipEntry>() {
+          @Override
+          public int compare(MinimalZipEntry entry1, MinimalZipEntry entry2) {
+            return Long.compare(
+                entry1.getFileOffsetOfLocalEntry(), entry2.getFileOffsetOfLocalEntry());
+          }
+        });
+    return removedOldEntries;
+  }
 
-    // If the compressed bytes have not changed, there is no need to do anything.
+  /**
+   * Returns the divined parameters for compression of the specified entry of the new archive.
+   *
+   * @param newEntry the entry in the new archive
+   * @return the parameters, or null if they could not be divined
+   */
+  private JreDeflateParameters getNewJreDeflateParameters(MinimalZipEntry newEntry) {
+    int newIndex = newArchiveIndex.indexOfFileName(newEntry.getFileNameBytes());
+    return newIndex == -1 ? null : newDivinedArchive.getDivinedParameters(newIndex);
+  }
+
+
+  /**
+   * Determines the right {@link QualifiedRecommendation} for handling the (oldEntry, newEntry)
+   * tuple. Entry objects are only created for the recommendation itself.
+   * @param oldEntry the position of the entry in the old archive
+   * @param newEntry the position of the entry in the new archive
+   * @param compressedBytesChanged whether the compressed bytes of the entries have changed, which
+   *     only matters if both entries are compressed with deflate
+   * @return the recommendation
+   */
+  private QualifiedRecommendation getRecommendation(
+      int oldEntry, int newEntry, boolean compressedBytesChanged) {
+    Recommendation recommendation;
+    RecommendationReason reason;
+    if (unsuitable(oldEntry, newEntry)) {
+      // Reject anything that is unsuitable for uncompressed diffing.
+      recommendation = Recommendation.UNCOMPRESS_NEITHER;
+      reason = RecommendationReason.UNSUITABLE;
+    } else if (bothEntriesUncompressed(oldEntry, newEntry)) {
+      // If both entries are already uncompressed there is nothing to do.
+      recommendation = Recommendation.UNCOMPRESS_NEITHER;
+      reason = RecommendationReason.BOTH_ENTRIES_UNCOMPRESSED;
+    } else if (uncompressedChangedToCompressed(oldEntry, newEntry)) {
+      // The following are now true:
+      // 1. At least one of the entries is compressed.
+      // 1. The old entry is either uncompressed, or is compressed with deflate.
+      // 2. The new entry is either uncompressed, or is reproducibly compressed with deflate.
+      recommendation = Recommendation.UNCOMPRESS_NEW;
+      reason = RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED;
+    } else if (compressedChangedToUncompressed(oldEntry, newEntry)) {
+      recommendation = Recommendation.UNCOMPRESS_OLD;
+      reason = RecommendationReason.COMPRESSED_CHANGED_TO_UNCOMPRESSED;
+    } else if (compressedBytesChanged) {
+      // At this point, both entries must be compressed with deflate.
+      recommendation = Recommendation.UNCOMPRESS_BOTH;
+      reason = RecommendationReason.COMPRESSED_BYTES_CHANGED;
+    } else {
+      // If the compressed bytes have not changed, there is no need to do anything.
+      recommendation = Recommendation.UNCOMPRESS_NEITHER;
+      reason = RecommendationReason.COMPRESSED_BYTES_IDENTICAL;
+    }
     return new QualifiedRecommendation(
-        oldEntry,
-        newEntry,
-        Recommendation.UNCOMPRESS_NEITHER,
-        RecommendationReason.COMPRESSED_BYTES_IDENTICAL);
+        oldArchiveIndex.getEntry(oldEntry),
+        newArchiveIndex.getEntry(newEntry),
+        recommendation,
+        reason);
   }
 
   /**
    * Returns true if the entries are unsuitable for doing an uncompressed diff. This method returns
    * true if either of the entries is compressed in an unsupported way (a non-deflate compression
    * algorithm) or if the new entry is compressed in a supported but unreproducible way.
-   * @param oldEntry the entry in the old archive
-   * @param newEntry the entry in the new archive
+   * @param oldEntry the position of the entry in the old archive
+   * @param newEntry the position of the entry in the new archive
    * @return true if unsuitable
    */
-  private boolean unsuitable(MinimalZipEntry oldEntry, MinimalZipEntry newEntry) {
-    if (oldEntry.getCompressionMethod() != 0 && !oldEntry.isDeflateCompressed()) {
+  private boolean unsuitable(int oldEntry, int newEntry) {
+    if (oldArchiveIndex.getCompressionMethod(oldEntry) != 0
+        && !oldArchiveIndex.isDeflateCompressed(oldEntry)) {
       // The old entry is compressed in a way that is not supported. It cannot be uncompressed, so
       // no uncompressed diff is possible; leave both old and new alone.
       return true;
     }
-    if (newEntry.getCompressionMethod() != 0 && !newEntry.isDeflateCompressed()) {
+    if (newArchiveIndex.getCompressionMethod(newEntry) != 0
+        && !newArchiveIndex.isDeflateCompressed(newEntry)) {
       // The new entry is compressed in a way that is not supported. Same result as above.
       return true;
     }
-    JreDeflateParameters newJreDeflateParameters =
-        newArchiveJreDeflateParametersByPath.get(new ByteArrayHolder(newEntry.getFileNameBytes()));
-    if (newEntry.isDeflateCompressed() && newJreDeflateParameters == null) {
+    if (newArchiveIndex.isDeflateCompressed(newEntry)
+        && newDivinedArchive.getDivinedParameters(newEntry) == null) {
       // The new entry is compressed via deflate, but the parameters were undivinable. Therefore the
       // new entry cannot be recompressed, so leave both old and new alone.
       return true;
@@ -276,25 +495,26 @@ class PreDiffPlanner {
    * Returns true if the entries are already optimal for doing an uncompressed diff. This method
    * returns true if both of the entries are already uncompressed, i.e. are already in the best form
    * for diffing.
-   * @param oldEntry the entry in the old archive
-   * @param newEntry the entry in the new archive
+   * @param oldEntry the position of the entry in the old archive
+   * @param newEntry the position of the entry in the new archive
    * @return as described
    */
-  private boolean bothEntriesUncompressed(MinimalZipEntry oldEntry, MinimalZipEntry newEntry) {
-    return oldEntry.getCompressionMethod() == 0 && newEntry.getCompressionMethod() == 0;
+  private boolean bothEntriesUncompressed(int oldEntry, int newEntry) {
+    return oldArchiveIndex.getCompressionMethod(oldEntry) == 0
+        && newArchiveIndex.getCompressionMethod(newEntry) == 0;
   }
 
   /**
    * Returns true if the entry is uncompressed in the old archive and compressed in the new archive.
    * This method does not check whether or not the compression is reproducible. It is assumed that
    * any compressed entries encountered are reproducibly compressed.
-   * @param oldEntry the entry in the old archive
-   * @param newEntry the entry in the new archive
+   * @param oldEntry the position of the entry in the old archive
+   * @param newEntry the position of the entry in the new archive
    * @return as described
    */
-  private boolean uncompressedChangedToCompressed(
-      MinimalZipEntry oldEntry, MinimalZipEntry newEntry) {
-    return oldEntry.getCompressionMethod() == 0 && newEntry.getCompressionMethod() != 0;
+  private boolean uncompressedChangedToCompressed(int oldEntry, int newEntry) {
+    return oldArchiveIndex.getCompressionMethod(oldEntry) == 0
+        && newArchiveIndex.getCompressionMethod(newEntry) != 0;
   }
 
   /**
@@ -303,47 +523,12 @@ class PreDiffPlanner {
    * information is irrelevant to this decision (it does not matter whether the compression in the
    * old archive is reproducible or not, because that data does not need to be recompressed at patch
    * apply time).
-   * @param oldEntry the entry in the old archive
-   * @param newEntry the entry in the new archive
+   * @param oldEntry the position of the entry in the old archive
+   * @param newEntry the position of the entry in the new archive
    * @return as described
    */
-  private boolean compressedChangedToUncompressed(
-      MinimalZipEntry oldEntry, MinimalZipEntry newEntry) {
-    return newEntry.getCompressionMethod() == 0 && oldEntry.getCompressionMethod() != 0;
-  }
-
-  /**
-   * Checks if the compressed bytes in the specified entries have changed. No attempt is made to
-   * inflate, this method just examines the raw bytes that represent the content in the specified
-   * entries and returns true if they are different.
-   * @param oldEntry the entry in the old archive
-   * @param newEntry the entry in the new archive
-   * @return true as described above
-   * @throws IOException if unable to read
-   */
-  private boolean compressedBytesChanged(MinimalZipEntry oldEntry, MinimalZipEntry newEntry)
-      throws IOException {
-    if (oldEntry.getCompressedSize() != newEntry.getCompressedSize()) {
-      // Length is not the same, so content cannot match.
-      return true;
-    }
-    byte[] buffer = new byte[4096];
-    int numRead = 0;
-    try (RandomAccessFileInputStream oldRafis =
-            new RandomAccessFileInputStream(
-                oldFile, oldEntry.getFileOffsetOfCompressedData(), oldEntry.getCompressedSize());
-        RandomAccessFileInputStream newRafis =
-            new RandomAccessFileInputStream(
-                newFile, newEntry.getFileOffsetOfCompressedData(), newEntry.getCompressedSize());
-        MatchingOutputStream matcher = new MatchingOutputStream(oldRafis, 4096)) {
-      while ((numRead = newRafis.read(buffer)) >= 0) {
-        try {
-          matcher.write(buffer, 0, numRead);
-        } catch (MismatchException mismatched) {
-          return true;
-        }
-      }
-    }
-    return false;
+  private boolean compressedChangedToUncompressed(int oldEntry, int newEntry) {
+    return newArchiveIndex.getCompressionMethod(newEntry) == 0
+        && oldArchiveIndex.getCompressionMethod(oldEntry) != 0;
   }
 }
@@ -5,6 +5,7 @@
 package com.google.archivepatcher.generator.bsdiff;
 
 import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationObserver;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -19,9 +20,121 @@ public class BsDiffDeltaGenerator implements DeltaGenerator {
    */
   private static final int MATCH_LENGTH_BYTES = 16;
 
+  /**
+   * The suffix sorter to use, or null to pick one based on the size of the old blob.
+   */
+  private final SuffixSorter suffixSorter;
+
+  /**
+   * The observer to report the time spent suffix sorting and matching to, or null.
+   */
+  private final GenerationObserver observer;
+
+  /**
+   * The listener to tell about the temp files created while generating deltas, or null.
+   */
+  private final DiskUsageListener diskUsageListener;
+
+  /**
+   * The pool to acquire the temp files created while generating deltas from, or null.
+   */
+  private final MappedRegionPool regionPool;
+
+  /**
+   * Creates a generator that picks a {@link SuffixSorter} based on the size of the old blob.
+   */
+  public BsDiffDeltaGenerator() {
+    this(null);
+  }
+
+  /**
+   * Creates a generator that sorts the old blob with the specified {@link SuffixSorter}, e.g. a
+   * {@link ParallelDivSuffixSorter} on machines with many cores.
+   *
+   * @param suffixSorter the suffix sorter to use, or null to pick one based on the size of the old
+   *     blob
+   */
+  public BsDiffDeltaGenerator(SuffixSorter suffixSorter) {
+    this(suffixSorter, null);
+  }
+
+  /**
+   * Creates a generator that sorts the old blob with the specified {@link SuffixSorter} and reports
+   * the time spent suffix sorting and matching to the specified {@link GenerationObserver}.
+   *
+   * @param suffixSorter the suffix sorter to use, or null to pick one based on the size of the old
+   *     blob
+   * @param observer the observer to report to, or null
+   */
+  public BsDiffDeltaGenerator(SuffixSorter suffixSorter, GenerationObserver observer) {
+    this(suffixSorter, observer, null, null);
+  }
+
+  private BsDiffDeltaGenerator(
+      SuffixSorter suffixSorter,
+      GenerationObserver observer,
+      DiskUsageListener diskUsageListener,
+      MappedRegionPool regionPool) {
+    this.suffixSorter = suffixSorter;
+    this.observer = observer;
+    this.diskUsageListener = diskUsageListener;
+    this.regionPool = regionPool;
+  }
+
+  /**
+   * Returns a generator that works exactly like this one but reports to the specified observer.
+   *
+   * @param observer the observer to report to, or null
+   * @return the generator
+   */
+  public BsDiffDeltaGenerator withObserver(GenerationObserver observer) {
+    return new BsDiffDeltaGenerator(suffixSorter, observer, diskUsageListener, regionPool);
+  }
+
+  /**
+   * Returns a generator that works exactly like this one but tells the specified listener about
+   * the temp files it creates: the suffix array, if it does not fit in the heap, and the index
+   * files of a {@link CachingSuffixSorter}.
+   *
+   * @param diskUsageListener the listener to tell, or null
+   * @return the generator
+   */
+  public BsDiffDeltaGenerator withDiskUsageListener(DiskUsageListener diskUsageListener) {
+    SuffixSorter sorter = suffixSorter;
+    if (sorter instanceof CachingSuffixSorter) {
+      sorter = ((CachingSuffixSorter) sorter).withDiskUsageListener(diskUsageListener);
+    }
+    return new BsDiffDeltaGenerator(sorter, observer, diskUsageListener, regionPool);
+  }
+
+  /**
+   * Returns a generator that works exactly like this one but acquires the temp file that holds the
+   * suffix array, if it does not fit in the heap, from the specified pool, so that generating many
+   * deltas in one process does not map a new temp file for every delta. The pool is passed on to a
+   * {@link CachingSuffixSorter}.
+   *
+   * @param regionPool the pool to acquire the temp file from, or null to map a new one every time
+   * @return the generator
+   */
+  public BsDiffDeltaGenerator withMappedRegionPool(MappedRegionPool regionPool) {
+    SuffixSorter sorter = suffixSorter;
+    if (sorter instanceof CachingSuffixSorter) {
+      sorter = ((CachingSuffixSorter) sorter).withMappedRegionPool(regionPool);
+    }
+    return new BsDiffDeltaGenerator(sorter, observer, diskUsageListener, regionPool);
+  }
+
   @Override
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException {
-    BsDiffPatchWriter.generatePatch(oldBlob, newBlob, deltaOut, MATCH_LENGTH_BYTES);
+    BsDiffPatchWriter.generatePatch(
+        oldBlob,
+        newBlob,
+        deltaOut,
+        suffixSorter,
+        MATCH_LENGTH_BYTES,
+        observer,
+        diskUsageListener,
+        regionPool);
   }
 }
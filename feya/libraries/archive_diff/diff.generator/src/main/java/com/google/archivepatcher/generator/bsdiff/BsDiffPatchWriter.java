@@ -4,6 +4,9 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.generator.GenerationObserver;
+import com.google.archivepatcher.generator.GenerationPhase;
+import com.google.archivepatcher.generator.PhaseTimer;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -15,11 +18,24 @@ import java.nio.charset.StandardCharsets;
 /**
  * A helper class that handles the main BsDiff I/O and patch generation, by calling into the main
  * algorithm implementation in {@link BsDiff}
+ *
+ * <p>The old and the new data must each be shorter than {@link #MAX_DATA_LENGTH} bytes, just under
+ * 2GiB: the suffix array, {@link BsDiff} and the matcher all work with 32-bit positions.
  */
 public class BsDiffPatchWriter {
 
   static final int DEFAULT_MINIMUM_MATCH_LENGTH = 16;
 
+  /**
+   * The maximum length of the old and the new data, in bytes.
+   */
+  public static final long MAX_DATA_LENGTH = Integer.MAX_VALUE - 1;
+
+  /**
+   * The size of the buffers used to read, compare and write data in chunks.
+   */
+  private static final int BUFFER_SIZE = 16 * 1024;
+
   /**
    * Write a patch entry.
    *
@@ -36,6 +52,7 @@ public class BsDiffPatchWriter {
    * @param oldPositionOffsetForNextEntry the offset between |oldPosition| for the next entry and
    *     |oldPosition| + |diffLength| for this entry.
    * @param outputStream the output stream to write the patch entry to.
+   * @param buffer the buffer to stage diff and extra data in before writing it
    * @throws IOException if unable to read or write data
    */
   private static void writeEntry(
@@ -46,31 +63,28 @@ public class BsDiffPatchWriter {
       int diffLength,
       int extraLength,
       int oldPositionOffsetForNextEntry,
-      OutputStream outputStream)
+      OutputStream outputStream,
+      byte[] buffer)
       throws IOException {
     // Write control data
     BsUtil.writeFormattedLong(diffLength, outputStream);
     BsUtil.writeFormattedLong(extraLength, outputStream);
     BsUtil.writeFormattedLong(oldPositionOffsetForNextEntry, outputStream);
 
-    newData.seek(newPosition);
-    oldData.seek(oldPosition);
     // Write diff data
-    for (int i = 0; i < diffLength; ++i) {
-      // TODO(hartmanng): test using a small buffer to insulate read() calls (and write() for that
-      // matter).
-      outputStream.write(newData.readUnsignedByte() - oldData.readUnsignedByte());
+    for (int done = 0; done < diffLength; ) {
+      int length = Math.min(buffer.length, diffLength - done);
+      newData.readDiff(newPosition + done, oldData, oldPosition + done, buffer, 0, length);
+      outputStream.write(buffer, 0, length);
+      done += length;
     }
 
-    if (extraLength > 0) {
-      // This seek will throw an IOException sometimes, if we try to seek to the byte after
-      // the end of the RandomAccessObject.
-      newData.seek(newPosition + diffLength);
-      // Write extra data
-      for (int i = 0; i < extraLength; ++i) {
-        // TODO(hartmanng): same as above - test buffering readByte().
-        outputStream.write(newData.readByte());
-      }
+    // Write extra data
+    for (int done = 0; done < extraLength; ) {
+      int length = Math.min(buffer.length, extraLength - done);
+      newData.readFully(newPosition + diffLength + done, buffer, 0, length);
+      outputStream.write(buffer, 0, length);
+      done += length;
     }
   }
 
@@ -91,6 +105,11 @@ public class BsDiffPatchWriter {
       Matcher matcher,
       OutputStream outputStream)
       throws IOException, InterruptedException {
+    // Bytes are compared via their differences: a zero difference is a match. The extension loops
+    // and writeEntry() read and write data through these buffers a chunk at a time.
+    byte[] buffer1 = new byte[BUFFER_SIZE];
+    byte[] buffer2 = new byte[BUFFER_SIZE];
+
     // Compute the differences, writing ctrl as we go
     int lastNewPosition = 0;
     int lastOldPosition = 0;
@@ -116,18 +135,29 @@ public class BsDiffPatchWriter {
       if (newPosition < newData.length()) {
         int score = 0;
         int bestScore = 0;
-        for (int i = 1; newPosition - i >= lastNewPosition && oldPosition >= i; ++i) {
-          oldData.seek(oldPosition - i);
-          newData.seek(newPosition - i);
-          if (oldData.readByte() == newData.readByte()) {
-            ++score;
-          } else {
-            --score;
-          }
+        int maxBackwardExtension = Math.min(newPosition - lastNewPosition, oldPosition);
+        for (int i = 1; i <= maxBackwardExtension; ) {
+          // Compare the chunk of bytes at distances i ... i + length - 1 before the match, which
+          // lies at buffer1[length - 1] down to buffer1[0].
+          int length = Math.min(buffer1.length, maxBackwardExtension - i + 1);
+          newData.readDiff(
+              newPosition - i - length + 1,
+              oldData,
+              oldPosition - i - length + 1,
+              buffer1,
+              0,
+              length);
+          for (int j = length - 1; j >= 0; --j, ++i) {
+            if (buffer1[j] == 0) {
+              ++score;
+            } else {
+              --score;
+            }
 
-          if (score > bestScore) {
-            bestScore = score;
-            backwardExtension = i;
+            if (score > bestScore) {
+              bestScore = score;
+              backwardExtension = i;
+            }
           }
         }
       }
@@ -139,19 +169,21 @@ public class BsDiffPatchWriter {
       {
         int score = 0;
         int bestScore = 0;
-        oldData.seek(lastOldPosition);
-        newData.seek(lastNewPosition);
-        for (int i = 0;
-            lastNewPosition + i < newPosition && lastOldPosition + i < oldData.length();
-            ++i) {
-          if (oldData.readByte() == newData.readByte()) {
-            ++score;
-          } else {
-            --score;
-          }
-          if (score > bestScore) {
-            bestScore = score;
-            forwardExtension = i + 1;
+        int maxForwardExtension =
+            (int) Math.min(newPosition - lastNewPosition, oldData.length() - lastOldPosition);
+        for (int i = 0; i < maxForwardExtension; ) {
+          int length = Math.min(buffer1.length, maxForwardExtension - i);
+          newData.readDiff(lastNewPosition + i, oldData, lastOldPosition + i, buffer1, 0, length);
+          for (int j = 0; j < length; ++j, ++i) {
+            if (buffer1[j] == 0) {
+              ++score;
+            } else {
+              --score;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              forwardExtension = i + 1;
+            }
           }
         }
       }
@@ -163,21 +195,34 @@ public class BsDiffPatchWriter {
         int score = 0;
         int bestScore = 0;
         int backwardExtensionDecrement = 0;
-        for (int i = 0; i < overlap; ++i) {
-          newData.seek(lastNewPosition + forwardExtension - overlap + i);
-          oldData.seek(lastOldPosition + forwardExtension - overlap + i);
-          if (newData.readByte() == oldData.readByte()) {
-            ++score;
-          }
+        for (int i = 0; i < overlap; ) {
+          int length = Math.min(buffer1.length, overlap - i);
+          newData.readDiff(
+              lastNewPosition + forwardExtension - overlap + i,
+              oldData,
+              lastOldPosition + forwardExtension - overlap + i,
+              buffer1,
+              0,
+              length);
+          newData.readDiff(
+              newPosition - backwardExtension + i,
+              oldData,
+              oldPosition - backwardExtension + i,
+              buffer2,
+              0,
+              length);
+          for (int j = 0; j < length; ++j, ++i) {
+            if (buffer1[j] == 0) {
+              ++score;
+            }
 
-          newData.seek(newPosition - backwardExtension + i);
-          oldData.seek(oldPosition - backwardExtension + i);
-          if (newData.readByte() == oldData.readByte()) {
-            --score;
-          }
-          if (score > bestScore) {
-            bestScore = score;
-            backwardExtensionDecrement = i + 1;
+            if (buffer2[j] == 0) {
+              --score;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              backwardExtensionDecrement = i + 1;
+            }
           }
         }
         forwardExtension -= overlap - backwardExtensionDecrement;
@@ -213,7 +258,8 @@ public class BsDiffPatchWriter {
           forwardExtension,
           newNoMatchLength,
           oldPositionOffset,
-          outputStream);
+          outputStream,
+          buffer1);
 
       lastNewPosition = newPosition - backwardExtension;
       lastOldPosition = oldPosition - backwardExtension;
@@ -326,25 +372,154 @@ public class BsDiffPatchWriter {
       final OutputStream outputStream,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatch(oldData, newData, outputStream, null, minimumMatchLength);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, using the
+   * specified {@link SuffixSorter}. Uses file-based storage for ancillary allocations.
+   *
+   * @param oldData a file containing the old data
+   * @param newData a file containing the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the suffix sorter to sort the old data with, or null to pick one based on
+   *     the size of the old data (see {@link #createSuffixSorter(long, RandomAccessObjectFactory)})
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength)
+      throws IOException, InterruptedException {
+    generatePatch(oldData, newData, outputStream, suffixSorter, minimumMatchLength, null, null);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, using the
+   * specified {@link SuffixSorter} and reporting the time spent suffix sorting and matching to the
+   * specified {@link GenerationObserver}. Uses file-based storage for ancillary allocations, and
+   * tells the specified {@link DiskUsageListener} about the temp files that it creates.
+   *
+   * @param oldData a file containing the old data
+   * @param newData a file containing the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the suffix sorter to sort the old data with, or null to pick one based on
+   *     the size of the old data (see {@link #createSuffixSorter(long, RandomAccessObjectFactory)})
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @param observer the observer to report to, or null
+   * @param diskUsageListener the listener to tell about temp files, or null
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength,
+      final GenerationObserver observer,
+      final DiskUsageListener diskUsageListener)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldData,
+        newData,
+        outputStream,
+        suffixSorter,
+        minimumMatchLength,
+        observer,
+        diskUsageListener,
+        null);
+  }
+
+  /**
+   * Like {@link #generatePatch(File, File, OutputStream, SuffixSorter, int, GenerationObserver,
+   * DiskUsageListener)}, but acquires the file-based storage for ancillary allocations from the
+   * specified {@link MappedRegionPool}, so that a process that generates many patches can reuse
+   * it instead of mapping a new temp file for every patch.
+   *
+   * @param oldData a file containing the old data
+   * @param newData a file containing the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the suffix sorter to sort the old data with, or null to pick one based on
+   *     the size of the old data (see {@link #createSuffixSorter(long, RandomAccessObjectFactory)})
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData
+   * @param observer the observer to report to, or null
+   * @param diskUsageListener the listener to tell about temp files, or null
+   * @param regionPool the pool to acquire file-based storage from, or null to map a new temp file
+   *     for every allocation
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength,
+      final GenerationObserver observer,
+      final DiskUsageListener diskUsageListener,
+      final MappedRegionPool regionPool)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldData,
+        newData,
+        outputStream,
+        suffixSorter,
+        minimumMatchLength,
+        observer,
+        diskUsageListener,
+        regionPool,
+        availableHeapBytes());
+  }
+
+  /**
+   * Like {@link #generatePatch(File, File, OutputStream, SuffixSorter, int, GenerationObserver,
+   * DiskUsageListener, MappedRegionPool)}, but picks the suffix sorter, if none is specified, as
+   * if the specified number of bytes of heap were available.
+   */
+  // Visible for testing only
+  static void generatePatch(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength,
+      final GenerationObserver observer,
+      final DiskUsageListener diskUsageListener,
+      final MappedRegionPool regionPool,
+      final long availableHeapBytes)
+      throws IOException, InterruptedException {
+    // Fail before mapping anything; a single mapping cannot exceed 2GiB anyway.
+    checkDataLength("old", oldData.length());
+    checkDataLength("new", newData.length());
     try (RandomAccessFile oldDataRAF = new RandomAccessFile(oldData, "r");
         RandomAccessFile newDataRAF = new RandomAccessFile(newData, "r");
         RandomAccessObject oldDataRAO =
             new RandomAccessObject.RandomAccessMmapObject(oldDataRAF, "r");
         RandomAccessObject newDataRAO =
             new RandomAccessObject.RandomAccessMmapObject(newDataRAF, "r"); ) {
+      RandomAccessObjectFactory factory =
+          new RandomAccessObjectFactory.RandomAccessMmapObjectFactory(
+              "rw", regionPool, diskUsageListener);
       generatePatch(
           oldDataRAO,
           newDataRAO,
           outputStream,
-          new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"),
-          minimumMatchLength);
+          suffixSorter != null
+              ? suffixSorter
+              : createSuffixSorter(oldDataRAO.length(), factory, availableHeapBytes),
+          minimumMatchLength,
+          observer);
     }
-
-    // Due to a bug in the JVM (http://bugs.java.com/view_bug.do?bug_id=6417205), we need to call
-    // gc() and runFinalization() explicitly to get rid of any MappedByteBuffers we may have used
-    // during patch generation.
-    System.gc();
-    System.runFinalization();
   }
 
   /**
@@ -367,15 +542,139 @@ public class BsDiffPatchWriter {
       final RandomAccessObjectFactory randomAccessObjectFactory,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatchWithSuffixSorter(
+        oldData,
+        newData,
+        outputStream,
+        createSuffixSorter(oldData.length(), randomAccessObjectFactory),
+        minimumMatchLength);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, using the
+   * specified {@link SuffixSorter}. This is not an overload of generatePatch because the variant
+   * that takes a {@link RandomAccessObjectFactory} would be ambiguous with it.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the suffix sorter to sort the old data with
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatchWithSuffixSorter(
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength)
+      throws IOException, InterruptedException {
+    generatePatch(oldData, newData, outputStream, suffixSorter, minimumMatchLength, null);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, using the
+   * specified {@link SuffixSorter} and reporting the time spent suffix sorting and matching to the
+   * specified {@link GenerationObserver}.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the suffix sorter to sort the old data with
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @param observer the observer to report to, or null
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength,
+      final GenerationObserver observer)
+      throws IOException, InterruptedException {
+    checkDataLength("old", oldData.length());
+    checkDataLength("new", newData.length());
+
     // Write header (signature + new file length)
     outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
     BsUtil.writeFormattedLong(newData.length(), outputStream);
 
     // Do the suffix search.
-    try (final RandomAccessObject groupArray =
-        new DivSuffixSorter(randomAccessObjectFactory).suffixSort(oldData)) {
-      BsDiffMatcher matcher = new BsDiffMatcher(oldData, newData, groupArray, minimumMatchLength);
-      generatePatchWithMatcher(oldData, newData, matcher, outputStream);
+    RandomAccessObject sortedArray;
+    PhaseTimer sortTimer = PhaseTimer.start(observer, GenerationPhase.SUFFIX_SORTING);
+    try {
+      sortedArray = suffixSorter.suffixSort(oldData);
+    } finally {
+      sortTimer.stop();
+    }
+    try (final RandomAccessObject groupArray = sortedArray) {
+      PhaseTimer matchTimer = PhaseTimer.start(observer, GenerationPhase.MATCHING);
+      try {
+        BsDiffMatcher matcher =
+            new BsDiffMatcher(oldData, newData, groupArray, minimumMatchLength);
+        generatePatchWithMatcher(oldData, newData, matcher, outputStream);
+      } finally {
+        matchTimer.stop();
+      }
     }
   }
+
+  /**
+   * Throws if data of the specified length is too long to diff.
+   *
+   * @param name the name of the data, for the message
+   * @param length the length of the data
+   * @throws IllegalArgumentException if the length exceeds {@link #MAX_DATA_LENGTH}
+   */
+  private static void checkDataLength(String name, long length) {
+    if (length > MAX_DATA_LENGTH) {
+      throw new IllegalArgumentException(
+          "Only " + name + " data up to " + MAX_DATA_LENGTH + " bytes is supported: " + length);
+    }
+  }
+
+  /**
+   * Returns the {@link SuffixSorter} to use for old data of the given length. The heap-based
+   * {@link InMemoryDivSuffixSorter} is used if it fits comfortably in the currently available heap,
+   * otherwise a {@link DivSuffixSorter} that stores the suffix array in objects created by the
+   * given factory.
+   *
+   * @param oldDataLength the length of the old data to be sorted
+   * @param randomAccessObjectFactory factory to create auxiliary storage for the fallback sorter
+   * @return the suffix sorter to use
+   */
+  // Visible for testing only
+  static SuffixSorter createSuffixSorter(
+      long oldDataLength, RandomAccessObjectFactory randomAccessObjectFactory) {
+    return createSuffixSorter(oldDataLength, randomAccessObjectFactory, availableHeapBytes());
+  }
+
+  /**
+   * Like {@link #createSuffixSorter(long, RandomAccessObjectFactory)}, but as if the specified
+   * number of bytes of heap were available.
+   */
+  private static SuffixSorter createSuffixSorter(
+      long oldDataLength,
+      RandomAccessObjectFactory randomAccessObjectFactory,
+      long availableHeapBytes) {
+    if (InMemoryDivSuffixSorter.estimateHeapUsage(oldDataLength) <= availableHeapBytes / 2) {
+      return new InMemoryDivSuffixSorter();
+    }
+    return new DivSuffixSorter(randomAccessObjectFactory);
+  }
+
+  /**
+   * Returns the number of bytes of heap that are currently available.
+   */
+  private static long availableHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+  }
 }
@@ -7,6 +7,8 @@ package com.google.archivepatcher.generator.bsdiff;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Utility functions to be shared between BsDiff and BsPatch.
@@ -78,19 +80,125 @@ class BsUtil {
       final int start2,
       final int length2)
       throws IOException {
-    int bytesLeft = Math.min(length1, length2);
+    final int length = Math.min(length1, length2);
+    final int matchLength = length > 0 ? data1.lengthOfMatch(start1, data2, start2, length) : 0;
+    if (matchLength < length) {
+      data1.seek(start1 + matchLength);
+      data2.seek(start2 + matchLength);
+      return data1.readUnsignedByte() - data2.readUnsignedByte();
+    }
 
-    data1.seek(start1);
-    data2.seek(start2);
-    while (bytesLeft-- > 0) {
-      final int i1 = data1.readUnsignedByte();
-      final int i2 = data2.readUnsignedByte();
+    return length1 - length2;
+  }
 
-      if (i1 != i2) {
-        return i1 - i2;
+  /**
+   * Returns the number of consecutive equal bytes in two byte buffers, comparing 8 bytes at a time
+   * where possible. The positions of the buffers are not changed.
+   *
+   * @param buffer1 the first buffer
+   * @param index1 the index in the first buffer at which to start comparing
+   * @param buffer2 the second buffer
+   * @param index2 the index in the second buffer at which to start comparing
+   * @param length the maximum number of bytes to compare
+   * @return the number of equal bytes, from 0 to |length|
+   */
+  static int lengthOfMatch(
+      final ByteBuffer buffer1,
+      final int index1,
+      final ByteBuffer buffer2,
+      final int index2,
+      final int length) {
+    int offset = 0;
+    if (buffer1.order() == buffer2.order()) {
+      final boolean bigEndian = buffer1.order() == ByteOrder.BIG_ENDIAN;
+      for (; offset + 8 <= length; offset += 8) {
+        final long difference =
+            buffer1.getLong(index1 + offset) ^ buffer2.getLong(index2 + offset);
+        if (difference != 0) {
+          // The first differing byte is the most significant one in big-endian order.
+          return offset
+              + ((bigEndian
+                      ? Long.numberOfLeadingZeros(difference)
+                      : Long.numberOfTrailingZeros(difference))
+                  >>> 3);
+        }
+      }
+    }
+    for (; offset < length; offset++) {
+      if (buffer1.get(index1 + offset) != buffer2.get(index2 + offset)) {
+        return offset;
       }
     }
+    return length;
+  }
 
-    return length1 - length2;
+  /**
+   * The largest number of bytes that {@link #lengthOfMatch(RandomAccessObject, long,
+   * RandomAccessObject, long, int)} and {@link #readDiff(RandomAccessObject, long,
+   * RandomAccessObject, long, byte[], int, int)} read at once.
+   */
+  private static final int MAX_CHUNK_SIZE = 8192;
+
+  /**
+   * The number of bytes that {@link #lengthOfMatch(RandomAccessObject, long, RandomAccessObject,
+   * long, int)} reads first. Most matches are short, so it starts small and grows from there.
+   */
+  private static final int MIN_CHUNK_SIZE = 64;
+
+  /**
+   * Implementation of {@link RandomAccessObject#lengthOfMatch(long, RandomAccessObject, long, int)}
+   * for any pair of objects, which reads both ranges in chunks with {@link
+   * RandomAccessObject#readFully(long, byte[], int, int)}.
+   */
+  static int lengthOfMatch(
+      final RandomAccessObject data1,
+      final long start1,
+      final RandomAccessObject data2,
+      final long start2,
+      final int maxLength)
+      throws IOException {
+    final int bufferSize = Math.min(maxLength, MAX_CHUNK_SIZE);
+    final ByteBuffer buffer1 = ByteBuffer.allocate(bufferSize);
+    final ByteBuffer buffer2 = ByteBuffer.allocate(bufferSize);
+    int chunkSize = Math.min(bufferSize, MIN_CHUNK_SIZE);
+    int offset = 0;
+    while (offset < maxLength) {
+      final int length = Math.min(chunkSize, maxLength - offset);
+      data1.readFully(start1 + offset, buffer1.array(), 0, length);
+      data2.readFully(start2 + offset, buffer2.array(), 0, length);
+      final int matchLength = lengthOfMatch(buffer1, 0, buffer2, 0, length);
+      offset += matchLength;
+      if (matchLength < length) {
+        break;
+      }
+      chunkSize = Math.min(chunkSize * 4, bufferSize);
+    }
+    return offset;
+  }
+
+  /**
+   * Implementation of {@link RandomAccessObject#readDiff(long, RandomAccessObject, long, byte[],
+   * int, int)} for any pair of objects, which reads the second range in chunks with {@link
+   * RandomAccessObject#readFully(long, byte[], int, int)}.
+   */
+  static void readDiff(
+      final RandomAccessObject data1,
+      final long start1,
+      final RandomAccessObject data2,
+      final long start2,
+      final byte[] buffer,
+      final int offset,
+      final int length)
+      throws IOException {
+    data1.readFully(start1, buffer, offset, length);
+    final byte[] chunk = new byte[Math.min(length, MAX_CHUNK_SIZE)];
+    for (int done = 0; done < length; ) {
+      final int chunkLength = Math.min(chunk.length, length - done);
+      data2.readFully(start2 + done, chunk, 0, chunkLength);
+      for (int i = 0; i < chunkLength; i++) {
+        buffer[offset + done + i] -= chunk[i];
+      }
+      done += chunkLength;
+    }
   }
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SuffixSorter} that persists every suffix array it computes as an index file, so that
+ * later sorts of the same data can memory-map the index instead of sorting again. This pays off
+ * when the same old blob is diffed against many new blobs, e.g. when every release is diffed
+ * against all future releases.
+ *
+ * <p>Index files live in a caller-specified directory and are named after the SHA-256 digest of
+ * the sorted data. Each file consists of a fixed-size header followed by the suffix array itself,
+ * in the same big-endian layout that {@link SuffixSorter#suffixSort(RandomAccessObject)} returns:
+ * <pre>
+ * Offset  Size  Field
+ *      0     4  Magic number, {@link #MAGIC}
+ *      4     4  Format version, {@link #VERSION}
+ *      8     8  Length of the sorted data, in bytes
+ *     16    32  SHA-256 digest of the sorted data
+ *     48     8  CRC32 of the suffix array
+ *     56     8  Reserved, zero
+ *     64   ...  Suffix array, 4 * (length + 1) bytes
+ * </pre>
+ *
+ * <p>Index files are written to a temp file in the index directory and then renamed into place, so
+ * several generator processes can safely share one directory. Index files that are truncated,
+ * corrupt or of a different version are ignored and overwritten. An optional {@link
+ * DiskUsageListener} is told about every index file written, and about the temp file that holds the
+ * suffix array while it is sorted if no delegate sorter is specified. That temp file can be
+ * acquired from an optional {@link MappedRegionPool} instead.
+ */
+public class CachingSuffixSorter implements SuffixSorter {
+
+  /**
+   * Magic number at the start of every index file, "SAIX" in ASCII.
+   */
+  static final int MAGIC = 0x53414958;
+
+  /**
+   * The current version of the index file format.
+   */
+  static final int VERSION = 1;
+
+  /**
+   * The size of the index file header, in bytes.
+   */
+  static final int HEADER_SIZE = 64;
+
+  /**
+   * The suffix of index file names.
+   */
+  static final String INDEX_FILE_SUFFIX = ".sai";
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final File indexDirectory;
+  private final SuffixSorter delegate;
+  private final DiskUsageListener listener;
+  private final MappedRegionPool regionPool;
+
+  /**
+   * Creates a sorter that stores index files in the specified directory and sorts data that is not
+   * yet indexed with a sorter chosen based on the size of the data, like {@link
+   * BsDiffPatchWriter#generatePatch(File, File, java.io.OutputStream, int)} does.
+   *
+   * @param indexDirectory the directory to store index files in; created if it does not exist
+   */
+  public CachingSuffixSorter(File indexDirectory) {
+    this(indexDirectory, null);
+  }
+
+  /**
+   * Creates a sorter that stores index files in the specified directory and sorts data that is not
+   * yet indexed with the specified sorter.
+   *
+   * @param indexDirectory the directory to store index files in; created if it does not exist
+   * @param delegate the sorter to use for data that is not yet indexed, or null to choose one based
+   *     on the size of the data
+   */
+  public CachingSuffixSorter(File indexDirectory, SuffixSorter delegate) {
+    this(indexDirectory, delegate, null, null);
+  }
+
+  private CachingSuffixSorter(
+      File indexDirectory,
+      SuffixSorter delegate,
+      DiskUsageListener listener,
+      MappedRegionPool regionPool) {
+    if (indexDirectory == null) {
+      throw new IllegalArgumentException("indexDirectory cannot be null");
+    }
+    this.indexDirectory = indexDirectory;
+    this.delegate = delegate;
+    this.listener = listener;
+    this.regionPool = regionPool;
+  }
+
+  /**
+   * Returns a sorter that works exactly like this one but tells the specified listener about the
+   * files it writes.
+   *
+   * @param listener the listener to tell, or null
+   * @return the sorter
+   */
+  public CachingSuffixSorter withDiskUsageListener(DiskUsageListener listener) {
+    return new CachingSuffixSorter(indexDirectory, delegate, listener, regionPool);
+  }
+
+  /**
+   * Returns a sorter that works exactly like this one but, if no delegate sorter is specified,
+   * acquires the temp file that holds the suffix array while it is sorted from the specified pool.
+   *
+   * @param regionPool the pool to acquire the temp file from, or null to map a new one every time
+   * @return the sorter
+   */
+  public CachingSuffixSorter withMappedRegionPool(MappedRegionPool regionPool) {
+    return new CachingSuffixSorter(indexDirectory, delegate, listener, regionPool);
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject data)
+      throws IOException, InterruptedException {
+    byte[] digest = digest(data);
+    File indexFile = getIndexFile(digest);
+
+    RandomAccessObject suffixArray = loadIndex(indexFile, data.length(), digest);
+    if (suffixArray != null) {
+      return suffixArray;
+    }
+
+    SuffixSorter sorter = delegate;
+    if (sorter == null) {
+      sorter =
+          BsDiffPatchWriter.createSuffixSorter(
+              data.length(),
+              new RandomAccessObjectFactory.RandomAccessMmapObjectFactory(
+                  "rw", regionPool, listener));
+    }
+    suffixArray = sorter.suffixSort(data);
+    try {
+      saveIndex(indexFile, data.length(), digest, suffixArray);
+    } catch (IOException e) {
+      // The index is only an optimization; failing to save it must not fail the sort.
+    }
+    return suffixArray;
+  }
+
+  /**
+   * Returns the index file for data with the specified SHA-256 digest.
+   *
+   * @param digest the SHA-256 digest of the data
+   * @return the index file, which may or may not exist
+   */
+  // Visible for testing only
+  File getIndexFile(byte[] digest) {
+    StringBuilder name = new StringBuilder(digest.length * 2 + INDEX_FILE_SUFFIX.length());
+    for (byte b : digest) {
+      name.append(Character.forDigit((b >> 4) & 0xf, 16));
+      name.append(Character.forDigit(b & 0xf, 16));
+    }
+    name.append(INDEX_FILE_SUFFIX);
+    return new File(indexDirectory, name.toString());
+  }
+
+  /**
+   * Computes the SHA-256 digest of the specified data.
+   *
+   * @param data the data to digest
+   * @return the digest
+   * @throws IOException if unable to read the data
+   */
+  // Visible for testing only
+  static byte[] digest(RandomAccessObject data) throws IOException {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long remaining = data.length();
+    data.seek(0);
+    while (remaining > 0) {
+      int numBytes = (int) Math.min(buffer.length, remaining);
+      data.readFully(buffer, 0, numBytes);
+      messageDigest.update(buffer, 0, numBytes);
+      remaining -= numBytes;
+    }
+    return messageDigest.digest();
+  }
+
+  /**
+   * Maps the suffix array in the specified index file, if the file exists and is a valid index for
+   * data of the specified length and digest.
+   *
+   * @return the suffix array, or null if there is no valid index
+   */
+  @SuppressWarnings("resource") // RandomAccessFile is closed by the returned object
+  private static RandomAccessObject loadIndex(File indexFile, long dataLength, byte[] digest)
+      throws IOException {
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    long suffixArrayLength = 4 * (dataLength + 1);
+    RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+    RandomAccessObject suffixArray = null;
+    try {
+      if (file.length() != HEADER_SIZE + suffixArrayLength
+          || file.readInt() != MAGIC
+          || file.readInt() != VERSION
+          || file.readLong() != dataLength) {
+        return null;
+      }
+      byte[] storedDigest = new byte[digest.length];
+      file.readFully(storedDigest);
+      if (!Arrays.equals(digest, storedDigest)) {
+        return null;
+      }
+      long storedCrc32 = file.readLong();
+
+      if (suffixArrayLength > Integer.MAX_VALUE) {
+        suffixArray =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(
+                file, "r", HEADER_SIZE, suffixArrayLength);
+      } else {
+        suffixArray =
+            new RandomAccessObject.RandomAccessMmapObject(
+                file, "r", HEADER_SIZE, suffixArrayLength);
+      }
+      if (crc32(suffixArray) != storedCrc32) {
+        return null;
+      }
+      suffixArray.seek(0);
+      RandomAccessObject result = suffixArray;
+      suffixArray = null;
+      file = null;
+      return result;
+    } finally {
+      if (suffixArray != null) {
+        suffixArray.close();
+      } else if (file != null) {
+        file.close();
+      }
+    }
+  }
+
+  /**
+   * Writes an index file for the specified suffix array, via a temp file that is renamed into
+   * place.
+   */
+  private void saveIndex(
+      File indexFile, long dataLength, byte[] digest, RandomAccessObject suffixArray)
+      throws IOException {
+    if (!indexDirectory.mkdirs() && !indexDirectory.isDirectory()) {
+      throw new IOException("Unable to create index directory: " + indexDirectory);
+    }
+    File tempFile = File.createTempFile("sai", ".tmp", indexDirectory);
+    try {
+      try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw")) {
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeLong(dataLength);
+        file.write(digest);
+        file.writeLong(0); // CRC32, filled in below
+        file.writeLong(0);
+        long crc32 = copy(suffixArray, file);
+        file.seek(HEADER_SIZE - 16);
+        file.writeLong(crc32);
+      }
+      if (!tempFile.renameTo(indexFile)) {
+        // Another process may have won the race; either way, the temp file is no longer needed.
+        if (!indexFile.isFile()) {
+          throw new IOException("Unable to rename " + tempFile + " to " + indexFile);
+        }
+        return;
+      }
+      // The index outlives the generation that wrote it, so it is never reported as deleted.
+      if (listener != null) {
+        listener.diskUsageChanged(indexFile.length());
+      }
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Computes the CRC32 of the entire contents of the specified object.
+   */
+  private static long crc32(RandomAccessObject data) throws IOException {
+    CRC32 crc32 = new CRC32();
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long remaining = data.length();
+    data.seek(0);
+    while (remaining > 0) {
+      int numBytes = (int) Math.min(buffer.length, remaining);
+      data.readFully(buffer, 0, numBytes);
+      crc32.update(buffer, 0, numBytes);
+      remaining -= numBytes;
+    }
+    return crc32.getValue();
+  }
+
+  /**
+   * Copies the entire contents of the specified object to the current position of the specified
+   * file.
+   *
+   * @return the CRC32 of the copied bytes
+   */
+  private static long copy(RandomAccessObject data, RandomAccessFile out) throws IOException {
+    CRC32 crc32 = new CRC32();
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long remaining = data.length();
+    data.seek(0);
+    while (remaining > 0) {
+      int numBytes = (int) Math.min(buffer.length, remaining);
+      data.readFully(buffer, 0, numBytes);
+      crc32.update(buffer, 0, numBytes);
+      out.write(buffer, 0, numBytes);
+      remaining -= numBytes;
+    }
+    data.seek(0);
+    return crc32.getValue();
+  }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+/**
+ * Receives the sizes of the files that bsdiff writes to disk besides the patch itself, i.e.
+ * file-backed suffix arrays (see {@link RandomAccessObjectFactory.RandomAccessMmapObjectFactory})
+ * and the index files of a {@link CachingSuffixSorter}. Several deltas may be generated at once, so
+ * implementations must be thread-safe.
+ */
+public interface DiskUsageListener {
+  /**
+   * Called when a file has been created or deleted.
+   *
+   * @param bytes the number of bytes by which disk usage has grown, or negative if it has shrunk
+   */
+  public void diskUsageChanged(long bytes);
+}
@@ -74,12 +74,15 @@ public final class DivSuffixSorter implements SuffixSorter {
 
   @Override
   public RandomAccessObject suffixSort(RandomAccessObject input) throws IOException, InterruptedException {
-    if (4 * (input.length() + 1) >= Integer.MAX_VALUE) {
+    // The suffix array holds 32-bit entries, so inputs must be shorter than 2GiB. Its size is
+    // computed as a long, so that the factory rather than an int overflow rejects sizes it cannot
+    // create.
+    if (input.length() >= Integer.MAX_VALUE) {
       throw new IllegalArgumentException("Input too large (" + input.length() + " bytes)");
     }
     int length = (int) input.length();
 
-    RandomAccessObject suffixArray = randomAccessObjectFactory.create((length + 1) * 4);
+    RandomAccessObject suffixArray = randomAccessObjectFactory.create((length + 1) * 4L);
     suffixArray.seek(0);
     suffixArray.writeInt(length);
     this.suffixArray = suffixArray;
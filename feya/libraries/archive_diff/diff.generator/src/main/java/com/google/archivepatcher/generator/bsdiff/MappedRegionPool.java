@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.shared.MappedBuffers;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A pool of memory-mapped temp files for {@link
+ * RandomAccessObjectFactory.RandomAccessMmapObjectFactory} to hand out. Without a pool, every
+ * object the factory creates maps a new temp file, and unmaps and deletes it again when closed. A
+ * process that generates many patches can share one pool between its factories instead: closing
+ * an object returns its region to the pool, and the next object of a similar size reuses the
+ * region, mapping and all.
+ *
+ * <p>At most |maxIdleBytes| of idle regions are kept; the regions that have been idle the longest
+ * are unmapped and deleted first. Closing the pool unmaps and deletes all idle regions, and any
+ * region that is returned to it afterwards.
+ *
+ * <p>Unlike a new temp file, a reused region is not zeroed. The objects handed out are scratch
+ * storage that must be written before it is read, like the suffix array of {@link
+ * DivSuffixSorter}.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class MappedRegionPool implements Closeable {
+  private static final String FILE_NAME_PREFIX = "wavsmrp";
+
+  /**
+   * The granularity with which regions are allocated.
+   */
+  private static final long REGION_ALIGNMENT = 4096;
+
+  private final long maxIdleBytes;
+
+  /**
+   * The idle regions, the most recently released first.
+   */
+  private final LinkedList<Region> idleRegions = new LinkedList<Region>();
+
+  private long idleBytes = 0;
+  private boolean closed = false;
+
+  /**
+   * Creates a pool that keeps up to the specified number of bytes of idle regions.
+   *
+   * @param maxIdleBytes the maximum total size of the idle regions; 0 disables reuse entirely
+   */
+  public MappedRegionPool(long maxIdleBytes) {
+    if (maxIdleBytes < 0) {
+      throw new IllegalArgumentException("maxIdleBytes must be non-negative: " + maxIdleBytes);
+    }
+    this.maxIdleBytes = maxIdleBytes;
+  }
+
+  /**
+   * Returns an object of the specified size, backed by an idle region if there is one that is at
+   * least as large but not more than twice as large (after rounding the size up to a whole page),
+   * or else by a new region. Closing the object returns the region to this pool.
+   *
+   * @param size the size of the object, in bytes
+   * @return the object
+   * @throws IOException if unable to create and map a new region
+   */
+  public RandomAccessObject acquire(long size) throws IOException {
+    return acquire(size, null);
+  }
+
+  /**
+   * Like {@link #acquire(long)}, but also closes the specified {@link Closeable} when the object is
+   * closed, after its region has been returned to this pool.
+   *
+   * @param size the size of the object, in bytes
+   * @param onClose the closeable to close when the object is closed, or null
+   * @return the object
+   * @throws IOException if unable to create and map a new region
+   */
+  RandomAccessObject acquire(long size, final Closeable onClose) throws IOException {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must be non-negative: " + size);
+    }
+    long capacity = ((size + REGION_ALIGNMENT - 1) / REGION_ALIGNMENT) * REGION_ALIGNMENT;
+    Region region = takeIdleRegion(capacity);
+    if (region == null) {
+      region = Region.create(capacity);
+    }
+    final Region acquired = region;
+    return new RandomAccessObject.RandomAccessSegmentedMmapObject(
+        acquired.segments,
+        RandomAccessObject.RandomAccessSegmentedMmapObject.DEFAULT_SEGMENT_SHIFT,
+        size,
+        new Closeable() {
+          @Override
+          public void close() throws IOException {
+            try {
+              release(acquired);
+            } finally {
+              if (onClose != null) {
+                onClose.close();
+              }
+            }
+          }
+        });
+  }
+
+  /**
+   * Removes and returns the smallest idle region at least as large as, but not more than twice as
+   * large as, the specified capacity, or returns null if there is none.
+   */
+  private synchronized Region takeIdleRegion(long capacity) {
+    if (closed) {
+      throw new IllegalStateException("Pool is closed");
+    }
+    Region best = null;
+    for (Region region : idleRegions) {
+      if (region.capacity >= capacity
+          && region.capacity / 2 <= capacity
+          && (best == null || region.capacity < best.capacity)) {
+        best = region;
+      }
+    }
+    if (best != null) {
+      idleRegions.remove(best);
+      idleBytes -= best.capacity;
+    }
+    return best;
+  }
+
+  /**
+   * Returns the specified region to the pool, evicting the regions that have been idle the longest
+   * if the pool is full.
+   */
+  private void release(Region region) throws IOException {
+    List<Region> evicted = new ArrayList<Region>();
+    synchronized (this) {
+      if (closed || region.capacity > maxIdleBytes) {
+        evicted.add(region);
+      } else {
+        idleRegions.addFirst(region);
+        idleBytes += region.capacity;
+        while (idleBytes > maxIdleBytes) {
+          Region oldest = idleRegions.removeLast();
+          idleBytes -= oldest.capacity;
+          evicted.add(oldest);
+        }
+      }
+    }
+    destroyAll(evicted);
+  }
+
+  /**
+   * Unmaps and deletes all idle regions. Regions that are in use are unmapped and deleted when
+   * they are returned. The pool cannot be used to acquire objects afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    List<Region> evicted;
+    synchronized (this) {
+      closed = true;
+      evicted = new ArrayList<Region>(idleRegions);
+      idleRegions.clear();
+      idleBytes = 0;
+    }
+    destroyAll(evicted);
+  }
+
+  /**
+   * Returns the number of idle regions in the pool.
+   */
+  // Visible for testing only
+  synchronized int getIdleRegionCount() {
+    return idleRegions.size();
+  }
+
+  /**
+   * Destroys all of the specified regions, even if destroying some of them fails.
+   *
+   * @throws IOException the first failure, if any
+   */
+  private static void destroyAll(List<Region> regions) throws IOException {
+    IOException failure = null;
+    for (Region region : regions) {
+      try {
+        region.destroy();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * A temp file, mapped in segments of 2^{@link
+   * RandomAccessObject.RandomAccessSegmentedMmapObject#DEFAULT_SEGMENT_SHIFT} bytes.
+   */
+  private static final class Region {
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final long capacity;
+    private ByteBuffer[] segments;
+
+    private Region(
+        File file, RandomAccessFile randomAccessFile, long capacity, ByteBuffer[] segments) {
+      this.file = file;
+      this.randomAccessFile = randomAccessFile;
+      this.capacity = capacity;
+      this.segments = segments;
+    }
+
+    /**
+     * Creates and maps a temp file of the specified size.
+     */
+    @SuppressWarnings("resource") // RandomAccessFile is closed by destroy()
+    static Region create(long capacity) throws IOException {
+      File file = File.createTempFile(FILE_NAME_PREFIX, "temp");
+      file.deleteOnExit();
+      RandomAccessFile randomAccessFile = null;
+      try {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        ByteBuffer[] segments =
+            RandomAccessObject.RandomAccessSegmentedMmapObject.map(
+                randomAccessFile.getChannel(),
+                "rw",
+                0,
+                capacity,
+                RandomAccessObject.RandomAccessSegmentedMmapObject.DEFAULT_SEGMENT_SHIFT);
+        return new Region(file, randomAccessFile, capacity, segments);
+      } catch (IOException e) {
+        if (randomAccessFile != null) {
+          try {
+            randomAccessFile.close();
+          } catch (Exception ignored) {
+            // Nothing more can be done
+          }
+        }
+        file.delete();
+        throw new IOException("Unable to map temp file", e);
+      }
+    }
+
+    /**
+     * Unmaps and deletes the temp file. Where unmapping is not supported, the file is deleted on
+     * exit if it cannot be deleted while it is still mapped.
+     */
+    void destroy() throws IOException {
+      ByteBuffer[] mappedSegments = segments;
+      segments = null;
+      for (ByteBuffer segment : mappedSegments) {
+        MappedBuffers.unmap(segment);
+      }
+      try {
+        randomAccessFile.close();
+      } finally {
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A multi-threaded variant of {@link InMemoryDivSuffixSorter} that sorts the type B* buckets
+ * concurrently on a {@link ForkJoinPool} before merging them with the (sequential) trsort step.
+ * Since a suffix array is unique for a given input, the output is byte-identical to that of {@link
+ * DivSuffixSorter}.
+ *
+ * <p>Like {@link InMemoryDivSuffixSorter}, this needs roughly {@link
+ * InMemoryDivSuffixSorter#estimateHeapUsage(long)} bytes of heap.
+ */
+public final class ParallelDivSuffixSorter implements SuffixSorter {
+
+  /**
+   * The pool to sort on, or null if a new pool of {@link #parallelism} threads should be created
+   * for every sort.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * The number of threads to sort with when no pool was specified.
+   */
+  private final int parallelism;
+
+  /**
+   * Creates a sorter that sorts on a private pool with the given parallelism. The pool is created
+   * at the start of each sort and shut down when the sort completes.
+   *
+   * @param parallelism the number of threads to sort with
+   * @throws IllegalArgumentException if parallelism is not positive
+   */
+  public ParallelDivSuffixSorter(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    this.pool = null;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Creates a sorter that sorts on the given pool, using all of its parallelism. The pool is not
+   * shut down by this class.
+   *
+   * @param pool the pool to sort on
+   */
+  public ParallelDivSuffixSorter(ForkJoinPool pool) {
+    if (pool == null) {
+      throw new IllegalArgumentException("pool cannot be null");
+    }
+    this.pool = pool;
+    this.parallelism = pool.getParallelism();
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject input)
+      throws IOException, InterruptedException {
+    ForkJoinPool sortPool = pool != null ? pool : new ForkJoinPool(parallelism);
+    try {
+      return new InMemoryDivSuffixSorter(sortPool).suffixSort(input);
+    } finally {
+      if (sortPool != pool) {
+        sortPool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Perform a "suffix sort" on the given bytes. See {@link InMemoryDivSuffixSorter#suffixSort(
+   * byte[])} for the layout of the result.
+   *
+   * @param input the data to sort
+   * @return the suffix array, prefixed by the length of the input
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public int[] suffixSort(byte[] input) throws InterruptedException {
+    ForkJoinPool sortPool = pool != null ? pool : new ForkJoinPool(parallelism);
+    try {
+      return new InMemoryDivSuffixSorter(sortPool).suffixSort(input);
+    } finally {
+      if (sortPool != pool) {
+        sortPool.shutdown();
+      }
+    }
+  }
+}
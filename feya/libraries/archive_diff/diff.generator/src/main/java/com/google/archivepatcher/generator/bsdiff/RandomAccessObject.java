@@ -4,9 +4,11 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.shared.MappedBuffers;
 import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -48,6 +50,50 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
    */
   public void seekToIntAligned(long pos) throws IOException;
 
+  /**
+   * Reads |length| bytes starting at the specified position into the specified buffer. The
+   * position of this object after the call is unspecified.
+   *
+   * @param pos the position of the first byte to read
+   * @param buffer the buffer to read into
+   * @param offset the offset in the buffer at which to store the first byte
+   * @param length the number of bytes to read
+   * @throws IOException if the range cannot be read, e.g. because it extends past the end
+   */
+  public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * Returns the number of consecutive bytes, starting at the specified positions, that are equal
+   * in this object and the specified object, up to a maximum. Both ranges must lie entirely within
+   * their objects. The positions of both objects after the call are unspecified.
+   *
+   * @param pos the position in this object at which to start comparing
+   * @param other the object to compare with; may be this object
+   * @param otherPos the position in the other object at which to start comparing
+   * @param maxLength the maximum number of bytes to compare
+   * @return the number of equal bytes, from 0 to |maxLength|
+   * @throws IOException if either range cannot be read
+   */
+  public int lengthOfMatch(long pos, RandomAccessObject other, long otherPos, int maxLength)
+      throws IOException;
+
+  /**
+   * Reads the byte-wise difference between a range of this object and a range of the specified
+   * object into the specified buffer, i.e. buffer[offset + i] = this[pos + i] - other[otherPos +
+   * i], modulo 256. The positions of both objects after the call are unspecified.
+   *
+   * @param pos the position of the range in this object
+   * @param other the object to subtract; may be this object
+   * @param otherPos the position of the range in the other object
+   * @param buffer the buffer to store the difference in
+   * @param offset the offset in the buffer at which to store the first byte
+   * @param length the number of bytes in each range
+   * @throws IOException if either range cannot be read
+   */
+  public void readDiff(
+      long pos, RandomAccessObject other, long otherPos, byte[] buffer, int offset, int length)
+      throws IOException;
+
   /**
    * A {@link RandomAccessFile}-based implementation of {@link RandomAccessObject} which just
    * delegates all operations to the equivalents in {@link RandomAccessFile}. Slower than the
@@ -98,6 +144,25 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       seek(pos * 4);
     }
 
+    @Override
+    public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException {
+      seek(pos);
+      readFully(buffer, offset, length);
+    }
+
+    @Override
+    public int lengthOfMatch(long pos, RandomAccessObject other, long otherPos, int maxLength)
+        throws IOException {
+      return BsUtil.lengthOfMatch(this, pos, other, otherPos, maxLength);
+    }
+
+    @Override
+    public void readDiff(
+        long pos, RandomAccessObject other, long otherPos, byte[] buffer, int offset, int length)
+        throws IOException {
+      BsUtil.readDiff(this, pos, other, otherPos, buffer, offset, length);
+    }
+
     /**
      * Close the associated file. Also delete the associated temp file if specified in the
      * constructor. This should be called on every RandomAccessObject when it is no longer needed.
@@ -189,6 +254,69 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       seek(pos * 4);
     }
 
+    @Override
+    public void readFully(long pos, byte[] buffer, int offset, int length) {
+      seek(pos);
+      mByteBuffer.get(buffer, offset, length);
+    }
+
+    /**
+     * If the other object is also a {@link RandomAccessByteArrayObject} (including a {@link
+     * RandomAccessMmapObject}), compares the two buffers directly, 8 bytes at a time.
+     */
+    @Override
+    public int lengthOfMatch(long pos, RandomAccessObject other, long otherPos, int maxLength)
+        throws IOException {
+      if (!(other instanceof RandomAccessByteArrayObject)) {
+        return BsUtil.lengthOfMatch(this, pos, other, otherPos, maxLength);
+      }
+      ByteBuffer otherByteBuffer = ((RandomAccessByteArrayObject) other).mByteBuffer;
+      checkRange(pos, maxLength, mByteBuffer);
+      checkRange(otherPos, maxLength, otherByteBuffer);
+      return BsUtil.lengthOfMatch(
+          mByteBuffer, (int) pos, otherByteBuffer, (int) otherPos, maxLength);
+    }
+
+    /**
+     * If the other object is also a {@link RandomAccessByteArrayObject} (including a {@link
+     * RandomAccessMmapObject}), subtracts the two buffers directly.
+     */
+    @Override
+    public void readDiff(
+        long pos, RandomAccessObject other, long otherPos, byte[] buffer, int offset, int length)
+        throws IOException {
+      if (!(other instanceof RandomAccessByteArrayObject)) {
+        BsUtil.readDiff(this, pos, other, otherPos, buffer, offset, length);
+        return;
+      }
+      ByteBuffer otherByteBuffer = ((RandomAccessByteArrayObject) other).mByteBuffer;
+      checkRange(otherPos, length, otherByteBuffer);
+      readFully(pos, buffer, offset, length);
+      int otherIndex = (int) otherPos;
+      if (otherByteBuffer.hasArray()) {
+        byte[] otherArray = otherByteBuffer.array();
+        int otherArrayIndex = otherByteBuffer.arrayOffset() + otherIndex;
+        for (int i = 0; i < length; i++) {
+          buffer[offset + i] -= otherArray[otherArrayIndex + i];
+        }
+      } else {
+        for (int i = 0; i < length; i++) {
+          buffer[offset + i] -= otherByteBuffer.get(otherIndex + i);
+        }
+      }
+    }
+
+    /**
+     * Checks that the range of |length| bytes at |pos| lies within the buffer.
+     */
+    private static void checkRange(long pos, int length, ByteBuffer byteBuffer) {
+      if (pos < 0 || length < 0 || pos + length > byteBuffer.capacity()) {
+        throw new IndexOutOfBoundsException(
+            "Range [" + pos + ", " + (pos + length) + ") out of bounds for length "
+                + byteBuffer.capacity());
+      }
+    }
+
     @Override
     public void close() throws IOException {
       // Nothing necessary.
@@ -338,6 +466,7 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
     private final boolean mShouldDeleteFileOnRelease;
     private final File mFile;
     private final FileChannel mFileChannel;
+    private Closeable mOnDelete = null;
 
     public RandomAccessMmapObject(final RandomAccessFile randomAccessFile, String mode)
         throws IOException, IllegalArgumentException {
@@ -359,6 +488,38 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       mFile = null;
     }
 
+    /**
+     * This constructor maps only a region of the specified file; position 0 of this object is
+     * position |offset| of the file. The file is not deleted on close().
+     *
+     * @param randomAccessFile the file backing this object
+     * @param mode the mode to use, e.g. "r" or "w" for read or write
+     * @param offset the offset of the region in the file
+     * @param length the length of the region
+     * @throws IOException if unable to map the file for the specified mode
+     * @throws IllegalArgumentException if the size of the region is too great
+     */
+    public RandomAccessMmapObject(
+        final RandomAccessFile randomAccessFile, String mode, long offset, long length)
+        throws IOException, IllegalArgumentException {
+      if (length > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Only regions up to 2GiB in size are supported.");
+      }
+
+      FileChannel.MapMode mapMode;
+      if (mode.equals("r")) {
+        mapMode = FileChannel.MapMode.READ_ONLY;
+      } else {
+        mapMode = FileChannel.MapMode.READ_WRITE;
+      }
+
+      mFileChannel = randomAccessFile.getChannel();
+      mByteBuffer = mFileChannel.map(mapMode, offset, length);
+      mByteBuffer.position(0);
+      mShouldDeleteFileOnRelease = false;
+      mFile = null;
+    }
+
     /**
      * This constructor creates a temporary file. This file is deleted on close(), so be sure to
      * call it when you're done, otherwise it'll leave stray files.
@@ -409,6 +570,16 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       }
     }
 
+    /**
+     * Like {@link #RandomAccessMmapObject(String, String, long)}, but closes |onDelete| once
+     * close() has deleted the temporary file.
+     */
+    RandomAccessMmapObject(String tempFileName, String mode, long length, Closeable onDelete)
+        throws IOException, IllegalArgumentException {
+      this(tempFileName, mode, length);
+      mOnDelete = onDelete;
+    }
+
     /**
      * This constructor takes in a temporary file, and takes ownership of that file. This file is
      * deleted on close() OR IF THE CONSTRUCTOR FAILS. The main purpose of this constructor is to
@@ -467,19 +638,616 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       // There is a long-standing bug with memory mapped objects in Java that requires the JVM to
       // finalize the MappedByteBuffer reference before the unmap operation is performed. This leaks
       // file handles and fills the virtual address space. Worse, on some systems (Windows for one)
-      // the active mmap prevents the temp file from being deleted - even if File.deleteOnExit() is
-      // used. The only safe way to ensure that file handles and actual files are not leaked by this
-      // class is to force an explicit full gc after explicitly nulling the MappedByteBuffer
-      // reference. This has to be done before attempting file deletion.
+      // the active mmap prevents the temp file from being deleted. Unmap the buffer explicitly,
+      // after dropping the reference to it, and before attempting file deletion. Where that isn't
+      // supported the buffer is unmapped when it is garbage collected, and a file that can't be
+      // deleted yet is left to File.deleteOnExit().
       //
       // See https://github.com/andrewhayden/archive-patcher/issues/5 for more information.
+      ByteBuffer byteBuffer = mByteBuffer;
       mByteBuffer = null;
-      System.gc();
+      MappedBuffers.unmap(byteBuffer);
 
       if (mShouldDeleteFileOnRelease && mFile != null) {
         mFile.delete();
       }
+      Closeable onDelete = mOnDelete;
+      mOnDelete = null;
+      if (onDelete != null) {
+        onDelete.close();
+      }
+    }
+  }
+
+  /**
+   * A {@link ByteBuffer}-based implementation of {@link RandomAccessObject} that, unlike {@link
+   * RandomAccessMmapObject}, maps the file as a sequence of fixed-size segments and so can address
+   * files larger than 2GiB. Reads and writes that lie within one segment go directly to the
+   * segment's buffer; the few that span two segments are split up byte by byte.
+   *
+   * <p>This is only storage: the data that can be diffed is still limited to {@link
+   * BsDiffPatchWriter#MAX_DATA_LENGTH} bytes, whatever objects hold it and its suffix array.
+   */
+  public static final class RandomAccessSegmentedMmapObject implements RandomAccessObject {
+    /**
+     * The log2 of the default segment size, 1GiB.
+     */
+    static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+    private final int mSegmentShift;
+    private final int mSegmentMask;
+    private final long mLength;
+    private final boolean mShouldDeleteFileOnRelease;
+    private final File mFile;
+    private final FileChannel mFileChannel;
+    private final Closeable mReleaser;
+    private Closeable mOnDelete = null;
+    private ByteBuffer[] mSegments;
+    private long mPosition = 0;
+
+    /**
+     * This constructor maps the whole of the specified file. The file is not deleted on close().
+     *
+     * @param randomAccessFile the file backing this object
+     * @param mode the mode to use, e.g. "r" or "w" for read or write
+     * @throws IOException if unable to map the file for the specified mode
+     */
+    public RandomAccessSegmentedMmapObject(final RandomAccessFile randomAccessFile, String mode)
+        throws IOException {
+      this(randomAccessFile, mode, 0, randomAccessFile.length(), DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * This constructor maps only a region of the specified file; position 0 of this object is
+     * position |offset| of the file. The file is not deleted on close().
+     *
+     * @param randomAccessFile the file backing this object
+     * @param mode the mode to use, e.g. "r" or "w" for read or write
+     * @param offset the offset of the region in the file
+     * @param length the length of the region
+     * @throws IOException if unable to map the file for the specified mode
+     */
+    public RandomAccessSegmentedMmapObject(
+        final RandomAccessFile randomAccessFile, String mode, long offset, long length)
+        throws IOException {
+      this(randomAccessFile, mode, offset, length, DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * Like {@link #RandomAccessSegmentedMmapObject(RandomAccessFile, String, long, long)}, but with
+     * segments of 2^|segmentShift| bytes.
+     */
+    // Visible for testing only
+    RandomAccessSegmentedMmapObject(
+        final RandomAccessFile randomAccessFile,
+        String mode,
+        long offset,
+        long length,
+        int segmentShift)
+        throws IOException {
+      checkSegmentShift(segmentShift);
+      if (offset < 0 || length < 0) {
+        throw new IllegalArgumentException("Bad region: offset " + offset + ", length " + length);
+      }
+      mSegmentShift = segmentShift;
+      mSegmentMask = (1 << segmentShift) - 1;
+      mLength = length;
+      mShouldDeleteFileOnRelease = false;
+      mFile = null;
+      mFileChannel = randomAccessFile.getChannel();
+      mReleaser = null;
+      mSegments = map(mFileChannel, mode, offset, length, segmentShift);
+    }
+
+    /**
+     * This constructor uses segments that have already been mapped by someone else, who keeps
+     * ownership of them. close() does not unmap them, but hands them back by closing |releaser|.
+     *
+     * @param segments the segments, all but the last of which are 2^|segmentShift| bytes long
+     * @param segmentShift the log2 of the size of a segment
+     * @param length the length of this object, which may be less than that of the segments
+     * @param releaser closed when this object is closed
+     */
+    RandomAccessSegmentedMmapObject(
+        ByteBuffer[] segments, int segmentShift, long length, Closeable releaser) {
+      checkSegmentShift(segmentShift);
+      if (length < 0 || length > ((long) segments.length << segmentShift)) {
+        throw new IllegalArgumentException("Bad length: " + length);
+      }
+      mSegmentShift = segmentShift;
+      mSegmentMask = (1 << segmentShift) - 1;
+      mLength = length;
+      mShouldDeleteFileOnRelease = false;
+      mFile = null;
+      mFileChannel = null;
+      mReleaser = releaser;
+      mSegments = segments;
+    }
+
+    /**
+     * This constructor creates a temporary file. This file is deleted on close(), so be sure to
+     * call it when you're done, otherwise it'll leave stray files.
+     *
+     * @param tempFileName the prefix of the name of the file backing this object
+     * @param mode the mode to use, e.g. "r" or "w" for read or write
+     * @param length the size of the file to be read or written
+     * @throws IOException if unable to open the file for the specified mode
+     */
+    public RandomAccessSegmentedMmapObject(
+        final String tempFileName, final String mode, long length) throws IOException {
+      this(tempFileName, mode, length, DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * Like {@link #RandomAccessSegmentedMmapObject(String, String, long)}, but closes |onDelete|
+     * once close() has deleted the temporary file.
+     */
+    RandomAccessSegmentedMmapObject(
+        String tempFileName, String mode, long length, Closeable onDelete) throws IOException {
+      this(tempFileName, mode, length, DEFAULT_SEGMENT_SHIFT);
+      mOnDelete = onDelete;
+    }
+
+    /**
+     * Like {@link #RandomAccessSegmentedMmapObject(String, String, long)}, but with segments of
+     * 2^|segmentShift| bytes.
+     */
+    // Visible for testing only
+    @SuppressWarnings("resource") // RandomAccessFile deliberately left open
+    RandomAccessSegmentedMmapObject(
+        final String tempFileName, final String mode, long length, int segmentShift)
+        throws IOException {
+      checkSegmentShift(segmentShift);
+      if (length < 0) {
+        throw new IllegalArgumentException("Bad length: " + length);
+      }
+      mSegmentShift = segmentShift;
+      mSegmentMask = (1 << segmentShift) - 1;
+      mLength = length;
+      mFile = File.createTempFile(tempFileName, "temp");
+      mFile.deleteOnExit();
+      mShouldDeleteFileOnRelease = true;
+
+      RandomAccessFile file = null;
+      FileChannel fileChannel = null;
+      try {
+        file = new RandomAccessFile(mFile, mode);
+        fileChannel = file.getChannel();
+        mSegments = map(fileChannel, mode, 0, length, segmentShift);
+      } catch (IOException e) {
+        if (file != null) {
+          try {
+            file.close();
+          } catch (Exception ignored) {
+            // Nothing more can be done
+          }
+        }
+        mFile.delete();
+        throw new IOException("Unable to open file", e);
+      }
+      mFileChannel = fileChannel;
+      mReleaser = null;
+    }
+
+    private static void checkSegmentShift(int segmentShift) {
+      if (segmentShift < 3 || segmentShift > DEFAULT_SEGMENT_SHIFT) {
+        throw new IllegalArgumentException("Bad segment shift: " + segmentShift);
+      }
+    }
+
+    /**
+     * Maps the specified region of the specified file as a sequence of segments of
+     * 2^|segmentShift| bytes, the last of which may be shorter.
+     */
+    static ByteBuffer[] map(
+        FileChannel fileChannel, String mode, long offset, long length, int segmentShift)
+        throws IOException {
+      FileChannel.MapMode mapMode;
+      if (mode.equals("r")) {
+        mapMode = FileChannel.MapMode.READ_ONLY;
+      } else {
+        mapMode = FileChannel.MapMode.READ_WRITE;
+      }
+      long segmentSize = 1L << segmentShift;
+      ByteBuffer[] segments = new ByteBuffer[(int) ((length + segmentSize - 1) >>> segmentShift)];
+      for (int x = 0; x < segments.length; x++) {
+        long segmentOffset = (long) x << segmentShift;
+        segments[x] =
+            fileChannel.map(
+                mapMode, offset + segmentOffset, Math.min(segmentSize, length - segmentOffset));
+      }
+      return segments;
+    }
 
+    /**
+     * Returns the segment that contains all of the |length| bytes at |pos|, or null if they span
+     * more than one segment or do not lie entirely within this object.
+     */
+    private ByteBuffer segmentContaining(long pos, int length) {
+      if (pos < 0 || length < 0 || pos + length > mLength) {
+        return null;
+      }
+      if (length > 0 && (pos >>> mSegmentShift) != ((pos + length - 1) >>> mSegmentShift)) {
+        return null;
+      }
+      return mSegments[(int) (pos >>> mSegmentShift)];
+    }
+
+    /**
+     * Returns the index of |pos| within the segment that contains it.
+     */
+    private int indexInSegment(long pos) {
+      return (int) (pos & mSegmentMask);
+    }
+
+    /**
+     * Throws if the |length| bytes at |pos| do not lie entirely within this object.
+     */
+    private void checkRange(long pos, long length) throws EOFException {
+      if (pos < 0 || length < 0 || pos + length > mLength) {
+        throw new EOFException(
+            "Range [" + pos + ", " + (pos + length) + ") out of bounds for length " + mLength);
+      }
+    }
+
+    private byte get(long pos) {
+      return mSegments[(int) (pos >>> mSegmentShift)].get(indexInSegment(pos));
+    }
+
+    private void put(long pos, byte b) {
+      mSegments[(int) (pos >>> mSegmentShift)].put(indexInSegment(pos), b);
+    }
+
+    /**
+     * Reads |numBytes| bytes at the current position as a big-endian value, one byte at a time,
+     * without changing the position.
+     */
+    private long getBigEndian(int numBytes) throws EOFException {
+      checkRange(mPosition, numBytes);
+      long result = 0;
+      for (int x = 0; x < numBytes; x++) {
+        result = (result << 8) | (get(mPosition + x) & 0xff);
+      }
+      return result;
+    }
+
+    /**
+     * Writes the lowest |numBytes| bytes of |value| at the current position in big-endian order,
+     * one byte at a time, without changing the position.
+     */
+    private void putBigEndian(long value, int numBytes) throws EOFException {
+      checkRange(mPosition, numBytes);
+      for (int x = numBytes - 1; x >= 0; x--) {
+        put(mPosition + x, (byte) value);
+        value >>>= 8;
+      }
+    }
+
+    @Override
+    public long length() {
+      return mLength;
+    }
+
+    @Override
+    public void seek(long pos) {
+      if (pos < 0) {
+        throw new IllegalArgumentException("Negative position: " + pos);
+      }
+      mPosition = pos;
+    }
+
+    @Override
+    public void seekToIntAligned(long pos) {
+      seek(pos * 4);
+    }
+
+    @Override
+    public void readFully(long pos, byte[] buffer, int offset, int length) throws IOException {
+      checkRange(pos, length);
+      while (length > 0) {
+        ByteBuffer segment = mSegments[(int) (pos >>> mSegmentShift)];
+        int index = indexInSegment(pos);
+        int numBytes = Math.min(length, segment.capacity() - index);
+        segment.position(index);
+        segment.get(buffer, offset, numBytes);
+        pos += numBytes;
+        offset += numBytes;
+        length -= numBytes;
+      }
+    }
+
+    /**
+     * If both ranges lie within single segments of this object and of another {@link
+     * RandomAccessSegmentedMmapObject} or a {@link RandomAccessByteArrayObject}, compares the two
+     * buffers directly, 8 bytes at a time.
+     */
+    @Override
+    public int lengthOfMatch(long pos, RandomAccessObject other, long otherPos, int maxLength)
+        throws IOException {
+      ByteBuffer segment = segmentContaining(pos, maxLength);
+      if (segment != null) {
+        ByteBuffer otherBuffer = bufferContaining(other, otherPos, maxLength);
+        if (otherBuffer != null) {
+          return BsUtil.lengthOfMatch(
+              segment,
+              indexInSegment(pos),
+              otherBuffer,
+              indexInBuffer(other, otherPos),
+              maxLength);
+        }
+      }
+      return BsUtil.lengthOfMatch(this, pos, other, otherPos, maxLength);
+    }
+
+    /**
+     * If the range of the other object lies within a single segment of another {@link
+     * RandomAccessSegmentedMmapObject} or within a {@link RandomAccessByteArrayObject}, subtracts
+     * its buffer directly.
+     */
+    @Override
+    public void readDiff(
+        long pos, RandomAccessObject other, long otherPos, byte[] buffer, int offset, int length)
+        throws IOException {
+      ByteBuffer otherBuffer = bufferContaining(other, otherPos, length);
+      if (otherBuffer == null) {
+        BsUtil.readDiff(this, pos, other, otherPos, buffer, offset, length);
+        return;
+      }
+      readFully(pos, buffer, offset, length);
+      int otherIndex = indexInBuffer(other, otherPos);
+      for (int i = 0; i < length; i++) {
+        buffer[offset + i] -= otherBuffer.get(otherIndex + i);
+      }
+    }
+
+    /**
+     * Returns the buffer of the specified object that contains all of the |length| bytes at
+     * |pos|, or null if there is no such buffer.
+     */
+    private static ByteBuffer bufferContaining(RandomAccessObject obj, long pos, int length) {
+      if (obj instanceof RandomAccessSegmentedMmapObject) {
+        return ((RandomAccessSegmentedMmapObject) obj).segmentContaining(pos, length);
+      }
+      if (obj instanceof RandomAccessByteArrayObject) {
+        ByteBuffer byteBuffer = ((RandomAccessByteArrayObject) obj).mByteBuffer;
+        if (pos >= 0 && length >= 0 && pos + length <= byteBuffer.capacity()) {
+          return byteBuffer;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the index of |pos| within the buffer returned by {@link
+     * #bufferContaining(RandomAccessObject, long, int)}.
+     */
+    private static int indexInBuffer(RandomAccessObject obj, long pos) {
+      if (obj instanceof RandomAccessSegmentedMmapObject) {
+        return ((RandomAccessSegmentedMmapObject) obj).indexInSegment(pos);
+      }
+      return (int) pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mReleaser != null) {
+        if (mSegments != null) {
+          mSegments = null;
+          mReleaser.close();
+        }
+        return;
+      }
+      if (mFileChannel != null) {
+        mFileChannel.close();
+      }
+
+      // See RandomAccessMmapObject.close() for why the buffers are unmapped explicitly before the
+      // file is deleted.
+      ByteBuffer[] segments = mSegments;
+      mSegments = null;
+      if (segments != null) {
+        for (ByteBuffer segment : segments) {
+          MappedBuffers.unmap(segment);
+        }
+      }
+
+      if (mShouldDeleteFileOnRelease && mFile != null) {
+        mFile.delete();
+      }
+      Closeable onDelete = mOnDelete;
+      mOnDelete = null;
+      if (onDelete != null) {
+        onDelete.close();
+      }
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+      return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      checkRange(mPosition, 1);
+      return get(mPosition++);
+    }
+
+    @Override
+    public char readChar() throws IOException {
+      return (char) readShort();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+      return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+      return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+      readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+      readFully(mPosition, b, off, len);
+      mPosition += len;
+    }
+
+    /**
+     * Reads an integer from the underlying file in big-endian order.
+     */
+    @Override
+    public int readInt() throws IOException {
+      ByteBuffer segment = segmentContaining(mPosition, 4);
+      int result =
+          segment != null ? segment.getInt(indexInSegment(mPosition)) : (int) getBigEndian(4);
+      mPosition += 4;
+      return result;
+    }
+
+    @Override
+    public String readLine() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+      ByteBuffer segment = segmentContaining(mPosition, 8);
+      long result = segment != null ? segment.getLong(indexInSegment(mPosition)) : getBigEndian(8);
+      mPosition += 8;
+      return result;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+      short result = (short) getBigEndian(2);
+      mPosition += 2;
+      return result;
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+      return readByte() & 0xff;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+      return readShort() & 0xffff;
+    }
+
+    @Override
+    public String readUTF() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int skipBytes(int n) {
+      int numSkipped = (int) Math.max(0, Math.min(n, mLength - mPosition));
+      mPosition += numSkipped;
+      return numSkipped;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkRange(mPosition, len);
+      while (len > 0) {
+        ByteBuffer segment = mSegments[(int) (mPosition >>> mSegmentShift)];
+        int index = indexInSegment(mPosition);
+        int numBytes = Math.min(len, segment.capacity() - index);
+        segment.position(index);
+        segment.put(b, off, numBytes);
+        mPosition += numBytes;
+        off += numBytes;
+        len -= numBytes;
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      writeByte(b);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+      writeByte(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+      checkRange(mPosition, 1);
+      put(mPosition++, (byte) v);
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+      for (int x = 0; x < s.length(); x++) {
+        writeByte((byte) s.charAt(x));
+      }
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+      writeShort(v);
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+      for (int x = 0; x < s.length(); x++) {
+        writeChar(s.charAt(x));
+      }
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+      writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+      writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+      ByteBuffer segment = segmentContaining(mPosition, 4);
+      if (segment != null) {
+        segment.putInt(indexInSegment(mPosition), v);
+      } else {
+        putBigEndian(v, 4);
+      }
+      mPosition += 4;
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+      ByteBuffer segment = segmentContaining(mPosition, 8);
+      if (segment != null) {
+        segment.putLong(indexInSegment(mPosition), v);
+      } else {
+        putBigEndian(v, 8);
+      }
+      mPosition += 8;
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+      putBigEndian(v, 2);
+      mPosition += 2;
+    }
+
+    @Override
+    public void writeUTF(String s) {
+      throw new UnsupportedOperationException();
     }
   }
 }
@@ -8,6 +8,7 @@ import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAcces
 import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessFileObject;
 import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessMmapObject;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -19,7 +20,15 @@ import java.io.RandomAccessFile;
  * (handles bigger inputs without consuming inordinate amounts of memory).
  */
 public interface RandomAccessObjectFactory {
-  public RandomAccessObject create(int size) throws IOException;
+  /**
+   * Creates an object of the specified size.
+   *
+   * @param size the size of the object, in bytes
+   * @return the object
+   * @throws IOException if unable to create the object
+   * @throws IllegalArgumentException if the factory cannot create objects of the specified size
+   */
+  public RandomAccessObject create(long size) throws IOException;
 
   /**
    * A factory that produces {@link RandomAccessFileObject} instances backed by temp files.
@@ -48,7 +57,7 @@ public interface RandomAccessObjectFactory {
     // TODO(hartmanng): rethink the handling of these temp files. It's confusing and shouldn't
     // really be the responsibility of RandomAccessObject.
     @Override
-    public RandomAccessObject create(int size) throws IOException {
+    public RandomAccessObject create(long size) throws IOException {
       return new RandomAccessObject.RandomAccessFileObject(
           File.createTempFile(FILE_NAME_PREFIX, "temp"), mMode, true);
     }
@@ -60,19 +69,25 @@ public interface RandomAccessObjectFactory {
   public static final class RandomAccessByteArrayObjectFactory
       implements RandomAccessObjectFactory {
     @Override
-    public RandomAccessObject create(int size) {
-      return new RandomAccessObject.RandomAccessByteArrayObject(size);
+    public RandomAccessObject create(long size) {
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Only sizes up to 2GiB are supported: " + size);
+      }
+      return new RandomAccessObject.RandomAccessByteArrayObject((int) size);
     }
   }
 
   /**
-   * A factory that produces {@link RandomAccessMmapObject} instances backed by temp files..
+   * A factory that produces {@link RandomAccessMmapObject} instances backed by temp files, or
+   * {@link RandomAccessObject.RandomAccessSegmentedMmapObject} instances for sizes above 2GiB.
    */
   // TODO(hartmanng): rethink the handling of these temp files. It's confusing and shouldn't
   // really be the responsibility of RandomAccessObject.
   public static final class RandomAccessMmapObjectFactory implements RandomAccessObjectFactory {
     private static final String FILE_NAME_PREFIX = "wavsprafof";
     private String mMode;
+    private final MappedRegionPool mPool;
+    private final DiskUsageListener mListener;
 
     /**
      * Factory for a RandomAccessMmapObject.
@@ -80,20 +95,83 @@ public interface RandomAccessObjectFactory {
      * {@link RandomAccessFile})
      */
     public RandomAccessMmapObjectFactory(String mode) {
+      this(mode, null, null);
+    }
+
+    /**
+     * Factory for objects acquired from the specified pool, if it is non-null.
+     * @param mode the file mode string ("r", "w", "rw", etc - see documentation for
+     * {@link RandomAccessFile}); ignored if |pool| is non-null, whose regions are always "rw"
+     * @param pool the pool to acquire objects from, or null to create a temp file per object
+     */
+    public RandomAccessMmapObjectFactory(String mode, MappedRegionPool pool) {
+      this(mode, pool, null);
+    }
+
+    /**
+     * Factory for a RandomAccessMmapObject that tells the specified listener about every temp file
+     * it creates, when the file is created and again when it is deleted on close.
+     * @param mode the file mode string ("r", "w", "rw", etc - see documentation for
+     * {@link RandomAccessFile})
+     * @param listener the listener to tell about temp files, or null
+     */
+    public RandomAccessMmapObjectFactory(String mode, DiskUsageListener listener) {
+      this(mode, null, listener);
+    }
+
+    /**
+     * Factory for objects acquired from the specified pool, if it is non-null, that tells the
+     * specified listener about the size of every object it creates, when the object is created and
+     * again when it is closed. For objects acquired from a pool, that is the disk space in use by
+     * the object, not the disk space held by the pool.
+     * @param mode the file mode string ("r", "w", "rw", etc - see documentation for
+     * {@link RandomAccessFile}); ignored if |pool| is non-null, whose regions are always "rw"
+     * @param pool the pool to acquire objects from, or null to create a temp file per object
+     * @param listener the listener to tell about the objects, or null
+     */
+    public RandomAccessMmapObjectFactory(
+        String mode, MappedRegionPool pool, DiskUsageListener listener) {
       mMode = mode;
+      mPool = pool;
+      mListener = listener;
     }
 
     /**
      * Creates a temp file, and returns a {@link RandomAccessFile} wrapped in a
-     * {@link RandomAccessMmapObject} representing the new temp file. The temp file does not need to
-     * explicitly be managed (deleted) by the caller, as long as the caller ensures
-     * {@link RandomAccessObject#close()} is called when the object is no longer needed.
+     * {@link RandomAccessMmapObject} (or, above 2GiB, a
+     * {@link RandomAccessObject.RandomAccessSegmentedMmapObject}) representing the new temp file.
+     * The temp file does not need to explicitly be managed (deleted) by the caller, as long as the
+     * caller ensures {@link RandomAccessObject#close()} is called when the object is no longer
+     * needed.
      */
     // TODO(hartmanng): rethink the handling of these temp files. It's confusing and shouldn't
     // really be the responsibility of RandomAccessObject.
     @Override
-    public RandomAccessObject create(int size) throws IOException {
-      return new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, mMode, size);
+    public RandomAccessObject create(final long size) throws IOException {
+      Closeable onDelete = null;
+      if (mListener != null) {
+        onDelete = new Closeable() {
+          @Override
+          public void close() {
+            mListener.diskUsageChanged(-size);
+          }
+        };
+      }
+      RandomAccessObject object;
+      if (mPool != null) {
+        object = mPool.acquire(size, onDelete);
+      } else if (size > Integer.MAX_VALUE) {
+        object =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(
+                FILE_NAME_PREFIX, mMode, size, onDelete);
+      } else {
+        object =
+            new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, mMode, size, onDelete);
+      }
+      if (mListener != null) {
+        mListener.diskUsageChanged(size);
+      }
+      return object;
     }
   }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A linear-time suffix sorter based on induced sorting (SA-IS), as described in:
+ * <pre><code>
+ * Ge Nong, Sen Zhang and Wai Hong Chan, Two Efficient Algorithms for Linear Time Suffix Array
+ * Construction, IEEE Transactions on Computers, 2011.
+ * </code></pre>
+ *
+ * <p>Unlike {@link DivSuffixSorter}, the running time of this sorter does not depend on how
+ * repetitive the input is, which makes it a better choice for inputs such as large uncompressed
+ * resources or zero-padded native libraries. On typical inputs {@link DivSuffixSorter} (and its
+ * in-memory variants) tends to be faster.
+ *
+ * <p>The input and the suffix array are kept on the heap; see {@link #estimateHeapUsage(long)}.
+ * The output has the same layout as the other {@link SuffixSorter}s: the first element is the
+ * length of the input (the empty suffix), followed by the sorted suffixes.
+ */
+public final class SaisSuffixSorter implements SuffixSorter {
+
+  private static final int ALPHABET_SIZE = 256;
+
+  /**
+   * Returns the approximate number of bytes of heap needed to sort an input of the given length:
+   * a copy of the input, the int[] suffix array, the type array, the reduced problem and the
+   * byte[] the result is finally wrapped in.
+   *
+   * @param length the length of the input to be sorted
+   * @return the approximate heap usage, in bytes
+   */
+  public static long estimateHeapUsage(long length) {
+    return (2 * length) + (12 * (length + 1));
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject input)
+      throws IOException, InterruptedException {
+    if (4 * (input.length() + 1) >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Input too large (" + input.length() + " bytes)");
+    }
+    byte[] inputBytes = new byte[(int) input.length()];
+    input.seek(0);
+    input.readFully(inputBytes);
+
+    int[] suffixArray = suffixSort(inputBytes);
+    ByteBuffer result = ByteBuffer.allocate(suffixArray.length * 4);
+    result.asIntBuffer().put(suffixArray);
+    return new RandomAccessObject.RandomAccessByteArrayObject(result.array());
+  }
+
+  /**
+   * Perform a "suffix sort" on the given bytes. The first element of the returned array is the
+   * length of the input, followed by the sorted suffixes; this is the same layout as the {@link
+   * RandomAccessObject} returned by {@link #suffixSort(RandomAccessObject)}.
+   *
+   * @param input the data to sort
+   * @return the suffix array, prefixed by the length of the input
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public int[] suffixSort(byte[] input) throws InterruptedException {
+    int n = input.length;
+    int[] suffixArray = new int[n + 1];
+    if (n > 0) {
+      sais(new ByteText(input), suffixArray, n, ALPHABET_SIZE);
+      // The empty suffix sorts before everything else.
+      System.arraycopy(suffixArray, 0, suffixArray, 1, n);
+    }
+    suffixArray[0] = n;
+    return suffixArray;
+  }
+
+  /**
+   * Sorts the suffixes of text[0 ... n - 1] into sa[0 ... n - 1]. The text is treated as if it were
+   * followed by a unique sentinel that is smaller than every character.
+   */
+  private static void sais(Text text, int[] sa, int n, int alphabetSize)
+      throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    if (n == 1) {
+      sa[0] = 0;
+      return;
+    }
+
+    // Classify every suffix as S-type (true) or L-type (false). The last suffix is always L-type
+    // because it is followed by the sentinel.
+    boolean[] types = new boolean[n];
+    types[n - 1] = false;
+    for (int i = n - 2; i >= 0; --i) {
+      int c0 = text.get(i);
+      int c1 = text.get(i + 1);
+      types[i] = c0 < c1 || (c0 == c1 && types[i + 1]);
+    }
+
+    int[] bucketSizes = new int[alphabetSize];
+    for (int i = 0; i < n; ++i) {
+      ++bucketSizes[text.get(i)];
+    }
+    int[] buckets = new int[alphabetSize];
+
+    // Stage 1: sort the LMS substrings by placing the LMS suffixes at the end of their buckets and
+    // inducing the order of the L-type and S-type suffixes from them.
+    Arrays.fill(sa, 0, n, -1);
+    getBucketEnds(bucketSizes, buckets);
+    for (int i = 1; i < n; ++i) {
+      if (isLms(types, i)) {
+        sa[--buckets[text.get(i)]] = i;
+      }
+    }
+    induceL(text, sa, n, types, bucketSizes, buckets);
+    induceS(text, sa, n, types, bucketSizes, buckets);
+
+    // Compact the sorted LMS substrings into the first n1 slots of the suffix array.
+    int n1 = 0;
+    for (int i = 0; i < n; ++i) {
+      if (isLms(types, sa[i])) {
+        sa[n1++] = sa[i];
+      }
+    }
+
+    // Name the LMS substrings. Since LMS positions are at least two apart, the name of the
+    // substring at position p can be stored at sa[n1 + p / 2] without collisions.
+    Arrays.fill(sa, n1, n, -1);
+    int name = 0;
+    int previous = -1;
+    for (int i = 0; i < n1; ++i) {
+      int position = sa[i];
+      if (previous == -1 || !lmsSubstringsEqual(text, types, n, position, previous)) {
+        ++name;
+        previous = position;
+      }
+      sa[n1 + (position / 2)] = name - 1;
+    }
+    int[] reducedText = new int[n1];
+    for (int i = n1, j = 0; i < n; ++i) {
+      if (sa[i] >= 0) {
+        reducedText[j++] = sa[i];
+      }
+    }
+
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+
+    // Stage 2: sort the LMS suffixes, recursing if the names are not yet unique.
+    int[] reducedSuffixArray = new int[n1];
+    if (name < n1) {
+      sais(new IntText(reducedText), reducedSuffixArray, n1, name);
+    } else {
+      for (int i = 0; i < n1; ++i) {
+        reducedSuffixArray[reducedText[i]] = i;
+      }
+    }
+
+    // Stage 3: induce the order of all suffixes from the sorted LMS suffixes. Reuse reducedText to
+    // map positions in the reduced problem back to positions in the text.
+    for (int i = 1, j = 0; i < n; ++i) {
+      if (isLms(types, i)) {
+        reducedText[j++] = i;
+      }
+    }
+    Arrays.fill(sa, 0, n, -1);
+    getBucketEnds(bucketSizes, buckets);
+    for (int i = n1 - 1; i >= 0; --i) {
+      int position = reducedText[reducedSuffixArray[i]];
+      sa[--buckets[text.get(position)]] = position;
+    }
+    induceL(text, sa, n, types, bucketSizes, buckets);
+    induceS(text, sa, n, types, bucketSizes, buckets);
+  }
+
+  private static boolean isLms(boolean[] types, int i) {
+    return i > 0 && types[i] && !types[i - 1];
+  }
+
+  private static boolean lmsSubstringsEqual(
+      Text text, boolean[] types, int n, int position1, int position2) {
+    for (int d = 0; ; ++d) {
+      if (position1 + d == n || position2 + d == n) {
+        // Only one of the substrings can reach the sentinel, which is unique.
+        return false;
+      }
+      if (text.get(position1 + d) != text.get(position2 + d)
+          || types[position1 + d] != types[position2 + d]) {
+        return false;
+      }
+      if (d > 0 && (isLms(types, position1 + d) || isLms(types, position2 + d))) {
+        return isLms(types, position1 + d) && isLms(types, position2 + d);
+      }
+    }
+  }
+
+  private static void getBucketStarts(int[] bucketSizes, int[] buckets) {
+    for (int c = 0, sum = 0; c < bucketSizes.length; ++c) {
+      buckets[c] = sum;
+      sum += bucketSizes[c];
+    }
+  }
+
+  private static void getBucketEnds(int[] bucketSizes, int[] buckets) {
+    for (int c = 0, sum = 0; c < bucketSizes.length; ++c) {
+      sum += bucketSizes[c];
+      buckets[c] = sum;
+    }
+  }
+
+  private static void induceL(
+      Text text, int[] sa, int n, boolean[] types, int[] bucketSizes, int[] buckets) {
+    getBucketStarts(bucketSizes, buckets);
+    // The suffix preceding the sentinel is L-type and comes first in its bucket.
+    sa[buckets[text.get(n - 1)]++] = n - 1;
+    for (int i = 0; i < n; ++i) {
+      int j = sa[i] - 1;
+      if (j >= 0 && !types[j]) {
+        sa[buckets[text.get(j)]++] = j;
+      }
+    }
+  }
+
+  private static void induceS(
+      Text text, int[] sa, int n, boolean[] types, int[] bucketSizes, int[] buckets) {
+    getBucketEnds(bucketSizes, buckets);
+    for (int i = n - 1; i >= 0; --i) {
+      int j = sa[i] - 1;
+      if (j >= 0 && types[j]) {
+        sa[--buckets[text.get(j)]] = j;
+      }
+    }
+  }
+
+  /**
+   * Read-only access to the text being sorted: the input bytes at the top level, and the names of
+   * the LMS substrings in the recursive steps.
+   */
+  private interface Text {
+    int get(int index);
+  }
+
+  private static final class ByteText implements Text {
+    private final byte[] data;
+
+    ByteText(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int get(int index) {
+      return data[index] & 0xff;
+    }
+  }
+
+  private static final class IntText implements Text {
+    private final int[] data;
+
+    IntText(int[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int get(int index) {
+      return data[index];
+    }
+  }
+}
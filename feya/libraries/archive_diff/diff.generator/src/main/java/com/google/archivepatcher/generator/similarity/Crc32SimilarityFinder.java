@@ -7,12 +7,10 @@ package com.google.archivepatcher.generator.similarity;
 import com.google.archivepatcher.generator.MinimalZipEntry;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Detects identical files on the basis of the CRC32 of uncompressed content. All entries that have
@@ -22,9 +20,15 @@ import java.util.Map;
 public class Crc32SimilarityFinder extends SimilarityFinder {
 
   /**
-   * All entries in the base archive, organized by CRC32.
+   * The CRC32 of each entry in the base archive in the upper 32 bits and the position of the entry
+   * in {@link #baseEntries} in the lower 32 bits, in ascending order.
    */
-  private final Map<Long, List<MinimalZipEntry>> baseEntriesByCrc32 = new HashMap<>();
+  private final long[] crc32Keys;
+
+  /**
+   * All entries in the base archive, in the order of {@link #crc32Keys}.
+   */
+  private final List<MinimalZipEntry> baseEntriesByCrc32;
 
   /**
    * Constructs a new similarity finder with the specified parameters.
@@ -33,24 +37,40 @@ public class Crc32SimilarityFinder extends SimilarityFinder {
    */
   public Crc32SimilarityFinder(File baseArchive, Collection<MinimalZipEntry> baseEntries) {
     super(baseArchive, baseEntries);
-    for (MinimalZipEntry oldEntry : baseEntries) {
-      long crc32 = oldEntry.getCrc32OfUncompressedData();
-      List<MinimalZipEntry> entriesForCrc32 = baseEntriesByCrc32.get(crc32);
-      if (entriesForCrc32 == null) {
-        entriesForCrc32 = new LinkedList<>();
-        baseEntriesByCrc32.put(crc32, entriesForCrc32);
-      }
-      entriesForCrc32.add(oldEntry);
+    MinimalZipEntry[] entries = baseEntries.toArray(new MinimalZipEntry[baseEntries.size()]);
+    crc32Keys = new long[entries.length];
+    for (int x = 0; x < entries.length; x++) {
+      crc32Keys[x] = (entries[x].getCrc32OfUncompressedData() << 32) | x;
     }
+    // Sorting the keys keeps entries with the same CRC32 in their original order.
+    Arrays.sort(crc32Keys);
+    MinimalZipEntry[] sortedEntries = new MinimalZipEntry[entries.length];
+    for (int x = 0; x < crc32Keys.length; x++) {
+      sortedEntries[x] = entries[(int) crc32Keys[x]];
+    }
+    baseEntriesByCrc32 = Collections.unmodifiableList(Arrays.asList(sortedEntries));
   }
 
   @Override
   public List<MinimalZipEntry> findSimilarFiles(File newArchive, MinimalZipEntry newEntry) {
-    List<MinimalZipEntry> matchedEntries =
-        baseEntriesByCrc32.get(newEntry.getCrc32OfUncompressedData());
-    if (matchedEntries == null) {
+    long crc32 = newEntry.getCrc32OfUncompressedData();
+    long key = crc32 << 32;
+    int start = 0;
+    int end = crc32Keys.length;
+    while (start < end) {
+      int middle = (start + end) >>> 1;
+      if (crc32Keys[middle] < key) {
+        start = middle + 1;
+      } else {
+        end = middle;
+      }
+    }
+    while (end < crc32Keys.length && (crc32Keys[end] >>> 32) == crc32) {
+      end++;
+    }
+    if (start == end) {
       return Collections.emptyList();
     }
-    return Collections.unmodifiableList(matchedEntries);
+    return baseEntriesByCrc32.subList(start, end);
   }
 }
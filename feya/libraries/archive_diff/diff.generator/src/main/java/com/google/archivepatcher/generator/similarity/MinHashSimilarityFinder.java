@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.similarity;
+
+import com.google.archivepatcher.generator.MinimalZipEntry;
+import com.google.archivepatcher.shared.RandomAccessFileInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Detects files that are similar but not identical, such as files that have been both renamed and
+ * modified, on the basis of their uncompressed content.
+ *
+ * <p>Each file is summarized by a MinHash signature of the set of its 8-byte substrings: every
+ * substring is hashed once, the hash picks one of {@link #NUM_SLOTS} slots, and each slot keeps
+ * the smallest hash that picked it. The fraction of slots in which two signatures agree estimates
+ * the Jaccard similarity of the two sets. The signatures of the base entries are computed once,
+ * when the finder is constructed, and indexed by bands of {@link #ROWS_PER_BAND} slots, so that a
+ * search only scores the base entries that share at least one band with the new entry.
+ *
+ * <p>Reading and inflating the entries dominates the cost, so all of the work is bounded by a time
+ * budget that starts when the finder is constructed. Base entries that have not been indexed when
+ * the budget runs out are never found, and {@link #findSimilarFiles(File, MinimalZipEntry)} finds
+ * nothing once it has run out. With a tight budget, the results can therefore depend on the speed
+ * of the machine.
+ */
+public class MinHashSimilarityFinder extends SimilarityFinder {
+  /**
+   * The default minimum estimated similarity, from 0 to 1, for an entry to be considered similar.
+   */
+  public static final double DEFAULT_MIN_SIMILARITY = 0.5;
+
+  /**
+   * The length of the substrings whose sets are compared.
+   */
+  private static final int SHINGLE_SIZE = 8;
+
+  /**
+   * The number of slots in a signature, which must be a power of two.
+   */
+  private static final int NUM_SLOTS = 64;
+
+  /**
+   * The number of slots in each band of the index.
+   */
+  private static final int ROWS_PER_BAND = 2;
+
+  /**
+   * The value of a slot that no substring has picked.
+   */
+  private static final long EMPTY_SLOT = Long.MAX_VALUE;
+
+  private static final int COPY_BUFFER_SIZE = 32768;
+
+  /**
+   * The minimum estimated similarity for an entry to be considered similar.
+   */
+  private final double minSimilarity;
+
+  /**
+   * The value of {@link System#nanoTime()} at which the time budget runs out.
+   */
+  private final long deadlineNanos;
+
+  /**
+   * The indexed base entries, by the hash of each of their bands.
+   */
+  private final Map<Long, List<IndexedEntry>> indexedEntriesByBandHash = new HashMap<>();
+
+  /**
+   * Constructs a new similarity finder with the {@link #DEFAULT_MIN_SIMILARITY}, and indexes the
+   * base entries.
+   *
+   * @param baseArchive the base archive that contains the entries to be searched
+   * @param baseEntries the entries in the base archive that are eligible to be searched
+   * @param timeBudgetMillis the time budget for indexing the base entries and for all searches
+   * @throws IOException if unable to read the base archive
+   */
+  public MinHashSimilarityFinder(
+      File baseArchive, Collection<MinimalZipEntry> baseEntries, long timeBudgetMillis)
+      throws IOException {
+    this(baseArchive, baseEntries, timeBudgetMillis, DEFAULT_MIN_SIMILARITY);
+  }
+
+  /**
+   * Constructs a new similarity finder with the specified parameters, and indexes the base
+   * entries.
+   *
+   * @param baseArchive the base archive that contains the entries to be searched
+   * @param baseEntries the entries in the base archive that are eligible to be searched
+   * @param timeBudgetMillis the time budget for indexing the base entries and for all searches
+   * @param minSimilarity the minimum estimated similarity, from 0 to 1, for an entry to be
+   *     considered similar
+   * @throws IOException if unable to read the base archive
+   */
+  public MinHashSimilarityFinder(
+      File baseArchive,
+      Collection<MinimalZipEntry> baseEntries,
+      long timeBudgetMillis,
+      double minSimilarity)
+      throws IOException {
+    super(baseArchive, baseEntries);
+    if (timeBudgetMillis <= 0) {
+      throw new IllegalArgumentException("timeBudgetMillis must be positive: " + timeBudgetMillis);
+    }
+    if (minSimilarity <= 0 || minSimilarity > 1) {
+      throw new IllegalArgumentException("minSimilarity must be in (0, 1]: " + minSimilarity);
+    }
+    this.minSimilarity = minSimilarity;
+    this.deadlineNanos = System.nanoTime() + timeBudgetMillis * 1000000L;
+
+    try (RandomAccessFileInputStream archiveIn = new RandomAccessFileInputStream(baseArchive)) {
+      int ordinal = 0;
+      for (MinimalZipEntry baseEntry : baseEntries) {
+        if (budgetExhausted()) {
+          break;
+        }
+        long[] signature = computeSignature(archiveIn, baseEntry);
+        if (signature == null) {
+          continue;
+        }
+        IndexedEntry indexedEntry = new IndexedEntry(baseEntry, signature, ordinal++);
+        for (long bandHash : bandHashes(signature)) {
+          List<IndexedEntry> entriesForBand = indexedEntriesByBandHash.get(bandHash);
+          if (entriesForBand == null) {
+            entriesForBand = new ArrayList<>();
+            indexedEntriesByBandHash.put(bandHash, entriesForBand);
+          }
+          entriesForBand.add(indexedEntry);
+        }
+      }
+    }
+  }
+
+  @Override
+  public List<MinimalZipEntry> findSimilarFiles(File newArchive, MinimalZipEntry newEntry)
+      throws IOException {
+    if (indexedEntriesByBandHash.isEmpty() || budgetExhausted()) {
+      return Collections.emptyList();
+    }
+    long[] signature;
+    try (RandomAccessFileInputStream archiveIn = new RandomAccessFileInputStream(newArchive)) {
+      signature = computeSignature(archiveIn, newEntry);
+    }
+    if (signature == null) {
+      return Collections.emptyList();
+    }
+
+    Set<IndexedEntry> candidates = new LinkedHashSet<>();
+    for (long bandHash : bandHashes(signature)) {
+      List<IndexedEntry> entriesForBand = indexedEntriesByBandHash.get(bandHash);
+      if (entriesForBand != null) {
+        candidates.addAll(entriesForBand);
+      }
+    }
+    final Map<IndexedEntry, Double> similarities = new HashMap<>();
+    for (IndexedEntry candidate : candidates) {
+      double similarity = estimateSimilarity(signature, candidate.signature);
+      if (similarity >= minSimilarity) {
+        similarities.put(candidate, similarity);
+      }
+    }
+    List<IndexedEntry> similarEntries = new ArrayList<>(similarities.keySet());
+    Collections.sort(
+        similarEntries,
+        new Comparator<IndexedEntry>() {
+          @Override
+          public int compare(IndexedEntry entry1, IndexedEntry entry2) {
+            int result = Double.compare(similarities.get(entry2), similarities.get(entry1));
+            return result != 0 ? result : Integer.compare(entry1.ordinal, entry2.ordinal);
+          }
+        });
+    List<MinimalZipEntry> result = new ArrayList<>(similarEntries.size());
+    for (IndexedEntry similarEntry : similarEntries) {
+      result.add(similarEntry.entry);
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  private boolean budgetExhausted() {
+    return System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  /**
+   * Computes the signature of the uncompressed content of the specified entry.
+   *
+   * @param archiveIn a stream over the archive that contains the entry
+   * @param entry the entry
+   * @return the signature, or null if the entry is not stored or deflated, is too short to have a
+   *     signature, cannot be read or inflated, or if the time budget runs out while hashing it
+   */
+  private long[] computeSignature(RandomAccessFileInputStream archiveIn, MinimalZipEntry entry) {
+    boolean deflated = entry.isDeflateCompressed();
+    if ((!deflated && entry.getCompressionMethod() != 0)
+        || entry.getUncompressedSize() < SHINGLE_SIZE) {
+      return null;
+    }
+    Inflater inflater = deflated ? new Inflater(true) : null;
+    try {
+      archiveIn.setRange(entry.getFileOffsetOfCompressedData(), entry.getCompressedSize());
+      // The inflating stream is deliberately left open, as closing it would close archiveIn.
+      InputStream in =
+          deflated ? new InflaterInputStream(archiveIn, inflater, COPY_BUFFER_SIZE) : archiveIn;
+      long[] signature = new long[NUM_SLOTS];
+      Arrays.fill(signature, EMPTY_SLOT);
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      long shingle = 0;
+      long numBytes = 0;
+      int numRead;
+      while ((numRead = in.read(buffer)) >= 0) {
+        // A single large entry could otherwise take far longer than the whole budget.
+        if (budgetExhausted()) {
+          return null;
+        }
+        for (int index = 0; index < numRead; index++) {
+          shingle = (shingle << 8) | (buffer[index] & 0xff);
+          if (++numBytes >= SHINGLE_SIZE) {
+            long hash = mix(shingle);
+            int slot = (int) (hash >>> (Long.SIZE - Integer.numberOfTrailingZeros(NUM_SLOTS)));
+            if (hash < signature[slot]) {
+              signature[slot] = hash;
+            }
+          }
+        }
+      }
+      return numBytes >= SHINGLE_SIZE ? signature : null;
+    } catch (IOException e) {
+      // Not valid deflate data, e.g. truncated, or not readable; either way the entry can't be
+      // diffed in uncompressed form, and finding a base for it is only an optimization.
+      return null;
+    } finally {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Returns the hashes of the bands of the specified signature that contain no empty slots.
+   */
+  private static List<Long> bandHashes(long[] signature) {
+    List<Long> result = new ArrayList<>(NUM_SLOTS / ROWS_PER_BAND);
+    bands:
+    for (int band = 0; band < NUM_SLOTS / ROWS_PER_BAND; band++) {
+      long hash = band;
+      for (int slot = band * ROWS_PER_BAND; slot < (band + 1) * ROWS_PER_BAND; slot++) {
+        if (signature[slot] == EMPTY_SLOT) {
+          continue bands;
+        }
+        hash = mix(hash * 31 + signature[slot]);
+      }
+      result.add(hash);
+    }
+    return result;
+  }
+
+  /**
+   * Estimates the Jaccard similarity of the sets summarized by the specified signatures, as the
+   * fraction of the slots that are not empty in both in which they agree.
+   */
+  private static double estimateSimilarity(long[] signature1, long[] signature2) {
+    int numSlots = 0;
+    int numMatches = 0;
+    for (int slot = 0; slot < NUM_SLOTS; slot++) {
+      if (signature1[slot] == EMPTY_SLOT && signature2[slot] == EMPTY_SLOT) {
+        continue;
+      }
+      numSlots++;
+      if (signature1[slot] == signature2[slot]) {
+        numMatches++;
+      }
+    }
+    return numSlots == 0 ? 0 : (double) numMatches / numSlots;
+  }
+
+  /**
+   * The finalization mix of MurmurHash3, which turns a substring into a well-distributed hash.
+   */
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+  /**
+   * A base entry, its signature, and its position among the indexed entries.
+   */
+  private static final class IndexedEntry {
+    private final MinimalZipEntry entry;
+    private final long[] signature;
+    private final int ordinal;
+
+    IndexedEntry(MinimalZipEntry entry, long[] signature, int ordinal) {
+      this.entry = entry;
+      this.signature = signature;
+      this.ordinal = ordinal;
+    }
+  }
+}
@@ -5,6 +5,7 @@
 package com.google.archivepatcher.generator.similarity;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
@@ -44,6 +45,8 @@ public abstract class SimilarityFinder {
    * @return a {@link List} of {@link MinimalZipEntry} entries (possibly empty but never null) from
    * the base archive that are similar to the new archive; if the list has more than one entry, the
    * entries should be in order from most similar to least similar.
+   * @throws IOException if unable to read either archive
    */
-  public abstract List<MinimalZipEntry> findSimilarFiles(File newArchive, MinimalZipEntry newEntry);
+  public abstract List<MinimalZipEntry> findSimilarFiles(File newArchive, MinimalZipEntry newEntry)
+      throws IOException;
 }
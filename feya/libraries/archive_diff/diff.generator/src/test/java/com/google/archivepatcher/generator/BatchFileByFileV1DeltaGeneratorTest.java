@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BatchFileByFileV1DeltaGenerator}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class BatchFileByFileV1DeltaGeneratorTest {
+  private List<TempFileHolder> tempFiles = new ArrayList<TempFileHolder>();
+  private File newFile = null;
+  private List<File> oldFiles = null;
+
+  @Before
+  public void setup() throws IOException {
+    newFile = saveTestZip(UnitTestZipArchive.allEntriesInFileOrder);
+    UnitTestZipEntry changedEntry2 =
+        UnitTestZipArchive.makeUnitTestZipEntry(
+            UnitTestZipArchive.entry2.path,
+            UnitTestZipArchive.entry2.level,
+            "changed content of entry 2",
+            null);
+    oldFiles = new ArrayList<File>();
+    // Identical, with a changed entry, with a missing entry, and the same as the second one: the
+    // first and the last two share their delta-friendly new files.
+    oldFiles.add(saveTestZip(UnitTestZipArchive.allEntriesInFileOrder));
+    oldFiles.add(
+        saveTestZip(
+            Arrays.asList(
+                UnitTestZipArchive.entry1,
+                changedEntry2,
+                UnitTestZipArchive.entry3,
+                UnitTestZipArchive.entry4)));
+    oldFiles.add(
+        saveTestZip(
+            Arrays.asList(
+                UnitTestZipArchive.entry1, UnitTestZipArchive.entry3, UnitTestZipArchive.entry4)));
+    oldFiles.add(oldFiles.get(1));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (TempFileHolder tempFile : tempFiles) {
+      tempFile.close();
+    }
+  }
+
+  private File saveTestZip(List<UnitTestZipEntry> entries) throws IOException {
+    TempFileHolder tempFile = new TempFileHolder();
+    tempFiles.add(tempFile);
+    try (FileOutputStream out = new FileOutputStream(tempFile.file)) {
+      out.write(UnitTestZipArchive.makeTestZip(entries));
+    }
+    return tempFile.file;
+  }
+
+  private void assertSameAsSingleGeneration(BatchFileByFileV1DeltaGenerator batchGenerator)
+      throws Exception {
+    List<ByteArrayOutputStream> patchOuts = new ArrayList<ByteArrayOutputStream>();
+    for (int x = 0; x < oldFiles.size(); x++) {
+      patchOuts.add(new ByteArrayOutputStream());
+    }
+    batchGenerator.generateDeltas(newFile, oldFiles, patchOuts);
+    for (int x = 0; x < oldFiles.size(); x++) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      new FileByFileV1DeltaGenerator().generateDelta(oldFiles.get(x), newFile, expected);
+      Assert.assertArrayEquals(expected.toByteArray(), patchOuts.get(x).toByteArray());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadParallelism() {
+    new BatchFileByFileV1DeltaGenerator(new FileByFileV1DeltaGenerator(), 0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadMemoryBudget() {
+    new BatchFileByFileV1DeltaGenerator(new FileByFileV1DeltaGenerator(), 1, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGenerateDeltas_MismatchedOutputs() throws Exception {
+    new BatchFileByFileV1DeltaGenerator(new FileByFileV1DeltaGenerator(), 1, Long.MAX_VALUE)
+        .generateDeltas(newFile, oldFiles, Collections.<ByteArrayOutputStream>emptyList());
+  }
+
+  @Test
+  public void testGenerateDeltas_Serial() throws Exception {
+    assertSameAsSingleGeneration(
+        new BatchFileByFileV1DeltaGenerator(
+            new FileByFileV1DeltaGenerator(),
+            new DefaultDeflateCompressionDiviner(),
+            1,
+            Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testGenerateDeltas_Concurrent() throws Exception {
+    assertSameAsSingleGeneration(
+        new BatchFileByFileV1DeltaGenerator(new FileByFileV1DeltaGenerator(), 3, Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testGenerateDeltas_TinyMemoryBudget() throws Exception {
+    // Every old file exceeds the budget on its own, so they are diffed one at a time.
+    assertSameAsSingleGeneration(
+        new BatchFileByFileV1DeltaGenerator(new FileByFileV1DeltaGenerator(), 4, 1));
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link CompressedBytesComparator}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class CompressedBytesComparatorTest {
+  private static final int RANGE_LENGTH = 100;
+  private static final int NUM_RANGES = 32;
+
+  /**
+   * The position in the new index of an entry for range 1 with a different CRC32.
+   */
+  private static final int DIFFERENT_CRC32 = NUM_RANGES;
+
+  /**
+   * The position in the new index of an entry that extends past the end of the new file.
+   */
+  private static final int OUT_OF_RANGE = NUM_RANGES + 1;
+
+  private File oldFile = null;
+  private File newFile = null;
+  private byte[] oldContent = null;
+  private byte[] newContent = null;
+  private MinimalZipArchiveIndex oldIndex = null;
+  private MinimalZipArchiveIndex newIndex = null;
+
+  @Before
+  public void setup() throws IOException {
+    // The new file has a header of a different length, so that the offsets of the ranges differ,
+    // and every third range is modified in its last byte.
+    oldContent = new byte[RANGE_LENGTH * NUM_RANGES];
+    newContent = new byte[7 + RANGE_LENGTH * NUM_RANGES];
+    for (int x = 0; x < oldContent.length; x++) {
+      oldContent[x] = (byte) (x * 31);
+      newContent[7 + x] = oldContent[x];
+    }
+    for (int range = 0; range < NUM_RANGES; range += 3) {
+      newContent[7 + (range + 1) * RANGE_LENGTH - 1]++;
+    }
+    oldFile = write("cbct_old", oldContent);
+    newFile = write("cbct_new", newContent);
+
+    // Each range is the entry at the same position in both indices.
+    List<MinimalZipEntry> oldEntries = new ArrayList<MinimalZipEntry>();
+    List<MinimalZipEntry> newEntries = new ArrayList<MinimalZipEntry>();
+    for (int range = 0; range < NUM_RANGES; range++) {
+      oldEntries.add(makeOldEntry(range));
+      newEntries.add(makeNewEntry(range));
+    }
+    newEntries.add(makeEntry(1, 12345, 7 + RANGE_LENGTH));
+    newEntries.add(makeEntry(1, 1, newContent.length - 1));
+    oldIndex = MinimalZipArchiveIndex.of(oldEntries);
+    newIndex = MinimalZipArchiveIndex.of(newEntries);
+  }
+
+  @After
+  public void tearDown() {
+    try {
+      oldFile.delete();
+    } catch (Exception ignored) {
+      // Nothing
+    }
+    try {
+      newFile.delete();
+    } catch (Exception ignored) {
+      // Nothing
+    }
+  }
+
+  private static File write(String prefix, byte[] content) throws IOException {
+    File file = File.createTempFile(prefix, "tmp");
+    file.deleteOnExit();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(content);
+    }
+    return file;
+  }
+
+  private static MinimalZipEntry makeEntry(int range, long crc32, long offsetOfCompressedData) {
+    MinimalZipEntry entry =
+        new MinimalZipEntry(
+            8,
+            crc32,
+            RANGE_LENGTH,
+            RANGE_LENGTH * 3,
+            ("entry" + range).getBytes(StandardCharsets.UTF_8),
+            true,
+            0);
+    entry.setFileOffsetOfCompressedData(offsetOfCompressedData);
+    return entry;
+  }
+
+  private static MinimalZipEntry makeOldEntry(int range) {
+    return makeEntry(range, range, range * RANGE_LENGTH);
+  }
+
+  private static MinimalZipEntry makeNewEntry(int range) {
+    return makeEntry(range, range, 7 + range * RANGE_LENGTH);
+  }
+
+  private static void assertExpectedResults(boolean[] actual) {
+    Assert.assertEquals(Arrays.toString(expectedResults()), Arrays.toString(actual));
+  }
+
+  private static boolean[] expectedResults() {
+    boolean[] expected = new boolean[NUM_RANGES];
+    for (int range = 0; range < NUM_RANGES; range++) {
+      expected[range] = range % 3 == 0;
+    }
+    return expected;
+  }
+
+  private CompressedBytesComparator newComparator() throws IOException {
+    return new CompressedBytesComparator(oldFile, oldIndex, newFile, newIndex);
+  }
+
+  private boolean[] compareAll(ExecutorService executor, int parallelism) throws IOException {
+    int[] entries = new int[NUM_RANGES];
+    for (int range = 0; range < NUM_RANGES; range++) {
+      entries[range] = range;
+    }
+    try (CompressedBytesComparator comparator = newComparator()) {
+      return comparator.compressedBytesChanged(entries, entries, executor, parallelism);
+    }
+  }
+
+  @Test
+  public void testCompressedBytesChanged() throws IOException {
+    try (CompressedBytesComparator comparator = newComparator()) {
+      Assert.assertFalse(comparator.compressedBytesChanged(1, 1));
+      Assert.assertTrue(comparator.compressedBytesChanged(3, 3));
+      // A different range, whose bytes differ.
+      Assert.assertTrue(comparator.compressedBytesChanged(1, 2));
+    }
+  }
+
+  @Test
+  public void testCompressedBytesChanged_ShortCircuit() throws IOException {
+    // The bytes are identical, but the metadata says that they cannot be.
+    Assert.assertTrue(CompressedBytesComparator.mayBeIdentical(oldIndex, 1, newIndex, 1));
+    Assert.assertFalse(
+        CompressedBytesComparator.mayBeIdentical(oldIndex, 1, newIndex, DIFFERENT_CRC32));
+    try (CompressedBytesComparator comparator = newComparator()) {
+      Assert.assertTrue(comparator.compressedBytesChanged(1, DIFFERENT_CRC32));
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void testCompressedBytesChanged_OutOfRange() throws IOException {
+    try (CompressedBytesComparator comparator = newComparator()) {
+      comparator.compressedBytesChanged(1, OUT_OF_RANGE);
+    }
+  }
+
+  @Test
+  public void testCompressedBytesChanged_Serial() throws IOException {
+    assertExpectedResults(compareAll(null, 1));
+  }
+
+  @Test
+  public void testCompressedBytesChanged_PrivatePool() throws IOException {
+    assertExpectedResults(compareAll(null, 4));
+  }
+
+  @Test
+  public void testCompressedBytesChanged_SuppliedExecutor() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      assertExpectedResults(compareAll(executor, 8));
+      // The supplied executor is left running.
+      Assert.assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCompressedBytesChanged_BadParallelism() throws IOException {
+    compareAll(null, 0);
+  }
+}
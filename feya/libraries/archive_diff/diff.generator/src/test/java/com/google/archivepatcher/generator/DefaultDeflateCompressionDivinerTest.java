@@ -5,6 +5,7 @@
 package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinedArchive;
 import com.google.archivepatcher.shared.DefaultDeflateCompatibilityWindow;
 import com.google.archivepatcher.shared.DeflateCompressor;
 import com.google.archivepatcher.shared.JreDeflateParameters;
@@ -21,8 +22,10 @@ import org.junit.runners.JUnit4;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -195,4 +198,81 @@ public class DefaultDeflateCompressionDivinerTest {
       }
     }
   }
+
+  @Test
+  public void testDivineArchive() throws IOException {
+    File tempFile = File.createTempFile("ddcdt", "tmp");
+    tempFile.deleteOnExit();
+    try {
+      UnitTestZipArchive.saveTestZip(tempFile);
+      DivinedArchive actual = diviner.divineArchive(tempFile, null);
+      List<DivinationResult> expected = diviner.divineDeflateParameters(tempFile);
+      MinimalZipArchiveIndex index = actual.getIndex();
+      Assert.assertEquals(expected.size(), index.size());
+      for (int x = 0; x < expected.size(); x++) {
+        Assert.assertEquals(expected.get(x).minimalZipEntry, index.getEntry(x));
+        Assert.assertEquals(expected.get(x).divinedParameters, actual.getDivinedParameters(x));
+      }
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  @Test
+  public void testDivineDeflateParameters_Adaptive() throws IOException {
+    // An archive produced by a single tool: every compressed entry uses level 9, which is only the
+    // second candidate in the default order.
+    List<UnitTestZipEntry> entries = new ArrayList<UnitTestZipEntry>();
+    for (int x = 0; x < 20; x++) {
+      entries.add(
+          UnitTestZipArchive.makeUnitTestZipEntry(
+              "entry" + x, x % 5 == 0 ? 0 : 9, "prefix" + x, null));
+    }
+    File tempFile = File.createTempFile("ddcdt", "tmp");
+    tempFile.deleteOnExit();
+    try {
+      try (FileOutputStream out = new FileOutputStream(tempFile)) {
+        out.write(UnitTestZipArchive.makeTestZip(entries));
+      }
+      DefaultDeflateCompressionDiviner defaultDiviner = new DefaultDeflateCompressionDiviner();
+      DefaultDeflateCompressionDiviner adaptiveDiviner =
+          new DefaultDeflateCompressionDiviner(null, true);
+      Assert.assertNull(adaptiveDiviner.getStatistics());
+      List<DivinationResult> expected = defaultDiviner.divineDeflateParameters(tempFile);
+      List<DivinationResult> actual = adaptiveDiviner.divineDeflateParameters(tempFile);
+      Assert.assertEquals(expected.size(), actual.size());
+      for (int x = 0; x < expected.size(); x++) {
+        Assert.assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+      }
+
+      DivinationStatistics defaultStatistics = defaultDiviner.getStatistics();
+      DivinationStatistics adaptiveStatistics = adaptiveDiviner.getStatistics();
+      Assert.assertEquals(16, defaultStatistics.getNumEntriesDivined());
+      Assert.assertEquals(16, adaptiveStatistics.getNumEntriesDivined());
+      Assert.assertEquals(0, adaptiveStatistics.getNumEntriesUndivinable());
+      Assert.assertEquals(
+          Integer.valueOf(16),
+          adaptiveStatistics.getWinCounts().get(JreDeflateParameters.of(9, 0, true)));
+      // The default order always takes two attempts, the adaptive one only for the first entry.
+      Assert.assertEquals(32, defaultStatistics.getNumAttempts());
+      Assert.assertEquals(0, defaultStatistics.getNumFirstAttemptHits());
+      Assert.assertEquals(17, adaptiveStatistics.getNumAttempts());
+      Assert.assertEquals(15, adaptiveStatistics.getNumFirstAttemptHits());
+      Assert.assertEquals(15.0 / 16, adaptiveStatistics.getFirstAttemptHitRate(), 0.0001);
+
+      // The parallel diviner learns the order on a fixed set of entries, so the parallelism
+      // doesn't matter.
+      for (int parallelism : new int[] {1, 3}) {
+        ParallelDeflateCompressionDiviner parallelDiviner =
+            new ParallelDeflateCompressionDiviner(null, parallelism, null, true);
+        actual = parallelDiviner.divineDeflateParameters(tempFile);
+        for (int x = 0; x < expected.size(); x++) {
+          Assert.assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+        }
+        Assert.assertEquals(17, parallelDiviner.getStatistics().getNumAttempts());
+      }
+    } finally {
+      tempFile.delete();
+    }
+  }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link DeltaPartitioner}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeltaPartitionerTest {
+
+  private static PreDiffPlan plan(File oldFile, File newFile, File dfOld, File dfNew)
+      throws IOException {
+    return new PreDiffExecutor.Builder()
+        .readingOriginalFiles(oldFile, newFile)
+        .writingDeltaFriendlyFiles(dfOld, dfNew)
+        .build()
+        .prepareForDiffing();
+  }
+
+  private static void assertCoversInOrder(List<DeltaPartitioner.Group> groups, long length) {
+    long expectedOffset = 0;
+    for (DeltaPartitioner.Group group : groups) {
+      Assert.assertEquals(expectedOffset, group.deltaFriendlyNewFileRange.getOffset());
+      Assert.assertTrue(group.deltaFriendlyNewFileRange.getLength() > 0);
+      expectedOffset += group.deltaFriendlyNewFileRange.getLength();
+    }
+    Assert.assertEquals(length, expectedOffset);
+  }
+
+  @Test
+  public void testPartition_IdenticalArchives() throws Exception {
+    try (TempFileHolder oldFile = new TempFileHolder();
+        TempFileHolder newFile = new TempFileHolder();
+        TempFileHolder dfOld = new TempFileHolder();
+        TempFileHolder dfNew = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldFile.file);
+      UnitTestZipArchive.saveTestZip(newFile.file);
+      PreDiffPlan plan = plan(oldFile.file, newFile.file, dfOld.file, dfNew.file);
+      List<DeltaPartitioner.Group> groups =
+          DeltaPartitioner.partition(oldFile.file, newFile.file, plan, 1);
+      // One group per entry, and one for the central directory.
+      Assert.assertEquals(UnitTestZipArchive.allEntriesInFileOrder.size() + 1, groups.size());
+      assertCoversInOrder(groups, dfNew.file.length());
+      for (DeltaPartitioner.Group group : groups) {
+        Assert.assertEquals(group.deltaFriendlyNewFileRange, group.deltaFriendlyOldFileRange);
+      }
+
+      groups = DeltaPartitioner.partition(oldFile.file, newFile.file, plan, Long.MAX_VALUE);
+      Assert.assertEquals(1, groups.size());
+      Assert.assertEquals(0, groups.get(0).deltaFriendlyOldFileRange.getOffset());
+      Assert.assertEquals(
+          dfOld.file.length(), groups.get(0).deltaFriendlyOldFileRange.getLength());
+      assertCoversInOrder(groups, dfNew.file.length());
+    }
+  }
+
+  @Test
+  public void testPartition_ChangedAndAddedEntries() throws Exception {
+    UnitTestZipEntry changedEntry2 =
+        UnitTestZipArchive.makeUnitTestZipEntry(
+            UnitTestZipArchive.entry2.path,
+            UnitTestZipArchive.entry2.level,
+            "changed content of entry 2",
+            null);
+    try (TempFileHolder oldFile = new TempFileHolder();
+        TempFileHolder newFile = new TempFileHolder();
+        TempFileHolder dfOld = new TempFileHolder();
+        TempFileHolder dfNew = new TempFileHolder()) {
+      try (FileOutputStream out = new FileOutputStream(oldFile.file)) {
+        out.write(
+            UnitTestZipArchive.makeTestZip(
+                Arrays.asList(UnitTestZipArchive.entry2, UnitTestZipArchive.entry3)));
+      }
+      try (FileOutputStream out = new FileOutputStream(newFile.file)) {
+        out.write(
+            UnitTestZipArchive.makeTestZip(
+                Arrays.asList(
+                    UnitTestZipArchive.entry1, changedEntry2, UnitTestZipArchive.entry3)));
+      }
+      PreDiffPlan plan = plan(oldFile.file, newFile.file, dfOld.file, dfNew.file);
+      List<DeltaPartitioner.Group> groups =
+          DeltaPartitioner.partition(oldFile.file, newFile.file, plan, 1);
+      Assert.assertEquals(4, groups.size());
+      assertCoversInOrder(groups, dfNew.file.length());
+      // The added entry has nothing to diff against.
+      Assert.assertEquals(0, groups.get(0).deltaFriendlyOldFileRange.getLength());
+      // The changed entry is diffed against the old entry of the same name, which comes first.
+      Assert.assertEquals(0, groups.get(1).deltaFriendlyOldFileRange.getOffset());
+      Assert.assertTrue(groups.get(1).deltaFriendlyOldFileRange.getLength() > 0);
+      Assert.assertEquals(
+          groups.get(1).deltaFriendlyOldFileRange.getLength(),
+          groups.get(2).deltaFriendlyOldFileRange.getOffset());
+      Assert.assertEquals(
+          dfOld.file.length(),
+          groups.get(3).deltaFriendlyOldFileRange.getOffset()
+              + groups.get(3).deltaFriendlyOldFileRange.getLength());
+    }
+  }
+}
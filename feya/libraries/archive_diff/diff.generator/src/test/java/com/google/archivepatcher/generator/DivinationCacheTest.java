@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Tests for {@link DivinationCache}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DivinationCacheTest {
+  private File tempDir = null;
+  private File cacheFile = null;
+
+  @Before
+  public void setup() throws IOException {
+    tempDir = File.createTempFile("dct", "dir");
+    tempDir.delete();
+    tempDir.mkdirs();
+    cacheFile = new File(tempDir, "divination.cache");
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = tempDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    tempDir.delete();
+  }
+
+  private static DivinationCache.Key key(int seed) {
+    byte[] digest = new byte[DivinationCache.DIGEST_LENGTH];
+    digest[0] = (byte) seed;
+    digest[31] = (byte) (seed >> 8);
+    return new DivinationCache.Key(seed * 31L, seed * 1000L, digest);
+  }
+
+  @Test
+  public void testEncodeDecode() {
+    Assert.assertNull(DivinationCache.decode(DivinationCache.encode(null)));
+    for (JreDeflateParameters parameters : JreDeflateParameters.values()) {
+      Assert.assertEquals(
+          parameters, DivinationCache.decode(DivinationCache.encode(parameters)));
+    }
+  }
+
+  @Test
+  public void testStoreLookupFlushAndReload() throws IOException {
+    JreDeflateParameters parameters = JreDeflateParameters.of(9, 0, true);
+    DivinationCache cache = new DivinationCache(cacheFile, 10);
+    Assert.assertNull(cache.lookup(key(1)));
+    cache.store(key(1), parameters);
+    cache.store(key(2), null);
+    Assert.assertEquals(parameters, cache.lookup(key(1)).parameters);
+    Assert.assertNull(cache.lookup(key(2)).parameters);
+    Assert.assertFalse(cacheFile.exists());
+    cache.flush();
+    Assert.assertTrue(cacheFile.exists());
+
+    DivinationCache reloaded = new DivinationCache(cacheFile, 10);
+    Assert.assertEquals(parameters, reloaded.lookup(key(1)).parameters);
+    DivinationCache.Entry undivinable = reloaded.lookup(key(2));
+    Assert.assertNotNull(undivinable);
+    Assert.assertNull(undivinable.parameters);
+    Assert.assertNull(reloaded.lookup(key(3)));
+  }
+
+  @Test
+  public void testFlush_MergesWithOtherInstances() throws IOException {
+    DivinationCache cache1 = new DivinationCache(cacheFile, 10);
+    DivinationCache cache2 = new DivinationCache(cacheFile, 10);
+    // Load both before either flushes, as two concurrent processes would.
+    Assert.assertNull(cache1.lookup(key(1)));
+    Assert.assertNull(cache2.lookup(key(2)));
+    cache1.store(key(1), JreDeflateParameters.of(6, 0, true));
+    cache2.store(key(2), JreDeflateParameters.of(1, 0, true));
+    cache1.flush();
+    cache2.flush();
+
+    DivinationCache reloaded = new DivinationCache(cacheFile, 10);
+    Assert.assertEquals(JreDeflateParameters.of(6, 0, true), reloaded.lookup(key(1)).parameters);
+    Assert.assertEquals(JreDeflateParameters.of(1, 0, true), reloaded.lookup(key(2)).parameters);
+    // The second instance has picked up the result of the first one.
+    Assert.assertNotNull(cache2.lookup(key(1)));
+  }
+
+  @Test
+  public void testFlush_EvictsLeastRecentlyUsed() throws IOException, InterruptedException {
+    DivinationCache cache = new DivinationCache(cacheFile, 2);
+    cache.store(key(1), null);
+    Thread.sleep(5);
+    cache.store(key(2), null);
+    Thread.sleep(5);
+    cache.store(key(3), null);
+    Thread.sleep(5);
+    cache.lookup(key(1)); // Now key 2 is the least recently used.
+    cache.flush();
+
+    DivinationCache reloaded = new DivinationCache(cacheFile, 2);
+    Assert.assertNotNull(reloaded.lookup(key(1)));
+    Assert.assertNull(reloaded.lookup(key(2)));
+    Assert.assertNotNull(reloaded.lookup(key(3)));
+  }
+
+  @Test
+  public void testLookup_CorruptFile() throws IOException {
+    DivinationCache cache = new DivinationCache(cacheFile, 10);
+    cache.store(key(1), null);
+    cache.store(key(2), null);
+    cache.flush();
+    try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+      file.setLength(file.length() - 1);
+    }
+    Assert.assertNull(new DivinationCache(cacheFile, 10).lookup(key(1)));
+  }
+
+  @Test
+  public void testLookup_GarbageAfterValidHeader() throws IOException {
+    // A huge record count followed by too few records, then a count that leaves trailing data.
+    for (int numRecords : new int[] {Integer.MAX_VALUE, -1, 0}) {
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(cacheFile))) {
+        out.writeInt(DivinationCache.MAGIC);
+        out.writeInt(DivinationCache.VERSION);
+        out.writeInt(numRecords);
+        out.write(new byte[100]);
+      }
+      DivinationCache cache = new DivinationCache(cacheFile, 10);
+      Assert.assertNull(cache.lookup(key(1)));
+      cache.store(key(1), null);
+      cache.flush();
+      Assert.assertNotNull(new DivinationCache(cacheFile, 10).lookup(key(1)));
+    }
+  }
+
+  @Test
+  public void testUnloadableCacheIsDisabled() throws IOException {
+    // The cache directory cannot be created, because a regular file is in the way.
+    File notADirectory = new File(tempDir, "not-a-directory");
+    Assert.assertTrue(notADirectory.createNewFile());
+    DivinationCache cache = new DivinationCache(new File(notADirectory, "divination.cache"), 10);
+    Assert.assertNull(cache.lookup(key(1)));
+    cache.store(key(1), null);
+    Assert.assertNull(cache.lookup(key(1)));
+    cache.flush();
+  }
+
+  @Test
+  public void testDiviner_ConsultsAndPopulatesCache() throws IOException {
+    File archive = new File(tempDir, "archive.zip");
+    try (FileOutputStream out = new FileOutputStream(archive)) {
+      out.write(UnitTestZipArchive.makeTestZip());
+    }
+    List<DivinationResult> expected =
+        new DefaultDeflateCompressionDiviner().divineDeflateParameters(archive);
+    List<DivinationResult> actual =
+        new DefaultDeflateCompressionDiviner(new DivinationCache(cacheFile, 10))
+            .divineDeflateParameters(archive);
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int x = 0; x < expected.size(); x++) {
+      Assert.assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+    }
+
+    // Every compressed entry is now cached. Replace one result with a bogus value to prove that
+    // the diviner consults the cache instead of divining again.
+    DivinationCache cache = new DivinationCache(cacheFile, 10);
+    MinimalZipEntry compressedEntry = null;
+    for (DivinationResult result : expected) {
+      if (result.minimalZipEntry.isDeflateCompressed()) {
+        compressedEntry = result.minimalZipEntry;
+        Assert.assertNotNull(cache.lookup(keyOf(archive, compressedEntry)));
+      }
+    }
+    JreDeflateParameters bogus = JreDeflateParameters.of(2, 1, false);
+    cache.store(keyOf(archive, compressedEntry), bogus);
+    cache.flush();
+
+    actual =
+        new ParallelDeflateCompressionDiviner(null, 2, new DivinationCache(cacheFile, 10))
+            .divineDeflateParameters(archive);
+    for (DivinationResult result : actual) {
+      if (result.minimalZipEntry.equals(compressedEntry)) {
+        Assert.assertEquals(bogus, result.divinedParameters);
+      }
+    }
+  }
+
+  private static DivinationCache.Key keyOf(File archive, MinimalZipEntry entry)
+      throws IOException {
+    byte[] compressedData = new byte[(int) entry.getCompressedSize()];
+    try (RandomAccessFile file = new RandomAccessFile(archive, "r")) {
+      file.seek(entry.getFileOffsetOfCompressedData());
+      file.readFully(compressedData);
+    }
+    try {
+      return new DivinationCache.Key(
+          entry.getCrc32OfUncompressedData(),
+          entry.getCompressedSize(),
+          MessageDigest.getInstance("SHA-256").digest(compressedData));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -4,8 +4,12 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,4 +42,104 @@ public class FileByFileV1DeltaGeneratorTest {
     byte[] result = buffer.toByteArray();
     Assert.assertTrue(result.length > 0);
   }
+
+  @Test
+  public void testGenerateDelta_WithSuffixArrayIndex() throws Exception {
+    // Generating twice against the same old file must give the same patch, with the second run
+    // reusing the persisted suffix array index.
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    File indexDirectory = File.createTempFile("FileByFileV1DeltaGeneratorTest", "dir");
+    indexDirectory.delete();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      new FileByFileV1DeltaGenerator().generateDelta(oldArchive.file, newArchive.file, expected);
+      FileByFileV1DeltaGenerator generator = new FileByFileV1DeltaGenerator(indexDirectory);
+      generator.generateDelta(oldArchive.file, newArchive.file, first);
+      Assert.assertEquals(1, indexDirectory.listFiles().length);
+      generator.generateDelta(oldArchive.file, newArchive.file, second);
+      Assert.assertEquals(1, indexDirectory.listFiles().length);
+    } finally {
+      for (File file : indexDirectory.listFiles()) {
+        file.delete();
+      }
+      indexDirectory.delete();
+    }
+    Assert.assertArrayEquals(expected.toByteArray(), first.toByteArray());
+    Assert.assertArrayEquals(expected.toByteArray(), second.toByteArray());
+  }
+
+  @Test
+  public void testGenerateDelta_RandomAccessFile() throws Exception {
+    // Streaming the delta straight into the patch file must give exactly the same patch.
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder();
+        TempFileHolder patchFile = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      FileByFileV1DeltaGenerator generator = new FileByFileV1DeltaGenerator();
+      generator.generateDelta(oldArchive.file, newArchive.file, expected);
+      try (RandomAccessFile patchOut = new RandomAccessFile(patchFile.file, "rw")) {
+        generator.generateDelta(oldArchive.file, newArchive.file, patchOut);
+        byte[] actual = new byte[(int) patchOut.length()];
+        patchOut.seek(0);
+        patchOut.readFully(actual);
+        Assert.assertArrayEquals(expected.toByteArray(), actual);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NegativeDeltaGroupSize() {
+    new FileByFileV1DeltaGenerator(null, -1, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadDeltaParallelism() {
+    new FileByFileV1DeltaGenerator(null, 1, 0);
+  }
+
+  @Test
+  public void testWithContentSimilaritySearch() {
+    FileByFileV1DeltaGenerator generator = new FileByFileV1DeltaGenerator();
+    FileByFileV1DeltaGenerator searching = generator.withContentSimilaritySearch(500);
+    Assert.assertEquals(0, generator.getContentSimilarityBudgetMillis());
+    Assert.assertEquals(500, searching.getContentSimilarityBudgetMillis());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWithContentSimilaritySearch_BadBudget() {
+    new FileByFileV1DeltaGenerator().withContentSimilaritySearch(0);
+  }
+
+  @Test
+  public void testGenerateDelta_PerEntryDeltas() throws Exception {
+    ByteArrayOutputStream singleDelta = new ByteArrayOutputStream();
+    ByteArrayOutputStream oneGroup = new ByteArrayOutputStream();
+    ByteArrayOutputStream perEntry = new ByteArrayOutputStream();
+    ByteArrayOutputStream perEntrySerial = new ByteArrayOutputStream();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      new FileByFileV1DeltaGenerator().generateDelta(oldArchive.file, newArchive.file, singleDelta);
+      new FileByFileV1DeltaGenerator(null, Long.MAX_VALUE, 2)
+          .generateDelta(oldArchive.file, newArchive.file, oneGroup);
+      new FileByFileV1DeltaGenerator(null, 1, 3)
+          .generateDelta(oldArchive.file, newArchive.file, perEntry);
+      new FileByFileV1DeltaGenerator(null, 1, 1)
+          .generateDelta(oldArchive.file, newArchive.file, perEntrySerial);
+    }
+    // A single group that covers everything is just a v1.0 patch.
+    Assert.assertArrayEquals(singleDelta.toByteArray(), oneGroup.toByteArray());
+    byte[] identifier = Arrays.copyOf(perEntry.toByteArray(), 8);
+    Assert.assertArrayEquals(
+        PatchConstants.IDENTIFIER_MULTIPLE_DELTAS.getBytes("US-ASCII"), identifier);
+    // The deltas are generated concurrently, but the patch must not depend on that.
+    Assert.assertArrayEquals(perEntrySerial.toByteArray(), perEntry.toByteArray());
+  }
 }
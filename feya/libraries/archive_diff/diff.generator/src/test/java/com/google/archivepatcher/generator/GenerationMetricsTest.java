@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link GenerationMetrics}, as reported to by {@link FileByFileV1DeltaGenerator}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GenerationMetricsTest {
+
+  private static void saveZip(byte[] zip, TempFileHolder holder) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(holder.file)) {
+      out.write(zip);
+    }
+  }
+
+  private static GenerationMetrics generate(long deltaGroupSizeBytes) throws Exception {
+    // The first entry changes, so it is uncompressed in both archives; the rest stay the same.
+    UnitTestZipEntry changedEntry1 =
+        UnitTestZipArchive.makeUnitTestZipEntry("file1", 1, "Entirely new content.", null);
+    GenerationMetrics metrics = new GenerationMetrics();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      saveZip(
+          UnitTestZipArchive.makeTestZip(
+              Arrays.asList(
+                  changedEntry1,
+                  UnitTestZipArchive.entry2,
+                  UnitTestZipArchive.entry3,
+                  UnitTestZipArchive.entry4)),
+          newArchive);
+      new FileByFileV1DeltaGenerator(null, deltaGroupSizeBytes, 2)
+          .generateDelta(oldArchive.file, newArchive.file, new ByteArrayOutputStream(), metrics);
+    }
+    return metrics;
+  }
+
+  private static void assertMetrics(GenerationMetrics metrics) {
+    for (GenerationPhase phase : GenerationPhase.values()) {
+      Assert.assertTrue(phase.toString(), metrics.getWallNanos(phase) > 0);
+    }
+    Map<String, Integer> attempts = metrics.getDivinationAttemptsByEntry();
+    Assert.assertEquals(3, attempts.size());
+    Assert.assertTrue(attempts.get("file1") > 0);
+    Assert.assertFalse(attempts.containsKey("file4"));
+    Assert.assertTrue(metrics.getBytesInflated() > 0);
+    Assert.assertTrue(metrics.getBytesDeflated() > 0);
+    Assert.assertEquals(
+        1,
+        (int)
+            metrics
+                .getRecommendationReasonCounts()
+                .get(RecommendationReason.COMPRESSED_BYTES_CHANGED));
+    Assert.assertTrue(metrics.getPeakTempDiskUsageBytes() > 0);
+  }
+
+  @Test
+  public void testGenerateDelta_SingleDelta() throws Exception {
+    assertMetrics(generate(0));
+  }
+
+  @Test
+  public void testGenerateDelta_PerEntryDeltas() throws Exception {
+    assertMetrics(generate(1));
+  }
+
+  @Test
+  public void testGetWallNanos_NothingReported() {
+    GenerationMetrics metrics = new GenerationMetrics();
+    Assert.assertEquals(0, metrics.getWallNanos(GenerationPhase.MATCHING));
+    Assert.assertEquals(0, metrics.getCpuNanos(GenerationPhase.MATCHING));
+    Assert.assertEquals(0, metrics.getPeakTempDiskUsageBytes());
+  }
+}
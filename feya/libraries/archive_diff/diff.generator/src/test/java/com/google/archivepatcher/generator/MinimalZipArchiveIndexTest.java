@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MinimalZipArchiveIndex}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class MinimalZipArchiveIndexTest {
+
+  private static MinimalZipEntry makeEntry(String name, long crc32, long offset) {
+    MinimalZipEntry entry =
+        new MinimalZipEntry(
+            8, crc32, 100 + offset, 200 + offset, bytes(name), (offset & 1) == 0, offset);
+    entry.setFileOffsetOfCompressedData(offset + 30 + name.length());
+    return entry;
+  }
+
+  private static byte[] bytes(String name) {
+    return name.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testGetEntry() {
+    List<MinimalZipEntry> entries = new ArrayList<MinimalZipEntry>();
+    // More entries than fit in the initial capacity of the builder, with long names.
+    for (int x = 0; x < 100; x++) {
+      char[] padding = new char[x];
+      Arrays.fill(padding, 'x');
+      entries.add(makeEntry("entry" + x + new String(padding), x * 7, x * 1000));
+    }
+    MinimalZipArchiveIndex.Builder builder = new MinimalZipArchiveIndex.Builder(1);
+    for (MinimalZipEntry entry : entries) {
+      builder.add(entry);
+    }
+    MinimalZipArchiveIndex index = builder.build();
+    Assert.assertEquals(entries.size(), index.size());
+    for (int x = 0; x < entries.size(); x++) {
+      MinimalZipEntry expected = entries.get(x);
+      Assert.assertEquals(expected, index.getEntry(x));
+      Assert.assertEquals(expected.getCompressionMethod(), index.getCompressionMethod(x));
+      Assert.assertEquals(
+          expected.getCrc32OfUncompressedData(), index.getCrc32OfUncompressedData(x));
+      Assert.assertEquals(expected.getCompressedSize(), index.getCompressedSize(x));
+      Assert.assertEquals(expected.getUncompressedSize(), index.getUncompressedSize(x));
+      Assert.assertArrayEquals(expected.getFileNameBytes(), index.getFileNameBytes(x));
+      Assert.assertEquals(expected.getFileOffsetOfLocalEntry(), index.getFileOffsetOfLocalEntry(x));
+      Assert.assertEquals(
+          expected.getFileOffsetOfCompressedData(), index.getFileOffsetOfCompressedData(x));
+      Assert.assertEquals(x, index.indexOfFileName(expected.getFileNameBytes()));
+      Assert.assertFalse(index.isShadowed(x));
+    }
+  }
+
+  @Test
+  public void testBuild_InFileOrder() {
+    // Entries added in central directory order, two of them with the same offset.
+    MinimalZipArchiveIndex.Builder builder = new MinimalZipArchiveIndex.Builder(4);
+    builder.add(makeEntry("a", 1, 300));
+    builder.add(makeEntry("b", 2, 100));
+    builder.add(makeEntry("c", 3, 200));
+    builder.add(makeEntry("d", 4, 100));
+    int[] order = builder.orderByFileOffsetOfLocalEntry();
+    Assert.assertEquals("[1, 3, 2, 0]", Arrays.toString(order));
+    builder.setFileOffsetOfCompressedData(0, 1234);
+    MinimalZipArchiveIndex index = builder.build(order);
+    Assert.assertEquals(4, index.size());
+    Assert.assertEquals(makeEntry("b", 2, 100), index.getEntry(0));
+    Assert.assertEquals(makeEntry("d", 4, 100), index.getEntry(1));
+    Assert.assertEquals(makeEntry("c", 3, 200), index.getEntry(2));
+    Assert.assertEquals(1234, index.getFileOffsetOfCompressedData(3));
+    Assert.assertArrayEquals(bytes("a"), index.getFileNameBytes(3));
+    Assert.assertEquals(3, index.indexOfFileName(bytes("a")));
+    Assert.assertEquals(1, index.indexOfCrc32(4));
+  }
+
+  @Test
+  public void testBuild_AlreadyInFileOrder() {
+    MinimalZipArchiveIndex.Builder builder = new MinimalZipArchiveIndex.Builder(1);
+    builder.add(makeEntry("a", 1, 0));
+    builder.add(makeEntry("b", 2, 100));
+    Assert.assertEquals("[0, 1]", Arrays.toString(builder.orderByFileOffsetOfLocalEntry()));
+  }
+
+  @Test
+  public void testIsDeflateCompressed() {
+    MinimalZipEntry stored = new MinimalZipEntry(0, 1, 10, 10, bytes("a"), false, 0);
+    MinimalZipEntry deflated = new MinimalZipEntry(8, 2, 10, 20, bytes("b"), false, 100);
+    MinimalZipEntry deflatedAtLevelZero = new MinimalZipEntry(8, 3, 10, 10, bytes("c"), false, 200);
+    List<MinimalZipEntry> entries = Arrays.asList(stored, deflated, deflatedAtLevelZero);
+    MinimalZipArchiveIndex index = MinimalZipArchiveIndex.of(entries);
+    for (int x = 0; x < entries.size(); x++) {
+      Assert.assertEquals(entries.get(x).isDeflateCompressed(), index.isDeflateCompressed(x));
+    }
+  }
+
+  @Test
+  public void testIndexOfFileName() {
+    MinimalZipArchiveIndex index =
+        MinimalZipArchiveIndex.of(
+            Arrays.asList(makeEntry("a", 1, 0), makeEntry("b", 2, 100), makeEntry("", 3, 200)));
+    Assert.assertEquals(0, index.indexOfFileName(bytes("a")));
+    Assert.assertEquals(1, index.indexOfFileName(bytes("b")));
+    Assert.assertEquals(2, index.indexOfFileName(bytes("")));
+    Assert.assertEquals(-1, index.indexOfFileName(bytes("c")));
+    Assert.assertEquals(-1, index.indexOfFileName(bytes("ab")));
+  }
+
+  @Test
+  public void testIndexOfFileNameOf() {
+    MinimalZipArchiveIndex oldIndex =
+        MinimalZipArchiveIndex.of(Arrays.asList(makeEntry("a", 1, 0), makeEntry("b", 2, 100)));
+    MinimalZipArchiveIndex newIndex =
+        MinimalZipArchiveIndex.of(Arrays.asList(makeEntry("c", 3, 0), makeEntry("a", 4, 100)));
+    Assert.assertEquals(-1, oldIndex.indexOfFileNameOf(newIndex, 0));
+    Assert.assertEquals(0, oldIndex.indexOfFileNameOf(newIndex, 1));
+    Assert.assertEquals(1, newIndex.indexOfFileNameOf(oldIndex, 0));
+    Assert.assertEquals(-1, newIndex.indexOfFileNameOf(oldIndex, 1));
+  }
+
+  @Test
+  public void testIndexOfCrc32() {
+    MinimalZipArchiveIndex index =
+        MinimalZipArchiveIndex.of(
+            Arrays.asList(
+                makeEntry("a", 0xffffffffL, 0),
+                makeEntry("b", 5, 100),
+                makeEntry("c", 0x80000000L, 200),
+                makeEntry("d", 5, 300),
+                makeEntry("e", 0, 400)));
+    Assert.assertEquals(0, index.indexOfCrc32(0xffffffffL));
+    // The first entry in the index wins.
+    Assert.assertEquals(1, index.indexOfCrc32(5));
+    Assert.assertEquals(2, index.indexOfCrc32(0x80000000L));
+    Assert.assertEquals(4, index.indexOfCrc32(0));
+    Assert.assertEquals(-1, index.indexOfCrc32(4));
+    Assert.assertEquals(-1, index.indexOfCrc32(0x7fffffffL));
+  }
+
+  @Test
+  public void testShadowing() {
+    MinimalZipArchiveIndex index =
+        MinimalZipArchiveIndex.of(
+            Arrays.asList(makeEntry("a", 1, 0), makeEntry("b", 2, 100), makeEntry("a", 3, 200)));
+    // As with a map by file name, the last entry with a name is the one that counts.
+    Assert.assertTrue(index.isShadowed(0));
+    Assert.assertFalse(index.isShadowed(1));
+    Assert.assertFalse(index.isShadowed(2));
+    Assert.assertEquals(2, index.indexOfFileName(bytes("a")));
+    Assert.assertEquals(-1, index.indexOfCrc32(1));
+    Assert.assertEquals(2, index.indexOfCrc32(3));
+  }
+
+  @Test
+  public void testEmpty() {
+    MinimalZipArchiveIndex index =
+        MinimalZipArchiveIndex.of(Collections.<MinimalZipEntry>emptyList());
+    Assert.assertEquals(0, index.size());
+    Assert.assertEquals(-1, index.indexOfFileName(bytes("a")));
+    Assert.assertEquals(-1, index.indexOfCrc32(0));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetEntry_OutOfRange() {
+    MinimalZipArchiveIndex.of(Collections.singletonList(makeEntry("a", 1, 0))).getEntry(1);
+  }
+}
@@ -14,11 +14,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Tests for {@link MinimalZipParser}.
@@ -99,4 +104,179 @@ public class MinimalZipArchiveTest {
       }
     }
   }
+
+  private static void writeLittleEndian(ByteArrayOutputStream out, long value, int numBytes) {
+    for (int x = 0; x < numBytes; x++) {
+      out.write((int) (value >>> (8 * x)));
+    }
+  }
+
+  /**
+   * The number of bytes before the first local entry of the zip64 archive, so that the offset of
+   * the local entry differs from both of its sizes.
+   */
+  private static final int ZIP64_PREAMBLE_LENGTH = 7;
+
+  private static byte[] deflate(byte[] content) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished()) {
+        int numBytes = deflater.deflate(buffer);
+        out.write(buffer, 0, numBytes);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Makes a zip64 archive by hand with a single deflated entry after a short preamble, whose sizes
+   * and offset are all in the zip64 extra field of its central directory entry, and whose
+   * end-of-central-directory record only has placeholders.
+   */
+  private static byte[] makeZip64Archive(byte[] fileName, byte[] content) {
+    return makeZip64Archive(fileName, content, 1);
+  }
+
+  /**
+   * Like {@link #makeZip64Archive(byte[], byte[])}, but with the specified number of entries
+   * claimed by the zip64 end-of-central-directory record.
+   */
+  private static byte[] makeZip64Archive(byte[] fileName, byte[] content, long numEntries) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    byte[] compressedContent = deflate(content);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[ZIP64_PREAMBLE_LENGTH], 0, ZIP64_PREAMBLE_LENGTH);
+    // Local entry, with a dummy extra field to make sure its length is accounted for.
+    writeLittleEndian(out, 0x04034b50, 4);
+    writeLittleEndian(out, 45, 2); // version needed to extract
+    writeLittleEndian(out, 0, 2); // flags
+    writeLittleEndian(out, 8, 2); // method (deflated)
+    writeLittleEndian(out, 0, 2 + 2); // time, date
+    writeLittleEndian(out, crc32.getValue(), 4);
+    writeLittleEndian(out, compressedContent.length, 4);
+    writeLittleEndian(out, content.length, 4);
+    writeLittleEndian(out, fileName.length, 2);
+    writeLittleEndian(out, 3, 2);
+    out.write(fileName, 0, fileName.length);
+    out.write(new byte[3], 0, 3);
+    out.write(compressedContent, 0, compressedContent.length);
+
+    long offsetOfCentralDirectory = out.size();
+    writeLittleEndian(out, 0x02014b50, 4);
+    writeLittleEndian(out, 45, 2 + 2); // version made by, version needed to extract
+    writeLittleEndian(out, 0, 2); // flags
+    writeLittleEndian(out, 8, 2); // method (deflated)
+    writeLittleEndian(out, 0, 2 + 2); // time, date
+    writeLittleEndian(out, crc32.getValue(), 4);
+    writeLittleEndian(out, 0xffffffffL, 4); // compressed size, see zip64 extra
+    writeLittleEndian(out, 0xffffffffL, 4); // uncompressed size, see zip64 extra
+    writeLittleEndian(out, fileName.length, 2);
+    writeLittleEndian(out, 8 + 4 + 24, 2); // extras: an unrelated field, then the zip64 field
+    writeLittleEndian(out, 0, 2 + 2 + 2 + 4); // comment length, disk, attributes
+    writeLittleEndian(out, 0xffffffffL, 4); // offset of local entry, see zip64 extra
+    out.write(fileName, 0, fileName.length);
+    writeLittleEndian(out, 0x5455, 2); // extended timestamp
+    writeLittleEndian(out, 4, 2);
+    writeLittleEndian(out, 0, 4);
+    writeLittleEndian(out, 0x0001, 2); // zip64 extended information
+    writeLittleEndian(out, 24, 2);
+    // The spec fixes the order of these fields: uncompressed size, compressed size, offset.
+    writeLittleEndian(out, content.length, 8); // uncompressed size
+    writeLittleEndian(out, compressedContent.length, 8); // compressed size
+    writeLittleEndian(out, ZIP64_PREAMBLE_LENGTH, 8); // offset of local entry
+    long lengthOfCentralDirectory = out.size() - offsetOfCentralDirectory;
+
+    long offsetOfZip64Eocd = out.size();
+    writeLittleEndian(out, 0x06064b50, 4);
+    writeLittleEndian(out, 44, 8); // size of the rest of the record
+    writeLittleEndian(out, 45, 2 + 2); // version made by, version needed to extract
+    writeLittleEndian(out, 0, 4 + 4); // disk numbers
+    writeLittleEndian(out, numEntries, 8); // entries on this disk
+    writeLittleEndian(out, numEntries, 8); // entries overall
+    writeLittleEndian(out, lengthOfCentralDirectory, 8);
+    writeLittleEndian(out, offsetOfCentralDirectory, 8);
+
+    writeLittleEndian(out, 0x07064b50, 4);
+    writeLittleEndian(out, 0, 4); // disk of the zip64 eocd record
+    writeLittleEndian(out, offsetOfZip64Eocd, 8);
+    writeLittleEndian(out, 1, 4); // number of disks
+
+    writeLittleEndian(out, 0x06054b50, 4);
+    writeLittleEndian(out, 0xffff, 2 + 2 + 2 + 2); // disk numbers and entry counts
+    writeLittleEndian(out, 0xffffffffL, 4); // length of central directory
+    writeLittleEndian(out, 0xffffffffL, 4); // offset of central directory
+    writeLittleEndian(out, 0, 2); // comment length
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testListEntries_Zip64() throws IOException {
+    byte[] fileName = "zip64".getBytes("US-ASCII");
+    byte[] content =
+        ("Some content that is deflated in a zip64 archive, "
+                + "some content that is deflated in a zip64 archive")
+            .getBytes("US-ASCII");
+    long compressedSize = deflate(content).length;
+    // Distinct values, so that a parser that reads the zip64 fields in the wrong order fails.
+    Assert.assertNotEquals(content.length, compressedSize);
+    Assert.assertNotEquals(content.length, ZIP64_PREAMBLE_LENGTH);
+    Assert.assertNotEquals(compressedSize, ZIP64_PREAMBLE_LENGTH);
+    byte[] archive = makeZip64Archive(fileName, content);
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(archive);
+    }
+    List<MinimalZipEntry> parsedEntries = MinimalZipArchive.listEntries(tempFile);
+    Assert.assertEquals(1, parsedEntries.size());
+    MinimalZipEntry actual = parsedEntries.get(0);
+    Assert.assertEquals("zip64", actual.getFileName());
+    Assert.assertEquals(8, actual.getCompressionMethod());
+    Assert.assertEquals(compressedSize, actual.getCompressedSize());
+    Assert.assertEquals(content.length, actual.getUncompressedSize());
+    Assert.assertEquals(ZIP64_PREAMBLE_LENGTH, actual.getFileOffsetOfLocalEntry());
+    Assert.assertEquals(
+        ZIP64_PREAMBLE_LENGTH + 30 + fileName.length + 3, actual.getFileOffsetOfCompressedData());
+  }
+
+  @Test
+  public void testListEntries_Zip64EntryCountLargerThanCentralDirectory() throws IOException {
+    byte[] fileName = "zip64".getBytes("US-ASCII");
+    byte[] content = "Some content".getBytes("US-ASCII");
+    // Presizing the list of entries from this count would need gigabytes of memory.
+    byte[] archive = makeZip64Archive(fileName, content, Integer.MAX_VALUE - 8);
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(archive);
+    }
+    try {
+      MinimalZipArchive.listEntries(tempFile);
+      Assert.fail("Expected ZipException");
+    } catch (ZipException expected) {
+      // Pass
+    }
+  }
+
+  @Test
+  public void testListEntries_MoreThan65535Entries() throws IOException {
+    // The JDK switches to a zip64 end-of-central-directory record at 65535 entries.
+    int numEntries = 70000;
+    try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(tempFile))) {
+      zipOut.setLevel(0);
+      for (int x = 0; x < numEntries; x++) {
+        zipOut.putNextEntry(new ZipEntry(Integer.toString(x)));
+        zipOut.write(x);
+        zipOut.closeEntry();
+      }
+    }
+    List<MinimalZipEntry> parsedEntries = MinimalZipArchive.listEntries(tempFile);
+    Assert.assertEquals(numEntries, parsedEntries.size());
+    for (int x = 0; x < numEntries; x++) {
+      Assert.assertEquals(Integer.toString(x), parsedEntries.get(x).getFileName());
+    }
+  }
 }
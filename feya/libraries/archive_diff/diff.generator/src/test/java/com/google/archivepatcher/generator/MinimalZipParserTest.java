@@ -18,9 +18,12 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 
 /**
  * Tests for {@link MinimalZipParser}.
@@ -204,4 +207,83 @@ public class MinimalZipParserTest {
           (int) (parsedEntry.getFileOffsetOfLocalEntry() + relativeDataOffset));
     }
   }
+
+  /**
+   * Returns a little-endian buffer over the central directory of the unit test archive.
+   */
+  private ByteBuffer wrapCentralDirectory() throws IOException {
+    int eocdOffset = MinimalZipParser.locateStartOfEocd(unitTestZipArchive);
+    ByteArrayInputStream in = new ByteArrayInputStream(unitTestZipArchive);
+    Assert.assertEquals(eocdOffset, in.skip(eocdOffset));
+    MinimalCentralDirectoryMetadata metadata = MinimalZipParser.parseEocd(in);
+    return ByteBuffer.wrap(
+            unitTestZipArchive,
+            (int) metadata.getOffsetOfCentralDirectory(),
+            (int) metadata.getLengthOfCentralDirectory())
+        .slice()
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Test
+  public void testParseCentralDirectoryEntry_WithBuffer() throws Exception {
+    ByteBuffer centralDirectory = wrapCentralDirectory();
+    ByteArrayInputStream in =
+        new ByteArrayInputStream(
+            centralDirectory.array(),
+            centralDirectory.arrayOffset(),
+            centralDirectory.remaining());
+    // Both flavors must parse exactly the same entries, and consume exactly the same bytes.
+    for (int x = 0; x < UnitTestZipArchive.allEntriesInFileOrder.size(); x++) {
+      MinimalZipEntry expected = MinimalZipParser.parseCentralDirectoryEntry(in);
+      MinimalZipEntry actual = MinimalZipParser.parseCentralDirectoryEntry(centralDirectory);
+      Assert.assertEquals(expected, actual);
+      Assert.assertEquals(
+          UnitTestZipArchive.allEntriesInFileOrder.get(x).path, actual.getFileName());
+    }
+    Assert.assertEquals(0, centralDirectory.remaining());
+    Assert.assertEquals(0, in.available());
+  }
+
+  @Test
+  public void testParseCentralDirectoryEntry_WithBuffer_Truncated() throws Exception {
+    ByteBuffer centralDirectory = wrapCentralDirectory();
+    // Cut the buffer off in the middle of the file name of the first entry.
+    centralDirectory.limit(MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH + 1);
+    try {
+      MinimalZipParser.parseCentralDirectoryEntry(centralDirectory);
+      Assert.fail("Parsed a truncated entry");
+    } catch (ZipException expected) {
+      // Pass
+    }
+    centralDirectory.limit(MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_FIXED_LENGTH - 1);
+    try {
+      MinimalZipParser.parseCentralDirectoryEntry(centralDirectory);
+      Assert.fail("Parsed a truncated entry");
+    } catch (ZipException expected) {
+      // Pass
+    }
+  }
+
+  @Test
+  public void testParseLocalEntryAndGetCompressedDataOffset_WithBuffer() throws Exception {
+    ByteBuffer archive = ByteBuffer.wrap(unitTestZipArchive).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer centralDirectory = wrapCentralDirectory();
+    for (int x = 0; x < UnitTestZipArchive.allEntriesInFileOrder.size(); x++) {
+      MinimalZipEntry parsedEntry = MinimalZipParser.parseCentralDirectoryEntry(centralDirectory);
+      int localEntryOffset = (int) parsedEntry.getFileOffsetOfLocalEntry();
+      ByteArrayInputStream in =
+          new ByteArrayInputStream(
+              unitTestZipArchive, localEntryOffset, unitTestZipArchive.length - localEntryOffset);
+      Assert.assertEquals(
+          MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(in),
+          MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(archive, localEntryOffset));
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void testParseLocalEntryAndGetCompressedDataOffset_WithBuffer_BadSignature()
+      throws Exception {
+    ByteBuffer archive = ByteBuffer.wrap(unitTestZipArchive).order(ByteOrder.LITTLE_ENDIAN);
+    MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(archive, 1);
+  }
 }
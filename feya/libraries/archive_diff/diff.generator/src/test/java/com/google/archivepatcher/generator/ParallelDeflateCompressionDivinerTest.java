@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link ParallelDeflateCompressionDiviner}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ParallelDeflateCompressionDivinerTest {
+  private File tempFile = null;
+  private List<UnitTestZipEntry> entriesInFileOrder = null;
+
+  @Before
+  public void setup() throws IOException {
+    // Enough entries of different levels and sizes to keep several threads busy.
+    entriesInFileOrder = new ArrayList<UnitTestZipEntry>();
+    for (int x = 0; x < 24; x++) {
+      int level = x % 10;
+      StringBuilder prefix = new StringBuilder();
+      for (int y = 0; y < x; y++) {
+        prefix.append("prefix ").append(y).append(' ');
+      }
+      entriesInFileOrder.add(
+          UnitTestZipArchive.makeUnitTestZipEntry(
+              "entry" + x, level, prefix.toString(), null));
+    }
+    tempFile = File.createTempFile("pdcdt", "tmp");
+    tempFile.deleteOnExit();
+    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+      out.write(UnitTestZipArchive.makeTestZip(entriesInFileOrder));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    try {
+      tempFile.delete();
+    } catch (Exception ignored) {
+      // Nothing
+    }
+  }
+
+  private void assertSameResults(List<DivinationResult> expected, List<DivinationResult> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int x = 0; x < expected.size(); x++) {
+      Assert.assertEquals(
+          expected.get(x).minimalZipEntry.getFileName(),
+          actual.get(x).minimalZipEntry.getFileName());
+      Assert.assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BadParallelism() {
+    new ParallelDeflateCompressionDiviner(0);
+  }
+
+  @Test
+  public void testDivineDeflateParameters_SameAsSerial() throws IOException {
+    List<DivinationResult> expected =
+        new DefaultDeflateCompressionDiviner().divineDeflateParameters(tempFile);
+    Assert.assertEquals(entriesInFileOrder.size(), expected.size());
+    for (int x = 0; x < entriesInFileOrder.size(); x++) {
+      UnitTestZipEntry entry = entriesInFileOrder.get(x);
+      DivinationResult result = expected.get(x);
+      Assert.assertEquals(entry.path, result.minimalZipEntry.getFileName());
+      if (entry.level > 0) {
+        Assert.assertNotNull(result.divinedParameters);
+        Assert.assertEquals(entry.level, result.divinedParameters.level);
+      } else {
+        Assert.assertNull(result.divinedParameters);
+      }
+    }
+
+    for (int parallelism : new int[] {1, 2, 4, 100}) {
+      assertSameResults(
+          expected,
+          new ParallelDeflateCompressionDiviner(parallelism).divineDeflateParameters(tempFile));
+    }
+  }
+
+  @Test
+  public void testDivineDeflateParameters_SuppliedExecutor() throws IOException {
+    List<DivinationResult> expected =
+        new DefaultDeflateCompressionDiviner().divineDeflateParameters(tempFile);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      ParallelDeflateCompressionDiviner diviner =
+          new ParallelDeflateCompressionDiviner(executor, 3);
+      assertSameResults(expected, diviner.divineDeflateParameters(tempFile));
+      // The executor is not shut down, so the diviner can be used again.
+      assertSameResults(expected, diviner.divineDeflateParameters(tempFile));
+      Assert.assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDivineDeflateParameters_Interrupted() throws IOException {
+    for (DefaultDeflateCompressionDiviner diviner :
+        new DefaultDeflateCompressionDiviner[] {
+          new DefaultDeflateCompressionDiviner(), new ParallelDeflateCompressionDiviner(4)
+        }) {
+      Thread.currentThread().interrupt();
+      try {
+        diviner.divineDeflateParameters(tempFile);
+        Assert.fail("divination should not complete when interrupted");
+      } catch (InterruptedIOException expected) {
+        // The interrupt status must be preserved for the caller.
+        Assert.assertTrue(Thread.interrupted());
+      } finally {
+        Thread.interrupted();
+      }
+    }
+  }
+}
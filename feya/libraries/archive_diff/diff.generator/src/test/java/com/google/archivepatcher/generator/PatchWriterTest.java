@@ -21,6 +21,9 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -139,4 +142,89 @@ public class PatchWriterTest {
     patchIn.readFully(actualDeltaContent);
     Assert.assertArrayEquals(expectedDeltaContent, actualDeltaContent);
   }
+
+  @Test
+  public void testWriteV1Patch_RandomAccessFile() throws Exception {
+    // Streaming the delta into a seekable output must give exactly the same patch.
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    byte[] expected = buffer.toByteArray();
+    DeltaGenerator deltaGenerator =
+        new DeltaGenerator() {
+          @Override
+          public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
+              throws IOException {
+            deltaOut.write(DELTA_CONTENT.getBytes("US-ASCII"));
+          }
+        };
+    File patchFile = File.createTempFile("patchwritertest", "patch");
+    try (RandomAccessFile patchOut = new RandomAccessFile(patchFile, "rw")) {
+      patchOut.write(new byte[] {1, 2, 3}); // The patch starts at the current file pointer
+      new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+          .writeV1Patch(patchOut, deltaGenerator, null, null);
+      Assert.assertEquals(3 + expected.length, patchOut.getFilePointer());
+      byte[] actual = new byte[(int) patchOut.length()];
+      patchOut.seek(0);
+      patchOut.readFully(actual);
+      Assert.assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(actual, 3));
+      Assert.assertArrayEquals(expected, Arrays.copyOfRange(actual, 3, actual.length));
+    } finally {
+      patchFile.delete();
+    }
+  }
+
+  @Test
+  public void testWriteV1Patch_MultipleDeltas() throws IOException {
+    // Anything but one delta for the entire files is a v1.1 patch, with the deltas in order.
+    File secondDeltaFile = File.createTempFile("patchwritertest", "delta");
+    try {
+      try (FileOutputStream out = new FileOutputStream(secondDeltaFile)) {
+        out.write("second".getBytes("US-ASCII"));
+      }
+      List<DeltaEntry> deltaEntries =
+          Arrays.asList(
+              new DeltaEntry(
+                  new TypedRange<Void>(0, 0, null), new TypedRange<Void>(0, 75L, null), deltaFile),
+              new DeltaEntry(
+                  new TypedRange<Void>(10L, DELTA_FRIENDLY_OLD_FILE_SIZE - 10L, null),
+                  new TypedRange<Void>(75L, DELTA_FRIENDLY_NEW_FILE_SIZE - 75L, null),
+                  secondDeltaFile));
+      new PatchWriter(
+              PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaEntries)
+          .writeV1Patch(buffer);
+    } finally {
+      secondDeltaFile.delete();
+    }
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    byte[] eightBytes = new byte[8];
+    patchIn.readFully(eightBytes);
+    Assert.assertArrayEquals(
+        PatchConstants.IDENTIFIER_MULTIPLE_DELTAS.getBytes("US-ASCII"), eightBytes);
+    // Skip the flags, the old file size and both plans, which are the same as in v1.0.
+    patchIn.skipBytes(4 + 8 + 4 + 16 + 4 + 16 + 4);
+
+    Assert.assertEquals(2, patchIn.readInt()); // Number of difference records
+    Assert.assertEquals(PatchConstants.DeltaFormat.BSDIFF.patchValue, patchIn.read());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(75L, patchIn.readLong());
+    Assert.assertEquals(DELTA_CONTENT.length(), patchIn.readLong());
+    Assert.assertEquals(PatchConstants.DeltaFormat.BSDIFF.patchValue, patchIn.read());
+    Assert.assertEquals(10L, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE - 10L, patchIn.readLong());
+    Assert.assertEquals(75L, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_NEW_FILE_SIZE - 75L, patchIn.readLong());
+    Assert.assertEquals("second".length(), patchIn.readLong());
+    byte[] actualDeltaContent = new byte[DELTA_CONTENT.length() + "second".length()];
+    patchIn.readFully(actualDeltaContent);
+    Assert.assertEquals(DELTA_CONTENT + "second", new String(actualDeltaContent, "US-ASCII"));
+    Assert.assertEquals(-1, patchIn.read());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testWriteV1Patch_NoDeltaFile() throws IOException {
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE)
+        .writeV1Patch(buffer);
+  }
 }
@@ -15,6 +15,10 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -130,6 +134,30 @@ public class PreDiffExecutorTest {
     assertFileEquals(newFile, deltaFriendlyNewFile);
   }
 
+  @Test
+  public void testPrepareForDiffing_ComparisonParallelism() throws IOException {
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip();
+    File oldFile = store(oldBytes);
+    File newFile = store(oldBytes);
+    PreDiffExecutor executor =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .withComparisonParallelism(null, 4)
+            .build();
+    PreDiffPlan plan = executor.prepareForDiffing();
+    // Every compressed entry is compared, and none has changed.
+    Assert.assertTrue(plan.getOldFileUncompressionPlan().isEmpty());
+    Assert.assertTrue(plan.getNewFileUncompressionPlan().isEmpty());
+    for (QualifiedRecommendation recommendation : plan.getQualifiedRecommendations()) {
+      Assert.assertEquals(Recommendation.UNCOMPRESS_NEITHER, recommendation.getRecommendation());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_BadComparisonParallelism() {
+    new PreDiffExecutor.Builder().withComparisonParallelism(null, 0);
+  }
+
   @Test
   public void testPrepareForDiffing_OneCompressedEntry_Changed() throws IOException {
     byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6));
@@ -192,6 +220,83 @@ public class PreDiffExecutorTest {
     }
   }
 
+  /**
+   * Prepares the specified files for diffing with the specified stage executor, and checks that
+   * the plan and the delta-friendly files are the same as when the stages run one after the other.
+   */
+  private void checkStageExecutor(Executor stageExecutor) throws IOException {
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6));
+    File oldFile = store(oldBytes);
+    byte[] newBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9));
+    File newFile = store(newBytes);
+    PreDiffPlan expectedPlan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    File concurrentDeltaFriendlyOldFile = newTempFile();
+    File concurrentDeltaFriendlyNewFile = newTempFile();
+    PreDiffPlan plan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(
+                concurrentDeltaFriendlyOldFile, concurrentDeltaFriendlyNewFile)
+            .withStageExecutor(stageExecutor)
+            .build()
+            .prepareForDiffing();
+    Assert.assertEquals(
+        expectedPlan.getQualifiedRecommendations(), plan.getQualifiedRecommendations());
+    Assert.assertEquals(
+        expectedPlan.getOldFileUncompressionPlan(), plan.getOldFileUncompressionPlan());
+    Assert.assertEquals(
+        expectedPlan.getNewFileUncompressionPlan(), plan.getNewFileUncompressionPlan());
+    Assert.assertEquals(
+        expectedPlan.getDeltaFriendlyNewFileRecompressionPlan(),
+        plan.getDeltaFriendlyNewFileRecompressionPlan());
+    Assert.assertEquals(1, plan.getOldFileUncompressionPlan().size());
+    assertFileEquals(deltaFriendlyOldFile, concurrentDeltaFriendlyOldFile);
+    assertFileEquals(deltaFriendlyNewFile, concurrentDeltaFriendlyNewFile);
+  }
+
+  @Test
+  public void testPrepareForDiffing_StageExecutor() throws IOException {
+    ExecutorService stageExecutor = Executors.newFixedThreadPool(2);
+    try {
+      checkStageExecutor(stageExecutor);
+    } finally {
+      stageExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testPrepareForDiffing_StageExecutor_NeverRuns() throws IOException {
+    // The stages that are handed to the executor are run by the calling thread instead.
+    checkStageExecutor(
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            // Dropped
+          }
+        });
+  }
+
+  @Test
+  public void testPrepareForDiffing_StageExecutor_Rejects() throws IOException {
+    checkStageExecutor(
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            throw new RejectedExecutionException();
+          }
+        });
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullStageExecutor() {
+    new PreDiffExecutor.Builder().withStageExecutor(null);
+  }
+
   @Test
   public void testPrepareForDiffing_OneCompressedEntry_Changed_Limited() throws IOException {
     // Like above, but this time limited by a TotalRecompressionLimiter that will prevent the
@@ -82,6 +82,11 @@ public class PreDiffPlannerTest {
   private static final UnitTestZipEntry SHADOW_ENTRY_A_STORED =
       UnitTestZipArchive.makeUnitTestZipEntry("/same as A stored", 0, "entry A", null);
 
+  // The "modified shadow" entry has a different path than ENTRY_A_* and a slightly different
+  // content, as if it had been both renamed and modified. It can only be matched by content.
+  private static final UnitTestZipEntry MODIFIED_SHADOW_ENTRY_A_LEVEL_6 =
+      UnitTestZipArchive.makeUnitTestZipEntry("/modified A level 6", 6, "entry A, modified", null);
+
   private List<File> tempFilesCreated;
   private Map<File, Map<ByteArrayHolder, MinimalZipEntry>> entriesByPathByTempFile;
 
@@ -229,6 +234,15 @@ public class PreDiffPlannerTest {
   private PreDiffPlan invokeGeneratePreDiffPlan(
       File oldFile, File newFile, RecommendationModifier... recommendationModifiers)
       throws IOException {
+    return invokeGeneratePreDiffPlan(oldFile, newFile, 0, recommendationModifiers);
+  }
+
+  private PreDiffPlan invokeGeneratePreDiffPlan(
+      File oldFile,
+      File newFile,
+      long contentSimilarityBudgetMillis,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException {
     Map<ByteArrayHolder, MinimalZipEntry> originalOldArchiveZipEntriesByPath =
         new LinkedHashMap<ByteArrayHolder, MinimalZipEntry>();
     Map<ByteArrayHolder, MinimalZipEntry> originalNewArchiveZipEntriesByPath =
@@ -255,6 +269,7 @@ public class PreDiffPlannerTest {
             newFile,
             originalNewArchiveZipEntriesByPath,
             originalNewArchiveJreDeflateParametersByPath,
+            contentSimilarityBudgetMillis,
             recommendationModifiers);
     return preDiffPlanner.generatePreDiffPlan();
   }
@@ -706,4 +721,69 @@ public class PreDiffPlannerTest {
             RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED));
   }
 
+  @Test
+  public void testGeneratePreDiffPlan_RenameAndModify_NoContentSimilaritySearch()
+      throws IOException {
+    // Test the case where file paths are different and the uncompressed content has changed too.
+    // Without a content similarity search, there is nothing to diff the new entry against.
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Collections.singletonList(MODIFIED_SHADOW_ENTRY_A_LEVEL_6));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile);
+    Assert.assertNotNull(plan);
+    Assert.assertTrue(plan.getOldFileUncompressionPlan().isEmpty());
+    Assert.assertTrue(plan.getNewFileUncompressionPlan().isEmpty());
+    Assert.assertTrue(plan.getQualifiedRecommendations().isEmpty());
+  }
+
+  @Test
+  public void testGeneratePreDiffPlan_RenameAndModify_ContentSimilaritySearch()
+      throws IOException {
+    // Test the case where file paths are different and the uncompressed content has changed too.
+    // The content similarity search should find the old entry, and the plan should be to uncompress
+    // both entries just as if the path had stayed the same.
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_B_LEVEL_6, ENTRY_A_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(
+            Arrays.asList(ENTRY_B_LEVEL_6, MODIFIED_SHADOW_ENTRY_A_LEVEL_6));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile, 60000);
+    Assert.assertNotNull(plan);
+    Assert.assertEquals(1, plan.getOldFileUncompressionPlan().size());
+    Assert.assertEquals(
+        findRangeWithoutParams(oldFile, ENTRY_A_LEVEL_6),
+        plan.getOldFileUncompressionPlan().get(0));
+    Assert.assertEquals(1, plan.getNewFileUncompressionPlan().size());
+    Assert.assertEquals(
+        findRangeWithParams(newFile, MODIFIED_SHADOW_ENTRY_A_LEVEL_6),
+        plan.getNewFileUncompressionPlan().get(0));
+    checkRecommendation(
+        plan,
+        new QualifiedRecommendation(
+            findEntry(oldFile, ENTRY_B_LEVEL_6),
+            findEntry(newFile, ENTRY_B_LEVEL_6),
+            Recommendation.UNCOMPRESS_NEITHER,
+            RecommendationReason.COMPRESSED_BYTES_IDENTICAL),
+        new QualifiedRecommendation(
+            findEntry(oldFile, ENTRY_A_LEVEL_6),
+            findEntry(newFile, MODIFIED_SHADOW_ENTRY_A_LEVEL_6),
+            Recommendation.UNCOMPRESS_BOTH,
+            RecommendationReason.COMPRESSED_BYTES_CHANGED));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NegativeContentSimilarityBudget() {
+    new PreDiffPlanner(
+        null,
+        new HashMap<ByteArrayHolder, MinimalZipEntry>(),
+        null,
+        new HashMap<ByteArrayHolder, MinimalZipEntry>(),
+        new HashMap<ByteArrayHolder, JreDeflateParameters>(),
+        -1);
+  }
+
 }
@@ -6,15 +6,20 @@ package com.google.archivepatcher.generator.bsdiff;
 
 import com.google.archivepatcher.generator.bsdiff.Matcher.NextMatch;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
 import org.junit.Assert;
 import org.junit.Test;
@@ -244,6 +249,86 @@ public class BsDiffTest {
     Assert.assertArrayEquals(actualPatch, expectedPatch);
   }
 
+  @Test
+  public void generatePatchTooLargeTest() throws Exception {
+    File oldFile = File.createTempFile("BsDiffTest", "old");
+    File newFile = File.createTempFile("BsDiffTest", "new");
+    try {
+      // A sparse file just over the limit; it is rejected before anything is read or mapped.
+      try (RandomAccessFile raf = new RandomAccessFile(oldFile, "rw")) {
+        raf.setLength(BsDiffPatchWriter.MAX_DATA_LENGTH + 1);
+      }
+      try {
+        BsDiffPatchWriter.generatePatch(oldFile, newFile, new ByteArrayOutputStream());
+        Assert.fail("Expected IllegalArgumentException");
+      } catch (IllegalArgumentException expected) {
+        // Pass
+      }
+      try {
+        BsDiffPatchWriter.generatePatch(newFile, oldFile, new ByteArrayOutputStream());
+        Assert.fail("Expected IllegalArgumentException");
+      } catch (IllegalArgumentException expected) {
+        // Pass
+      }
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
+  @Test
+  public void generatePatchReusesPooledRegionTest() throws Exception {
+    byte[] oldData = readTestData("BsDiffInternalTestOld.txt");
+    byte[] newData = readTestData("BsDiffInternalTestNew.txt");
+    byte[] expectedPatch = readTestData("BsDiffInternalTestPatchExpected.patch");
+    File oldFile = File.createTempFile("BsDiffTest", "old");
+    File newFile = File.createTempFile("BsDiffTest", "new");
+    try (MappedRegionPool pool = new MappedRegionPool(1024 * 1024)) {
+      try (FileOutputStream out = new FileOutputStream(oldFile)) {
+        out.write(oldData);
+      }
+      try (FileOutputStream out = new FileOutputStream(newFile)) {
+        out.write(newData);
+      }
+      final MappedRegionPool finalPool = pool;
+      final List<Integer> idleRegionsWhenAcquired = new ArrayList<Integer>();
+      final long[] bytesInUse = new long[1];
+      DiskUsageListener listener =
+          new DiskUsageListener() {
+            @Override
+            public void diskUsageChanged(long bytes) {
+              if (bytes > 0) {
+                idleRegionsWhenAcquired.add(finalPool.getIdleRegionCount());
+              }
+              bytesInUse[0] += bytes;
+            }
+          };
+      for (int x = 0; x < 2; x++) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // No heap available, so the suffix array is stored in a region of the pool.
+        BsDiffPatchWriter.generatePatch(
+            oldFile,
+            newFile,
+            out,
+            null,
+            BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH,
+            null,
+            listener,
+            pool,
+            0);
+        Assert.assertArrayEquals(expectedPatch, out.toByteArray());
+        Assert.assertEquals(1, pool.getIdleRegionCount());
+        Assert.assertEquals(0, bytesInUse[0]);
+      }
+      // The second patch took the region that the first one returned to the pool; a new region
+      // would have been created while that one was still idle.
+      Assert.assertEquals(Arrays.asList(0, 0), idleRegionsWhenAcquired);
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
   public void generatePatchOnRealCompiledBinaryTest() throws Exception {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     byte[] oldData = readTestData("minimalBlobA.bin");
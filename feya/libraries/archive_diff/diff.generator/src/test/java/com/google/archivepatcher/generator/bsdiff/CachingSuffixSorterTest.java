@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingSuffixSorterTest extends SuffixSorterTestBase {
+
+  File indexDirectory;
+  CountingSuffixSorter countingSuffixSorter;
+  CachingSuffixSorter cachingSuffixSorter;
+
+  @Before
+  public void setup() throws IOException {
+    indexDirectory = File.createTempFile("CachingSuffixSorterTest", "dir");
+    indexDirectory.delete();
+    countingSuffixSorter = new CountingSuffixSorter();
+    cachingSuffixSorter = new CachingSuffixSorter(indexDirectory, countingSuffixSorter);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = indexDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    indexDirectory.delete();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return cachingSuffixSorter;
+  }
+
+  @Test
+  public void reusesIndexTest() throws Exception {
+    int[] expected = BsDiffTestData.QUICK_SUFFIX_SORT_TEST_IA_CONTROL;
+    try (RandomAccessObject suffixArray =
+        cachingSuffixSorter.suffixSort(BsDiffTestData.LONGER_DATA_349_RO)) {
+      Assert.assertArrayEquals(expected, randomAccessObjectToIntArray(suffixArray));
+    }
+    Assert.assertEquals(1, countingSuffixSorter.count);
+    File indexFile =
+        cachingSuffixSorter.getIndexFile(
+            CachingSuffixSorter.digest(BsDiffTestData.LONGER_DATA_349_RO));
+    Assert.assertTrue(indexFile.isFile());
+    Assert.assertEquals(CachingSuffixSorter.HEADER_SIZE + 4 * 350, indexFile.length());
+
+    // A second sorter sharing the directory loads the index instead of sorting.
+    CachingSuffixSorter other = new CachingSuffixSorter(indexDirectory, countingSuffixSorter);
+    try (RandomAccessObject suffixArray = other.suffixSort(BsDiffTestData.LONGER_DATA_349_RO)) {
+      Assert.assertArrayEquals(expected, randomAccessObjectToIntArray(suffixArray));
+    }
+    Assert.assertEquals(1, countingSuffixSorter.count);
+  }
+
+  @Test
+  public void reportsIndexFilesTest() throws Exception {
+    final long[] bytesInUse = new long[1];
+    DiskUsageListener listener =
+        new DiskUsageListener() {
+          @Override
+          public void diskUsageChanged(long bytes) {
+            bytesInUse[0] += bytes;
+          }
+        };
+    CachingSuffixSorter reporting = cachingSuffixSorter.withDiskUsageListener(listener);
+    reporting.suffixSort(BsDiffTestData.LONGER_DATA_349_RO).close();
+    Assert.assertEquals(CachingSuffixSorter.HEADER_SIZE + 4 * 350, bytesInUse[0]);
+
+    // Loading an existing index writes nothing.
+    reporting.suffixSort(BsDiffTestData.LONGER_DATA_349_RO).close();
+    Assert.assertEquals(1, countingSuffixSorter.count);
+    Assert.assertEquals(CachingSuffixSorter.HEADER_SIZE + 4 * 350, bytesInUse[0]);
+  }
+
+  @Test
+  public void ignoresCorruptIndexTest() throws Exception {
+    cachingSuffixSorter.suffixSort(BsDiffTestData.LONG_DATA_99_RO).close();
+    File indexFile =
+        cachingSuffixSorter.getIndexFile(
+            CachingSuffixSorter.digest(BsDiffTestData.LONG_DATA_99_RO));
+    try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+      file.seek(CachingSuffixSorter.HEADER_SIZE + 8);
+      file.writeInt(12345);
+    }
+
+    try (RandomAccessObject suffixArray =
+        cachingSuffixSorter.suffixSort(BsDiffTestData.LONG_DATA_99_RO)) {
+      Assert.assertArrayEquals(
+          BsDiffTestData.QUICK_SUFFIX_SORT_TEST_GA_CONTROL,
+          randomAccessObjectToIntArray(suffixArray));
+    }
+    Assert.assertEquals(2, countingSuffixSorter.count);
+
+    // The corrupt index has been replaced.
+    cachingSuffixSorter.suffixSort(BsDiffTestData.LONG_DATA_99_RO).close();
+    Assert.assertEquals(2, countingSuffixSorter.count);
+  }
+
+  private static class CountingSuffixSorter implements SuffixSorter {
+    int count;
+
+    @Override
+    public RandomAccessObject suffixSort(RandomAccessObject data)
+        throws IOException, InterruptedException {
+      count++;
+      return new InMemoryDivSuffixSorter().suffixSort(data);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InMemoryDivSuffixSorterTest extends SuffixSorterTestBase {
+
+  InMemoryDivSuffixSorter inMemoryDivSuffixSorter;
+
+  @Before
+  public void setup() {
+    inMemoryDivSuffixSorter = new InMemoryDivSuffixSorter();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return inMemoryDivSuffixSorter;
+  }
+
+  @Test
+  public void matchesDivSuffixSorterTest() throws Exception {
+    DivSuffixSorter divSuffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    Random rand = new Random(20170101);
+    for (int i = 1; i <= 5; i++) {
+      // Use a small alphabet so that there are plenty of repeated substrings.
+      byte[] bytes = new byte[i * 5000];
+      for (int x = 0; x < bytes.length; x++) {
+        bytes[x] = (byte) rand.nextInt(4);
+      }
+      RandomAccessObject expected =
+          divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(bytes));
+      Assert.assertArrayEquals(
+          randomAccessObjectToIntArray(expected), inMemoryDivSuffixSorter.suffixSort(bytes));
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Tests for {@link MappedRegionPool}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class MappedRegionPoolTest {
+  private MappedRegionPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new MappedRegionPool(100000);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    pool.close();
+  }
+
+  @Test
+  public void testAcquire_ReusesRegion() throws IOException {
+    RandomAccessObject obj = pool.acquire(10000);
+    Assert.assertEquals(10000, obj.length());
+    obj.seekToIntAligned(2499);
+    obj.writeInt(0x01020304);
+    obj.close();
+    Assert.assertEquals(1, pool.getIdleRegionCount());
+
+    // Slightly smaller, so the same region is reused; it is not zeroed.
+    obj = pool.acquire(9999);
+    Assert.assertEquals(0, pool.getIdleRegionCount());
+    Assert.assertEquals(9999, obj.length());
+    obj.seek(9996);
+    Assert.assertEquals(0x010203, obj.readShort() << 8 | obj.readUnsignedByte());
+    obj.close();
+    // Closing again does not return the region twice.
+    obj.close();
+    Assert.assertEquals(1, pool.getIdleRegionCount());
+  }
+
+  @Test
+  public void testAcquire_DoesNotReuseRegionsTooLargeOrTooSmall() throws IOException {
+    pool.acquire(10000).close();
+    RandomAccessObject obj1 = pool.acquire(3000);
+    RandomAccessObject obj2 = pool.acquire(20000);
+    Assert.assertEquals(1, pool.getIdleRegionCount());
+    obj1.close();
+    obj2.close();
+    Assert.assertEquals(3, pool.getIdleRegionCount());
+  }
+
+  @Test
+  public void testRelease_EvictsOldestRegions() throws IOException {
+    RandomAccessObject obj1 = pool.acquire(40000);
+    RandomAccessObject obj2 = pool.acquire(40000);
+    RandomAccessObject obj3 = pool.acquire(40000);
+    obj1.close();
+    obj2.close();
+    obj3.close();
+    Assert.assertEquals(2, pool.getIdleRegionCount());
+
+    // Larger than the whole pool; never kept.
+    pool.acquire(200000).close();
+    Assert.assertEquals(2, pool.getIdleRegionCount());
+  }
+
+  @Test
+  public void testClose() throws IOException {
+    RandomAccessObject obj = pool.acquire(1000);
+    pool.acquire(2000).close();
+    pool.close();
+    Assert.assertEquals(0, pool.getIdleRegionCount());
+    // Still usable until it is closed, and then not kept.
+    obj.writeInt(7);
+    obj.close();
+    Assert.assertEquals(0, pool.getIdleRegionCount());
+    try {
+      pool.acquire(1000);
+      Assert.fail("Acquired from a closed pool");
+    } catch (IllegalStateException expected) {
+      // Pass
+    }
+  }
+
+  @Test
+  public void testFactory() throws Exception {
+    RandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw", pool);
+    SuffixSorter sorter = new DivSuffixSorter(factory);
+    byte[] data = "banana bandana cabana".getBytes("US-ASCII");
+    int[] expected;
+    try (RandomAccessObject input = new RandomAccessObject.RandomAccessByteArrayObject(data);
+        RandomAccessObject suffixArray = sorter.suffixSort(input)) {
+      expected = SuffixSorterTestBase.randomAccessObjectToIntArray(suffixArray);
+    }
+    Assert.assertEquals(1, pool.getIdleRegionCount());
+    // The second sort reuses the region with the first sort's suffix array still in it.
+    try (RandomAccessObject input = new RandomAccessObject.RandomAccessByteArrayObject(data);
+        RandomAccessObject suffixArray = sorter.suffixSort(input)) {
+      Assert.assertEquals(0, pool.getIdleRegionCount());
+      Assert.assertArrayEquals(
+          expected, SuffixSorterTestBase.randomAccessObjectToIntArray(suffixArray));
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ParallelDivSuffixSorterTest extends SuffixSorterTestBase {
+
+  ForkJoinPool pool;
+  ParallelDivSuffixSorter parallelDivSuffixSorter;
+
+  @Before
+  public void setup() {
+    pool = new ForkJoinPool(4);
+    parallelDivSuffixSorter = new ParallelDivSuffixSorter(pool);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return parallelDivSuffixSorter;
+  }
+
+  @Test
+  public void matchesDivSuffixSorterTest() throws Exception {
+    DivSuffixSorter divSuffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    Random rand = new Random(20170102);
+    for (int alphabet : new int[] {2, 16, 256}) {
+      byte[] bytes = new byte[50000];
+      for (int x = 0; x < bytes.length; x++) {
+        bytes[x] = (byte) rand.nextInt(alphabet);
+      }
+      RandomAccessObject expected =
+          divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(bytes));
+      Assert.assertArrayEquals(
+          randomAccessObjectToIntArray(expected), parallelDivSuffixSorter.suffixSort(bytes));
+    }
+  }
+
+  @Test
+  public void privatePoolTest() throws Exception {
+    Assert.assertArrayEquals(
+        BsDiffTestData.QUICK_SUFFIX_SORT_TEST_IA_CONTROL,
+        new ParallelDivSuffixSorter(3).suffixSort(BsDiffTestData.LONGER_DATA_349));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badParallelismTest() {
+    new ParallelDivSuffixSorter(0);
+  }
+}
@@ -18,6 +18,7 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.util.Random;
 
 @RunWith(JUnit4.class)
 public class RandomAccessObjectTest {
@@ -561,6 +562,253 @@ public class RandomAccessObjectTest {
     }
   }
 
+  @Test
+  public void bulkOperationsTest() throws IOException {
+    // Long enough to exercise the chunking of the generic implementations.
+    byte[] data1 = new byte[20000];
+    new Random(1234).nextBytes(data1);
+    byte[] data2 = data1.clone();
+    int[] mismatches = new int[] {3, 11, 12, 100, 8191, 8192, 17000};
+    for (int mismatch : mismatches) {
+      data2[mismatch] ^= 0x5a;
+    }
+
+    File file1 = storeInTempFile(new ByteArrayInputStream(data1));
+    File file2 = storeInTempFile(new ByteArrayInputStream(data2));
+    try (RandomAccessFile raf1 = new RandomAccessFile(file1, "r");
+        RandomAccessFile raf2 = new RandomAccessFile(file2, "r");
+        RandomAccessObject fileObj1 = new RandomAccessObject.RandomAccessFileObject(file1, "r");
+        RandomAccessObject fileObj2 = new RandomAccessObject.RandomAccessFileObject(file2, "r");
+        RandomAccessObject mmapObj1 = new RandomAccessObject.RandomAccessMmapObject(raf1, "r");
+        RandomAccessObject mmapObj2 = new RandomAccessObject.RandomAccessMmapObject(raf2, "r");
+        RandomAccessObject arrayObj1 = new RandomAccessObject.RandomAccessByteArrayObject(data1);
+        RandomAccessObject arrayObj2 = new RandomAccessObject.RandomAccessByteArrayObject(data2);
+        RandomAccessObject segmentedObj1 =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(raf1, "r", 0, data1.length, 10);
+        RandomAccessObject segmentedObj2 =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(
+                raf2, "r", 0, data2.length, 13)) {
+      RandomAccessObject[] objs1 =
+          new RandomAccessObject[] {fileObj1, mmapObj1, arrayObj1, segmentedObj1};
+      RandomAccessObject[] objs2 =
+          new RandomAccessObject[] {fileObj2, mmapObj2, arrayObj2, segmentedObj2};
+      for (RandomAccessObject obj1 : objs1) {
+        for (RandomAccessObject obj2 : objs2) {
+          bulkOperationsTest(obj1, data1, obj2, data2);
+        }
+      }
+    } finally {
+      file1.delete();
+      file2.delete();
+    }
+  }
+
+  @Test
+  public void segmentedLengthTest() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+
+    try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "r");
+        RandomAccessObject obj =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(raf, "r", 0, 13, 3);
+        RandomAccessObject region =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(raf, "r", 2, 9, 3)) {
+      Assert.assertEquals(13, obj.length());
+      Assert.assertEquals(9, region.length());
+      Assert.assertEquals(3, region.readByte());
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void segmentedReadIntTest() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+
+    try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "r");
+        RandomAccessObject obj =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(raf, "r", 0, 13, 3)) {
+      readIntTest(obj);
+      try {
+        obj.readInt();
+        Assert.fail("Should've thrown an EOFException");
+      } catch (EOFException expected) {
+      }
+
+      // Straddling the boundary between the first and second segments.
+      obj.seek(6);
+      Assert.assertEquals(0x0708090A, obj.readInt());
+      obj.seek(1);
+      Assert.assertEquals(0x0203040506070809L, obj.readLong());
+      obj.seek(7);
+      Assert.assertEquals(0x0809, obj.readShort());
+      byte[] buffer = new byte[11];
+      obj.readFully(1, buffer, 0, 11);
+      for (int x = 0; x < buffer.length; x++) {
+        Assert.assertEquals(BLOB[x + 1], buffer[x]);
+      }
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void segmentedWriteTest() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(new byte[32]));
+
+    try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        RandomAccessObject obj =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(raf, "rw", 0, 32, 3)) {
+      // Every value straddles a segment boundary, except for the first int.
+      obj.writeInt(0x01020304);
+      obj.writeByte(5);
+      obj.writeInt(0x06070809);
+      obj.writeLong(0x0A0B0C0D0E0F1011L);
+      obj.writeShort(0x1213);
+      obj.write(new byte[] {0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x1B, 0x1C, 0x1D, 0x1E});
+      try {
+        obj.writeInt(0);
+        Assert.fail("Should've thrown an EOFException");
+      } catch (EOFException expected) {
+      }
+
+      obj.seek(0);
+      for (int x = 0; x < 30; x++) {
+        Assert.assertEquals(x + 1, obj.readByte());
+      }
+      Assert.assertEquals(0, obj.readShort());
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void segmentedSeekToIntAlignedTest() throws IOException {
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+
+    try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        RandomAccessObject obj =
+            new RandomAccessObject.RandomAccessSegmentedMmapObject(raf, "rw", 0, 13, 3)) {
+      seekToIntAlignedTest(obj);
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  @Test
+  public void segmentedCloseTest() throws IOException {
+    String prefix = "RandomAccessObjectTest" + System.nanoTime();
+    try (RandomAccessObject obj =
+        new RandomAccessObject.RandomAccessSegmentedMmapObject(prefix, "rw", 100, 5)) {
+      for (int x = 0; x < 25; x++) {
+        obj.writeInt(x);
+      }
+      obj.seekToIntAligned(24);
+      Assert.assertEquals(24, obj.readInt());
+      Assert.assertEquals(1, countTempFiles(prefix));
+    }
+    Assert.assertEquals(0, countTempFiles(prefix));
+  }
+
+  private static int countTempFiles(String prefix) {
+    int count = 0;
+    for (File file : new File(System.getProperty("java.io.tmpdir")).listFiles()) {
+      if (file.getName().startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void mmapFactoryTest_DiskUsageListener() throws IOException {
+    final long[] bytesInUse = new long[1];
+    DiskUsageListener listener =
+        new DiskUsageListener() {
+          @Override
+          public void diskUsageChanged(long bytes) {
+            bytesInUse[0] += bytes;
+          }
+        };
+    RandomAccessObject obj =
+        new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw", listener).create(1234);
+    Assert.assertEquals(1234, bytesInUse[0]);
+    obj.close();
+    Assert.assertEquals(0, bytesInUse[0]);
+    // Closing again does not report the deletion twice.
+    obj.close();
+    Assert.assertEquals(0, bytesInUse[0]);
+  }
+
+  @Test
+  public void mmapFactoryTest_LargerThan2GiB() throws IOException {
+    // The temp file is sparse, so only the pages that are written take up space.
+    long size = Integer.MAX_VALUE + 1024L;
+    try (RandomAccessObject obj =
+        new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw").create(size)) {
+      Assert.assertTrue(obj instanceof RandomAccessObject.RandomAccessSegmentedMmapObject);
+      Assert.assertEquals(size, obj.length());
+      obj.seek(size - 4);
+      obj.writeInt(0x01020304);
+      obj.seek(1L << 30);
+      obj.writeLong(0x05060708090A0B0CL);
+      obj.seek(size - 4);
+      Assert.assertEquals(0x01020304, obj.readInt());
+      obj.seek(1L << 30);
+      Assert.assertEquals(0x05060708090A0B0CL, obj.readLong());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void byteArrayFactoryTest_LargerThan2GiB() throws IOException {
+    new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory()
+        .create(Integer.MAX_VALUE + 1L);
+  }
+
+  private void bulkOperationsTest(
+      RandomAccessObject obj1, byte[] data1, RandomAccessObject obj2, byte[] data2)
+      throws IOException {
+    int[] starts = new int[] {0, 1, 3, 4, 7, 12, 13, 99, 101, 8000, 16999, 19999};
+    for (int start : starts) {
+      for (int shift : new int[] {0, 1, -1}) {
+        int otherStart = Math.max(0, start + shift);
+        int maxLength = Math.min(data1.length - start, data2.length - otherStart);
+        Assert.assertEquals(
+            naiveLengthOfMatch(data1, start, data2, otherStart, maxLength),
+            obj1.lengthOfMatch(start, obj2, otherStart, maxLength));
+        // A shorter limit is honored.
+        Assert.assertEquals(
+            Math.min(5, naiveLengthOfMatch(data1, start, data2, otherStart, maxLength)),
+            obj1.lengthOfMatch(start, obj2, otherStart, Math.min(5, maxLength)));
+
+        byte[] diff = new byte[maxLength + 2];
+        obj1.readDiff(start, obj2, otherStart, diff, 1, maxLength);
+        for (int i = 0; i < maxLength; i++) {
+          Assert.assertEquals((byte) (data1[start + i] - data2[otherStart + i]), diff[1 + i]);
+        }
+        Assert.assertEquals(0, diff[0]);
+        Assert.assertEquals(0, diff[maxLength + 1]);
+
+        byte[] read = new byte[maxLength + 1];
+        obj2.readFully(otherStart, read, 1, maxLength);
+        for (int i = 0; i < maxLength; i++) {
+          Assert.assertEquals(data2[otherStart + i], read[1 + i]);
+        }
+      }
+    }
+    Assert.assertEquals(0, obj1.lengthOfMatch(5, obj2, 5, 0));
+    Assert.assertEquals(data1.length, obj1.lengthOfMatch(0, obj1, 0, data1.length));
+  }
+
+  private static int naiveLengthOfMatch(
+      byte[] data1, int start1, byte[] data2, int start2, int maxLength) {
+    for (int i = 0; i < maxLength; i++) {
+      if (data1[start1 + i] != data2[start2 + i]) {
+        return i;
+      }
+    }
+    return maxLength;
+  }
+
   private void readIntTest(final RandomAccessObject obj) throws IOException {
     Assert.assertEquals(0x01020304, obj.readInt());
     Assert.assertEquals(0x05060708, obj.readInt());
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SaisSuffixSorterTest extends SuffixSorterTestBase {
+
+  SaisSuffixSorter saisSuffixSorter;
+
+  @Before
+  public void setup() {
+    saisSuffixSorter = new SaisSuffixSorter();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return saisSuffixSorter;
+  }
+
+  @Test
+  public void matchesDivSuffixSorterTest() throws Exception {
+    InMemoryDivSuffixSorter divSuffixSorter = new InMemoryDivSuffixSorter();
+    Random rand = new Random(20170103);
+    for (int i = 0; i < 500; i++) {
+      byte[] bytes = new byte[rand.nextInt(2000)];
+      int alphabet = 1 + rand.nextInt(i % 2 == 0 ? 3 : 256);
+      for (int x = 0; x < bytes.length; x++) {
+        bytes[x] = (byte) rand.nextInt(alphabet);
+      }
+      Assert.assertArrayEquals(
+          divSuffixSorter.suffixSort(bytes), saisSuffixSorter.suffixSort(bytes));
+    }
+  }
+
+  @Test
+  public void repetitiveDataTest() throws Exception {
+    // Long runs of a single byte with periodic noise, like zero-padded native libraries.
+    byte[] bytes = new byte[100000];
+    for (int x = 0; x < bytes.length; x++) {
+      bytes[x] = (x % 1000) < 990 ? 0 : (byte) (x % 7);
+    }
+    Assert.assertArrayEquals(
+        new InMemoryDivSuffixSorter().suffixSort(bytes), saisSuffixSorter.suffixSort(bytes));
+  }
+}
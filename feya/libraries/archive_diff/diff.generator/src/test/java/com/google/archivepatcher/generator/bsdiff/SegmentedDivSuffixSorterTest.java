@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+
+/**
+ * Runs the {@link DivSuffixSorter} tests with the suffix array in a {@link
+ * RandomAccessObject.RandomAccessSegmentedMmapObject} with tiny segments, so that most entries of
+ * the suffix array are near a segment boundary and some straddle one.
+ */
+@RunWith(JUnit4.class)
+public class SegmentedDivSuffixSorterTest extends SuffixSorterTestBase {
+
+  DivSuffixSorter divSuffixSorter;
+
+  @Before
+  public void setup() {
+    divSuffixSorter =
+        new DivSuffixSorter(
+            new RandomAccessObjectFactory() {
+              @Override
+              public RandomAccessObject create(long size) throws IOException {
+                return new RandomAccessObject.RandomAccessSegmentedMmapObject(
+                    "SegmentedDivSuffixSorterTest", "rw", size, 6);
+              }
+            });
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return divSuffixSorter;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs groups of tasks concurrently for the generator and the applier, with the same handling of
+ * failures and interrupts everywhere: if a task fails, or the calling thread is interrupted while
+ * waiting, the remaining tasks are cancelled, and no task is still running when the call returns,
+ * so that no task outlives the resources it borrows from the caller.
+ */
+public final class ConcurrentTasks {
+  private ConcurrentTasks() {
+    // Static methods only
+  }
+
+  /**
+   * Runs the specified tasks and waits for all of them to complete. If at most one thread is
+   * allowed, or there is at most one task, the tasks run on the current thread, in order.
+   * Otherwise they run on the specified executor or, if it is null, on a private pool of at most
+   * the specified number of threads, which is shut down before this method returns. A supplied
+   * executor is left running.
+   *
+   * @param tasks the tasks to run; tasks are started in list order
+   * @param executor the executor to run the tasks on, or null to use a private pool
+   * @param numThreads the maximum number of threads of the private pool
+   * @throws IOException if a task fails with an IOException, or with a checked exception other
+   *     than an InterruptedException, which is wrapped in an IOException
+   * @throws InterruptedException if the current thread is interrupted while waiting, or a task is
+   * @throws IllegalArgumentException if numThreads is less than 1
+   */
+  public static void run(
+      List<? extends Callable<Void>> tasks, ExecutorService executor, int numThreads)
+      throws IOException, InterruptedException {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+    }
+    if (numThreads == 1 || tasks.size() <= 1) {
+      for (Callable<Void> task : tasks) {
+        try {
+          task.call();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+      return;
+    }
+    ExecutorService pool =
+        executor != null
+            ? executor
+            : Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()));
+    RunningTasks runningTasks = new RunningTasks();
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+    try {
+      for (Callable<Void> task : tasks) {
+        futures.add(pool.submit(runningTasks.track(task)));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof InterruptedException) {
+        throw (InterruptedException) e.getCause();
+      }
+      throw rethrowCause(e);
+    } finally {
+      runningTasks.stopStarting();
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+      if (pool != executor) {
+        shutdownAndAwaitTermination(pool);
+      } else {
+        runningTasks.awaitNoneRunning();
+      }
+    }
+  }
+
+  /**
+   * Throws the cause of the specified exception if it is an {@link IOException}, a {@link
+   * RuntimeException} or an {@link Error}, and otherwise returns an IOException that wraps it, for
+   * the caller to throw. An InterruptedException is wrapped as well, so callers that can be
+   * interrupted should check for it first.
+   *
+   * @param e the exception thrown by {@link Future#get()}
+   * @return an IOException that wraps the cause, if it is of none of the types above
+   * @throws IOException if the cause is an IOException
+   */
+  public static IOException rethrowCause(ExecutionException e) throws IOException {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IOException(cause);
+  }
+
+  /**
+   * Shuts down the specified pool, interrupting its threads, and waits for them to terminate. The
+   * interrupt status of the current thread is preserved.
+   *
+   * @param pool the pool to shut down
+   */
+  public static void shutdownAndAwaitTermination(ExecutorService pool) {
+    pool.shutdownNow();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Keeps track of the tasks that are running on an executor that cannot be shut down, so that
+   * {@link #run(List, ExecutorService, int)} can wait for them all the same.
+   */
+  private static final class RunningTasks {
+    private int numRunning = 0;
+    private boolean stopped = false;
+
+    /**
+     * Returns a task that runs the specified one, unless {@link #stopStarting()} has already been
+     * called, and that is counted as running meanwhile.
+     */
+    Callable<Void> track(final Callable<Void> task) {
+      return new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          if (!started()) {
+            return null;
+          }
+          try {
+            return task.call();
+          } finally {
+            finished();
+          }
+        }
+      };
+    }
+
+    private synchronized boolean started() {
+      if (stopped) {
+        return false;
+      }
+      numRunning++;
+      return true;
+    }
+
+    private synchronized void finished() {
+      numRunning--;
+      notifyAll();
+    }
+
+    synchronized void stopStarting() {
+      stopped = true;
+    }
+
+    /**
+     * Waits until no task is running. The interrupt status of the current thread is preserved.
+     */
+    synchronized void awaitNoneRunning() {
+      boolean interrupted = false;
+      while (numRunning > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
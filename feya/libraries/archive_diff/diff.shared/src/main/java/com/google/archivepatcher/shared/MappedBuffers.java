@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.shared;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmaps {@link MappedByteBuffer}s explicitly. The JRE only unmaps a buffer once it has been
+ * garbage collected, so until then the mapping holds on to address space and, on some systems
+ * (Windows for one), prevents the mapped file from being deleted. Forcing a full GC to get rid of
+ * the buffer stalls every thread in the process.
+ *
+ * <p>Where the runtime allows it, this class runs the buffer's cleaner directly: through {@code
+ * sun.misc.Unsafe.invokeCleaner} on Java 9 and later, or through {@code
+ * sun.nio.ch.DirectBuffer.cleaner()} on Java 7 and 8. Elsewhere, e.g. on Android, unmapping is
+ * not supported and the buffer is unmapped when it is garbage collected, as before.
+ *
+ * <p>A buffer MUST NOT be accessed in any way once it has been unmapped, as that crashes the VM.
+ * Callers have to drop every reference to the buffer, including to its duplicates and slices,
+ * before unmapping it.
+ */
+public final class MappedBuffers {
+  /**
+   * The sun.misc.Unsafe instance, if {@link #INVOKE_CLEANER} is available.
+   */
+  private static final Object UNSAFE;
+
+  /**
+   * sun.misc.Unsafe.invokeCleaner(ByteBuffer), on Java 9 and later.
+   */
+  private static final Method INVOKE_CLEANER;
+
+  /**
+   * sun.nio.ch.DirectBuffer.cleaner(), on Java 7 and 8.
+   */
+  private static final Method CLEANER;
+
+  /**
+   * sun.misc.Cleaner.clean(), on Java 7 and 8.
+   */
+  private static final Method CLEAN;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method cleaner = null;
+    Method clean = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      unsafe = null;
+      invokeCleaner = null;
+      try {
+        cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+        clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      } catch (ReflectiveOperationException | RuntimeException e2) {
+        cleaner = null;
+        clean = null;
+      }
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+    CLEANER = cleaner;
+    CLEAN = clean;
+  }
+
+  private MappedBuffers() {
+    // Static methods only
+  }
+
+  /**
+   * Returns whether buffers can be unmapped explicitly on this runtime.
+   *
+   * @return true if so
+   */
+  public static boolean isUnmapSupported() {
+    return INVOKE_CLEANER != null || CLEANER != null;
+  }
+
+  /**
+   * Unmaps the specified buffer, if this runtime supports it. Does nothing if the buffer is null,
+   * is not a direct buffer, or is a duplicate or slice of another buffer.
+   *
+   * @param buffer the buffer to unmap, which must not be accessed afterwards
+   * @return true if the buffer was unmapped; false if it will be unmapped when it is garbage
+   *     collected
+   */
+  public static boolean unmap(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return false;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        return true;
+      }
+      if (CLEANER != null) {
+        Object cleaner = CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          CLEAN.invoke(cleaner);
+          return true;
+        }
+      }
+    } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+      // Duplicates and slices can't be unmapped; fall back to unmapping on garbage collection.
+    }
+    return false;
+  }
+}
@@ -13,6 +13,16 @@ public class PatchConstants {
    */
   public static final String IDENTIFIER = "GFbFv1_0"; // Google File-by-File v1.0
 
+  /**
+   * The identifier that begins patches of this type that contain more than one delta, or a delta
+   * that does not cover the entire delta-friendly files. The format is otherwise the same as that
+   * of {@link #IDENTIFIER} patches, but the work ranges of the deltas are significant: the old
+   * ranges may be any ranges of the delta-friendly old file, while the new ranges must be in order
+   * and together cover the entire delta-friendly new file. Older appliers reject these patches,
+   * as they only know how to apply a single delta to the entire delta-friendly old file.
+   */
+  public static final String IDENTIFIER_MULTIPLE_DELTAS = "GFbFv1_1"; // Google File-by-File v1.1
+
   /**
    * All available compatibility windows. The {@link #patchValue} field specifies the value for
    * each constant as represented in a patch file.
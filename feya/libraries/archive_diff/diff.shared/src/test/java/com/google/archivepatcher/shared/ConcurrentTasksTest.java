@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ConcurrentTasks}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ConcurrentTasksTest {
+
+  /**
+   * A task that blocks until it is interrupted, counting the tasks that are still running.
+   */
+  private static Callable<Void> blockingTask(
+      final CountDownLatch started, final AtomicInteger numRunning) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        numRunning.incrementAndGet();
+        try {
+          started.countDown();
+          Thread.sleep(60000);
+          return null;
+        } finally {
+          // Give the caller a chance to return early, if it does not wait for this task.
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException ignored) {
+            // Still finish below
+          }
+          numRunning.decrementAndGet();
+        }
+      }
+    };
+  }
+
+  private static Callable<Void> failingTask(final CountDownLatch othersStarted) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws IOException, InterruptedException {
+        othersStarted.await();
+        throw new IOException("failed");
+      }
+    };
+  }
+
+  private static void assertFailureStopsOthers(ExecutorService executor) throws Exception {
+    AtomicInteger numRunning = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(3);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int x = 0; x < 3; x++) {
+      tasks.add(blockingTask(started, numRunning));
+    }
+    tasks.add(failingTask(started));
+    try {
+      ConcurrentTasks.run(tasks, executor, 4);
+      Assert.fail("Expected IOException");
+    } catch (IOException expected) {
+      Assert.assertEquals("failed", expected.getMessage());
+    }
+    // Every task has finished by the time run() returns.
+    Assert.assertEquals(0, numRunning.get());
+  }
+
+  @Test
+  public void testRun_PrivatePool() throws Exception {
+    final AtomicInteger numRun = new AtomicInteger();
+    Callable<Void> task =
+        new Callable<Void>() {
+          @Override
+          public Void call() {
+            numRun.incrementAndGet();
+            return null;
+          }
+        };
+    ConcurrentTasks.run(Collections.nCopies(10, task), null, 3);
+    Assert.assertEquals(10, numRun.get());
+  }
+
+  @Test
+  public void testRun_SingleThreadRunsInline() throws Exception {
+    final Thread caller = Thread.currentThread();
+    Callable<Void> task =
+        new Callable<Void>() {
+          @Override
+          public Void call() {
+            Assert.assertSame(caller, Thread.currentThread());
+            return null;
+          }
+        };
+    ConcurrentTasks.run(Collections.nCopies(3, task), null, 1);
+  }
+
+  @Test
+  public void testRun_FailureStopsOthers_PrivatePool() throws Exception {
+    assertFailureStopsOthers(null);
+  }
+
+  @Test
+  public void testRun_FailureStopsOthers_SuppliedExecutor() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      assertFailureStopsOthers(executor);
+      // The supplied executor is left running.
+      Assert.assertFalse(executor.isShutdown());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRun_BadNumThreads() throws Exception {
+    ConcurrentTasks.run(new ArrayList<Callable<Void>>(), null, 0);
+  }
+
+  @Test
+  public void testRethrowCause() {
+    IOException ioException = new IOException();
+    try {
+      ConcurrentTasks.rethrowCause(new ExecutionException(ioException));
+      Assert.fail("Expected IOException");
+    } catch (IOException expected) {
+      Assert.assertSame(ioException, expected);
+    }
+    IllegalStateException runtimeException = new IllegalStateException();
+    try {
+      ConcurrentTasks.rethrowCause(new ExecutionException(runtimeException));
+      Assert.fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      Assert.assertSame(runtimeException, expected);
+    } catch (IOException e) {
+      Assert.fail("Unexpected IOException");
+    }
+    Exception checked = new Exception();
+    try {
+      Assert.assertSame(
+          checked, ConcurrentTasks.rethrowCause(new ExecutionException(checked)).getCause());
+    } catch (IOException e) {
+      Assert.fail("Unexpected IOException");
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017. Kaede (kidhaibara@gmail.com) All Rights Reserved.
+ */
+
+package com.google.archivepatcher.shared;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link MappedBuffers}.
+ */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class MappedBuffersTest {
+
+  @Test
+  public void testUnmap() throws IOException {
+    if (!MappedBuffers.isUnmapSupported()) {
+      // Nothing to test on this runtime.
+      return;
+    }
+    File file = File.createTempFile("MappedBuffersTest", "temp");
+    try {
+      MappedByteBuffer buffer;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+      }
+      buffer.putInt(0, 0x01020304);
+      // A duplicate shares the mapping, so it can't be unmapped on its own.
+      Assert.assertFalse(MappedBuffers.unmap(buffer.duplicate()));
+      Assert.assertTrue(MappedBuffers.unmap(buffer));
+      // The data was written through to the file before the mapping went away.
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        Assert.assertEquals(0x01020304, raf.readInt());
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testUnmap_NotMapped() {
+    Assert.assertFalse(MappedBuffers.unmap(null));
+    Assert.assertFalse(MappedBuffers.unmap(ByteBuffer.allocate(16)));
+  }
+}